@@ -15,7 +15,6 @@ import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -32,6 +31,8 @@ import fc.xml.xas.ItemTarget;
 import fc.xml.xas.ItemTransform;
 import fc.xml.xas.ParserSource;
 import fc.xml.xas.SerializerTarget;
+import fc.xml.xas.XasUtil;
+import fc.xml.xas.XmlOutput;
 import fc.xml.xas.StartTag;
 import fc.xml.xas.index.Index;
 import fc.xml.xas.index.SeekableKXmlSource;
@@ -41,13 +42,55 @@ import fc.xml.xmlr.ChangeBuffer;
 import fc.xml.xmlr.Key;
 import fc.xml.xmlr.MutableRefTreeImpl;
 import fc.xml.xmlr.NodeNotFoundException;
+import fc.xml.xmlr.RefTree;
 import fc.xml.xmlr.model.KeyIdentificationModel;
 import fc.xml.xmlr.model.TreeModel;
 import fc.xml.xmlr.xas.UniformXasCodec;
+import fc.xml.xmlr.xas.XasSerialization;
 import fc.xml.xmlr.xas.XasRefTree;
 
 public class IdStore extends XasStore {
   
+  /** Flag for using a stored index. If set, the index of the store
+   * is stored next to the store XML file (see {@link IdStoreIndex}), so that
+   * the XML file need not be parsed when the store is opened. The value is
+   * read from the system property <code>fc.raxs.store.index</code>. Default
+   * value is <code>true</code>.
+   */
+  public static final boolean STORED_INDEX = new Boolean(
+      System.getProperty("fc.raxs.store.index", "true")).booleanValue();
+
+  /** Flag for segmented commits. If set, a commit appends the changed parts
+   * of the document to a log next to the store XML file, and refers to the
+   * unchanged parts of the previous version instead of copying them (see
+   * {@link StoreSegments}). The index is updated rather than rebuilt. The
+   * store XML file then holds the document only after the store has been
+   * compacted, see {@link #MAX_SEGMENTS} and {@link #MAX_LOG_PERCENT}.
+   * The value is read from the system property 
+   * <code>fc.raxs.store.segments</code>. Default value is <code>false</code>.
+   */
+  public static final boolean SEGMENTED = new Boolean(
+      System.getProperty("fc.raxs.store.segments", "false")).booleanValue();
+
+  /** Maximum number of segments in a segmented store. A commit to a store
+   * with more segments rewrites the store XML file. The value is read from
+   * the system property <code>fc.raxs.store.segments.max</code>. Default
+   * value is 4096.
+   */
+  public static final int MAX_SEGMENTS =
+    Integer.getInteger("fc.raxs.store.segments.max", 4096).intValue();
+
+  /** Maximum log size of a segmented store, in percent of the document
+   * size. A commit to a store with a larger log rewrites the store XML file.
+   * The value is read from the system property
+   * <code>fc.raxs.store.segments.log</code>. Default value is 100.
+   */
+  public static final int MAX_LOG_PERCENT =
+    Integer.getInteger("fc.raxs.store.segments.log", 100).intValue();
+
+  /** Use segmented commits. Initialized to {@link #SEGMENTED}. */
+  protected boolean segmented = SEGMENTED;
+
   public IdStore(StoreConfiguration sc ) throws IOException {
     this(sc.getStoreFile(), sc.getModel() == null ? XMLR1_ITEM_TREE :
       sc.getModel());
@@ -74,6 +117,8 @@ public class IdStore extends XasStore {
   protected void init(File f) {
     if( Measurements.STORE_TIMINGS )
       Time.stamp( Measurements.H_STORE_INIT );
+    ls = null; // Allow old index to be collected
+    t = null;
     try {
       ls = new IdSource(f); 
     } catch (IOException e) {
@@ -85,10 +130,111 @@ public class IdStore extends XasStore {
       Log.debug("Init took",Time.sinceFmt(Measurements.H_STORE_INIT));
   }
 
+  /** Apply a new tree to the store. Uses a segmented commit if 
+   * {@link #segmented} is set, and the store does not need to be compacted.
+   */
+
+  /*!5 @Override */
+  public void apply(RefTree nt) throws NodeNotFoundException {
+    IdSource old = (IdSource) ls;
+    if( !segmented || old == null || old.getRoot() == null || 
+        old.doc.size() > MAX_SEGMENTS || 
+        old.doc.getLogLength() * 100 > old.doc.length() * MAX_LOG_PERCENT ) {
+      super.apply(nt);
+      return;
+    }
+    if( Measurements.STORE_TIMINGS )
+      Time.stamp( Measurements.H_STORE_APPLY );
+    if( !writable )
+      throw new IllegalStateException("Store not writable");
+    StoreSegments.Writer w = null;
+    try {
+      w = old.doc.getWriter();
+      XmlOutput xmlOut = new XmlOutput(w,"UTF-8");
+      SegmentTarget out = new SegmentTarget(xmlOut,w,old.source);
+      if( Measurements.STORE_TIMINGS )
+        Time.stamp( Measurements.H_STORE_APPLY_WRITETREE );
+      XasSerialization.writeTree(nt, out, tm.swapCodec(new 
+          LazyCodec(tm.getCodec(), ls )),
+          XasUtil.EMPTY_SOURCE,XasUtil.EMPTY_SOURCE);
+      if( Measurements.STORE_TIMINGS )
+        Time.stamp( Measurements.H_STORE_APPLY_WRITETREE_END );
+      xmlOut.flush();
+      StoreSegments doc = w.commit();
+      w = null;
+      Log.debug("Committed "+doc.size()+" segments, copied "+
+          out.runs.size()+" ranges");
+      if( Measurements.STORE_TIMINGS )
+        Time.stamp( Measurements.H_STORE_INIT );
+      try {
+        ls = new IdSource(doc,old,out.runs);
+      } catch (IOException x) {
+        doc.close();
+        throw x;
+      }
+      old.close();
+    } catch( IOException x) {
+      trap(x);
+    } finally {
+      if( w != null ) {
+        try {
+          w.close();
+        } catch (IOException e) {
+          Log.error("Could not close log", e);
+        }
+      }
+    }
+    t = new XasRefTree(ls,(UniformXasCodec) tm.getCodec());
+    if( Measurements.STORE_TIMINGS )
+      Log.info("Tree apply took",Time.sinceFmt(Measurements.H_STORE_APPLY));
+  }
+
+  /*!5 @Override */
+  protected void replace(File newFile) throws IOException {
+    super.replace(newFile);
+    // The new file holds the whole document
+    StoreSegments.clear(f);
+  }
+
   /*!5 @Override */
   protected ItemTransform getOutTransform() {
     return new LazyTreeConcat();
   }
+
+  // Target that turns lazy trees of a source into references to the
+  // copied ranges. Records the copied ranges as {offset,length,new offset}
+  private static class SegmentTarget implements ItemTarget {
+
+    private XmlOutput out;
+    private StoreSegments.Writer w;
+    private SeekableSource source;
+    List /*!5 <int[]> */ runs = new ArrayList /*!5 <int[]> */();
+
+    public SegmentTarget(XmlOutput out, StoreSegments.Writer w,
+        SeekableSource source) {
+      this.out = out;
+      this.w = w;
+      this.source = source;
+    }
+
+    public void append(Item item) throws IOException {
+      if( !(item instanceof LazyTree) || 
+          ((LazyTree) item).getSource() != source ) {
+        out.append(item);
+        return;
+      }
+      Entry e = ((LazyTree) item).getEntry();
+      out.flush();
+      int pos = (int) w.getPosition();
+      w.copy(e.getOffset(), e.getLength());
+      int[] last = runs.isEmpty() ? null : (int[]) runs.get(runs.size()-1);
+      if( last != null && last[0] + last[1] == e.getOffset() &&
+          last[2] + last[1] == pos )
+        last[1] += e.getLength();
+      else
+        runs.add(new int[] {e.getOffset(), e.getLength(), pos});
+    }
+  }
   
   protected static class LazyTreeConcat implements ItemTransform {
 
@@ -215,10 +361,9 @@ public class IdStore extends XasStore {
   
   protected class IdSource extends LazySource {
 
+    private StoreSegments doc;
     private SeekableSource source;
-    private Map /*!5 <Key,Entry> */ index=new HashMap /*!5 <Key,Entry>() */();
-    private Map /*!5 <Key,Key> */ parents = new HashMap /*!5 <Key,Key>() */();
-    private Map /*!5 <Key,List<Key>> */ childLists = new HashMap /*!5 <Key,List<Key>> */();
+    private IdStoreIndex index;
     
     private Key root = null;
     
@@ -226,6 +371,25 @@ public class IdStore extends XasStore {
       init(f);
     }
 
+    /** Create source for a document written by a segmented commit. The
+     * index is built from the index of the previous document and the parts 
+     * of the new document that are not copied from it.
+     * 
+     * @param doc new document
+     * @param old source for previous document
+     * @param runs ranges copied from previous document, as 
+     * <code>{offset,length,new offset}</code>, in document order
+     * @throws IOException if the new document cannot be read
+     */
+    IdSource(StoreSegments doc, IdSource old, 
+        List /*!5 <int[]> */ runs) throws IOException {
+      this.doc = doc;
+      source = doc.getSource();
+      IdStoreIndex.Builder b = new IdStoreIndex.Builder();
+      parse(b, runs.iterator(), old.index);
+      setIndex(b);
+    }
+
     /*!5 @Override */
     public Item getLazyTree(Key k) throws NodeNotFoundException, IOException {
       Entry e = lookupEx(k);
@@ -237,20 +401,15 @@ public class IdStore extends XasStore {
     }
 
     public Key getParent(Key k) throws NodeNotFoundException {
-      if( !parents.containsKey(k) )
-        throw new NodeNotFoundException(k);
-      return (Key) parents.get(k);
+      return index.getParent(k);
     }
 
     public boolean contains(Key k) {
-      return index.containsKey(k);
+      return index.contains(k);
     }
 
     public Iterator /*!5 <Key> */ getChildKeys(Key k) throws NodeNotFoundException {
-      List /*!5 <Key> */ cl = (List) childLists.get(k);
-      if( cl == null )
-        throw new NodeNotFoundException(k);
-      return cl.iterator();
+      return index.getChildKeys(k);
     }
 
     public void seek(Key k) throws NodeNotFoundException {
@@ -270,6 +429,8 @@ public class IdStore extends XasStore {
     public void close() throws IOException {
       if( source != null )
         source.close();
+      index.close();
+      doc.close();
     }
 
     public Item next() throws IOException {
@@ -277,22 +438,65 @@ public class IdStore extends XasStore {
     }
 
     protected Entry lookup(Key k)  {
-      return (Entry) index.get(k);
+      try {
+        return index.getEntry(k);
+      } catch (IOException e) {
+        trap(e);
+      }
+      return null;
     }
 
     protected Entry lookupEx(Key k) throws NodeNotFoundException {
-      Entry e = (Entry) index.get(k);
+      Entry e = lookup(k);
       if( k == null )
         throw new NodeNotFoundException(k);
       return e;
     }
     
     protected void init(File f) throws IOException {
-      if( f.length() == 0 ) {
+      doc = StoreSegments.open(f);
+      if( doc.length() == 0 ) {
         root = null;
+        index = new IdStoreIndex.Builder().build(doc, tm);
+        return;
+      }
+      source = doc.getSource();
+      if( STORED_INDEX && (index = IdStoreIndex.open(doc, tm)) != null ) {
+        root = index.getRoot();
+        Log.debug("Using stored index for "+f);
         return;
       }
-      source = new SeekableKXmlSource(f.getPath());
+      IdStoreIndex.Builder b = new IdStoreIndex.Builder();
+      parse(b, null, null);
+      setIndex(b);
+    }
+
+    private void setIndex(IdStoreIndex.Builder b) {
+      index = b.build(doc, tm);
+      root = b.root;
+      Log.debug("Build index of size "+index.size());
+      if( STORED_INDEX ) {
+        try {
+          index.write();
+        } catch (IOException x) {
+          Log.warning("Cannot store index for "+doc.getBase(), x);
+        }
+      }
+    }
+
+    // Parse document into index builder. Ranges copied from an old document
+    // are not parsed; instead, their entries are taken from the old index.
+    private void parse(IdStoreIndex.Builder b, 
+        Iterator /*!5 <int[]> */ runs, IdStoreIndex old) throws IOException {
+      Map /*!5 <Key,Entry> */ index = b.index;
+      Map /*!5 <Key,Key> */ parents = b.parents;
+      Map /*!5 <Key,List<Key>> */ childLists = b.childLists;
+      Map /*!5 <Key,Integer> */ contexts = b.contexts;
+      int[] run = runs != null && runs.hasNext() ? (int[]) runs.next() : null;
+      // Contexts are numbered in document order, and recorded by the offset 
+      // of their start tag, and the number of their enclosing context
+      Stack /*!5 <Integer> */ ctxs = new Stack /*!5 <Integer> */();
+      ctxs.push(new Integer(-1));
       Stack /*!5 <ArrayList<Key>> */ children = new Stack /*!5 <ArrayList<Key>>*/() ;
       children.push(new ArrayList /*!5 <Key> */()); // Avoid many null checks
       Stack /*!5 <Key> */ parentStack = new Stack /*!5 <Key> */();
@@ -303,16 +507,32 @@ public class IdStore extends XasStore {
       Stack /*!5 <Integer> */ ps = new Stack /*!5 <Integer> */();
       boolean isText = false;
       int depth = Integer.MAX_VALUE;
-      for (Item item;(item = source.next()) != null;) {
+      for (Item item;;) {
+        while( run != null && source.getCurrentPosition() >= run[2] ) {
+          if( source.getCurrentPosition() > run[2] )
+            throw new StoreCorruptedException("Copied range at "+run[2]+
+                " does not start at item boundary");
+          if( isText ) {
+            ps.pop();
+            isText = false;
+          }
+          old.copy(run[0], run[1], run[2]-run[0], b, (Key) parentStack.peek(),
+              ((Integer) ctxs.peek()).intValue(), (List) children.peek());
+          source.setPosition(run[2]+run[1], context);
+          run = runs.hasNext() ? (int[]) runs.next() : null;
+        }
+        if( (item = source.next()) == null )
+          break;
         Key k = tm.identify(item);
         //Log.debug("Item "+item+", key "+k+" of type "+(k != null ? k.getClass() : ""));
-        root = root == null && k!=null ? k : root;
+        b.root = b.root == null && k!=null ? k : b.root;
         if (isText && !Item.isContent(item)) {
           Integer pos = (Integer) ps.pop();
           if( k != null ) {
             ((List) children.peek()).add(k);
             parents.put(k, parentStack.peek());  
-            addIndexEntry(k, pos.intValue(), source.getPreviousPosition(), context );
+            addIndexEntry(index, k, pos.intValue(), source.getPreviousPosition(), context );
+            contexts.put(k, ctxs.peek());
           }
           isText = false;
         }
@@ -324,6 +544,8 @@ public class IdStore extends XasStore {
           context = (StartTag) item;
           sts.push(context);
           ps.push(new Integer(source.getPreviousPosition()));
+          ctxs.push(new Integer(b.addContext(source.getPreviousPosition(),
+              ((Integer) ctxs.peek()).intValue(), context)));
         } else if (Item.isEndTag(item)) {
           if( parentStack.peek() != null ) {
             ((ArrayList) children.peek()).trimToSize();
@@ -331,13 +553,15 @@ public class IdStore extends XasStore {
           } else
             children.pop();
           sts.pop();
+          ctxs.pop();
           context = (StartTag) sts.peek();
           Integer pos = (Integer) ps.pop();
           Key thisKey = (Key) parentStack.peek(); 
           parentStack.pop();
           if (depth >= sts.size() ) {
-            addIndexEntry(thisKey, pos.intValue(), source.getCurrentPosition(), context);
+            addIndexEntry(index, thisKey, pos.intValue(), source.getCurrentPosition(), context);
             parents.put( thisKey, parentStack.peek() );
+            contexts.put( thisKey, ctxs.peek() );
           }
         } else if (Item.isContent(item)) {
           if (!isText) {
@@ -350,17 +574,21 @@ public class IdStore extends XasStore {
         } else if( k != null ) {
           ((List) children.peek()).add(k);
           parents.put(k, parentStack.peek());            
-          addIndexEntry(k, source.getPreviousPosition(), 
+          addIndexEntry(index, k, source.getPreviousPosition(), 
               source.getCurrentPosition(), context );
+          contexts.put(k, ctxs.peek());
         }
       }
-      Log.debug("Build index of size "+index.size());
+      if( run != null )
+        throw new StoreCorruptedException("Copied range at "+run[2]+
+            " beyond end of document");
       //Log.debug("Index entries are",index);
       //Log.debug("Parent index is",parents);
       //Log.debug("Child-list index is",childLists);
     }
 
-    private void addIndexEntry(Key k, int start, int end, StartTag context) {
+    private void addIndexEntry(Map index, Key k, int start, int end, 
+        StartTag context) {
       index.put(k, new Entry(start,end-start,context));
     }
     
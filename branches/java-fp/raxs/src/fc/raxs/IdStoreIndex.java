@@ -0,0 +1,511 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.raxs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import fc.util.IOExceptionTrap;
+import fc.util.log.Log;
+import fc.xml.xas.Item;
+import fc.xml.xas.StartTag;
+import fc.xml.xas.index.SeekableSource;
+import fc.xml.xas.index.Index.Entry;
+import fc.xml.xmlr.Key;
+import fc.xml.xmlr.NodeNotFoundException;
+import fc.xml.xmlr.model.KeyModel;
+
+/** Index of an {@link IdStore}. The index maps each key of the store
+ * document to the position of the keyed item in the document, and records
+ * the parent and child keys of each key. Keys are kept in document order.
+ * <p>The index may be stored in a file next to the store XML file. A stored
+ * index is valid as long as the length and modification time of the
+ * document (see {@link StoreSegments#getStamp()}) are those recorded in the
+ * index. Opening a stored index only reads the index header. The rest of
+ * the index is read on the first lookup.
+ * <p>The start tags giving the XML context of the entries are
+ * parsed from the document as the entries are looked up, unless they
+ * were known when the index was built.
+ */
+
+class IdStoreIndex {
+
+  /** Suffix added to XML file name to get index file name. Set to
+   * {@value}. */
+  public static final String SUFFIX = ".idx";
+
+  private static final int MAGIC = 0x69647832; // "idx2"
+  private static final int NONE = -1;
+
+  private File file;
+  private StoreSegments doc;
+  private KeyModel km;
+  private Key root;
+  private SeekableSource contextSource = null;
+
+  // Loaded on first lookup for stored index
+  private Map /*!5 <Key,Integer> */ ordinals = null;
+  private Key[] keys;
+  private int[] offsets;
+  private int[] lengths;
+  private int[] contexts;
+  private int[] parents;
+  private int[] firstChild;
+  private int[] childCount; // NONE if the key has no child list
+  private int[] children;
+  private int[] ctxOffsets;
+  private int[] ctxParents;
+  private StartTag[] ctxTags;
+
+  private IdStoreIndex(StoreSegments doc, KeyModel km) {
+    this.file = getFile(doc.getBase());
+    this.doc = doc;
+    this.km = km;
+  }
+
+  /** Get index file for XML file.
+   *
+   * @param store XML file
+   * @return index file
+   */
+  public static File getFile(File store) {
+    return new File(store.getPath()+SUFFIX);
+  }
+
+  /** Open the stored index of a store document.
+   *
+   * @param doc store document
+   * @param km key model of the store
+   * @return the index, or <code>null</code> if there is no valid index
+   */
+  public static IdStoreIndex open(StoreSegments doc, KeyModel km) {
+    File f = getFile(doc.getBase());
+    if( !f.exists() )
+      return null;
+    try {
+      DataInputStream in = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(f)));
+      try {
+        File stamp = doc.getStamp();
+        if( in.readInt() != MAGIC || in.readBoolean() != doc.isPlain() ||
+            in.readLong() != stamp.length() ||
+            in.readLong() != stamp.lastModified() ) {
+          Log.debug("Stale index "+f);
+          return null;
+        }
+        IdStoreIndex ix = new IdStoreIndex(doc, km);
+        ix.root = in.readBoolean() ? km.makeKey(in.readUTF()) : null;
+        return ix;
+      } finally {
+        in.close();
+      }
+    } catch (IOException x) {
+      Log.warning("Ignoring unreadable index "+f, x);
+      return null;
+    }
+  }
+
+  /** Write the index next to the store XML file.
+   *
+   * @throws IOException if an I/O error occurs
+   */
+  public void write() throws IOException {
+    ensureLoaded();
+    File tmp = new File(file.getPath()+".tmp");
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(tmp)));
+    try {
+      File stamp = doc.getStamp();
+      out.writeInt(MAGIC);
+      out.writeBoolean(doc.isPlain());
+      out.writeLong(stamp.length());
+      out.writeLong(stamp.lastModified());
+      out.writeBoolean(root != null);
+      if( root != null )
+        out.writeUTF(root.toString());
+      out.writeInt(ctxOffsets.length);
+      for( int i=0;i<ctxOffsets.length;i++) {
+        out.writeInt(ctxOffsets[i]);
+        out.writeInt(ctxParents[i]);
+      }
+      out.writeInt(keys.length);
+      for( int i=0;i<keys.length;i++) {
+        out.writeUTF(keys[i].toString());
+        out.writeInt(offsets[i]);
+        out.writeInt(lengths[i]);
+        out.writeInt(contexts[i]);
+        out.writeInt(parents[i]);
+        out.writeInt(childCount[i]);
+        for( int j=0;j<childCount[i];j++)
+          out.writeInt(children[firstChild[i]+j]);
+      }
+    } finally {
+      out.close();
+    }
+    if( !tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file)) ) {
+      tmp.delete();
+      throw new IOException("Cannot rename "+tmp);
+    }
+  }
+
+  /** Get root key. */
+  public Key getRoot() {
+    return root;
+  }
+
+  /** Check if key is in index. */
+  public boolean contains(Key k) {
+    return ordinal(k) != NONE;
+  }
+
+  /** Get index entry.
+   *
+   * @param k key
+   * @return entry, or <code>null</code> if the key is not in the index
+   * @throws IOException if the context of the entry cannot be read
+   */
+  public Entry getEntry(Key k) throws IOException {
+    int i = ordinal(k);
+    return i == NONE ? null :
+      new Entry(offsets[i],lengths[i],getContext(contexts[i]));
+  }
+
+  /** Get parent key.
+   *
+   * @param k key
+   * @return parent key, or <code>null</code> for a key without parent
+   * @throws NodeNotFoundException if the key is not in the index
+   */
+  public Key getParent(Key k) throws NodeNotFoundException {
+    int i = ordinal(k);
+    if( i == NONE )
+      throw new NodeNotFoundException(k);
+    return parents[i] == NONE ? null : keys[parents[i]];
+  }
+
+  /** Get child keys.
+   *
+   * @param k key
+   * @return iterator over child keys
+   * @throws NodeNotFoundException if the key is not in the index, or has
+   * no child list
+   */
+  public Iterator /*!5 <Key> */ getChildKeys(Key k)
+    throws NodeNotFoundException {
+    int i = ordinal(k);
+    if( i == NONE || childCount[i] == NONE )
+      throw new NodeNotFoundException(k);
+    final int start = firstChild[i], end = start + childCount[i];
+    return new Iterator() {
+      int pos = start;
+
+      public boolean hasNext() {
+        return pos < end;
+      }
+
+      public Object next() {
+        if( pos >= end )
+          throw new NoSuchElementException();
+        return keys[children[pos++]];
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  /** Get number of keys in index. */
+  public int size() {
+    ensureLoaded();
+    return keys.length;
+  }
+
+  /** Add a range of the indexed document, moved to another offset, to an
+   * index being built. The range must consist of whole entries. Entries
+   * in the range without a parent in the range become children of the
+   * given parent.
+   *
+   * @param offset offset of range
+   * @param length length of range
+   * @param delta distance the range is moved by
+   * @param b index being built
+   * @param parent parent key of top-level entries in the range
+   * @param ctx context of top-level entries in the range
+   * @param childList child list to add top-level entries to
+   */
+  public void copy(int offset, int length, int delta, Builder b, Key parent,
+      int ctx, List /*!5 <Key> */ childList) {
+    ensureLoaded();
+    int end = offset + length;
+    int ca = lowerBound(ctxOffsets, offset), ce = lowerBound(ctxOffsets, end);
+    int[] cmap = new int[ce-ca];
+    for( int c=ca;c<ce;c++) {
+      int p = ctxParents[c];
+      cmap[c-ca] = b.addContext(ctxOffsets[c] + delta,
+          p >= ca && p < ce ? cmap[p-ca] : ctx, null);
+    }
+    int a = lowerBound(offsets, offset), e = lowerBound(offsets, end);
+    for( int j=a;j<e;j++) {
+      Key k = keys[j];
+      int c = contexts[j];
+      b.index.put(k, new Entry(offsets[j] + delta, lengths[j], null));
+      b.contexts.put(k, new Integer(c >= ca && c < ce ? cmap[c-ca] : ctx));
+      if( parents[j] < a || parents[j] >= e ) {
+        b.parents.put(k, parent);
+        childList.add(k);
+      } else
+        b.parents.put(k, keys[parents[j]]);
+      if( childCount[j] != NONE ) {
+        ArrayList /*!5 <Key> */ cl = new ArrayList /*!5 <Key> */(childCount[j]);
+        for( int i=0;i<childCount[j];i++)
+          cl.add(keys[children[firstChild[j]+i]]);
+        b.childLists.put(k, cl);
+      }
+      if( b.root == null )
+        b.root = k;
+    }
+  }
+
+  /** Close the index. */
+  public void close() throws IOException {
+    if( contextSource != null )
+      contextSource.close();
+    contextSource = null;
+  }
+
+  private int ordinal(Key k) {
+    ensureLoaded();
+    Integer i = (Integer) ordinals.get(k);
+    return i == null ? NONE : i.intValue();
+  }
+
+  private void ensureLoaded() {
+    if( ordinals == null ) {
+      try {
+        load();
+      } catch (IOException x) {
+        Log.error("Cannot read index "+file, x);
+        throw new IOExceptionTrap.RuntimeIOException(x);
+      }
+    }
+  }
+
+  private static int lowerBound(int[] a, int v) {
+    int lo = 0, hi = a.length;
+    while( lo < hi ) {
+      int mid = (lo + hi) >>> 1;
+      if( a[mid] < v )
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+    return lo;
+  }
+
+  private StartTag getContext(int ctx) throws IOException {
+    if( ctx == NONE )
+      return null;
+    if( ctxTags[ctx] == null ) {
+      StartTag parent = getContext(ctxParents[ctx]);
+      // Separate parser, as the store parser may be in use
+      if( contextSource == null )
+        contextSource = doc.getSource();
+      contextSource.setPosition(ctxOffsets[ctx], parent);
+      Item i = contextSource.next();
+      if( !Item.isStartTag(i) )
+        throw new StoreCorruptedException("No start tag at offset "+
+            ctxOffsets[ctx]+" of "+doc.getBase());
+      ctxTags[ctx] = (StartTag) i;
+    }
+    return ctxTags[ctx];
+  }
+
+  private synchronized void load() throws IOException {
+    if( ordinals != null )
+      return;
+    DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file)));
+    try {
+      in.readInt();
+      in.readBoolean();
+      in.readLong();
+      in.readLong();
+      if( in.readBoolean() )
+        in.readUTF();
+      int nctx = in.readInt();
+      ctxOffsets = new int[nctx];
+      ctxParents = new int[nctx];
+      ctxTags = new StartTag[nctx];
+      for( int i=0;i<nctx;i++) {
+        ctxOffsets[i] = in.readInt();
+        ctxParents[i] = in.readInt();
+      }
+      int n = in.readInt();
+      Map /*!5 <Key,Integer> */ ords = new HashMap /*!5 <Key,Integer> */(n*2);
+      keys = new Key[n];
+      offsets = new int[n];
+      lengths = new int[n];
+      contexts = new int[n];
+      parents = new int[n];
+      firstChild = new int[n];
+      childCount = new int[n];
+      children = new int[n];
+      int pos = 0;
+      for( int i=0;i<n;i++) {
+        keys[i] = km.makeKey(in.readUTF());
+        ords.put(keys[i], new Integer(i));
+        offsets[i] = in.readInt();
+        lengths[i] = in.readInt();
+        contexts[i] = in.readInt();
+        parents[i] = in.readInt();
+        int cc = childCount[i] = in.readInt();
+        firstChild[i] = pos;
+        if( cc > 0 && pos + cc > children.length ) {
+          int[] nc = new int[Math.max(pos + cc, 2*children.length)];
+          System.arraycopy(children, 0, nc, 0, pos);
+          children = nc;
+        }
+        for( int j=0;j<cc;j++)
+          children[pos++] = in.readInt();
+      }
+      ordinals = ords;
+    } finally {
+      in.close();
+    }
+    Log.debug("Loaded index of size "+keys.length+" from "+file);
+  }
+
+  /** Builder of an index. The builder holds the maps from key to entry,
+   * parent key, child key list, and context number of each key, and the
+   * table of contexts. Contexts must be added in document order. A builder
+   * can build only one index.
+   */
+  static class Builder {
+
+    Key root = null;
+    Map /*!5 <Key,Entry> */ index=new HashMap /*!5 <Key,Entry>() */();
+    Map /*!5 <Key,Key> */ parents = new HashMap /*!5 <Key,Key>() */();
+    Map /*!5 <Key,List<Key>> */ childLists = new HashMap /*!5 <Key,List<Key>> */();
+    Map /*!5 <Key,Integer> */ contexts = new HashMap /*!5 <Key,Integer> */();
+    private List /*!5 <int[]> */ ctxTable = new ArrayList /*!5 <int[]> */();
+    private List /*!5 <StartTag> */ ctxTags = new ArrayList /*!5 <StartTag> */();
+
+    /** Add a context.
+     *
+     * @param offset offset of context start tag
+     * @param parent number of enclosing context, or -1 for none
+     * @param tag context start tag, or <code>null</code> if it should be
+     * parsed from the document when needed
+     * @return number of context
+     */
+    int addContext(int offset, int parent, StartTag tag) {
+      ctxTable.add(new int[] {offset, parent});
+      ctxTags.add(tag);
+      return ctxTable.size() - 1;
+    }
+
+    /** Build the index.
+     *
+     * @param doc indexed document
+     * @param km key model
+     * @return index
+     */
+    IdStoreIndex build(StoreSegments doc, KeyModel km) {
+      IdStoreIndex ix = new IdStoreIndex(doc, km);
+      ix.root = root;
+      int nctx = ctxTable.size();
+      ix.ctxOffsets = new int[nctx];
+      ix.ctxParents = new int[nctx];
+      ix.ctxTags = (StartTag[]) ctxTags.toArray(new StartTag[nctx]);
+      for( int i=0;i<nctx;i++) {
+        int[] row = (int[]) ctxTable.get(i);
+        ix.ctxOffsets[i] = row[0];
+        ix.ctxParents[i] = row[1];
+      }
+      // Sort keys in document order
+      Key[] ukeys = new Key[index.size()];
+      long[] order = new long[ukeys.length];
+      int n = 0;
+      for( Iterator i = index.entrySet().iterator();i.hasNext();) {
+        Map.Entry me = (Map.Entry) i.next();
+        if( me.getKey() == null )
+          continue; // Unkeyed elements
+        ukeys[n] = (Key) me.getKey();
+        order[n] = ((long) ((Entry) me.getValue()).getOffset() << 32) | n;
+        n++;
+      }
+      if( n < order.length ) {
+        long[] o2 = new long[n];
+        System.arraycopy(order, 0, o2, 0, n);
+        order = o2;
+      }
+      Arrays.sort(order);
+      ix.keys = new Key[n];
+      ix.offsets = new int[n];
+      ix.lengths = new int[n];
+      ix.contexts = new int[n];
+      ix.parents = new int[n];
+      ix.firstChild = new int[n];
+      ix.childCount = new int[n];
+      Map /*!5 <Key,Integer> */ ords = new HashMap /*!5 <Key,Integer> */(n*2);
+      for( int i=0;i<n;i++) {
+        Key k = ix.keys[i] = ukeys[(int) (order[i] & 0xffffffffl)];
+        ords.put(k, new Integer(i));
+      }
+      // The maps are emptied as they are consumed, to save memory
+      int nchildren = 0;
+      for( int i=0;i<n;i++) {
+        Key k = ix.keys[i];
+        Entry e = (Entry) index.remove(k);
+        Integer ctx = (Integer) contexts.remove(k);
+        ix.offsets[i] = e.getOffset();
+        ix.lengths[i] = e.getLength();
+        ix.contexts[i] = ctx == null ? NONE : ctx.intValue();
+        ix.parents[i] = ordinal(ords, (Key) parents.remove(k));
+        List cl = (List) childLists.get(k);
+        ix.childCount[i] = cl == null ? NONE : cl.size();
+        nchildren += cl == null ? 0 : cl.size();
+      }
+      ix.children = new int[nchildren];
+      int pos = 0;
+      for( int i=0;i<n;i++) {
+        ix.firstChild[i] = pos;
+        List cl = (List) childLists.remove(ix.keys[i]);
+        for( int j=0;cl != null && j<cl.size();j++)
+          ix.children[pos++] = ordinal(ords, (Key) cl.get(j));
+      }
+      ix.ordinals = ords;
+      index = parents = childLists = contexts = null;
+      return ix;
+    }
+
+    private static int ordinal(Map ordinals, Key k) {
+      Integer i = k == null ? null : (Integer) ordinals.get(k);
+      return i == null ? NONE : i.intValue();
+    }
+  }
+}
+// arch-tag: f7dc7209-da22-483a-b5c7-c4f4c19dd4b4
@@ -42,6 +42,8 @@ public class Measurements {
 
   public static Object H_RAXS_STOREREVERSEDELTA = new Object();
 
+  public static Object H_RAXS_STORECHECKPOINT = new Object();
+
   public static Object H_RAXS_OPEN = new Object();
 
   public static Object H_RAXS_CLOSE = new Object();
@@ -32,6 +32,7 @@ import java.util.TreeMap;
 import org.kxml2.io.KXmlParser;
 
 import fc.util.Debug;
+import fc.util.IOUtil;
 import fc.util.NonListableSet;
 import fc.util.Debug.Measure;
 import fc.util.Debug.Time;
@@ -327,7 +328,20 @@ public class RandomAccessXmlStore implements BatchMutable {
       throw new NoSuchVersionException(version);
     int v = NO_VERSION;
     try {
-      for (v = getPreviousVersion(getCurrentVersion()); v >= version;
+      // Start from the nearest checkpoint, if any
+      int start = getCheckpoint(version);
+      if( start != NO_VERSION ) {
+        InputStream cin = getCheckpointInStream(start);
+        try {
+          ItemSource in = new TransformSource(getParser(cin),
+              new RemoveSafeXasItems());
+          tree.apply(XasSerialization.readTree(in, s.getTreeModel()));
+        } finally {
+          cin.close();
+        }
+      } else
+        start = getCurrentVersion();
+      for (v = getPreviousVersion(start); v >= version;
       v = getPreviousVersion(v)) {
         // load olders-refs-tree
         Diff reverseDelta = null;
@@ -527,6 +541,9 @@ public class RandomAccessXmlStore implements BatchMutable {
     if( Measurements.RAXS_TIMINGS )
       Time.stamp(Measurements.H_RAXS_STOREREVERSEDELTA);    
     storeReverseDelta(deltaRefTree, s.getTree(), newToCurr);
+    if( Measurements.RAXS_TIMINGS )
+      Time.stamp(Measurements.H_RAXS_STORECHECKPOINT);    
+    storeCheckpoint(s.getTree());
     // Commit!
     if( Measurements.RAXS_TIMINGS )
       Time.stamp(Measurements.H_RAXS_COMMIT_APPLY);
@@ -617,6 +634,63 @@ public class RandomAccessXmlStore implements BatchMutable {
     }
   }
 
+  // Store a full copy of the current tree if the current version is a
+  // checkpoint version. Any stale checkpoint from a previous history is 
+  // removed if the tree is empty. 
+  protected void storeCheckpoint(IdAddressableRefTree currentTree) 
+    throws IOException {
+    int interval = config.getCheckpointInterval();
+    int version = getCurrentVersion();
+    File hdir = config.getHistoryFile();
+    if( interval < 1 || hdir == null || version % interval != 0 )
+      return;
+    File f = getCheckpointFile(hdir, version);
+    if( currentTree.getRoot() == null ) {
+      // No deltas can be applied to the empty tree, so no point in storing it
+      if( f.exists() && !f.delete() )
+        throw new IOException("Cannot remove stale checkpoint "+f);
+      return;
+    }
+    // Write to a temporary file, so that a failed write does not leave a
+    // truncated checkpoint behind
+    File tmp = IOUtil.createTempFile(f);
+    try {
+      OutputStream out = new FileOutputStream(tmp);
+      try {
+        XmlOutput target = new XmlOutput(out,"UTF-8");
+        XasSerialization.writeTree(currentTree, 
+            new TransformTarget(target, new AddSafeXasItems()), 
+            s.getTreeModel(), XasUtil.itemSource( _HEADER ),
+            XasUtil.itemSource( _TRAILER ) );
+        target.flush();
+      } finally {
+        out.close();
+      }
+      IOUtil.replace(tmp, f);
+      tmp = null;
+    } finally {
+      if( tmp != null && tmp.exists() && !tmp.delete() )
+        Log.warning("Unable to clean away temporary file "+tmp);
+    }
+    Log.debug("Stored checkpoint of version "+version);
+  }
+  
+  // Get nearest checkpoint at or above version, or NO_VERSION if none. 
+  // Checkpoints less than interval versions from the current version
+  // are not used, as loading a full tree costs more than a few deltas.
+  protected int getCheckpoint(int version) {
+    int interval = config.getCheckpointInterval();
+    File hdir = config.getHistoryFile();
+    if( interval < 1 || hdir == null )
+      return NO_VERSION;
+    for( int v = ((version + interval - 1) / interval) * interval; 
+         v + interval <= getCurrentVersion(); v += interval ) {
+      if( getCheckpointFile(hdir, v).exists() )
+        return v;
+    }
+    return NO_VERSION;
+  }
+
   protected RefTree getCurrentRefsOld(int oldVersion) throws IOException {
     final IdAddressableRefTree oRc = getTree(oldVersion).getChangeTree();
     // Make reverse-delta
@@ -668,6 +742,18 @@ public class RandomAccessXmlStore implements BatchMutable {
     return new FileOutputStream(getDeltaFile(hdir, version));
   }
 
+  protected InputStream getCheckpointInStream(int version) throws IOException {
+    File hdir = config.getHistoryFile();
+    if( hdir == null )
+      throw new IOException("No history location configured");
+    return new FileInputStream(getCheckpointFile(hdir,version));
+  }
+
+  // Get file holding the full tree of version
+  private File getCheckpointFile(File hdir, int version) {
+    return new File(hdir,String.valueOf(version)+"-full.xml");
+  }  
+
   // Get file expressing the reverse delta from version+1 to version
   private File getDeltaFile(File hdir, int version) {
     return new File(hdir,String.valueOf(version)+".xml");
@@ -80,11 +80,19 @@ public abstract class RaxsConfiguration extends AbstractDictionary implements
   public static final String STORE_MODEL_IDENT="raxs.datamodel.id";
   public static final String STORE_MODEL_CODEC="raxs.datamodel.codec";
   public static final String STORE_MODEL_NODES="raxs.datamodel.nodes";
+  public static final String CHECKPOINT_INTERVAL="raxs.checkpoint";
   
   // Ordered list of keys to serialize
   private static final String[] KEYS = { STORE_ROOT,  STORE_FILE, STORE_CLASS,
       STORE_CLASS_VERSION, STORE_MODEL, STORE_MODEL_KEYS, STORE_MODEL_IDENT,
-      STORE_MODEL_CODEC, STORE_MODEL_NODES, HISTORY_FILE };
+      STORE_MODEL_CODEC, STORE_MODEL_NODES, HISTORY_FILE, CHECKPOINT_INTERVAL };
+
+  /** Default checkpoint interval. The value is read from the system property
+   * <code>fc.raxs.checkpoint</code>. Default value is 0, i.e., no 
+   * checkpoints.
+   */
+  public static final int DEFAULT_CHECKPOINT_INTERVAL = 
+    Integer.getInteger("fc.raxs.checkpoint", 0).intValue();
 
   /** XAS Codec version 1 for configurations.
    */
@@ -138,6 +146,29 @@ public abstract class RaxsConfiguration extends AbstractDictionary implements
     return new DefaultConfig(st,root,storeFile,tm);
   }
 
+  /** Get configuration with another checkpoint interval.
+   * 
+   * @param c base configuration
+   * @param interval checkpoint interval, 0 for no checkpoints
+   * @return configuration
+   */
+  public static RaxsConfiguration getConfig(final RaxsConfiguration c, 
+      final int interval) {
+    return new RaxsConfiguration() {
+      
+      protected String lookup(String key) {
+        if( CHECKPOINT_INTERVAL.equals(key) )
+          return interval > 0 ? String.valueOf(interval) : null;
+        return c.lookup(key);
+      }
+
+      /*!5 @Override */
+      public TreeModel getModel() throws ParseException {
+        return c.getModel();
+      }
+    };
+  }
+
   /** Read configuration from XML.
    * 
    * @param is Item source containing an XML-encoded configuration.
@@ -192,6 +223,25 @@ public abstract class RaxsConfiguration extends AbstractDictionary implements
       return null;
     return historyFile == null ? root:  new File(root,historyFile);
   }
+
+  /** Get store checkpoint interval. The store writes a full copy of
+   * every version that is a multiple of the interval to the history, so that
+   * recalling an old version needs to apply less than 2*<i>interval</i> 
+   * reverse deltas. 
+   * 
+   * @return checkpoint interval, 0 for no checkpoints
+   */
+  public int getCheckpointInterval() {
+    String interval = lookup(CHECKPOINT_INTERVAL);
+    if( interval == null )
+      return 0;
+    try {
+      return Math.max(0, Integer.parseInt(interval));
+    } catch (NumberFormatException e) {
+      Log.warning("Ignoring bad checkpoint interval "+interval);
+      return 0;
+    }
+  }
   
   /** Get store tree model.
    * @return store tree model
@@ -377,6 +427,8 @@ public abstract class RaxsConfiguration extends AbstractDictionary implements
       vals.put( STORE_MODEL_NODES, null);
       vals.put( STORE_FILE, root == null ? null : sf.getPath() );
       vals.put( HISTORY_FILE, "history");
+      vals.put( CHECKPOINT_INTERVAL, DEFAULT_CHECKPOINT_INTERVAL > 0 ? 
+          String.valueOf(DEFAULT_CHECKPOINT_INTERVAL) : null );
       vals.put( STORE_ROOT, root == null ? null : root.getPath());
     }
 
@@ -0,0 +1,460 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.raxs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import fc.util.IOUtil;
+import fc.util.SeekableInputStream;
+import fc.util.log.Log;
+import fc.xml.xas.index.SeekableKXmlSource;
+import fc.xml.xas.index.SeekableSource;
+
+/** Segmented layout of a store XML file. The XML document of a segmented
+ * store is the concatenation of a list of segments, each of which is a byte
+ * range of either the store XML file (the <i>base</i>), or of a log file
+ * that commits append to. The segment list is kept in a map file next to
+ * the base. The base is never modified while the map exists, and the log is
+ * only appended to, so an open document keeps reading the version it was
+ * opened on. A segmented document opens the base and log when it is
+ * loaded, and keeps them open until {@link #close closed}, so that it can
+ * still be read after the base is replaced or the log is removed by
+ * {@link #clear}.
+ * <p>A store without a valid map file consists of the base alone. The map
+ * records the length and modification time of the base, so that a map
+ * is ignored if the base is rewritten.
+ */
+
+class StoreSegments {
+
+  /** Suffix added to base file name to get map file name. Set to
+   * {@value}. */
+  public static final String MAP_SUFFIX = ".seg";
+
+  /** Suffix added to base file name to get log file name. Set to
+   * {@value}. */
+  public static final String LOG_SUFFIX = ".log";
+
+  private static final int MAGIC = 0x73656731; // "seg1"
+  private static final byte BASE = 0;
+  private static final byte LOG = 1;
+  private static final int BUFFER_SIZE = 8192;
+
+  private File base;
+  private File log;
+  private File map;
+  private boolean plain;
+  // Segments; starts[] are offsets in the document
+  private int count;
+  private byte[] srcs;
+  private long[] offsets;
+  private long[] starts;
+  private long[] lengths;
+  private long length;
+  // Open base and log of a segmented document, shared by all its readers
+  private RandomAccessFile[] files = new RandomAccessFile[2];
+
+  private StoreSegments(File base) {
+    this.base = base;
+    this.log = new File(base.getPath()+LOG_SUFFIX);
+    this.map = new File(base.getPath()+MAP_SUFFIX);
+  }
+
+  /** Open the document of a store.
+   *
+   * @param base store XML file
+   * @return document
+   */
+  public static StoreSegments open(File base) {
+    StoreSegments s = new StoreSegments(base);
+    if( s.map.exists() ) {
+      try {
+        if( s.load() )
+          return s;
+      } catch (IOException x) {
+        Log.warning("Ignoring unreadable segment map "+s.map, x);
+      }
+    }
+    s.plain = true;
+    s.count = 1;
+    s.length = base.length();
+    s.srcs = new byte[] {BASE};
+    s.offsets = new long[] {0l};
+    s.starts = new long[] {0l};
+    s.lengths = new long[] {s.length};
+    return s;
+  }
+
+  /** Remove the map and log of a store. Call this when the base has been
+   * rewritten to hold the whole document.
+   *
+   * @param base store XML file
+   */
+  public static void clear(File base) {
+    StoreSegments s = new StoreSegments(base);
+    if( s.map.exists() && !s.map.delete() )
+      Log.error("Cannot remove "+s.map);
+    if( s.log.exists() && !s.log.delete() )
+      Log.error("Cannot remove "+s.log);
+  }
+
+  /** Close the files of the document. Parsers obtained from
+   * {@link #getSource} may not be used after this. */
+  public synchronized void close() throws IOException {
+    for( int i=0;i<files.length;i++) {
+      if( files[i] != null )
+        files[i].close();
+      files[i] = null;
+    }
+  }
+
+  /** Check if the document is the base alone. */
+  public boolean isPlain() {
+    return plain;
+  }
+
+  /** Get length of document. */
+  public long length() {
+    return length;
+  }
+
+  /** Get number of segments. */
+  public int size() {
+    return count;
+  }
+
+  /** Get length of log file. */
+  public long getLogLength() {
+    return log.length();
+  }
+
+  /** Get store XML file. */
+  public File getBase() {
+    return base;
+  }
+
+  /** Get file whose length and modification time change whenever the
+   * document changes. This is the map file for a segmented document, and
+   * the base otherwise.
+   */
+  public File getStamp() {
+    return plain ? base : map;
+  }
+
+  /** Get a parser positioned at the start of the document.
+   *
+   * @return parser
+   * @throws FileNotFoundException if a file of the document is missing
+   */
+  public SeekableSource getSource() throws FileNotFoundException {
+    if( plain )
+      return new SeekableKXmlSource(base.getPath());
+    return new SeekableKXmlSource(new Input());
+  }
+
+  /** Start writing a new document. The new document may refer to ranges of
+   * this document.
+   *
+   * @return writer for new document
+   * @throws IOException if the log cannot be opened
+   */
+  public Writer getWriter() throws IOException {
+    return new Writer();
+  }
+
+  private boolean load() throws IOException {
+    DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(map)));
+    try {
+      if( in.readInt() != MAGIC || in.readLong() != base.length() ||
+          in.readLong() != base.lastModified() ) {
+        Log.debug("Stale segment map "+map);
+        return false;
+      }
+      long logLength = in.readLong();
+      if( log.length() < logLength ) {
+        Log.warning("Truncated segment log "+log);
+        return false;
+      }
+      count = in.readInt();
+      srcs = new byte[count];
+      offsets = new long[count];
+      starts = new long[count];
+      lengths = new long[count];
+      length = 0l;
+      for( int i=0;i<count;i++) {
+        srcs[i] = in.readByte();
+        offsets[i] = in.readLong();
+        lengths[i] = in.readLong();
+        starts[i] = length;
+        length += lengths[i];
+      }
+    } finally {
+      in.close();
+    }
+    for( int i=0;i<count;i++) {
+      if( files[srcs[i]] == null )
+        files[srcs[i]] = new RandomAccessFile(srcs[i] == BASE ? base : log,
+            "r");
+    }
+    plain = false;
+    return true;
+  }
+
+  // Index of segment containing pos
+  private int find(long pos) {
+    int lo = 0, hi = count - 1;
+    while( lo < hi ) {
+      int mid = (lo + hi + 1) >>> 1;
+      if( starts[mid] <= pos )
+        lo = mid;
+      else
+        hi = mid - 1;
+    }
+    return lo;
+  }
+
+  /** Writer of a new document. Bytes written to the writer are appended
+   * to the log, and {@link #copy copied} ranges are referenced in the
+   * new segment map. The map is written by {@link #commit}; nothing written
+   * before that is visible.
+   */
+  public class Writer extends OutputStream {
+
+    private FileOutputStream fout;
+    private OutputStream out;
+    private long logPos;
+    private long pos = 0l;
+    private int wcount = 0;
+    private byte[] wsrcs = new byte[16];
+    private long[] woffsets = new long[16];
+    private long[] wlengths = new long[16];
+
+    private Writer() throws IOException {
+      logPos = log.length();
+      fout = new FileOutputStream(log.getPath(), true);
+      out = new BufferedOutputStream(fout, BUFFER_SIZE);
+    }
+
+    /** Get number of bytes in the new document. */
+    public long getPosition() {
+      return pos;
+    }
+
+    public void write(int b) throws IOException {
+      out.write(b);
+      add(LOG, logPos, 1);
+      logPos++;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+      if( len == 0 )
+        return;
+      out.write(b, off, len);
+      add(LOG, logPos, len);
+      logPos += len;
+    }
+
+    /** Does nothing. The log is flushed by {@link #commit}. */
+    public void flush() {
+    }
+
+    /** Copy a range of the old document to the new document. No bytes
+     * are copied; instead, the new document refers to the same data.
+     *
+     * @param offset offset in old document
+     * @param len length of range
+     */
+    public void copy(long offset, long len) {
+      if( offset < 0 || offset + len > length )
+        throw new IllegalArgumentException("Range "+offset+"+"+len+
+            " outside document");
+      while( len > 0 ) {
+        int i = find(offset);
+        long skip = offset - starts[i];
+        long chunk = Math.min(len, lengths[i] - skip);
+        add(srcs[i], offsets[i] + skip, chunk);
+        offset += chunk;
+        len -= chunk;
+      }
+    }
+
+    /** Write the new segment map. The log and the map are forced to disk
+     * before the map is installed, so that the map never refers to log data
+     * that is lost in a crash.
+     *
+     * @return the new document
+     * @throws IOException if the map cannot be written
+     */
+    public StoreSegments commit() throws IOException {
+      try {
+        out.flush();
+        fout.getFD().sync();
+      } finally {
+        out.close();
+        out = null;
+      }
+      File tmp = new File(map.getPath()+".tmp");
+      FileOutputStream tout = new FileOutputStream(tmp);
+      DataOutputStream mout = new DataOutputStream(
+          new BufferedOutputStream(tout));
+      try {
+        mout.writeInt(MAGIC);
+        mout.writeLong(base.length());
+        mout.writeLong(base.lastModified());
+        mout.writeLong(logPos);
+        mout.writeInt(wcount);
+        for( int i=0;i<wcount;i++) {
+          mout.writeByte(wsrcs[i]);
+          mout.writeLong(woffsets[i]);
+          mout.writeLong(wlengths[i]);
+        }
+        mout.flush();
+        tout.getFD().sync();
+      } finally {
+        mout.close();
+      }
+      IOUtil.replace(tmp, map);
+      StoreSegments s = new StoreSegments(base);
+      if( !s.load() )
+        throw new StoreCorruptedException("Cannot reload "+map);
+      return s;
+    }
+
+    /** Abandon the new document. */
+    public void close() throws IOException {
+      if( out != null )
+        out.close();
+      out = null;
+    }
+
+    private void add(byte src, long offset, long len) {
+      pos += len;
+      int last = wcount - 1;
+      if( last >= 0 && wsrcs[last] == src &&
+          woffsets[last] + wlengths[last] == offset ) {
+        wlengths[last] += len;
+        return;
+      }
+      if( wcount == wsrcs.length ) {
+        byte[] ns = new byte[2*wcount];
+        long[] no = new long[2*wcount], nl = new long[2*wcount];
+        System.arraycopy(wsrcs, 0, ns, 0, wcount);
+        System.arraycopy(woffsets, 0, no, 0, wcount);
+        System.arraycopy(wlengths, 0, nl, 0, wcount);
+        wsrcs = ns;
+        woffsets = no;
+        wlengths = nl;
+      }
+      wsrcs[wcount] = src;
+      woffsets[wcount] = offset;
+      wlengths[wcount] = len;
+      wcount++;
+    }
+  }
+
+  // Seekable stream over the segments
+  private class Input extends InputStream implements SeekableInputStream {
+
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private long bufStart = 0l; // Document offset of buffer[0]
+    private int bufLen = 0;
+    private long pos = 0l;
+
+    public int read() throws IOException {
+      if( pos < bufStart || pos >= bufStart + bufLen ) {
+        if( !fill() )
+          return -1;
+      }
+      return buffer[(int) (pos++ - bufStart)] & 0xff;
+    }
+
+    public int read(byte[] b) throws IOException {
+      return read(b, 0, b.length);
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+      if( len == 0 )
+        return 0;
+      if( pos >= length )
+        return -1;
+      if( pos >= bufStart && pos < bufStart + bufLen ) {
+        int n = Math.min(len, (int) (bufStart + bufLen - pos));
+        System.arraycopy(buffer, (int) (pos - bufStart), b, off, n);
+        pos += n;
+        return n;
+      }
+      if( len < BUFFER_SIZE ) {
+        fill();
+        return read(b, off, len);
+      }
+      int n = readSegment(pos, b, off, len);
+      pos += n;
+      return n;
+    }
+
+    public long skip(long n) throws IOException {
+      n = Math.max(0l, Math.min(n, length - pos));
+      pos += n;
+      return n;
+    }
+
+    public int available() {
+      return (int) Math.max(0l, Math.min(Integer.MAX_VALUE,
+          bufStart + bufLen - pos));
+    }
+
+    public void seek(long pos) throws IOException {
+      this.pos = pos;
+    }
+
+    /** Does nothing; the files are closed with the document. */
+    public void close() {
+    }
+
+    private boolean fill() throws IOException {
+      if( pos >= length )
+        return false;
+      bufStart = pos;
+      bufLen = readSegment(pos, buffer, 0, buffer.length);
+      return true;
+    }
+
+    // Read from the segment containing pos; may return less than len
+    private int readSegment(long pos, byte[] b, int off, int len)
+      throws IOException {
+      int i = find(pos);
+      long skip = pos - starts[i];
+      int n = (int) Math.min(len, lengths[i] - skip);
+      RandomAccessFile f = files[srcs[i]];
+      if( f == null )
+        throw new IOException("Document closed");
+      synchronized( f ) { // Shared by the readers of the document
+        f.seek(offsets[i] + skip);
+        f.readFully(b, off, n);
+      }
+      return n;
+    }
+  }
+}
+// arch-tag: 492e9ffe-4471-4e72-84ee-5631a20af2ab
@@ -129,7 +129,7 @@ public abstract class XasStore extends Store {
       xmlOut.flush();
       os.close();
       os = null;
-      IOUtil.replace(newFile,f);
+      replace(newFile);
       newFile = null;
     } catch( IOException x) {
       trap(x);
@@ -153,6 +153,15 @@ public abstract class XasStore extends Store {
   protected ItemTransform getOutTransform() {
     return null;
   }
+
+  /** Replace the store file with a newly written one.
+   * 
+   * @param newFile new store file
+   * @throws IOException if the file cannot be replaced
+   */
+  protected void replace(File newFile) throws IOException {
+    IOUtil.replace(newFile,f);
+  }
   
   /** @inheritDoc
    */
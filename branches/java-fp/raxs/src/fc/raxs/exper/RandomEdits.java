@@ -151,6 +151,7 @@ public class RandomEdits {
     double VAR = 5.0;
     double DVAR = 2.0;
     int RND_SEED = (int) opts.getOpt("seed", 1);
+    int CHECKPOINT = (int) opts.getOpt("checkpoint", 0);
     boolean doMemory = opts.getOpt("memory", false);
     boolean incrementalTree = opts.getOpt("incremental", false);
     boolean repickEdit = opts.getOpt("repick-edits-src", false);
@@ -200,7 +201,8 @@ public class RandomEdits {
       ts = new ResultLog.TeeStream(new FileOutputStream(RESULT_FILE), out,
           false);
       log = new ResultLog(getTestName(tests) + (LSIZE > 0 ? "+local" : ""),
-          storeType.getName(), bySize ? "size" : "edits", MARKER_CLASSES,
+          storeType.getName(), bySize ? "size" : 
+            ((tests & VERS_GET) != 0 ? "depth" : "edits"), MARKER_CLASSES,
           POINTS, new PrintStream(ts));
       log.comment("Test-args: "+StringUtil.toString(args, " "));
       dir = new File(System.getProperty("fc.raxs.exper.dir", "+raxs-exper"));
@@ -208,6 +210,8 @@ public class RandomEdits {
         Log.fatal("Cannot make " + dir);
       File f = new File(System.getProperty("fc.raxs.exper.file", "content.xml"));
       rc = RaxsConfiguration.getConfig(storeType, dir, f, DIRTREE_MODEL );
+      if (CHECKPOINT > 0)
+        rc = RaxsConfiguration.getConfig(rc, CHECKPOINT);
     } catch (Exception e) {
       Log.fatal("Exception creating initial store", e);
     }
@@ -389,13 +393,15 @@ public class RandomEdits {
           raxs.open();
           VersionHistory h = raxs.getVersionHistory();
           Log.info("Version history is", h);
+          log.comment("Checkpoint interval "+rc.getCheckpointInterval());
           for (Iterator i = h.listVersions().iterator();i.hasNext();) {
             int v = ((Integer) i.next()).intValue();
             Time.zeroIsNow();
             Time.stamp(H_START_SCRIPT);
             raxs.getTree(v);
             Time.stamp(H_END_SCRIPT);
-            log.result(v);
+            // Recall latency by depth, i.e., versions back from current
+            log.result(raxs.getCurrentVersion() - v);
           }
         }
         if ((tests & SEQ_READ) != 0) {
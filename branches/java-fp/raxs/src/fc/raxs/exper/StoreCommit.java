@@ -0,0 +1,147 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.raxs.exper;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Random;
+
+import fc.raxs.IdStore;
+import fc.raxs.Measurements;
+import fc.raxs.RandomAccessXmlStore;
+import fc.raxs.RaxsConfiguration;
+import fc.raxs.StoreConfiguration;
+import fc.util.IOUtil;
+import fc.util.StringUtil;
+import fc.util.Debug.Time;
+import fc.util.StringUtil.Options;
+import fc.util.log.Log;
+import fc.util.log.SysoutLogger;
+import fc.xml.xmlr.Key;
+import fc.xml.xmlr.MutableRefTree;
+import fc.xml.xmlr.NodeNotFoundException;
+import fc.xml.xmlr.test.RandomDirectoryTree.DirectoryEntry;
+
+/** Commit latency by edit count and store file size. Generates a
+ * directory tree XML file of the given size (see {@link StoreOpen}), renames
+ * random files, and logs the time to commit the renames to an
+ * {@link IdStore}, both by rewriting the XML file and by segmented commits
+ * (see {@link IdStore#SEGMENTED}). The time to update the store
+ * index after the commit is logged separately.
+ * <p>Options are as for {@link StoreOpen}, and
+ * <code>--edits</code> initial number of renames,
+ * <code>--maxedits</code> maximum number of renames,
+ * <code>--editfactor</code> factor to grow number of renames by, and
+ * <code>--seed</code> random seed.
+ */
+
+public class StoreCommit {
+
+  public static void storeCommit(PrintStream out, String[] args ) {
+    Options opts = StringUtil.getOptions(args);
+    long SIZE = opts.getOpt("size", 10);
+    long MAXSIZE = opts.getOpt("maxsize", SIZE);
+    long FACTOR = opts.getOpt("sizefactor", 10);
+    int FANOUT = (int) opts.getOpt("fanout", 50);
+    int NAMELEN = (int) opts.getOpt("namelen", 64);
+    int EDITS = (int) opts.getOpt("edits", 1);
+    int MAXEDITS = (int) opts.getOpt("maxedits", 1000);
+    int EDITFACTOR = (int) opts.getOpt("editfactor", 10);
+    int RND_SEED = (int) opts.getOpt("seed", 42);
+    File RESULT_FILE = new File(opts.getOpt("file", "result-store-commit-time"));
+    if (opts.getErrors() > 0)
+      Log.fatal("Errors on command line");
+    File dir = new File(System.getProperty("fc.raxs.exper.dir", "+raxs-exper"));
+    File f = new File(System.getProperty("fc.raxs.exper.file", "content.xml"));
+    Class[] stores = {IdStore.class, Segmented.class};
+    try {
+      ResultLog.TeeStream ts = new ResultLog.TeeStream(
+          new FileOutputStream(RESULT_FILE), out, false);
+      ResultLog log = new ResultLog("store-commit", IdStore.class.getName(), 
+          "edits", "size rewrite rewrite-init segmented segmented-init",
+          new PrintStream(ts));
+      log.comment("Test-args: "+StringUtil.toString(args, " "));
+      for( long size = SIZE; size <= MAXSIZE; size *= FACTOR ) {
+        long[][] times = new long[stores.length][];
+        long nodes = 0;
+        for( int s=0;s<stores.length;s++) {
+          if (dir.exists())
+            IOUtil.delTree(dir, false);
+          else if (!dir.mkdir())
+            Log.fatal("Cannot make " + dir);
+          File sf = new File(dir, f.getPath());
+          nodes = StoreOpen.writeTree(sf, size << 20, FANOUT, NAMELEN);
+          RaxsConfiguration rc = RaxsConfiguration.getConfig(stores[s], dir, 
+              f, RandomEdits.ID_DIRTREE_MODEL);
+          RandomAccessXmlStore raxs = RandomAccessXmlStore.open(rc);
+          raxs.open();
+          Random rnd = new Random(RND_SEED);
+          long dirs = nodes / (FANOUT + 1);
+          times[s] = new long[2*(log10(MAXEDITS/EDITS, EDITFACTOR)+1)];
+          int i = 0;
+          for( int edits = EDITS; edits <= MAXEDITS; edits *= EDITFACTOR ) {
+            MutableRefTree et = raxs.getEditableTree();
+            for( int e=0;e<edits;e++) {
+              long id = 1 + (long) (rnd.nextDouble() * dirs) * (FANOUT + 1) + 
+                1 + rnd.nextInt(FANOUT);
+              Key k = RandomEdits.ID_DIRTREE_MODEL.makeKey(String.valueOf(id));
+              et.update(k, new DirectoryEntry(k, "renamed-"+edits+"-"+e,
+                  DirectoryEntry.FILE));
+            }
+            raxs.commit(et);
+            times[s][i++] = Time.since(Measurements.H_RAXS_COMMIT);
+            times[s][i++] = Time.since(Measurements.H_STORE_INIT);
+          }
+          raxs.close();
+        }
+        log.comment("Store of "+(size << 20)+" bytes, "+nodes+" nodes");
+        int i = 0;
+        for( int edits = EDITS; edits <= MAXEDITS; edits *= EDITFACTOR ) {
+          log.result(edits, size, times[0][i], times[0][i+1], times[1][i],
+              times[1][i+1]);
+          i += 2;
+        }
+      }
+      log.finish();
+      ts.close();
+    } catch (IOException e) {
+      Log.fatal("Store commit test failed", e);
+    } catch (NodeNotFoundException e) {
+      Log.fatal("Store commit test failed", e);
+    }
+  }
+
+  private static int log10(int n, int base) {
+    int l = 0;
+    for( ;n >= base;n /= base)
+      l++;
+    return l;
+  }
+
+  /** Id store using segmented commits. */
+  public static class Segmented extends IdStore {
+
+    public Segmented(StoreConfiguration sc) throws IOException {
+      super(sc);
+      segmented = true;
+    }
+  }
+
+  public static void main(String[] args) {
+    Log.setLogger(new SysoutLogger());
+    storeCommit(System.out, args);
+  }
+}
+
+// arch-tag: 22c4eb87-9d05-400c-b8c3-600f9fac6f29
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.raxs.exper;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.Iterator;
+
+import fc.raxs.IdStore;
+import fc.raxs.Measurements;
+import fc.raxs.RandomAccessXmlStore;
+import fc.raxs.RaxsConfiguration;
+import fc.util.IOUtil;
+import fc.util.StringUtil;
+import fc.util.Debug.Time;
+import fc.util.StringUtil.Options;
+import fc.util.log.Log;
+import fc.util.log.SysoutLogger;
+import fc.xml.xmlr.MutableRefTree;
+import fc.xml.xmlr.NodeNotFoundException;
+import fc.xml.xmlr.RefTreeNode;
+import fc.xml.xmlr.test.RandomDirectoryTree.DirectoryEntry;
+
+/** Store open and commit times by store file size. Generates a directory
+ * tree XML file of the given size, and logs the time to open an
+ * {@link IdStore} by parsing the file and by using the stored index, the
+ * time of the first lookup, and the time to commit a small edit.
+ * <p>Options are
+ * <code>--size</code> initial size in MB,
+ * <code>--maxsize</code> maximum size in MB,
+ * <code>--sizefactor</code> factor to grow size by,
+ * <code>--fanout</code> files per directory,
+ * <code>--namelen</code> length of file names, and
+ * <code>--file</code> result file.
+ */
+
+public class StoreOpen {
+
+  public static void storeOpen(PrintStream out, String[] args ) {
+    Options opts = StringUtil.getOptions(args);
+    long SIZE = opts.getOpt("size", 10);
+    long MAXSIZE = opts.getOpt("maxsize", SIZE);
+    long FACTOR = opts.getOpt("sizefactor", 10);
+    int FANOUT = (int) opts.getOpt("fanout", 50);
+    int NAMELEN = (int) opts.getOpt("namelen", 64);
+    File RESULT_FILE = new File(opts.getOpt("file", "result-store-open-time"));
+    if (opts.getErrors() > 0)
+      Log.fatal("Errors on command line");
+    ResultLog.TeeStream ts = null;
+    ResultLog log = null;
+    File dir = new File(System.getProperty("fc.raxs.exper.dir", "+raxs-exper"));
+    File f = new File(System.getProperty("fc.raxs.exper.file", "content.xml"));
+    RaxsConfiguration rc = RaxsConfiguration.getConfig(IdStore.class, dir, f,
+        RandomEdits.ID_DIRTREE_MODEL);
+    try {
+      ts = new ResultLog.TeeStream(new FileOutputStream(RESULT_FILE), out,
+          false);
+      log = new ResultLog("store-open", IdStore.class.getName(), "size",
+          "parse-open index-open first-lookup init commit",
+          new PrintStream(ts));
+      log.comment("Test-args: "+StringUtil.toString(args, " "));
+      for( long size = SIZE; size <= MAXSIZE; size *= FACTOR ) {
+        if (dir.exists())
+          IOUtil.delTree(dir, false);
+        else if (!dir.mkdir())
+          Log.fatal("Cannot make " + dir);
+        File sf = new File(dir, f.getPath());
+        long nodes = writeTree(sf, size << 20, FANOUT, NAMELEN);
+        log.comment("Store of "+sf.length()+" bytes, "+nodes+" nodes");
+        // 1. Open by parsing (also writes index)
+        long start = System.currentTimeMillis();
+        RandomAccessXmlStore raxs = RandomAccessXmlStore.open(rc);
+        raxs.open();
+        long parseOpen = System.currentTimeMillis() - start;
+        raxs.close();
+        // 2. Open by index
+        start = System.currentTimeMillis();
+        raxs = RandomAccessXmlStore.open(rc);
+        raxs.open();
+        long indexOpen = System.currentTimeMillis() - start;
+        // 3. First lookup loads the index
+        start = System.currentTimeMillis();
+        RefTreeNode n = firstFile(raxs.getTree().getRoot());
+        long lookup = System.currentTimeMillis() - start;
+        // 4. Commit a rename
+        MutableRefTree et = raxs.getEditableTree();
+        DirectoryEntry de = (DirectoryEntry) n.getContent();
+        et.update(n.getId(), new DirectoryEntry(de.getId(), "renamed",
+            DirectoryEntry.FILE));
+        raxs.commit(et);
+        long commit = Time.since(Measurements.H_RAXS_COMMIT);
+        long init = Time.since(Measurements.H_STORE_INIT);
+        raxs.close();
+        log.result(size, parseOpen, indexOpen, lookup, init, commit);
+        Log.info("Size "+size+"MB done");
+      }
+      log.finish();
+      ts.close();
+    } catch (IOException e) {
+      Log.fatal("Store open test failed", e);
+    } catch (NodeNotFoundException e) {
+      Log.fatal("Store open test failed", e);
+    }
+  }
+
+  // Write a directory tree of given size; returns number of nodes. The root
+  // has id 0, directory d id 1+d*(fanout+1), and its files the following ids
+  static long writeTree(File f, long size, int fanout, int namelen)
+    throws IOException {
+    Writer w = new BufferedWriter(new OutputStreamWriter(
+        new FileOutputStream(f), "UTF-8"), 65536);
+    StringBuffer pad = new StringBuffer();
+    while (pad.length() < namelen)
+      pad.append('x');
+    long id = 0, len = 0;
+    try {
+      String s = "<tree id=\"" + (id++) + "\">";
+      w.write(s);
+      len += s.length();
+      while (len < size) {
+        s = "<directory name=\"d" + id + "\" id=\"" + (id++) + "\">";
+        w.write(s);
+        len += s.length();
+        for (int i = 0; i < fanout; i++) {
+          s = "<file name=\"" + pad + id + "\" id=\"" + (id++) + "\" />";
+          w.write(s);
+          len += s.length();
+        }
+        w.write("</directory>");
+        len += 12;
+      }
+      w.write("</tree>");
+    } finally {
+      w.close();
+    }
+    return id;
+  }
+
+  private static RefTreeNode firstFile(RefTreeNode n) {
+    for (Iterator i = n.getChildIterator(); i.hasNext();) {
+      RefTreeNode c = (RefTreeNode) i.next();
+      if (((DirectoryEntry) c.getContent()).getType() == DirectoryEntry.FILE)
+        return c;
+      c = firstFile(c);
+      if (c != null)
+        return c;
+    }
+    return null;
+  }
+
+  public static void main(String[] args) {
+    Log.setLogger(new SysoutLogger());
+    storeOpen(System.out, args);
+  }
+}
+
+// arch-tag: f9840fae-07da-4881-83d6-efcb0b4906f5
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.raxs.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+import fc.raxs.IdStore;
+import fc.raxs.RandomAccessXmlStore;
+import fc.raxs.RaxsConfiguration;
+import fc.raxs.StoreConfiguration;
+import fc.raxs.exper.RandomEdits;
+import fc.util.IOUtil;
+import fc.util.log.Log;
+import fc.xml.xmlr.ChangeBuffer;
+import fc.xml.xmlr.MutableRefTree;
+import fc.xml.xmlr.RefTree;
+import fc.xml.xmlr.XmlrDebug;
+import fc.xml.xmlr.test.RandomDirectoryTree;
+import fc.xml.xmlr.test.RandomDirectoryTree.KeyGen;
+
+/** Test the index and commits of {@link IdStore}. The store is edited and
+ * reopened, and the tree read using the stored index is compared to the
+ * tree read by parsing the XML file. Both rewriting and segmented commits 
+ * are tested.
+ */
+
+public class IdStoreTest extends TestCase {
+
+  private static final long RND_SEED = 42L;
+
+  private File dir;
+
+  protected void setUp() throws IOException {
+    dir = File.createTempFile("idstore", "");
+    dir.delete();
+    dir.mkdir();
+  }
+
+  protected void tearDown() throws IOException {
+    IOUtil.delTree(dir, true);
+  }
+
+  public void testStoredIndex() throws IOException {
+    editAndReopen(IdStore.class);
+  }
+
+  public void testSegmentedCommit() throws IOException {
+    editAndReopen(SegmentedIdStore.class);
+    Assert.assertTrue("No segments", 
+        new File(dir, "content.xml.seg").exists());
+  }
+
+  private void editAndReopen(Class storeClass) throws IOException {
+    File f = new File("content.xml");
+    File idx = new File(dir, "content.xml.idx");
+    RaxsConfiguration rc = RaxsConfiguration.getConfig(storeClass, dir, f,
+        RandomEdits.ID_DIRTREE_MODEL);
+    KeyGen kg = new KeyGen(RandomDirectoryTree.KEY_GEN);
+    MutableRefTree it = RandomDirectoryTree.randomDirTree(2000, 20, 0.05,
+        5.0, 2.0, new Random(RND_SEED), kg);
+    RefTree dt = it;
+    RandomAccessXmlStore raxs = RandomAccessXmlStore.open(rc);
+    raxs.commit(new ChangeBuffer(it));
+    raxs.close();
+    Assert.assertTrue("No index written", idx.exists());
+    for( int lap=0;lap<5;lap++) {
+      // Edit through a store opened with the index
+      raxs = RandomAccessXmlStore.open(rc);
+      Assert.assertTrue("Mismatching tree from index",
+          XmlrDebug.treeComp(dt, raxs.getTree()));
+      MutableRefTree et = raxs.getEditableTree();
+      RandomDirectoryTree.permutateTree(et, 50, "uuuummmmiidd", 0.05,
+          new Random(lap^RND_SEED), kg);
+      dt = RandomDirectoryTree.treeCopy(et);
+      raxs.commit(et);
+      raxs.close();
+      // Stale index must not be used
+      File stamp = new File(dir, "content.xml.seg");
+      if( !stamp.exists() )
+        stamp = new File(dir, f.getName());
+      Assert.assertTrue(stamp.setLastModified(stamp.lastModified()+2000));
+      raxs = RandomAccessXmlStore.open(rc);
+      Assert.assertTrue("Mismatching tree with stale index",
+          XmlrDebug.treeComp(dt, raxs.getTree()));
+      raxs.close();
+      Log.info("Lap "+lap+" ok");
+    }
+  }
+
+  public static class SegmentedIdStore extends IdStore {
+
+    public SegmentedIdStore(StoreConfiguration sc) throws IOException {
+      super(sc);
+      segmented = true;
+    }
+  }
+}
+
+// arch-tag: 8961c066-eaf3-4f40-a831-1229ded6f9d7
@@ -11,6 +11,7 @@
 
 package fc.raxs.test;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -20,6 +21,7 @@ import java.util.Set;
 import junit.framework.Assert;
 import junit.framework.TestCase;
 import fc.raxs.RandomAccessXmlStore;
+import fc.raxs.RaxsConfiguration;
 import fc.raxs.Store;
 import fc.util.CompareUtil;
 import fc.util.Debug;
@@ -55,6 +57,14 @@ public class VersioningTest extends TestCase {
   private static final long RND_SEED = 42L;
 
   public void testIdVersioning() throws IOException {
+    idVersioning(0);
+  }
+
+  public void testIdCheckpoints() throws IOException {
+    idVersioning(4);
+  }
+
+  private void idVersioning(int checkpoint) throws IOException {
     String PDF="iiiiiiiiiIdddddduuuuuuuuummmm";
     double DIRP=0.05;
     long TSIZE=5000;long DSIZE=50;double DPROB=0.01;double VAR=5.0;double DVAR=2.0;
@@ -72,7 +82,10 @@ public class VersioningTest extends TestCase {
         new Random(RND_SEED),kg);
     ((RandomDirectoryTree.MutableDirectoryTree ) dt).setOrdered(true);
     Store s = new FakeStore(dt);
-    RandomAccessXmlStore raxs = RandomAccessXmlStore.open(s); 
+    RandomAccessXmlStore raxs = checkpoint > 0 ? 
+        new RandomAccessXmlStore(s, RaxsConfiguration.getConfig(
+            RaxsConfiguration.getConfig(s.getClass(), new File(".")), 
+            checkpoint)) : RandomAccessXmlStore.open(s); 
     LinkedList /*!5 <RefTree> */ facits=  new LinkedList /*!5 <RefTree> */();
     facits=null; // Disable this to enable test self-check
     LinkedList /*!5 <Integer> */ vlist= new LinkedList /*!5 <Integer> */();
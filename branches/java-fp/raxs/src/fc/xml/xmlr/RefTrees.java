@@ -12,6 +12,7 @@
 // $Id: RefTrees.java,v 1.29 2005/01/06 17:21:51 ctl Exp $
 package fc.xml.xmlr;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -20,6 +21,8 @@ import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
 
+import EDU.oswego.cs.dl.util.concurrent.FJTask;
+import EDU.oswego.cs.dl.util.concurrent.FJTaskRunnerGroup;
 import fc.util.Stack;
 import fc.util.log.Log;
 import fc.xml.xmlr.model.TransientKey;
@@ -86,12 +89,54 @@ public class RefTrees {
    return new RefTreeImpl(root);
  }
 
+  /** Expand references in a reftree using a pool of worker threads. The
+   * result is the same as that of
+   * {@link #expandRefs(RefTree, Set, Set, IdAddressableRefTree)}, but the
+   * subtrees near the root are expanded in parallel by the tasks of
+   * <code>group</code>. The backing tree and the sets must allow concurrent
+   * reads.
+   *
+   * @param tree tree to expand
+   * @param allowedRefs set of allowed tree reference targets
+   * @param allowedContent set of allowed node reference targets
+   * @param backingTree tree containing the referenced nodes
+   * @param group task runner group used for the expansion
+   * @return expanded reftree
+   * @throws NodeNotFoundException if the tree contains a reference not in
+   * the backing tree
+   */
+  public static RefTree expandRefs( RefTree tree, Set allowedRefs,
+                                    Set allowedContent,
+                                    IdAddressableRefTree backingTree,
+                                    FJTaskRunnerGroup group )
+   throws NodeNotFoundException {
+    ExpandTask task = new ExpandTask(tree.getRoot(), allowedRefs,
+        allowedContent, backingTree, null, false, 0);
+    invoke(group, task);
+    return new RefTreeImpl(task.result);
+  }
 
   protected static RefTreeNodeImpl expandRefs( RefTreeNode root, Set allowedRefs,
                                            Set allowedContent,
                                 IdAddressableRefTree backingTree,
                                 RefTreeNode parent, boolean inBackingTree )
       throws NodeNotFoundException {
+    RefTreeNodeImpl newRoot = expandNode(root, allowedRefs, allowedContent,
+        backingTree, parent, inBackingTree);
+    if( !newRoot.isTreeRef() )
+      expandChildren(newRoot, root, allowedRefs, allowedContent, backingTree,
+          inBackingTree);
+    return newRoot;
+  }
+
+  // Expand a single node, without children
+  private static RefTreeNodeImpl expandNode( RefTreeNode root,
+                                             Set allowedRefs,
+                                             Set allowedContent,
+                                             IdAddressableRefTree backingTree,
+                                             RefTreeNode parent,
+                                             boolean inBackingTree )
+      throws NodeNotFoundException {
     RefTreeNodeImpl newRoot = null;
     if ( allowedRefs.contains( root.getId())) {
       // Put a tree ref
@@ -119,27 +164,152 @@ public class RefTrees {
         content = root.getContent();
       newRoot = new RefTreeNodeImpl(parent, root.getId(), content);
     }
-    if( !newRoot.isTreeRef() ) {
-      // Expand children for everything but treerefs
-
-      // BUGFIX-20061212-1: Some allowed node references are expanded
-      // This happened because the jump into the backingTree wasn't "sticky", 
-      // i.e., the backingTree flag could turn false although we had already
-      // recursed into the backing tree, which cause a bad deduction at
-      // the other BUGFIX-20061212-1 marker
-      // Also: testcase TestRefTrees.expandTest/case 1 tests for this
-      inBackingTree = inBackingTree | root.isTreeRef(); 
-      for (Iterator i =
-           inBackingTree ? backingTree.getNode(root.getId()).getChildIterator() :
-           root.getChildIterator(); i.hasNext(); ) {
-        RefTreeNodeImpl child = expandRefs( (RefTreeNode) i.next(), allowedRefs,
-                                           allowedContent,
-                                           backingTree, newRoot,
-                                           inBackingTree);
-        newRoot.addChild(child);
+    return newRoot;
+  }
+
+  // Iterator over the nodes to expand below root
+  private static Iterator sourceChildIterator( RefTreeNode root,
+      IdAddressableRefTree backingTree, boolean inBackingTree ) {
+    return inBackingTree ? backingTree.getNode(root.getId()).getChildIterator()
+        : root.getChildIterator();
+  }
+
+  // Expand the descendants of root below newRoot. An explicit stack is used,
+  // as the trees may be too deep for recursion. Children are appended to
+  // their parent when created, which gives the same child order as
+  // appending them after their subtree is expanded.
+  private static void expandChildren( RefTreeNodeImpl newRoot,
+                                      RefTreeNode root, Set allowedRefs,
+                                      Set allowedContent,
+                                      IdAddressableRefTree backingTree,
+                                      boolean inBackingTree )
+      throws NodeNotFoundException {
+    // BUGFIX-20061212-1: Some allowed node references are expanded
+    // This happened because the jump into the backingTree wasn't "sticky", 
+    // i.e., the backingTree flag could turn false although we had already
+    // recursed into the backing tree, which cause a bad deduction at
+    // the other BUGFIX-20061212-1 marker
+    // Also: testcase TestRefTrees.expandTest/case 1 tests for this
+    inBackingTree = inBackingTree | root.isTreeRef();
+    ExpandFrame top = new ExpandFrame(newRoot, sourceChildIterator(root,
+        backingTree, inBackingTree), inBackingTree, null);
+    while( top != null ) {
+      if( !top.children.hasNext() ) {
+        top = top.next;
+        continue;
+      }
+      RefTreeNode child = (RefTreeNode) top.children.next();
+      RefTreeNodeImpl newChild = expandNode(child, allowedRefs, allowedContent,
+          backingTree, top.node, top.inBackingTree);
+      top.node.addChild(newChild);
+      if( !newChild.isTreeRef() ) {
+        // Expand children for everything but treerefs
+        boolean childInBackingTree = top.inBackingTree | child.isTreeRef();
+        top = new ExpandFrame(newChild, sourceChildIterator(child,
+            backingTree, childInBackingTree), childInBackingTree, top);
+      }
+    }
+  }
+
+  private static class ExpandFrame {
+    final RefTreeNodeImpl node;
+    final Iterator children;
+    final boolean inBackingTree;
+    final ExpandFrame next;
+
+    ExpandFrame(RefTreeNodeImpl node, Iterator children,
+        boolean inBackingTree, ExpandFrame next) {
+      this.node = node;
+      this.children = children;
+      this.inBackingTree = inBackingTree;
+      this.next = next;
+    }
+  }
+
+  // Expands a subtree. Tasks above FORK_DEPTH expand each child subtree as
+  // a task of its own, the rest expand their subtree sequentially.
+  private static class ExpandTask extends TreeTask {
+
+    private final RefTreeNode root;
+    private final Set allowedRefs;
+    private final Set allowedContent;
+    private final IdAddressableRefTree backingTree;
+    private final RefTreeNode parent;
+    private final boolean inBackingTree;
+    private final int depth;
+
+    RefTreeNodeImpl result = null;
+
+    ExpandTask(RefTreeNode root, Set allowedRefs, Set allowedContent,
+        IdAddressableRefTree backingTree, RefTreeNode parent,
+        boolean inBackingTree, int depth) {
+      this.root = root;
+      this.allowedRefs = allowedRefs;
+      this.allowedContent = allowedContent;
+      this.backingTree = backingTree;
+      this.parent = parent;
+      this.inBackingTree = inBackingTree;
+      this.depth = depth;
+    }
+
+    public void run() {
+      try {
+        result = expandNode(root, allowedRefs, allowedContent, backingTree,
+            parent, inBackingTree);
+        if( result.isTreeRef() )
+          return;
+        if( depth >= FORK_DEPTH ) {
+          expandChildren(result, root, allowedRefs, allowedContent,
+              backingTree, inBackingTree);
+          return;
+        }
+        boolean childInBackingTree = inBackingTree | root.isTreeRef();
+        ArrayList tasks = new ArrayList();
+        for( Iterator i = sourceChildIterator(root, backingTree,
+            childInBackingTree); i.hasNext(); )
+          tasks.add(new ExpandTask((RefTreeNode) i.next(), allowedRefs,
+              allowedContent, backingTree, result, childInBackingTree,
+              depth + 1));
+        if( tasks.isEmpty() )
+          return;
+        coInvoke((FJTask[]) tasks.toArray(new FJTask[tasks.size()]));
+        for( Iterator i = tasks.iterator(); i.hasNext(); ) {
+          ExpandTask t = (ExpandTask) i.next();
+          if( t.error != null ) {
+            error = t.error;
+            return;
+          }
+          result.addChild(t.result);
+        }
+      } catch (NodeNotFoundException e) {
+        error = e;
+      } catch (RuntimeException e) {
+        error = e;
       }
     }
-    return newRoot;
+  }
+
+  private abstract static class TreeTask extends FJTask {
+    Exception error = null;
+  }
+
+  // Depth in the tree down to which subtrees are processed in separate tasks
+  private static final int FORK_DEPTH = 3;
+
+  // Run task in group, and rethrow any exception from the task
+  private static void invoke(FJTaskRunnerGroup group, TreeTask task)
+      throws NodeNotFoundException {
+    try {
+      group.invoke(task);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for task");
+    }
+    Exception error = task.error;
+    if( error instanceof NodeNotFoundException )
+      throw (NodeNotFoundException) error;
+    else if( error != null )
+      throw (RuntimeException) error;
   }
 
 
@@ -217,22 +387,57 @@ a*  d'
                                  RefTree[] trees, Set[] expandedContents, 
                                  KeyMap matching )
       throws NodeNotFoundException {
+    return normalize(backingTree, trees, expandedContents, matching, null);
+  }
+
+  /** Normalize reftree references using a pool of worker threads. The
+   * result is the same as that of
+   * {@link #normalize(IdAddressableRefTree, RefTree[], Set[], KeyMap)}.
+   * The input trees are scanned and matched against the backing tree in
+   * parallel by the tasks of <code>group</code>, each task scanning a
+   * subtree, after which the references found are normalized in
+   * document order. The backing tree, the input trees, and the key map
+   * must allow concurrent reads.
+   *
+   * @param backingTree tree containing all reference targets
+   * @param trees trees to normalize
+   * @param expandedContents set that is filled with the id of all
+   *  non-reference nodes, or <code>null</code>
+   * @param matching map from keys in the input trees to backing tree keys
+   * @param group task runner group used for scanning the trees, or
+   *  <code>null</code> to scan in the calling thread
+   * @return An array of sets, where each set contains the allowed reference
+   * targets for the corresponding input tree.
+   * @throws NodeNotFoundException if a reference not in the backing tree
+   * is found in one of the input trees.
+   */
+  public static Set[] normalize( IdAddressableRefTree backingTree,
+                                 RefTree[] trees, Set[] expandedContents, 
+                                 KeyMap matching, FJTaskRunnerGroup group )
+      throws NodeNotFoundException {
     // Build set of normalized refs
     Map commonRefs = new HashMap();
     Set innerNodes = new HashSet(); // inner nodes from reftree
     for (int iTree = 0; iTree < trees.length; iTree++) {
       //Log.log("Adding tree "+trees[iTree],Log.INFO);
       Set expC = expandedContents != null ? new HashSet() : null;
-      addTreeRefs(backingTree, trees[iTree].getRoot(),
-                  commonRefs, innerNodes, trees[iTree], expC,
-                  matching);
+      if( group == null )
+        addTreeRefs(backingTree, trees[iTree].getRoot(),
+                    commonRefs, innerNodes, trees[iTree], expC,
+                    matching);
+      else {
+        ScanTask scan = new ScanTask(trees[iTree].getRoot(), backingTree,
+            matching, 0);
+        invoke(group, scan);
+        scan.replay(backingTree, commonRefs, innerNodes, trees[iTree], expC);
+      }
       if( expC != null )
         expandedContents[iTree] = expC;
     }
     //return commonRefs;
     Set[] refset = new HashSet[trees.length];
     for (int iTree = 0; iTree < trees.length; iTree++) {
-      refset[iTree] = new HashSet();
+      refset[iTree] = new HashSet(commonRefs.size() * 4 / 3 + 1);
     }
     for( Iterator i = commonRefs.entrySet().iterator();i.hasNext(); ) {
       Map.Entry e = (Map.Entry) i.next();
@@ -266,6 +471,8 @@ a*  d'
   }
 
 
+  // Preorder traversal of the tree. The traversal uses an explicit stack, as
+  // the trees may be too deep for recursion.
   protected static void addTreeRefs(IdAddressableRefTree backingTree,
                                     RefTreeNode root,
                                     Map commonRefs, Set innerNodes,
@@ -273,74 +480,180 @@ a*  d'
                                     KeyMap matching ) throws
       NodeNotFoundException {
     //A! assert root != null && backingTree!=null;
-    if ( root.isReference() 
-        || backingTree.contains( getBackTarget( root, matching ) ) )
-      // NOTE: The latter condition ensures updated content triggers proper
-      // expansion. If there are only inserts and no updates it can be skipped
-      addTreeRef(backingTree, root, commonRefs, innerNodes, treeTag, matching);
-    if( expandedContents != null && !root.isReference() )
-      expandedContents.add(root.getId()); // FIXME: What key space to use?
+    Iterator i = dfsIterator(root);
+    for (RefTreeNode node = root; node != null;
+         node = i.hasNext() ? (RefTreeNode) i.next() : null) {
+      Key backId = getBackTarget(node, matching);
+      addTreeRefs(backingTree, node, node.isReference()
+          || backingTree.contains(backId) ? backId : null, commonRefs,
+          innerNodes, treeTag, expandedContents);
+    }
+  }
+
+  // Add a single node. backId is null if the node needs no processing
+  private static void addTreeRefs(IdAddressableRefTree backingTree,
+                                  RefTreeNode node, Key backId,
+                                  Map commonRefs, Set innerNodes,
+                                  RefTree treeTag, Set expandedContents)
+      throws NodeNotFoundException {
+    if ( backId != null )
+      // NOTE: The backing tree condition ensures updated content triggers
+      // proper expansion. If there are only inserts and no updates it can be
+      // skipped
+      addTreeRef(backingTree, node, backId, commonRefs, innerNodes, treeTag);
+    if( expandedContents != null && !node.isReference() )
+      expandedContents.add(node.getId()); // FIXME: What key space to use?
       // We now just put front keys, but these may be incoherent across trees
       // and should be mapped somehow. OK-- Let's do it like this at some point:
       // addTreeRefs is called with a different expandContents for each tree;
       // then we can keep local keys there
-    
-    for ( Iterator i = root.getChildIterator(); i.hasNext();)
-      addTreeRefs(backingTree, (RefTreeNode) i.next(), commonRefs, innerNodes,
-                  treeTag, expandedContents, matching);
   }
 
-  protected static void downscan(RefTreeNode bnode,
-                            Map refLeaves, Set refInnerNodes, Set tagSet ) {
+  // Scans a subtree for nodes to add, in preorder. Tasks above FORK_DEPTH
+  // scan each child subtree as a task of their own. The scan only reads the
+  // trees; the nodes found are added by replay() in the calling thread.
+  private static class ScanTask extends TreeTask {
+
+    private final RefTreeNode root;
+    private final IdAddressableRefTree backingTree;
+    private final KeyMap matching;
+    private final int depth;
+
+    private ArrayList nodes = new ArrayList();
+    private ArrayList backIds = new ArrayList();
+    private ScanTask[] subtasks = null;
+
+    ScanTask(RefTreeNode root, IdAddressableRefTree backingTree,
+        KeyMap matching, int depth) {
+      this.root = root;
+      this.backingTree = backingTree;
+      this.matching = matching;
+      this.depth = depth;
+    }
+
+    public void run() {
+      try {
+        if( depth < FORK_DEPTH ) {
+          scan(root);
+          ArrayList tasks = new ArrayList();
+          for( Iterator i = root.getChildIterator(); i.hasNext(); )
+            tasks.add(new ScanTask((RefTreeNode) i.next(), backingTree,
+                matching, depth + 1));
+          subtasks = (ScanTask[]) tasks.toArray(new ScanTask[tasks.size()]);
+          if( subtasks.length > 0 )
+            coInvoke(subtasks);
+          for( int i = 0; i < subtasks.length && error == null; i++ )
+            error = subtasks[i].error;
+        } else {
+          scan(root);
+          for( Iterator i = dfsIterator(root); i.hasNext(); )
+            scan((RefTreeNode) i.next());
+        }
+      } catch (RuntimeException e) {
+        error = e;
+      }
+    }
+
+    private void scan(RefTreeNode node) {
+      Key backId = getBackTarget(node, matching);
+      nodes.add(node);
+      backIds.add(node.isReference() || backingTree.contains(backId) ?
+          backId : null);
+    }
+
+    void replay(IdAddressableRefTree backingTree, Map commonRefs,
+        Set innerNodes, RefTree treeTag, Set expandedContents)
+        throws NodeNotFoundException {
+      for( int i = 0; i < nodes.size(); i++ )
+        addTreeRefs(backingTree, (RefTreeNode) nodes.get(i),
+            (Key) backIds.get(i), commonRefs, innerNodes, treeTag,
+            expandedContents);
+      for( int i = 0; subtasks != null && i < subtasks.length; i++ )
+        subtasks[i].replay(backingTree, commonRefs, innerNodes, treeTag,
+            expandedContents);
+    }
+  }
+
+  protected static void downscan(RefTreeNode bnode, Map refLeaves,
+                                 Set refInnerNodes, Set tagSet ) {
     Key id = bnode.getId();
-    if( refInnerNodes.contains(id) ) {
-      for( Iterator i = bnode.getChildIterator();i.hasNext();) {
-        RefTreeNode child = (RefTreeNode) i.next();
-        if( !refInnerNodes.contains(child.getId()) &&
-            !refLeaves.containsKey(child.getId()) ) {
-          refLeaves.put(child.getId(),tagSet);
-        } else
-          downscan( child, refLeaves, refInnerNodes, tagSet);
+    if( !refInnerNodes.contains(id) ) {
+      Set tags = (Set) refLeaves.get(id);
+      if( tags != null ) {
+        //Log.log("Downscan added "+id,Log.INFO);
+        tags.addAll(tagSet); // ASFAIK, |tagSet|=1 here
+      } // Nowhere to be found. Note that it's impossible that the node is
+        // inserted (as we are traversing backingTree) -> we should just stop
+      return;
+    }
+    // Depth-first scan of the inner nodes below bnode
+    Stack iterators = new Stack();
+    for( Iterator i = bnode.getChildIterator();; ) {
+      if( !i.hasNext() ) {
+        if( iterators.isEmpty() )
+          return;
+        i = (Iterator) iterators.pop();
+        continue;
       }
-    } else if( refLeaves.containsKey(id) ) {
-      //Log.log("Downscan added "+id,Log.INFO);
-      ((Set) refLeaves.get(id)).addAll(tagSet); // ASFAIK, |tagSet|=1 here
-    } // Nowhere to be found. Note that it's impossible that the node is
-      // inserted (as we are traversing backingTree) -> we should just stop
+      RefTreeNode child = (RefTreeNode) i.next();
+      Key cid = child.getId();
+      if( refInnerNodes.contains(cid) ) {
+        iterators.push(i);
+        i = child.getChildIterator();
+      } else {
+        Set tags = (Set) refLeaves.get(cid);
+        if( tags == null )
+          refLeaves.put(cid,tagSet);
+        else
+          tags.addAll(tagSet);
+      }
+    }
   }
 
   // Disallow the treeref bid
-  protected static void prohibit(Key bid, Map treeRefs, Set inner, 
+  protected static void prohibit(Key bid, Map treeRefs, Set inner,
       IdAddressableRefTree bt )
       throws NodeNotFoundException {
     if (bid == null || inner.contains(bid) || bt.getNode(bid) == null)
       return; // Already prohibited or Processing an inserted node
-    prohibit(bt.getParent(bid), treeRefs, inner, bt);
-    Set tags = (Set) treeRefs.remove(bid);
-    if (tags == null) {
-      tags = new HashSet();
-    }
-    for (Iterator /*!5 <Key> */ i = bt.childIterator(bid); i.hasNext(); ) {
-      Key cid = (Key) i.next();
-      if (treeRefs.containsKey(cid)) {
-        ( (Set) treeRefs.get(cid)).addAll(tags);
-      } else {
-        Set tags2 = new HashSet(); // Beware of sharing copies of the sets!
-        tags2.addAll(tags);
-        treeRefs.put(cid, tags2);
+    // Collect the path to the nearest prohibited ancestor, and prohibit
+    // the path top-down
+    Stack path = new Stack();
+    do {
+      path.push(bid);
+      bid = bt.getParent(bid);
+    } while (bid != null && !inner.contains(bid) && bt.getNode(bid) != null);
+    while (!path.isEmpty()) {
+      bid = (Key) path.pop();
+      Set tags = (Set) treeRefs.remove(bid);
+      if (tags == null) {
+        tags = new HashSet();
+      }
+      for (Iterator /*!5 <Key> */ i = bt.childIterator(bid); i.hasNext(); ) {
+        Key cid = (Key) i.next();
+        Set ctags = (Set) treeRefs.get(cid);
+        if (ctags != null) {
+          ctags.addAll(tags);
+        } else {
+          Set tags2 = new HashSet(); // Beware of sharing copies of the sets!
+          tags2.addAll(tags);
+          treeRefs.put(cid, tags2);
+        }
       }
+      inner.add(bid);
     }
-    inner.add(bid);
   }
 
-  protected static void addRefToRefset(Key bid, RefTree treeTag, Map treeRefs,
-                                       Set inner,IdAddressableRefTree bt) throws
+  protected static void addRefToRefset(Key bid, RefTree treeTag,
+                                       Map treeRefs, Set inner,
+                                       IdAddressableRefTree bt) throws
       NodeNotFoundException{
     prohibit(bt.getParent(bid), treeRefs, inner, bt);
-    if (treeRefs.containsKey(bid))
-      ( (Set) treeRefs.get(bid)).add(treeTag);
+    Set tags = (Set) treeRefs.get(bid);
+    if (tags != null)
+      tags.add(treeTag);
     else {
-      Set tags = new HashSet();
+      tags = new HashSet();
       tags.add(treeTag);
       treeRefs.put(bid, tags);
     }
@@ -365,13 +678,12 @@ a*  d'
   //
 
   protected static void addTreeRef(IdAddressableRefTree backingTree,
-                                   RefTreeNode node, Map refLeaves,
-                                   Set refInnerNodes, RefTree treeTag,
-                                   KeyMap matching ) throws
+                                   RefTreeNode node, Key backId,
+                                   Map refLeaves, Set refInnerNodes,
+                                   RefTree treeTag ) throws
       NodeNotFoundException {
     // Pre- and postcondition: subtrees in refLeaves are disjunct
     // -> node can only be in one of the subtrees in refLeaves
-    Key backId = getBackTarget(node, matching);
 //    Log.log("Enter addRef, id="+id+" leaves="+refLeaves+", inner="+refInnerNodes,Log.INFO);
     if (node.isTreeRef() && refInnerNodes.contains(backId)) {
       // This ref has been replaced by subrefs, run a downscan to
@@ -386,11 +698,10 @@ a*  d'
       addRefToRefset(backId,treeTag,refLeaves,refInnerNodes,backingTree);
     else
       prohibit(backId,refLeaves,refInnerNodes,backingTree);
-    for (RefTreeNode scan = node.getParent(); scan != null;
-         scan = scan.getParent()) {
-      prohibit( getBackTarget( scan, matching ),refLeaves,refInnerNodes,
-          backingTree);
-    }
+    // NOTE: The ancestors of node in its tree need to be prohibited as well.
+    // Nodes are added in preorder, so this has already been done when the
+    // ancestors were added (inner nodes stay inner, and ancestors not in the
+    // backing tree cannot be prohibited).
   }
 
   protected static Key getBackTarget( RefTreeNode n, KeyMap m ) {
@@ -1163,15 +1474,15 @@ a*  d'
         if( next != null )
           return next;
         if( i == null )
-          throw new NoSuchElementException();
-        if( !i.hasNext() ) {
+          return null;
+        // Loop rather than recurse, as a deep tree may end many levels at once
+        while( !i.hasNext() ) {
           if( iterators.isEmpty() ) {
             i = null;
             next = null;
             return null;
           }
           i = (Iterator) iterators.pop();
-          return setNext();
         }
         next = (RefTreeNode) i.next();
         Iterator i2 = next.getChildIterator();
@@ -1183,8 +1494,8 @@ a*  d'
       }
 
       public RefTreeNode next() {
-        if( next == null )
-          setNext();
+        if( setNext() == null )
+          throw new NoSuchElementException();
         RefTreeNode n = next;
         next = null;
         return n;
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.xml.xmlr.exper;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.Set;
+
+import EDU.oswego.cs.dl.util.concurrent.FJTaskRunnerGroup;
+import fc.util.NonListableSet;
+import fc.util.StringUtil;
+import fc.util.StringUtil.Options;
+import fc.util.log.Log;
+import fc.util.log.SysoutLogger;
+import fc.xml.xmlr.ChangeBuffer;
+import fc.xml.xmlr.IdAddressableRefTree;
+import fc.xml.xmlr.Key;
+import fc.xml.xmlr.KeyMap;
+import fc.xml.xmlr.NodeNotFoundException;
+import fc.xml.xmlr.RefTree;
+import fc.xml.xmlr.RefTreeNode;
+import fc.xml.xmlr.RefTrees;
+import fc.xml.xmlr.test.RandomDirectoryTree;
+import fc.xml.xmlr.test.RandomDirectoryTree.DirectoryEntry;
+import fc.xml.xmlr.test.RandomDirectoryTree.KeyGen;
+import fc.xml.xmlr.test.RandomDirectoryTree.MutableDirectoryTree;
+
+/** Time of {@link RefTrees#normalize normalize} and
+ * {@link RefTrees#expandRefs expandRefs} as run by a store commit. A random
+ * directory tree is edited through a {@link ChangeBuffer}, and the
+ * reverse delta of the edits is computed, sequentially and by the
+ * given number of threads. The results are checked to be equal.
+ * <p>Options are
+ * <code>--nodes</code> nodes in the tree,
+ * <code>--edits</code> edits to the tree,
+ * <code>--depth</code> if non-zero, use a tree that is a path of this many
+ * directories with a file at the end instead of a random tree,
+ * <code>--threads</code> number of threads (default from the system
+ * property <code>fc.exper.threads</code>, or 4), and
+ * <code>--rounds</code> number of rounds.
+ */
+
+public class NormalizeBench {
+
+  public static void normalizeBench(String[] args) {
+    Options opts = StringUtil.getOptions(args);
+    long NODES = opts.getOpt("nodes", 100000);
+    long EDITS = opts.getOpt("edits", 1000);
+    long DEPTH = opts.getOpt("depth", 0);
+    int THREADS = (int) opts.getOpt("threads",
+        Integer.getInteger("fc.exper.threads", 4).intValue());
+    int ROUNDS = (int) opts.getOpt("rounds", 5);
+    if (opts.getErrors() > 0)
+      Log.fatal("Errors on command line");
+    KeyGen kg = new KeyGen(RandomDirectoryTree.KEY_GEN);
+    Random rnd = new Random(42L);
+    MutableDirectoryTree bt = DEPTH > 0 ? pathTree(DEPTH, kg) :
+      RandomDirectoryTree.randomDirTree(NODES, 20, 0.05, 5.0, 2.0, rnd, kg);
+    ChangeBuffer cb = new ChangeBuffer(bt);
+    try {
+      if (DEPTH > 0) {
+        RefTreeNode n = bt.getRoot();
+        while (n.getChildIterator().hasNext())
+          n = (RefTreeNode) n.getChildIterator().next();
+        cb.update(n.getId(), new DirectoryEntry(n.getId(), "renamed",
+            DirectoryEntry.FILE));
+      } else
+        RandomDirectoryTree.permutateTree(cb, EDITS, "uuuummmmiidd", 0.05,
+            rnd, kg);
+      FJTaskRunnerGroup group = new FJTaskRunnerGroup(THREADS);
+      Log.info("# round normalize(ms) expand(ms) par-normalize(ms) " +
+          "par-expand(ms) refs threads=" + THREADS);
+      for (int round = 0; round < ROUNDS; round++) {
+        long start = System.currentTimeMillis();
+        Set[] used = normalize(bt, cb.getChangeTree(), null);
+        long normalize = System.currentTimeMillis() - start;
+        start = System.currentTimeMillis();
+        RefTree exp = expand(bt, cb.getChangeTree(), used, null);
+        long expand = System.currentTimeMillis() - start;
+        start = System.currentTimeMillis();
+        Set[] parUsed = normalize(bt, cb.getChangeTree(), group);
+        long parNormalize = System.currentTimeMillis() - start;
+        start = System.currentTimeMillis();
+        RefTree parExp = expand(bt, cb.getChangeTree(), parUsed, group);
+        long parExpand = System.currentTimeMillis() - start;
+        if (!Arrays.equals(used, parUsed) ||
+            !sameTree(exp, parExp))
+          Log.fatal("Parallel and sequential results differ");
+        Log.info(round + " " + normalize + " " + expand + " " + parNormalize
+            + " " + parExpand + " " + used[0].size());
+      }
+      group.interruptAll();
+    } catch (NodeNotFoundException e) {
+      Log.fatal("Normalize test failed", e);
+    }
+  }
+
+  private static Set[] normalize(IdAddressableRefTree bt,
+      IdAddressableRefTree delta, FJTaskRunnerGroup group)
+      throws NodeNotFoundException {
+    return RefTrees.normalize(bt, new RefTree[] {delta,
+        RefTrees.getRefTree(bt)}, null, KeyMap.IDENTITY_MAP,
+        group);
+  }
+
+  // Reverse delta as in a store commit
+  private static RefTree expand(IdAddressableRefTree bt,
+      final IdAddressableRefTree delta, Set[] used, FJTaskRunnerGroup group)
+      throws NodeNotFoundException {
+    Set allowedContent = new NonListableSet() {
+      public boolean contains(Object id) {
+        RefTreeNode n = delta.getNode((Key) id);
+        return n == null ? false : n.isReference();
+      }
+    };
+    RefTree tree = RefTrees.getRefTree(bt);
+    return group == null ? RefTrees.expandRefs(tree, used[0], allowedContent,
+        bt) : RefTrees.expandRefs(tree, used[0], allowedContent, bt, group);
+  }
+
+  // Compare ids and reference types in document order. Not by
+  // XmlrDebug.treeComp(), as that recurses, and the trees may be deep
+  private static boolean sameTree(RefTree t1, RefTree t2) {
+    Iterator i1 = RefTrees.dfsIterator(t1), i2 = RefTrees.dfsIterator(t2);
+    while (i1.hasNext() && i2.hasNext()) {
+      RefTreeNode n1 = (RefTreeNode) i1.next(), n2 = (RefTreeNode) i2.next();
+      if (!n1.getId().equals(n2.getId()) || n1.isTreeRef() != n2.isTreeRef()
+          || n1.isNodeRef() != n2.isNodeRef())
+        return false;
+    }
+    return !i1.hasNext() && !i2.hasNext();
+  }
+
+  // Path of directories with a file at the end
+  private static MutableDirectoryTree pathTree(long depth, KeyGen kg) {
+    Key id = kg.next();
+    MutableDirectoryTree t = new MutableDirectoryTree(id,
+        new DirectoryEntry(id, null, DirectoryEntry.TREE));
+    try {
+      for (long i = 0; i < depth; i++) {
+        Key nId = kg.next();
+        t.insert(id, nId, new DirectoryEntry(nId, "d" + i, i < depth - 1 ?
+            DirectoryEntry.DIR : DirectoryEntry.FILE));
+        id = nId;
+      }
+    } catch (NodeNotFoundException e) {
+      Log.fatal("Tree construction error", e);
+    }
+    return t;
+  }
+
+  public static void main(String[] args) {
+    Log.setLogger(new SysoutLogger());
+    normalizeBench(args);
+  }
+}
+
+// arch-tag: cfa227b7-9977-4ae0-bb44-216c7e7baf7a
@@ -23,7 +23,7 @@ public class RootSuite extends TestCase {
 
   public static final 
     Class[] testClasses = {TestRefTrees.class,XasTests.class,TestChangeTree.class,
-      TestMutableTree.class, TestDeweyTrees.class };
+      TestMutableTree.class, TestDeweyTrees.class, TestParallelRefTrees.class };
   
   public void setUp() throws Exception {
   }
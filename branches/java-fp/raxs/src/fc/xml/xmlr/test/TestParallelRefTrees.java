@@ -0,0 +1,173 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.xml.xmlr.test;
+
+import java.util.Iterator;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import EDU.oswego.cs.dl.util.concurrent.FJTaskRunnerGroup;
+import fc.util.NonListableSet;
+import fc.xml.xmlr.ChangeBuffer;
+import fc.xml.xmlr.IdAddressableRefTree;
+import fc.xml.xmlr.Key;
+import fc.xml.xmlr.KeyMap;
+import fc.xml.xmlr.NodeNotFoundException;
+import fc.xml.xmlr.RefTree;
+import fc.xml.xmlr.RefTreeNode;
+import fc.xml.xmlr.RefTrees;
+import fc.xml.xmlr.test.RandomDirectoryTree.DirectoryEntry;
+import fc.xml.xmlr.test.RandomDirectoryTree.KeyGen;
+import fc.xml.xmlr.test.RandomDirectoryTree.MutableDirectoryTree;
+
+/** Check that the fork/join variants of {@link RefTrees#normalize} and
+ * {@link RefTrees#expandRefs} give the same results as the sequential
+ * ones. Subtrees near the root are run as separate tasks, so the trees
+ * are several levels deeper than the fork depth. The path tree is deeper
+ * than the recursive implementation could handle.
+ */
+
+public class TestParallelRefTrees extends TestCase {
+
+  /** Depth of the path tree. */
+  public static final int DEPTH = 200000;
+
+  private FJTaskRunnerGroup group;
+
+  public TestParallelRefTrees(String name) {
+    super(name);
+  }
+
+  protected void setUp() {
+    group = new FJTaskRunnerGroup(4);
+  }
+
+  protected void tearDown() {
+    group.interruptAll();
+  }
+
+  public void testSmallTrees() throws Exception {
+    String[][] tests = {
+        {TestRefTrees.NT1_BASE, TestRefTrees.NT1_1, TestRefTrees.NT1_2},
+        {TestRefTrees.NT3_BASE, TestRefTrees.NT3_1, TestRefTrees.NT3_2},
+        {TestRefTrees.NT4_BASE, TestRefTrees.NT4_1, TestRefTrees.NT4_2},
+        {TestRefTrees.NT5_BASE, TestRefTrees.NT5_1, TestRefTrees.NT5_2},
+        {TestRefTrees.NT6_BASE, TestRefTrees.NT6_1, TestRefTrees.NT6_2},
+        {TestRefTrees.NT7_BASE, TestRefTrees.NT7_1, TestRefTrees.NT7_2}
+    };
+    for (int i = 0; i < tests.length; i++) {
+      IdAddressableRefTree base = RefTrees.getAddressableTree(
+          TestRefTrees.readTree(tests[i][0]));
+      RefTree[] trees = {TestRefTrees.readTree(tests[i][1]),
+          TestRefTrees.readTree(tests[i][2])};
+      Set[] content = new Set[2], parContent = new Set[2];
+      Set[] refs = RefTrees.normalize(base, trees, content,
+          KeyMap.UNMAPPABLE);
+      Set[] parRefs = RefTrees.normalize(base, trees, parContent,
+          KeyMap.UNMAPPABLE, group);
+      for (int j = 0; j < 2; j++) {
+        Assert.assertEquals("Refs of tree " + i + "/" + j, refs[j],
+            parRefs[j]);
+        Assert.assertEquals("Content of tree " + i + "/" + j, content[j],
+            parContent[j]);
+      }
+    }
+  }
+
+  public void testRandomTree() throws NodeNotFoundException {
+    KeyGen kg = new KeyGen(RandomDirectoryTree.KEY_GEN);
+    Random rnd = new Random(42L);
+    MutableDirectoryTree bt = RandomDirectoryTree.randomDirTree(20000, 20,
+        0.05, 5.0, 2.0, rnd, kg);
+    ChangeBuffer cb = new ChangeBuffer(bt);
+    RandomDirectoryTree.permutateTree(cb, 500, "uuuummmmiidd", 0.05, rnd, kg);
+    Set[] used = check(bt, cb.getChangeTree());
+    Assert.assertFalse(used[0].isEmpty());
+  }
+
+  public void testDeepTree() throws NodeNotFoundException {
+    KeyGen kg = new KeyGen(RandomDirectoryTree.KEY_GEN);
+    MutableDirectoryTree bt = pathTree(DEPTH, kg);
+    ChangeBuffer cb = new ChangeBuffer(bt);
+    RefTreeNode n = bt.getRoot();
+    while (n.getChildIterator().hasNext())
+      n = (RefTreeNode) n.getChildIterator().next();
+    cb.update(n.getId(), new DirectoryEntry(n.getId(), "renamed",
+        DirectoryEntry.FILE));
+    check(bt, cb.getChangeTree());
+  }
+
+  // Normalize and expand as in a store commit, sequentially and in
+  // parallel. Returns the sequentially normalized refs
+  private Set[] check(IdAddressableRefTree bt, final IdAddressableRefTree delta)
+      throws NodeNotFoundException {
+    RefTree[] trees = {delta, RefTrees.getRefTree(bt)};
+    Set[] content = new Set[2], parContent = new Set[2];
+    Set[] used = RefTrees.normalize(bt, trees, content,
+        KeyMap.IDENTITY_MAP);
+    Set[] parUsed = RefTrees.normalize(bt, trees, parContent,
+        KeyMap.IDENTITY_MAP, group);
+    for (int i = 0; i < 2; i++) {
+      Assert.assertEquals("Refs of tree " + i, used[i], parUsed[i]);
+      Assert.assertEquals("Content of tree " + i, content[i], parContent[i]);
+    }
+    Set allowedContent = new NonListableSet() {
+      public boolean contains(Object id) {
+        RefTreeNode n = delta.getNode((Key) id);
+        return n == null ? false : n.isReference();
+      }
+    };
+    RefTree exp = RefTrees.expandRefs(RefTrees.getRefTree(bt), used[0],
+        allowedContent, bt);
+    RefTree parExp = RefTrees.expandRefs(RefTrees.getRefTree(bt), used[0],
+        allowedContent, bt, group);
+    assertSameTree(exp, parExp);
+    return used;
+  }
+
+  // Compare ids and reference types in document order. Not by
+  // XmlrDebug.treeComp(), as that recurses
+  private static void assertSameTree(RefTree t1, RefTree t2) {
+    Iterator i1 = RefTrees.dfsIterator(t1), i2 = RefTrees.dfsIterator(t2);
+    for (int pos = 0; i1.hasNext() && i2.hasNext(); pos++) {
+      RefTreeNode n1 = (RefTreeNode) i1.next(), n2 = (RefTreeNode) i2.next();
+      Assert.assertEquals("Node " + pos, n1.getId(), n2.getId());
+      Assert.assertEquals("Tree ref " + pos, n1.isTreeRef(), n2.isTreeRef());
+      Assert.assertEquals("Node ref " + pos, n1.isNodeRef(), n2.isNodeRef());
+    }
+    Assert.assertFalse("Trees differ in size", i1.hasNext() || i2.hasNext());
+  }
+
+  // Path of directories with a file at the end
+  private static MutableDirectoryTree pathTree(int depth, KeyGen kg)
+      throws NodeNotFoundException {
+    Key id = kg.next();
+    MutableDirectoryTree t = new MutableDirectoryTree(id,
+        new DirectoryEntry(id, null, DirectoryEntry.TREE));
+    for (int i = 0; i < depth; i++) {
+      Key nId = kg.next();
+      t.insert(id, nId, new DirectoryEntry(nId, "d" + i, i < depth - 1 ?
+          DirectoryEntry.DIR : DirectoryEntry.FILE));
+      id = nId;
+    }
+    return t;
+  }
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(TestParallelRefTrees.class);
+  }
+}
+
+// arch-tag: 8b2e123a-c5b8-4ec1-8d40-529a46328105
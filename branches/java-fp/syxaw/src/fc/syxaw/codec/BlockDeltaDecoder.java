@@ -0,0 +1,140 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.syxaw.codec;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+
+import fc.syxaw.fs.VersionHistory;
+import fc.syxaw.transport.ObjectInputStream;
+import fc.syxaw.util.Util;
+import fc.util.log.Log;
+
+/** Binary block delta decoder. See {@link BlockDeltaEncoder}
+ * for a description of the block delta format. The base version is read
+ * from the version history of the object. Copy instructions are normally
+ * in increasing order, in which case the base version is read once;
+ * otherwise the base version is reopened as needed.
+ */
+
+public class BlockDeltaDecoder extends Decoder {
+
+  private OutputStream decodeStream;
+  private VersionHistory history;
+
+  /** Create and initialize new decoder.
+   *
+   * @param decoded output stream for the decoded data
+   * @param h version history for the object. Used to read the base version.
+   */
+  public BlockDeltaDecoder(OutputStream decoded, VersionHistory h) {
+    decodeStream = decoded;
+    history = h;
+  }
+
+  /** Decode delta.
+   *
+   * @param is input stream with delta
+   * @throws IOException if an I/O error occurs
+   * @throws CodecException if the delta is invalid, or the base version is
+   * not available
+   */
+
+  public void decode(ObjectInputStream is) throws IOException {
+    VersionReference ref = new VersionReference();
+    is.readObject(ref);
+    Log.log("Block delta base version is "+ref.getReference(),Log.INFO);
+    BaseReader base = new BaseReader(ref.getReference());
+    MessageDigest total = BlockDeltaEncoder.getDigest();
+    byte[] buf = new byte[Util.COPY_BUF_SIZE*4];
+    InputStream deltais = is.readSubStream();
+    try {
+      DataInputStream din = new DataInputStream(deltais);
+      for(int op;(op = din.readUnsignedByte()) != BlockDeltaEncoder.OP_END;) {
+        if( op == BlockDeltaEncoder.OP_COPY ) {
+          base.seek(din.readLong());
+          for( long left = din.readLong();left > 0;) {
+            int count = base.read(buf,(int) Math.min(left,buf.length));
+            decodeStream.write(buf,0,count);
+            total.update(buf,0,count);
+            left -= count;
+          }
+        } else if( op == BlockDeltaEncoder.OP_DATA ) {
+          for( int left = din.readInt();left > 0;) {
+            int count = Math.min(left,buf.length);
+            din.readFully(buf,0,count);
+            decodeStream.write(buf,0,count);
+            total.update(buf,0,count);
+            left -= count;
+          }
+        } else
+          throw new CodecException("Invalid block delta opcode "+op);
+      }
+      byte[] hash = new byte[BlockDeltaEncoder.STRONG_LEN];
+      din.readFully(hash);
+      if( !MessageDigest.isEqual(hash,total.digest()) )
+        throw new CodecException("Block delta decoded to wrong data");
+    } finally {
+      deltais.close();
+      base.close();
+    }
+  }
+
+  // Sequential reader of the base version, reopened on backward seeks
+  private class BaseReader {
+
+    private int version;
+    private InputStream in = null;
+    private long pos = 0l;
+
+    BaseReader(int version) {
+      this.version = version;
+    }
+
+    void seek(long offset) throws IOException {
+      if( in == null || offset < pos ) {
+        close();
+        in = history.getData(version);
+        if( in == null )
+          throw new CodecException("No data for base version "+version);
+        pos = 0l;
+      }
+      while( pos < offset ) {
+        long count = in.skip(offset-pos);
+        if( count <= 0 ) {
+          if( in.read() == -1 )
+            throw new CodecException("Copy past end of base version");
+          count = 1;
+        }
+        pos += count;
+      }
+    }
+
+    int read(byte[] buf, int len) throws IOException {
+      int count = in.read(buf,0,len);
+      if( count < 0 )
+        throw new CodecException("Copy past end of base version");
+      pos += count;
+      return count;
+    }
+
+    void close() throws IOException {
+      if( in != null )
+        in.close();
+      in = null;
+    }
+  }
+}
+// arch-tag: 3cb1ef94-979c-4d7f-994a-ca92c4b7327a
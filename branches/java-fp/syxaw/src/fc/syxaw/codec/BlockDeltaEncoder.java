@@ -0,0 +1,353 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.syxaw.codec;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import fc.syxaw.fs.Config;
+import fc.syxaw.fs.Constants;
+import fc.syxaw.fs.VersionHistory;
+import fc.syxaw.transport.ObjectOutputStream;
+import fc.util.log.Log;
+
+/** Encode object as a binary block delta from another version of the
+ * object. Unlike {@link DeltaEncoder}, the encoder works on any byte
+ * stream. The algorithm is that of <code>rsync</code>: the base version
+ * is split into fixed-size blocks, and each block is indexed by a weak
+ * rolling checksum and a strong (MD5) hash. The current version is then
+ * scanned one byte at a time, and every window whose checksum and hash
+ * match a base block is sent as a reference to that block. Any other data
+ * is sent as literal bytes. As the sender has the base version locally,
+ * no signatures need to be exchanged over the network.
+ *
+ * <p>The encoder outputs a {@link VersionReference} object initialized with
+ * the base version number, followed by a sequence of instructions in a
+ * substream. Each instruction is a one byte opcode followed by its
+ * arguments:
+ * <dl>
+ * <dt>{@link #OP_COPY}, <code>long</code> offset, <code>long</code>
+ * length</dt><dd>copy bytes from the base version</dd>
+ * <dt>{@link #OP_DATA}, <code>int</code> length, bytes</dt>
+ * <dd>literal data</dd>
+ * <dt>{@link #OP_END}, 16 bytes</dt><dd>end of delta, followed by the MD5
+ * hash of the decoded data</dd>
+ * </dl>
+ * Numbers are in the format of <code>java.io.DataOutput</code>. Adjacent
+ * matching blocks are merged into a single copy instruction, so a small
+ * edit to a large object encodes to a few instructions.
+ *
+ * @see BlockDeltaDecoder
+ */
+
+public class BlockDeltaEncoder extends Encoder {
+
+  /** End of delta opcode. */
+  public static final int OP_END = 0;
+  /** Copy from base version opcode. */
+  public static final int OP_COPY = 1;
+  /** Literal data opcode. */
+  public static final int OP_DATA = 2;
+
+  /** Maximum number of blocks in the base version signature. The block size
+   * is doubled until the object fits in this many blocks. */
+  public static final int MAX_BLOCKS = 1 << 20;
+
+  static final String STRONG_HASH = "MD5";
+  static final int STRONG_LEN = 16;
+
+  private static final int MIN_BUFFER = 65536;
+
+  private InputStream in;
+  private VersionHistory history;
+  private int baseVersion;
+  private int blockSize;
+
+  // Base version signature. Blocks with equal weak sum hash buckets are
+  // chained through next[]
+  private int blocks = 0;
+  private int[] weak;
+  private byte[] strong;
+  private int[] heads;
+  private int[] next;
+
+  // Pending copy run
+  private long copyOffset = 0l;
+  private long copyLength = 0l;
+
+  private long copied = 0l;
+  private long sent = 0l;
+
+  /** Create new encoder.
+   *
+   * @param in input stream to the current version of the object
+   * @param size size of the current version, or
+   * {@link fc.syxaw.fs.Constants#NO_SIZE} if unknown. Used to choose the
+   * block size.
+   * @param baseVersion base version for delta
+   * @param h version history of the object, from which the base version is
+   * read
+   * @throws CodecException if the base version is not available
+   */
+
+  public BlockDeltaEncoder(InputStream in, long size, int baseVersion,
+                           VersionHistory h) throws IOException {
+    // Check that the base is available, so that the caller may fall back
+    // to another encoding. The base is read in write()
+    InputStream base = h.getData(baseVersion);
+    if( base == null )
+      throw new CodecException("No data for base version "+baseVersion);
+    base.close();
+    this.in = in;
+    this.history = h;
+    this.baseVersion = baseVersion;
+    blockSize = Config.DELTA_BLOCK_SIZE;
+    while( size != Constants.NO_SIZE && size / blockSize > MAX_BLOCKS )
+      blockSize <<= 1;
+  }
+
+  /** Write encoded data. Writes the delta from the base version given in
+   * the initializer to the current version of the object to <code>os</code>.
+   *
+   * @param os output stream for the encoded data
+   * @throws IOException if an I/O error occurs
+   */
+  public void write(ObjectOutputStream os) throws IOException {
+    InputStream base = history.getData(baseVersion);
+    if( base == null )
+      throw new CodecException("No data for base version "+baseVersion);
+    try {
+      makeSignature(base);
+    } finally {
+      base.close();
+    }
+    os.writeObject(new VersionReference(baseVersion));
+    ObjectOutputStream sos = os.writeSubStream(null, Constants.NO_SIZE, false);
+    try {
+      DataOutputStream dout = new DataOutputStream(sos);
+      writeDelta(dout);
+      dout.flush();
+      Log.log("Block delta transmit, blocksize=" + blockSize + ", copied bytes="
+              + copied + ", sent bytes=" + sent, Log.INFO);
+    } finally {
+      sos.close();
+    }
+  }
+
+  /** Get id for the encoding produced by this encoder.
+   * @return {@link fc.syxaw.protocol.TransferHeader#ENC_BLOCKDELTA}
+   */
+  public int getEncoding() {
+    return fc.syxaw.protocol.TransferHeader.ENC_BLOCKDELTA;
+  }
+
+  /** Get block size used by the encoder. */
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  protected void makeSignature(InputStream base) throws IOException {
+    MessageDigest md = getDigest();
+    weak = new int[1024];
+    strong = new byte[weak.length*STRONG_LEN];
+    byte[] block = new byte[blockSize];
+    // NOTE: a trailing partial block is not indexed
+    while( readFully(base, block) == blockSize ) {
+      if( blocks == weak.length ) {
+        int[] nweak = new int[2*weak.length];
+        System.arraycopy(weak,0,nweak,0,blocks);
+        weak = nweak;
+        byte[] nstrong = new byte[nweak.length*STRONG_LEN];
+        System.arraycopy(strong,0,nstrong,0,blocks*STRONG_LEN);
+        strong = nstrong;
+      }
+      weak[blocks] = weakSum(block,0,blockSize);
+      md.update(block,0,blockSize);
+      digest(md,strong,blocks*STRONG_LEN);
+      blocks++;
+    }
+    int buckets = 16;
+    while( buckets < 2*blocks )
+      buckets <<= 1;
+    heads = new int[buckets];
+    Arrays.fill(heads,-1);
+    next = new int[blocks];
+    // Insert backwards, so that chains are in block order
+    for( int i=blocks-1;i>=0;i--) {
+      int bucket = bucket(weak[i]);
+      next[i] = heads[bucket];
+      heads[bucket] = i;
+    }
+  }
+
+  protected void writeDelta(DataOutputStream out) throws IOException {
+    MessageDigest total = getDigest();
+    MessageDigest md = getDigest();
+    byte[] window = new byte[STRONG_LEN];
+    byte[] buf = new byte[Math.max(4*blockSize,MIN_BUFFER)];
+    int end = 0; // End of data in buf
+    int pos = 0; // Start of current window
+    int lit = 0; // Start of unsent literal data
+    boolean eof = false;
+    boolean rolling = false;
+    int a=0,b=0; // Weak checksum state
+    for(;;) {
+      if( pos + blockSize > end ) {
+        // Flush literal data and refill buffer
+        writeData(out,buf,lit,pos-lit);
+        System.arraycopy(buf,pos,buf,0,end-pos);
+        end -= pos;
+        pos = lit = 0;
+        while( !eof && end < buf.length ) {
+          int count = in.read(buf,end,buf.length-end);
+          if( count < 0 )
+            eof = true;
+          else {
+            total.update(buf,end,count);
+            end += count;
+          }
+        }
+        if( pos + blockSize > end ) {
+          // Tail shorter than block
+          writeData(out,buf,pos,end-pos);
+          break;
+        }
+      }
+      if( !rolling ) {
+        a = b = 0;
+        for( int i=0;i<blockSize;i++) {
+          int x = buf[pos+i] & 0xff;
+          a += x;
+          b += (blockSize-i)*x;
+        }
+        rolling = true;
+      }
+      int match = -1;
+      int sum = (a & 0xffff) | (b << 16);
+      for( int i=heads[bucket(sum)];i!=-1;i=next[i]) {
+        if( weak[i] != sum )
+          continue;
+        if( match == -1 ) { // Compute strong hash on first weak hit
+          md.update(buf,pos,blockSize);
+          digest(md,window,0);
+          match = -2;
+        }
+        if( equals(window,strong,i*STRONG_LEN) ) {
+          match = i;
+          break;
+        }
+      }
+      if( match >= 0 ) {
+        writeData(out,buf,lit,pos-lit);
+        writeCopy(out,((long) match)*blockSize,blockSize);
+        pos += blockSize;
+        lit = pos;
+        rolling = false;
+      } else if( pos + blockSize < end ) {
+        int x = buf[pos] & 0xff;
+        a += (buf[pos+blockSize] & 0xff) - x;
+        b += a - blockSize*x;
+        pos++;
+      } else {
+        pos++; // Checksum is recomputed after refill
+        rolling = false;
+      }
+    }
+    flushCopy(out);
+    out.writeByte(OP_END);
+    out.write(total.digest());
+  }
+
+  private void writeData(DataOutputStream out, byte[] buf, int off, int len)
+      throws IOException {
+    if( len == 0 )
+      return;
+    flushCopy(out);
+    out.writeByte(OP_DATA);
+    out.writeInt(len);
+    out.write(buf,off,len);
+    sent += len;
+  }
+
+  private void writeCopy(DataOutputStream out, long offset, long len)
+      throws IOException {
+    if( copyLength > 0 && copyOffset + copyLength == offset ) {
+      copyLength += len;
+      return;
+    }
+    flushCopy(out);
+    copyOffset = offset;
+    copyLength = len;
+  }
+
+  private void flushCopy(DataOutputStream out) throws IOException {
+    if( copyLength == 0 )
+      return;
+    out.writeByte(OP_COPY);
+    out.writeLong(copyOffset);
+    out.writeLong(copyLength);
+    copied += copyLength;
+    copyLength = 0;
+  }
+
+  private int bucket(int sum) {
+    return (sum ^ (sum >>> 16)) & (heads.length-1);
+  }
+
+  static int weakSum(byte[] buf, int off, int len) {
+    int a=0,b=0;
+    for( int i=0;i<len;i++) {
+      int x = buf[off+i] & 0xff;
+      a += x;
+      b += (len-i)*x;
+    }
+    return (a & 0xffff) | (b << 16);
+  }
+
+  static MessageDigest getDigest() throws CodecException {
+    try {
+      return MessageDigest.getInstance(STRONG_HASH);
+    } catch (NoSuchAlgorithmException x) {
+      throw new CodecException("No "+STRONG_HASH+" digest");
+    }
+  }
+
+  private static void digest(MessageDigest md, byte[] buf, int off)
+    throws CodecException {
+    try {
+      md.digest(buf,off,STRONG_LEN);
+    } catch (DigestException x) {
+      throw new CodecException("Digest failed: "+x.getMessage());
+    }
+  }
+
+  private static boolean equals(byte[] h, byte[] hashes, int off) {
+    for( int i=0;i<STRONG_LEN;i++)
+      if( h[i] != hashes[off+i] )
+        return false;
+    return true;
+  }
+
+  private static int readFully(InputStream in, byte[] buf) throws IOException {
+    int len = 0;
+    for( int count; len < buf.length &&
+         (count = in.read(buf,len,buf.length-len)) > 0; )
+      len += count;
+    return len;
+  }
+}
+// arch-tag: 49ed0f50-27bc-475f-a9fb-f2409c408147
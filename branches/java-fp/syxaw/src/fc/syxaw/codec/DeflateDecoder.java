@@ -0,0 +1,98 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.syxaw.codec;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import fc.syxaw.transport.ObjectInputStream;
+import fc.util.log.Log;
+
+/** Compressed block decoder. See {@link DeflateEncoder}
+ * for a description of the format.
+ */
+
+public class DeflateDecoder extends Decoder {
+
+  /** Maximum accepted block size. */
+  public static final int MAX_BLOCK_SIZE = 1 << 24;
+
+  private OutputStream decodeStream;
+
+  /** Create and initialize new decoder.
+   *
+   * @param decoded output stream for the decoded data
+   */
+  public DeflateDecoder(OutputStream decoded) {
+    decodeStream = decoded;
+  }
+
+  /** Decode compressed data.
+   *
+   * @param is input stream with compressed data
+   * @throws IOException if an I/O error occurs
+   * @throws CodecException if the data is invalid
+   */
+
+  public void decode(ObjectInputStream is) throws IOException {
+    ObjectInputStream sis = is.readSubStream();
+    Inflater inflater = new Inflater(true);
+    long count = 0l, received = 0l;
+    try {
+      DataInputStream in = new DataInputStream(sis);
+      byte[] data = new byte[DeflateEncoder.BLOCK_SIZE];
+      byte[] deflated = new byte[0];
+      for( int len;(len = in.readInt()) != 0;) {
+        int deflatedLen = in.readInt();
+        if( len < 0 || len > MAX_BLOCK_SIZE || deflatedLen < 0 ||
+            deflatedLen > len )
+          throw new CodecException("Invalid block "+len+"/"+deflatedLen);
+        if( len > data.length )
+          data = new byte[len];
+        if( deflatedLen == 0 ) {
+          in.readFully(data, 0, len);
+          received += len;
+        } else {
+          if( deflatedLen > deflated.length )
+            deflated = new byte[Math.max(deflatedLen, 2 * deflated.length)];
+          in.readFully(deflated, 0, deflatedLen);
+          received += deflatedLen;
+          inflater.reset();
+          inflater.setInput(deflated, 0, deflatedLen);
+          int n = 0;
+          try {
+            while( n < len && !inflater.finished() &&
+                   !inflater.needsInput() )
+              n += inflater.inflate(data, n, len - n);
+          } catch (DataFormatException x) {
+            throw new CodecException("Corrupt block: "+x.getMessage());
+          }
+          if( n != len || !inflater.finished() )
+            throw new CodecException("Corrupt block, decoded "+n+" of "+len+
+                                     " bytes");
+        }
+        decodeStream.write(data, 0, len);
+        count += len;
+      }
+      Log.log("Deflate receive, size=" + count + ", received bytes=" +
+              received, Log.INFO);
+    } finally {
+      inflater.end();
+      sis.close();
+    }
+  }
+}
+
+// arch-tag: a1199186-e5db-4e1e-a0ce-28f83823f3c0
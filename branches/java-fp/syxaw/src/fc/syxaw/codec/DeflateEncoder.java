@@ -0,0 +1,277 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.syxaw.codec;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.util.LinkedList;
+import java.util.zip.Deflater;
+
+import fc.syxaw.fs.Config;
+import fc.syxaw.fs.Constants;
+import fc.syxaw.transport.ObjectOutputStream;
+import fc.util.log.Log;
+
+import EDU.oswego.cs.dl.util.concurrent.Callable;
+import EDU.oswego.cs.dl.util.concurrent.FJTaskRunnerGroup;
+import EDU.oswego.cs.dl.util.concurrent.FutureResult;
+
+/** Encode object as compressed blocks. The object is split into blocks of
+ * {@link #BLOCK_SIZE} bytes, which are compressed independently with
+ * <code>deflate</code>. The blocks of a large object may hence be
+ * compressed in parallel, on a shared pool of
+ * {@link fc.syxaw.fs.Config#COMPRESS_THREADS} threads.
+ * A block that does not shrink by at least 1/{@link #MIN_SAVING} is sent
+ * as is.
+ *
+ * <p>The encoder outputs a substream holding a sequence of blocks. Each
+ * block is an <code>int</code> length of the block data, followed by an
+ * <code>int</code> length of the compressed data, or 0 if the block is
+ * not compressed, followed by the compressed or plain data. The sequence
+ * ends with a 0 block length. Numbers are in the format of
+ * <code>java.io.DataOutput</code>, and blocks are compressed as raw
+ * <code>deflate</code> data, without a zlib header.
+ *
+ * <p>As compressing data that is already compressed wastes time,
+ * {@link #isCompressible} should be used to check an object before it is
+ * encoded.
+ *
+ * @see DeflateDecoder
+ */
+
+public class DeflateEncoder extends Encoder {
+
+  /** Size of blocks. */
+  public static final int BLOCK_SIZE = 131072;
+
+  /** Maximum size of the sample read by {@link #isCompressible}. */
+  public static final int SAMPLE_SIZE = 65536;
+
+  /** Minimum saving for a block to be sent compressed, as a fraction
+   * of the block size. */
+  public static final int MIN_SAVING = 16;
+
+  /** Prefixes of MIME types of data that is already compressed. */
+  public static final String[] COMPRESSED_TYPES = {"audio/", "video/",
+    "image/jpeg", "image/png", "image/gif", "application/zip",
+    "application/gzip", "application/x-gzip", "application/x-bzip2",
+    "application/x-xz", "application/x-7z-compressed",
+    "application/x-rar-compressed", "application/java-archive"};
+
+  private static FJTaskRunnerGroup group = null;
+
+  private InputStream in;
+  private int level;
+  private boolean parallel;
+
+  private long read = 0l;
+  private long sent = 0l;
+  private int stored = 0;
+
+  /** Create new encoder. The encoder uses the compression level
+   * {@link fc.syxaw.fs.Config#COMPRESS_LEVEL}.
+   *
+   * @param in input stream to the object
+   * @param size size of the object, or
+   * {@link fc.syxaw.fs.Constants#NO_SIZE} if unknown. Blocks are
+   * compressed in parallel if the object spans several blocks.
+   */
+  public DeflateEncoder(InputStream in, long size) {
+    this(in, Config.COMPRESS_LEVEL, Config.COMPRESS_THREADS > 1 &&
+         (size == Constants.NO_SIZE || size > BLOCK_SIZE));
+  }
+
+  /** Create new encoder.
+   *
+   * @param in input stream to the object
+   * @param level compression level, from 1 (fastest) to 9 (smallest)
+   * @param parallel <code>true</code> if blocks are compressed in parallel
+   */
+  public DeflateEncoder(InputStream in, int level, boolean parallel) {
+    this.in = in;
+    this.level = level;
+    this.parallel = parallel;
+  }
+
+  /** Check if an object appears compressible. Returns <code>false</code>
+   * if the object has one of the {@link #COMPRESSED_TYPES}. Otherwise,
+   * compresses a sample from the start of the object, and returns
+   * <code>true</code> if the sample compresses as a block would need to.
+   * The sample is read with <code>mark</code> and <code>reset</code>;
+   * streams that do not support <code>mark</code> are assumed to be
+   * compressible.
+   *
+   * @param in input stream to the object
+   * @param type MIME type of the object, may be <code>null</code>
+   * @return <code>true</code> if the object appears compressible
+   * @throws IOException if the sample cannot be read
+   */
+  public static boolean isCompressible(InputStream in, String type)
+    throws IOException {
+    if( type != null ) {
+      type = type.toLowerCase();
+      for( int i=0;i<COMPRESSED_TYPES.length;i++)
+        if( type.startsWith(COMPRESSED_TYPES[i]) )
+          return false;
+    }
+    if( !in.markSupported() )
+      return true;
+    byte[] sample = new byte[SAMPLE_SIZE];
+    in.mark(SAMPLE_SIZE);
+    int len = readFully(in, sample);
+    in.reset();
+    return len > 0 && deflate(sample, len, Deflater.BEST_SPEED) != null;
+  }
+
+  /** Write encoded data.
+   *
+   * @param os output stream for the encoded data
+   * @throws IOException if an I/O error occurs
+   */
+  public void write(ObjectOutputStream os) throws IOException {
+    ObjectOutputStream sos = os.writeSubStream(null, Constants.NO_SIZE, false);
+    try {
+      DataOutputStream dout = new DataOutputStream(sos);
+      writeBlocks(dout);
+      dout.flush();
+      Log.log("Deflate transmit, bytes=" + read + ", sent bytes=" + sent +
+              ", stored blocks=" + stored, Log.INFO);
+    } finally {
+      sos.close();
+    }
+  }
+
+  /** Get id for the encoding produced by this encoder.
+   * @return {@link fc.syxaw.protocol.TransferHeader#ENC_DEFLATE}
+   */
+  public int getEncoding() {
+    return fc.syxaw.protocol.TransferHeader.ENC_DEFLATE;
+  }
+
+  protected void writeBlocks(DataOutputStream out) throws IOException {
+    // Blocks being compressed, in order. Keep the pool busy while the
+    // first block is written
+    LinkedList pending = new LinkedList();
+    int window = parallel ? 2 * Config.COMPRESS_THREADS : 1;
+    boolean eof = false;
+    while( !eof || !pending.isEmpty() ) {
+      while( !eof && pending.size() < window ) {
+        byte[] data = new byte[BLOCK_SIZE];
+        int len = readFully(in, data);
+        eof = len < BLOCK_SIZE;
+        if( len == 0 )
+          break;
+        read += len;
+        FutureResult r = new FutureResult();
+        Runnable task = r.setter(new Block(data, len, level));
+        if( parallel ) {
+          try {
+            getGroup().execute(task);
+          } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            task.run();
+          }
+        } else
+          task.run();
+        pending.addLast(r);
+      }
+      if( pending.isEmpty() )
+        break;
+      Block b = get((FutureResult) pending.removeFirst());
+      out.writeInt(b.len);
+      if( b.deflated != null ) {
+        out.writeInt(b.deflatedLen);
+        out.write(b.deflated, 0, b.deflatedLen);
+        sent += b.deflatedLen;
+      } else {
+        out.writeInt(0);
+        out.write(b.data, 0, b.len);
+        sent += b.len;
+        stored++;
+      }
+    }
+    out.writeInt(0);
+  }
+
+  private static Block get(FutureResult r) throws IOException {
+    try {
+      return (Block) r.get();
+    } catch (InterruptedException x) {
+      throw new java.io.InterruptedIOException("Compression interrupted");
+    } catch (InvocationTargetException x) {
+      throw new IOException("Compression failed: "+
+                            x.getTargetException());
+    }
+  }
+
+  // Returns deflated data, with length set in deflatedLen, or null
+  // if the data does not compress enough
+  private static byte[] deflate(byte[] data, int len, int level) {
+    return deflate(data, len, level, null);
+  }
+
+  private static byte[] deflate(byte[] data, int len, int level, Block b) {
+    Deflater d = new Deflater(level, true);
+    try {
+      d.setInput(data, 0, len);
+      d.finish();
+      byte[] out = new byte[len - len / MIN_SAVING];
+      int n = 0;
+      while( !d.finished() && n < out.length )
+        n += d.deflate(out, n, out.length - n);
+      if( !d.finished() )
+        return null;
+      if( b != null )
+        b.deflatedLen = n;
+      return out;
+    } finally {
+      d.end();
+    }
+  }
+
+  private static synchronized FJTaskRunnerGroup getGroup() {
+    if( group == null )
+      group = new FJTaskRunnerGroup(Config.COMPRESS_THREADS);
+    return group;
+  }
+
+  static int readFully(InputStream in, byte[] buf) throws IOException {
+    int len = 0;
+    for( int n;len < buf.length &&
+         (n = in.read(buf, len, buf.length - len)) > -1;)
+      len += n;
+    return len;
+  }
+
+  private static class Block implements Callable {
+    final byte[] data;
+    final int len;
+    final int level;
+    byte[] deflated = null;
+    int deflatedLen = 0;
+
+    Block(byte[] data, int len, int level) {
+      this.data = data;
+      this.len = len;
+      this.level = level;
+    }
+
+    public Object call() {
+      deflated = deflate(data, len, level, this);
+      return this;
+    }
+  }
+}
+
+// arch-tag: 49e6a437-fc7a-445c-afb4-3c7dde2e936f
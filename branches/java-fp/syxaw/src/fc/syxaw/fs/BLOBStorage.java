@@ -36,4 +36,14 @@ public abstract class BLOBStorage {
   /** Remove all data from the BLOB storage. */
 
   public abstract void delete();
+
+  /** Get the file holding the data in the BLOB storage, if any. The file
+   * may be read directly instead of through {@link #getInputStream}.
+   *
+   * @return file, or <code>null</code> if the data is not in a file
+   */
+
+  public java.io.File getFile() {
+    return null;
+  }
 }// arch-tag: 86fa204784aac366a8cbb6c84fcd2c7c *-
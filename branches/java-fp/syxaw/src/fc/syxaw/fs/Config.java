@@ -143,6 +143,78 @@ public class Config {
   public static final boolean XML_DELTA =
       Boolean.valueOf(System.getProperty("syxaw.xmldelta","true")).booleanValue();
 
+  /** Enable binary block delta encoding if set to <code>true</code>.
+   * Changes to objects that are not XML delta encoded are transmitted
+   * as binary deltas against a version available at the peer, if the
+   * peer accepts the encoding. See
+   * {@link fc.syxaw.codec.BlockDeltaEncoder}.
+   * The value is read from the system property
+   * <code>syxaw.blockdelta</code>.
+   * Default value is
+   * <code>true</code>*/
+
+  public static final boolean BLOCK_DELTA =
+      Boolean.valueOf(System.getProperty("syxaw.blockdelta","true")).booleanValue();
+
+  /** Minimum object size for binary block delta encoding. Smaller objects
+   * are always sent in full.
+   * The value is read from the system property
+   * <code>syxaw.blockdelta.minsize</code>.
+   * Default value is 16384. */
+
+  public static final long BLOCK_DELTA_MINSIZE =
+      Long.parseLong(System.getProperty("syxaw.blockdelta.minsize","16384"));
+
+  /** Minimum block size for binary block delta encoding. The block size
+   * is increased for very large objects.
+   * The value is read from the system property
+   * <code>syxaw.blockdelta.blocksize</code>.
+   * Default value is 2048. */
+
+  public static final int DELTA_BLOCK_SIZE =
+      Integer.parseInt(System.getProperty("syxaw.blockdelta.blocksize","2048"));
+
+  /** Enable compression of objects if set to <code>true</code>. Objects
+   * that are sent in full are compressed, if the peer accepts the
+   * encoding and the data appears compressible. Download replies are
+   * compressed if the request lists
+   * {@link fc.syxaw.protocol.TransferHeader#ENC_DEFLATE ENC_DEFLATE};
+   * uploads only once a download reply from the peer has listed it. See
+   * {@link fc.syxaw.codec.DeflateEncoder}.
+   * The value is read from the system property
+   * <code>syxaw.compress</code>.
+   * Default value is
+   * <code>true</code>*/
+
+  public static final boolean COMPRESS =
+      Boolean.valueOf(System.getProperty("syxaw.compress","true")).booleanValue();
+
+  /** Minimum object size for compression. Smaller objects are sent
+   * uncompressed.
+   * The value is read from the system property
+   * <code>syxaw.compress.minsize</code>.
+   * Default value is 4096. */
+
+  public static final long COMPRESS_MINSIZE =
+      Long.parseLong(System.getProperty("syxaw.compress.minsize","4096"));
+
+  /** Compression level, from 1 (fastest) to 9 (smallest).
+   * The value is read from the system property
+   * <code>syxaw.compress.level</code>.
+   * Default value is 1. */
+
+  public static final int COMPRESS_LEVEL =
+      Integer.parseInt(System.getProperty("syxaw.compress.level","1"));
+
+  /** Number of threads compressing the blocks of large objects. Blocks
+   * are compressed in the sending thread if set to 1.
+   * The value is read from the system property
+   * <code>syxaw.compress.threads</code>.
+   * Default value is 2. */
+
+  public static final int COMPRESS_THREADS = Math.max(1,
+      Integer.parseInt(System.getProperty("syxaw.compress.threads","2")));
+
   /** Enable synchronization of dependent objects if set to <code>true</code>.
    * When synchronizing a directory tree, the contents of any files that
    * have been changed in that tree
@@ -14,6 +14,7 @@
 
 package fc.syxaw.fs;
 
+import java.io.BufferedInputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -30,7 +31,11 @@ import java.util.Map;
 import fc.raxs.DeltaStream;
 import fc.syxaw.api.Metadata;
 import fc.syxaw.api.MetadataImpl;
+import fc.syxaw.codec.BlockDeltaDecoder;
+import fc.syxaw.codec.BlockDeltaEncoder;
 import fc.syxaw.codec.CodecException;
+import fc.syxaw.codec.DeflateDecoder;
+import fc.syxaw.codec.DeflateEncoder;
 import fc.syxaw.codec.DeltaDecoder;
 import fc.syxaw.codec.DeltaEncoder;
 import fc.syxaw.codec.Encoder;
@@ -80,10 +85,30 @@ public class FileTransfer {
   }
 
   /** Encodings accepted by the transfer engine. */
-  // FIXME-W: We do not actually check that the chosen encoding
-  // is valid for the peer.
   public static final int[] ACCEPTED_ENCODINGS = TransferHeader.ALL_ENCODINGS;
 
+  // Encodings accepted by peers, as last seen in a download reply; map of
+  // <location,int[]>
+  private Map peerEncodings = Collections.synchronizedMap(new HashMap());
+
+  /** Get encodings accepted by a peer. The encodings are learned from the
+   * transfer headers of download replies from the peer. Until a reply is
+   * seen, the peer is assumed to accept
+   * {@link TransferHeader#DEFAULT_ENCODINGS}, which all peers do.
+   *
+   * @param location location of the peer
+   * @return encodings accepted by the peer
+   */
+  public int[] getPeerEncodings(String location) {
+    int[] encodings = (int[]) peerEncodings.get(location);
+    return encodings != null ? encodings : TransferHeader.DEFAULT_ENCODINGS;
+  }
+
+  protected void setPeerEncodings(String location, TransferHeader th) {
+    if( location != null && th != null && th.getAcceptedEncodings() != null )
+      peerEncodings.put(location, th.getAcceptedEncodings());
+  }
+
   /** Create objects on remote device. Guaranteed to get the
    * number of objects requested. Implements a developers API to the
    * <code>CREATE_OBJECTS</code> synchronization protocol call.
@@ -189,20 +214,24 @@ public class FileTransfer {
    * @return atatus of the completed download, or <code>null</code> if the
    * method was called asynchronously.
    */
-  public synchronized DownloadRequestBase download( GUID object,
+  public DownloadRequestBase download( GUID object,
                                    BLOBStorage storage,
                                    VersionHistory objectVersions,
                                    boolean requestLock,
                                    DownloadCompletionHandler completionHandler, boolean getData, boolean getMetadata )
                            throws IOException {
-    if( completionHandler != null && queuedDownloads != null ) {
-      // Async call, but only if a batch is started!
-      queuedDownloads.add(new DownloadTask(object.getQueriedUId(),
-                                           getData, getMetadata, storage,
-                                           objectVersions, requestLock,
-                                           completionHandler, null));
-      return null;
+    synchronized(this) {
+      if( completionHandler != null && queuedDownloads != null ) {
+        // Async call, but only if a batch is started!
+        queuedDownloads.add(new DownloadTask(object.getQueriedUId(),
+                                             getData, getMetadata, storage,
+                                             objectVersions, requestLock,
+                                             completionHandler, null));
+        return null;
+      }
     }
+    // Single object downloads are independent of each other, and may
+    // proceed concurrently over the (thread safe) call channel
 
     // Download (which is "stat" at the same time)
     FileTransfer.DownloadRequest dlRequest = null;
@@ -315,16 +344,27 @@ public class FileTransfer {
     try {
       if (queuedDownloads == null)
         throw new IllegalStateException("No batch download initiated");
-      // Put fancy thread pool stuff here
-      BatchDownloadRequest rq = new BatchDownloadRequest(location);
-      rq.setObjects(queuedDownloads);
-      rq.download();
+      downloadBatch(location, queuedDownloads);
     } finally {
       queuedDownloads = null; // No batch active
       _dl_batch_done.release();
     }
   }
 
+  /** Download a batch of objects. The completion handler of each task
+   * is called as the object is received. Used by
+   * {@link SyncScheduler} to make its batch requests.
+   *
+   * @param location target location of batch
+   * @param tasks list of {@link DownloadTask} to download
+   * @throws IOException if an I/O error occurs
+   */
+  public void downloadBatch(String location, List tasks) throws IOException {
+    BatchDownloadRequest rq = new BatchDownloadRequest(location);
+    rq.setObjects(tasks);
+    rq.download();
+  }
+
   protected void completeUploadBatch(String location, List requests) {
 
   }
@@ -448,6 +488,7 @@ public class FileTransfer {
                                        history,
                                        objectVersion,
                                        peerVersionsAvailable,
+                                       getPeerEncodings(object.getLocation()),
                                        sendData,
                                        sendMeta,completionHandler,null,lockToken);
         storage = null; // Don't close here
@@ -527,14 +568,17 @@ public class FileTransfer {
     protected MetadataEncoder me=null;
     protected DataEncoder de=null;
     protected InputStream storageStream=null;
+    protected int[] peerEncodings;
 
     protected Transmitter( fc.syxaw.protocol.DownloadRequest aRequest,
                         InputStream aUploadStream, FullMetadata aMd,
                         VersionHistory aHistory,
-                        int objectVersion ) throws IOException {
+                        int objectVersion, int[] aPeerEncodings )
+        throws IOException {
         request = aRequest;
         history = aHistory;
         md = aMd;
+        peerEncodings = aPeerEncodings;
         storageStream=aUploadStream;
         init(aUploadStream,objectVersion);
     }
@@ -575,6 +619,8 @@ public class FileTransfer {
     protected void init(InputStream uploadStream, int objectVersion)
         throws IOException {
       header = new TransferHeader();
+      // Let the peer know which encodings it may use when uploading to us
+      header.setAcceptedEncodings(ACCEPTED_ENCODINGS);
       if( uploadStream == null ) {
         contentLength = -1;
         return;
@@ -594,7 +640,7 @@ public class FileTransfer {
                             request.getVersionsAvailable());
         de = new DataEncoder(uploadStream,md.getType(),
                              dataRef,history,request.getVersionsAvailable(),
-                             md.getLength());
+                             peerEncodings,md.getLength());
         header.setHash(md.getHash());
         header.setEncoding(de.getEncoding());
         header.setSizeEstimate(dataRef != Constants.NO_VERSION ?
@@ -771,13 +817,14 @@ public class FileTransfer {
                                  VersionHistory aHistory,
                                  int objectVersion,
                                  int[] peerVersionsAvailable,
+                                 int[] peerEncodings,
                                  boolean sendData, boolean sendMeta,
                                  String lock) throws
         IOException {
       super(new fc.syxaw.protocol.DownloadRequest(null,
           peerVersionsAvailable,
           sendMeta, sendData, false, null),
-            aUploadStream, aMd, aHistory, objectVersion);
+            aUploadStream, aMd, aHistory, objectVersion, peerEncodings);
       this.object = object;
       request = new fc.syxaw.protocol.UploadRequest(object.toBase64Q(),
           sendMeta, sendData,lock);
@@ -827,7 +874,8 @@ public class FileTransfer {
                             String lockToken) throws
         IOException {
       super(aName.getQueriedUId(), aUploadStream, aMd, aHistory, objectVersion,
-            peerVersionsAvailable, sendData, sendMeta,lockToken);
+            peerVersionsAvailable, getPeerEncodings(aName.getLocation()),
+            sendData, sendMeta, lockToken);
       location = aName.getLocation();
       call = new UploadCall();
     }
@@ -1018,7 +1066,8 @@ public class FileTransfer {
                       InputStream dataStream, FullMetadata md,
                       VersionHistory history,
                       int objectVersion) throws IOException {
-      super( request,dataStream,md,history,objectVersion);
+      super( request,dataStream,md,history,objectVersion,
+             TransferHeader.DEFAULT_ENCODINGS);
     }
 
     /** Transfer header of reply */
@@ -1328,6 +1377,7 @@ public class FileTransfer {
 
     protected void handleReceived(fc.syxaw.fs.FileTransfer.
                                   DownloadRequestBase received) {
+      setPeerEncodings(location, received.getTransferHeader());
       ((DownloadTask) received).getCh().downloadComplete(received);
     }
 
@@ -1446,17 +1496,22 @@ public class FileTransfer {
       remoteStatus = ts;
       remoteStatus.assignTo(status);
       Log.log("D/l reply status is ", Log.INFO, ts);
-      if (ts.getStatus() >= TransmitStatus.OK)
+      if (ts.getStatus() >= TransmitStatus.OK) {
+        setPeerEncodings(location, replyHeader);
         receive(rs, replyHeader);
+      }
       return ts;
     }
   }
 
   /** Default data encoder.
    * The default data encoder used by {@link FileTransfer}. Delegates encoding
-   * to {@link fc.syxaw.codec.VersionRefEncoder} or
-   * {@link fc.syxaw.codec.DeltaEncoder} if applicable; otherwise
-   * no encoding is performed.
+   * to {@link fc.syxaw.codec.VersionRefEncoder},
+   * {@link fc.syxaw.codec.DeltaEncoder} or
+   * {@link fc.syxaw.codec.BlockDeltaEncoder} if applicable; otherwise
+   * the data is compressed by {@link fc.syxaw.codec.DeflateEncoder} if the
+   * peer accepts it and the data appears compressible, or else sent
+   * without encoding.
    */
 
   public class DataEncoder extends Encoder  {
@@ -1468,10 +1523,14 @@ public class FileTransfer {
 
     DataEncoder(InputStream adata, String format,
                 int averref, VersionHistory history,
-                int[] availVersions, long adataSize) throws IOException {
+                int[] availVersions, int[] peerEncodings,
+                long adataSize) throws IOException {
       data = adata;
       dataSize = adataSize;
-      encoding = initEncoder(adata,format,averref,history,availVersions);
+      encoding = initEncoder(adata,format,averref,history,availVersions,
+                             peerEncodings);
+      if( encoding == TransferHeader.ENC_BINARY && encoder == null )
+        encoding = initCompressor(adata,format,peerEncodings);
     }
 
     public void write( ObjectOutputStream os ) throws IOException{
@@ -1506,7 +1565,8 @@ public class FileTransfer {
 
     protected int initEncoder(InputStream in, String type,
                               int verRef, VersionHistory h,
-                                 int[] availableVersions) throws IOException  {
+                              int[] availableVersions,
+                              int[] peerEncodings) throws IOException  {
       /*
      // See if a suitable base is found
       if (in instanceof DeltaStream) {
@@ -1522,9 +1582,13 @@ public class FileTransfer {
         return TransferHeader.ENC_VERSIONREF;
       }
       int baseVersion = Constants.NO_VERSION;
-      if( Config.XML_DELTA &&
-          availableVersions != null &&
-          in instanceof DeltaStream  ) {
+      boolean xmlDelta = Config.XML_DELTA && in instanceof DeltaStream;
+      boolean blockDelta = !xmlDelta && Config.BLOCK_DELTA &&
+          dataSize >= Config.BLOCK_DELTA_MINSIZE &&
+          Util.arrayLookup(peerEncodings, TransferHeader.ENC_BLOCKDELTA,
+                           TransferHeader.ENC_BLOCKDELTA+1) != -1;
+      if( (xmlDelta || blockDelta) &&
+          availableVersions != null ) {
         int maxVersion = h.getCurrentVersion();
         int[] localVersions =
                Version.getNumbers(h.getFullVersions(Version.CURRENT_BRANCH));
@@ -1546,14 +1610,37 @@ public class FileTransfer {
       // Delta enc=> init delta encoder
       int aEncoding=TransferHeader.ENC_BINARY;
       try {
-        encoder = new DeltaEncoder( in, baseVersion);
-        aEncoding = TransferHeader.ENC_DELTA;
+        if( xmlDelta ) {
+          encoder = new DeltaEncoder( in, baseVersion);
+          aEncoding = TransferHeader.ENC_DELTA;
+        } else {
+          encoder = new BlockDeltaEncoder( in, dataSize, baseVersion, h);
+          aEncoding = TransferHeader.ENC_BLOCKDELTA;
+        }
       } catch (CodecException e) {
         Log.log("Cannot construct delta encoder, reverting to binary",Log.WARNING,e);
       }
       return aEncoding;
     }
 
+    protected int initCompressor(InputStream in, String type,
+                                 int[] peerEncodings) throws IOException {
+      if( !Config.COMPRESS || dataSize < Config.COMPRESS_MINSIZE ||
+          Util.arrayLookup(peerEncodings, TransferHeader.ENC_DEFLATE,
+                           TransferHeader.ENC_DEFLATE+1) == -1 )
+        return TransferHeader.ENC_BINARY;
+      if( !in.markSupported() ) {
+        // The sample is read with mark and reset
+        in = new BufferedInputStream(in, DeflateEncoder.SAMPLE_SIZE);
+        data = in;
+      }
+      if( DeflateEncoder.isCompressible(in, type) ) {
+        encoder = new DeflateEncoder(in, dataSize);
+        return TransferHeader.ENC_DEFLATE;
+      }
+      return TransferHeader.ENC_BINARY;
+    }
+
   }
 
   /** Default metadata encoder.
@@ -1629,8 +1716,10 @@ public class FileTransfer {
   /** Default data decoder.
    * The default data decoder used by {@link FileTransfer}. Decodes
    * data that is not encoded or encoded with
-   * {@link fc.syxaw.codec.VersionRefEncoder} or
-   * {@link fc.syxaw.codec.DeltaEncoder}
+   * {@link fc.syxaw.codec.VersionRefEncoder},
+   * {@link fc.syxaw.codec.DeltaEncoder},
+   * {@link fc.syxaw.codec.BlockDeltaEncoder} or
+   * {@link fc.syxaw.codec.DeflateEncoder}
    */
 
   public class DataDecoder extends VersionRefDecoder {
@@ -1642,8 +1731,10 @@ public class FileTransfer {
     /** Create decoder for given encoding.
      * @param aencoding The used encoding. Allowable values are
      *  {@link TransferHeader#ENC_VERSIONREF ENC_VERSIONREF},
-     *  {@link TransferHeader#ENC_BINARY ENC_BINARY} and
-     *  {@link TransferHeader#ENC_DELTA ENC_DELTA}
+     *  {@link TransferHeader#ENC_BINARY ENC_BINARY},
+     *  {@link TransferHeader#ENC_DELTA ENC_DELTA},
+     *  {@link TransferHeader#ENC_BLOCKDELTA ENC_BLOCKDELTA} and
+     *  {@link TransferHeader#ENC_DEFLATE ENC_DEFLATE}
      * @param aStorage output stream for decoded data
      * @param ahistory version history of object being decoded
      * (used when decoding deltas)
@@ -1666,6 +1757,10 @@ public class FileTransfer {
           Log.log("Exception during delta decode.",Log.ERROR,x);
           throw new IOException("Exception during delta decode.");
         }
+      } else if( encoding == TransferHeader.ENC_BLOCKDELTA ) {
+        (new BlockDeltaDecoder(storage, history)).decode(is);
+      } else if( encoding == TransferHeader.ENC_DEFLATE ) {
+        (new DeflateDecoder(storage)).decode(is);
       } else if( encoding == TransferHeader.ENC_BINARY ) {
         ObjectInputStream sis = null;
         try {
@@ -1702,11 +1797,12 @@ public class FileTransfer {
 
     UploadTask(QueriedUID object, InputStream aUploadStream, FullMetadata aMd,
                VersionHistory aHistory, int objectVersion,
-               int[] peerVersionsAvailable, boolean sendData, boolean sendMeta,
+               int[] peerVersionsAvailable, int[] peerEncodings,
+               boolean sendData, boolean sendMeta,
                UploadCompletionHandler ch, SyxawFile.Lock l, String lockToken) throws
         IOException {
       super(object, aUploadStream, aMd, aHistory, objectVersion,
-            peerVersionsAvailable, sendData, sendMeta,lockToken);
+            peerVersionsAvailable, peerEncodings, sendData, sendMeta,lockToken);
       this.lock =l;
       this.ch = ch;
     }
@@ -16,33 +16,51 @@ package fc.syxaw.fs;
 import java.util.HashMap;
 import java.util.Map;
 
-import fc.syxaw.util.Cache;
+import fc.syxaw.util.Histogram;
 import fc.syxaw.util.LruCache;
-import fc.syxaw.util.SynchronizedCache;
+import fc.syxaw.util.TimingWheel;
 import fc.util.log.Log;
 
-import EDU.oswego.cs.dl.util.concurrent.ClockDaemon;
 import EDU.oswego.cs.dl.util.concurrent.Mutex;
 
 /** Class for managing soft-state locks. Syxaw uses soft-state locks to
  * lock objects during the synchronization cycle. See the documentation
  * for {@link LockManager.Lock} for a description of the semantics of
  *  the locks.
+ * <p>The lock table is split into {@link #STRIPES} stripes by the hash of
+ * the object UID, each guarded by a monitor of its own, so that
+ * concurrently executing RPC handlers seldom contend for the table. A
+ * {@link LockManager.Lock} is only guarded by its mutex, and acquires the
+ * monitor of its stripe while holding the mutex, but never the other way
+ * around.
+ * <p>Lock expiry is scheduled on a {@link TimingWheel} shared by all
+ * managers. The time spent waiting for exclusive access, and the time
+ * exclusive access is held, are recorded in histograms; see
+ * {@link #getWaitTimes} and {@link #getHoldTimes}.
  */
 
 public class LockManager {
-  
-  protected Map locksByToken = new HashMap();
-  protected Map locksByUID = new HashMap();
-  protected ClockDaemon expirationDaemon = new ClockDaemon();
-  
-  protected Cache expiredByUID = 
-    new SynchronizedCache( new LruCache(Cache.TEMP_LOW,16) );
-  
+
+  /** Number of lock table stripes. */
+  public static final int STRIPES = 16;
+
+  /** Length of a tick of the expiration timer, in milliseconds. */
+  public static final long EXPIRATION_TICK = 100l;
+
+  // Max expired locks kept for resurrection, per stripe
+  private static final int EXPIRED_LOCKS = 4;
+
+  private static final TimingWheel expirationTimer =
+    new TimingWheel("lock-expiry", EXPIRATION_TICK);
+
+  private final Stripe[] stripes = new Stripe[STRIPES];
+
   /** Create a new instance.
    */
   
   public LockManager() {
+    for( int i=0;i<STRIPES;i++)
+      stripes[i] = new Stripe(i);
   }
   
   /** Acquire lock for a file. If a lock in the soft-lock or mutex-lock
@@ -54,16 +72,21 @@ public class LockManager {
    * @return lock for the file
    */
   
-  public synchronized Lock newLock(SyxawFile f) {
-    Lock l = (Lock) locksByUID.get(f.getUid());
-    if( l == null ) {
-      l = new Lock(f);
-      // New lock for this file -> old lock cannot be resurrected
-      // Also note that we can't resurrect a lock here, as then
-      // somebody could use the expired token to access the new lock!
-      expiredByUID.remove(f.getUid());
+  public Lock newLock(SyxawFile f) {
+    UID id = f.getUid();
+    Stripe s = stripe(id);
+    synchronized(s) {
+      Lock l = (Lock) s.locks.get(id);
+      if( l == null ) {
+        l = new Lock(f,s);
+        s.locks.put(id,l);
+        // New lock for this file -> old lock cannot be resurrected
+        // Also note that we can't resurrect a lock here, as then
+        // somebody could use the expired token to access the new lock!
+        s.expired.remove(id);
+      }
+      return l;
     }
-    return l;
   }
   
   /** Get lock by token. Retrieve a lock by its token. The operation
@@ -71,31 +94,93 @@ public class LockManager {
    * no new locks have been issued for the file.
    *
    * @param token lock token
-   * @param f expected file of the lock. This parameter is a precaution to
-   *  test that the right lock is associated with the right file; if the
-   *  file of the retrieved lock does not match, an failed assertion will
-   *  occur.
-   * @return retrieved lock
+   * @param f file of the lock. The lock is looked up by the file, and
+   *  returned if its token matches.
+   * @return retrieved lock, or <code>null</code> if the file has no
+   *  lock by the token
    */
   public Lock get(String token, SyxawFile f) {
     UID id = f.getUid();
-    Lock l = (Lock) locksByToken.get(token);
-    if( l == null ) {
-      l = (Lock) expiredByUID.get(id); // Recycle old lock if possible
-      if( l != null && l.getToken().equals(token) ) {
-        // Resurrect lock
-        expiredByUID.remove(id);
-        locksByUID.put(id,l);
-        locksByToken.put(l.getToken(),l);
-        Log.log("Resurrected expired lock "+l.getToken(),Log.INFO);
+    Stripe s = stripe(id);
+    synchronized(s) {
+      Lock l = (Lock) s.locks.get(id);
+      if( l == null ) {
+        l = (Lock) s.expired.get(id); // Recycle old lock if possible
+        if( l != null && l.getToken().equals(token) ) {
+          // Resurrect lock
+          s.expired.remove(id);
+          s.locks.put(id,l);
+          Log.log("Resurrected expired lock "+l.getToken(),Log.INFO);
+        }
       }
+      return l != null && l.getToken().equals(token) ? l : null;
+    }
+  }
+
+  /** Get histogram of the time waited for exclusive access to locks.
+   *
+   * @return histogram of wait times, in milliseconds
+   */
+  public Histogram getWaitTimes() {
+    Histogram h = new Histogram();
+    for( int i=0;i<STRIPES;i++) {
+      synchronized(stripes[i]) {
+        h.add(stripes[i].waitTimes);
+      }
+    }
+    return h;
+  }
+
+  /** Get histogram of the time exclusive access to locks was held.
+   *
+   * @return histogram of hold times, in milliseconds
+   */
+  public Histogram getHoldTimes() {
+    Histogram h = new Histogram();
+    for( int i=0;i<STRIPES;i++) {
+      synchronized(stripes[i]) {
+        h.add(stripes[i].holdTimes);
+      }
+    }
+    return h;
+  }
+
+  public String toString() {
+    int count = 0;
+    for( int i=0;i<STRIPES;i++) {
+      synchronized(stripes[i]) {
+        count += stripes[i].locks.size();
+      }
+    }
+    return "LockManager{locks="+count+", wait ms="+getWaitTimes()+
+      ", hold ms="+getHoldTimes()+"}";
+  }
+
+  private Stripe stripe(UID id) {
+    int h = id.hashCode();
+    h ^= (h >>> 16);
+    h ^= (h >>> 8);
+    return stripes[h & (STRIPES - 1)];
+  }
+
+  // Lock table stripe. Guarded by its monitor.
+  private static class Stripe {
+    final int index;
+    final Map locks = new HashMap(); // UID->Lock
+    final LruCache expired = new LruCache(LruCache.TEMP_LOW,EXPIRED_LOCKS);
+    final Histogram waitTimes = new Histogram();
+    final Histogram holdTimes = new Histogram();
+    long nextToken = 0;
+
+    Stripe(int index) {
+      this.index = index;
+    }
+
+    // Tokens of different stripes never clash
+    String newToken() {
+      return "L"+String.valueOf(1000000l+(nextToken++)*STRIPES+index);
     }
-    if( l!= null && !f.getUid().equals(l.f.getUid()) )
-      Log.log("Invalid lock token for file",Log.ASSERTFAILED);
-    return l;
   }
-  
-  private static long lc=1000000l;
   
   /** A soft-state lock for a file. The lock may be in three states: released,
    * soft-locked and exclusively locked.
@@ -114,17 +199,19 @@ public class LockManager {
    */
   public class Lock {
     
+    private final SyxawFile f;
+    private final String token;
+    private final Stripe stripe;
+    private final Mutex mutex = new Mutex();
+    // Guarded by the mutex
     private SyxawFile.Lock flock=null;
-    private SyxawFile f;
-    private String token;
     private Object expirationToken=null;
-    private Mutex mutex = new Mutex();
+    private long acquired;
     
-    private Lock(SyxawFile f) {
+    private Lock(SyxawFile f, Stripe stripe) {
       this.f = f;
-      token="L"+String.valueOf(lc++);
-      locksByToken.put(getToken(),this);
-      locksByUID.put(f.getUid(),this);
+      this.stripe = stripe;
+      token = stripe.newToken();
     }
     
     /** Acquire exclusive access to the lock. As a side effect, the
@@ -132,8 +219,9 @@ public class LockManager {
      *
      * @return token to release the exclusive lock
      */
-    public synchronized Object acquireExclusive() {
+    public Object acquireExclusive() {
       boolean hasLock=false;
+      long start = System.currentTimeMillis();
       try {
         hasLock = mutex.attempt(Config.LOCK_ATTEMPT_TIME);
       } catch (InterruptedException x) {
@@ -143,9 +231,12 @@ public class LockManager {
         Log.log("Can't mutex " + f.getUid(), Log.FATALERROR);
         return null;
       }
-      
+      acquired = System.currentTimeMillis();
+      synchronized(stripe) {
+        stripe.waitTimes.record(acquired - start);
+      }
       if( expirationToken != null ) {
-        expirationDaemon.cancel(expirationToken);
+        expirationTimer.cancel(expirationToken);
         expirationToken = null;
       }
       flock = f.lock();
@@ -158,26 +249,30 @@ public class LockManager {
      *
      * @param l token returned by {@link #acquireExclusive() acquireExclusive}
      */
-    public synchronized void releaseExclusive(Object l) {
+    public void releaseExclusive(Object l) {
       //Log.log("ReleaseX "+getToken()+" for "+f.getUid(),Log.INFO);
       releaseExclusive(l,true);
     }
     
-    protected synchronized void releaseExclusive(Object l, boolean timedRelease) {
+    protected void releaseExclusive(Object l, boolean timedRelease) {
       if( l!=mutex)
         throw new IllegalArgumentException("Wrong token passed back");
-      mutex.release();
       flock.release();
       flock=null;
       if( expirationToken !=null )
         Log.log("Should not have an expiration token here",Log.ASSERTFAILED);
       if(timedRelease )
-        expirationToken = expirationDaemon.executeAfterDelay(Config.
+        expirationToken = expirationTimer.executeAfterDelay(Config.
             LOCK_EXPIRATION_TIME, new Runnable() {
           public void run() {
             release(true, null);
           }
         });
+      long held = System.currentTimeMillis() - acquired;
+      synchronized(stripe) {
+        stripe.holdTimes.record(held);
+      }
+      mutex.release();
     }
     
     /** Release lock fully. Releases exclusive locking and soft-state
@@ -186,20 +281,23 @@ public class LockManager {
      * acquireExclusive}, or <code>null</code> of the lock is not held
      * exclusively.
      */
-    public synchronized void release(Object mex) {
+    public void release(Object mex) {
       release(false,mex);
     }
     
-    protected synchronized void release(boolean expired, Object mex) {
+    protected void release(boolean expired, Object mex) {
       if( mex == null ) {
         mex=acquireExclusive();
       }
       releaseExclusive(mex,false);
       Log.log("Release "+getToken()+" for "+f.getUid()+
           (expired ? " by expiration.":""),Log.INFO);
-      locksByToken.remove(getToken());
-      locksByUID.remove(f.getUid());
-      expiredByUID.put(f.getUid(),this);
+      synchronized(stripe) {
+        UID id = f.getUid();
+        if( stripe.locks.get(id) == this )
+          stripe.locks.remove(id);
+        stripe.expired.put(id,this);
+      }
     }
     
     /** Get string token for the lock.
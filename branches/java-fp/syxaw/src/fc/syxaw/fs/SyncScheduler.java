@@ -0,0 +1,543 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.syxaw.fs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import fc.syxaw.protocol.TransmitStatus;
+import fc.util.log.Log;
+
+import EDU.oswego.cs.dl.util.concurrent.DirectExecutor;
+import EDU.oswego.cs.dl.util.concurrent.Executor;
+import EDU.oswego.cs.dl.util.concurrent.LinkedQueue;
+import EDU.oswego.cs.dl.util.concurrent.PooledExecutor;
+import EDU.oswego.cs.dl.util.concurrent.Semaphore;
+import EDU.oswego.cs.dl.util.concurrent.ThreadFactory;
+
+/** Pipelined scheduler for batch synchronization. Objects synchronized
+ * by {@link SynchronizationEngine} pass through the stages
+ * {@link #DOWNLOAD}, {@link #MERGE}, {@link #UPLOAD} and {@link #COMMIT}
+ * independently of each other; an object enters the next stage as soon
+ * as it leaves the previous one, so a slow object does not hold up the
+ * others.
+ * <p>Downloads are queued per location, and a dispatcher thread cuts the
+ * queues into batch download requests. A queue is cut when it holds a
+ * full batch, when no more downloads are to be expected, or when its
+ * oldest download has waited {@link #LINGER} ms. The batch size is
+ * doubled while full batches complete quickly, and halved when a batch
+ * takes longer than {@link #BATCH_LATENCY} ms or returns more than
+ * {@link #BATCH_BYTES} bytes. Uploads are batched by {@link FileTransfer}
+ * as they arrive.
+ * <p>The worker, download and dispatcher threads are shared by all
+ * synchronizations and kept for the lifetime of the scheduler. The number
+ * of objects in each stage and the time the objects spend in it are
+ * available as {@link Stage} metrics.
+ */
+
+public class SyncScheduler {
+
+  /** Download stage. From queuing the download of an object to receiving
+   * it. */
+  public static final int DOWNLOAD = 0;
+  /** Merge stage. From receiving an object to reconciling it and queuing
+   * any upload. */
+  public static final int MERGE = 1;
+  /** Upload stage. From queuing the upload of an object to the upload
+   * completing. */
+  public static final int UPLOAD = 2;
+  /** Commit stage. From the upload completing, or merging if nothing was
+   * uploaded, to the new version being committed. */
+  public static final int COMMIT = 3;
+
+  /** Max number of objects in a batch download request. */
+  public static final int MAX_BATCH =
+    Integer.getInteger("syxaw.sync.maxbatch", 4096).intValue();
+
+  /** Number of objects in the first batch download request. */
+  public static final int INITIAL_BATCH = 32;
+
+  /** Target time of a batch download request in ms. */
+  public static final int BATCH_LATENCY =
+    Integer.getInteger("syxaw.sync.batchlatency", 2000).intValue();
+
+  /** Target size of a batch download reply in bytes. */
+  public static final int BATCH_BYTES =
+    Integer.getInteger("syxaw.sync.batchbytes", 16 << 20).intValue();
+
+  /** Max time in ms a download waits to be batched with others. */
+  public static final int LINGER =
+    Integer.getInteger("syxaw.sync.linger", 50).intValue();
+
+  /** Max number of concurrent batch download requests. */
+  public static final int DOWNLOAD_STREAMS =
+    Integer.getInteger("syxaw.sync.downloads", 2).intValue();
+
+  /** Max number of objects being synchronized at once. Submitting more
+   * objects waits for earlier ones to complete. */
+  public static final int MAX_ACTIVE =
+    Integer.getInteger("syxaw.sync.maxactive", 1024).intValue();
+
+  private static final String[] STAGE_NAMES =
+    {"download", "merge", "upload", "commit"};
+
+  protected FileTransfer transfer = FileTransfer.getInstance();
+
+  private final Stage[] stages = new Stage[STAGE_NAMES.length];
+  private final Executor workers;
+  private final PooledExecutor downloaders;
+  private final Semaphore admission = new Semaphore(MAX_ACTIVE);
+  // Batch size never exceeds what the admitted objects can fill
+  private final int maxBatch = Math.max(1, Math.min(MAX_BATCH,
+      MAX_ACTIVE / Math.max(1, DOWNLOAD_STREAMS)));
+
+  // State below guarded by this
+  private Map queues = new HashMap(); // location -> LinkedList of Download
+  private int submitting = 0; // Jobs still submitting objects
+  private int statPending = 0; // Objects not yet through phase 1
+  private int active = 0; // Objects being synchronized
+  private int downloading = 0; // Batch downloads in progress
+  private int batchSize = Math.min(INITIAL_BATCH, maxBatch);
+  private long batches = 0;
+  private Thread dispatcher = null;
+
+  /** Create scheduler.
+   * @param workerCount number of worker threads; <code>0</code> or less
+   * runs the merge and commit stages in the thread that completes the
+   * previous stage
+   */
+  public SyncScheduler(int workerCount) {
+    for (int i = 0; i < stages.length; i++)
+      stages[i] = new Stage(STAGE_NAMES[i]);
+    if (workerCount > 0) {
+      PooledExecutor pex = new PooledExecutor(new LinkedQueue());
+      pex.setMinimumPoolSize(workerCount);
+      pex.setMaximumPoolSize(workerCount);
+      pex.setThreadFactory(new DaemonFactory("sync-worker"));
+      workers = pex;
+    } else
+      workers = new DirectExecutor();
+    downloaders = new PooledExecutor(new LinkedQueue());
+    downloaders.setMinimumPoolSize(Math.max(1, DOWNLOAD_STREAMS));
+    downloaders.setMaximumPoolSize(Math.max(1, DOWNLOAD_STREAMS));
+    downloaders.setThreadFactory(new DaemonFactory("sync-download"));
+  }
+
+  /** Start a synchronization job. Objects are submitted to the job with
+   * {@link Job#submit}, after which {@link Job#endSubmit} must be called.
+   * @param location location scope of the objects' downloads
+   * @return new job
+   */
+  public synchronized Job startJob(String location) {
+    submitting++;
+    if (dispatcher == null) {
+      dispatcher = new Thread(new Dispatcher(), "sync-dispatcher");
+      dispatcher.setDaemon(true);
+      dispatcher.start();
+    }
+    return new Job(location);
+  }
+
+  /** Get stage metrics.
+   * @param stage one of {@link #DOWNLOAD}, {@link #MERGE}, {@link #UPLOAD}
+   * or {@link #COMMIT}
+   * @return metrics of the stage
+   */
+  public Stage getStage(int stage) {
+    return stages[stage];
+  }
+
+  /** Get the current size of batch download requests.
+   * @return max number of objects in the next batch download request
+   */
+  public synchronized int getBatchSize() {
+    return batchSize;
+  }
+
+  /** Get the number of batch download requests made.
+   * @return number of batch download requests
+   */
+  public synchronized long getBatches() {
+    return batches;
+  }
+
+  public String toString() {
+    StringBuffer sb = new StringBuffer();
+    synchronized (this) {
+      sb.append("batches=").append(batches).append(", batch size=").append(
+          batchSize);
+    }
+    for (int i = 0; i < stages.length; i++)
+      sb.append("; ").append(stages[i]);
+    return sb.toString();
+  }
+
+  /** Make a batch download request. Called by the download threads.
+   * @param location location to download from
+   * @param tasks list of {@link FileTransfer.DownloadTask} to download
+   * @throws IOException if the request fails
+   */
+  protected void downloadBatch(String location, List tasks)
+    throws IOException {
+    transfer.downloadBatch(location, tasks);
+  }
+
+  // Queue download for batching
+  protected synchronized void download(String location, Download d) {
+    LinkedList q = (LinkedList) queues.get(location);
+    if (q == null) {
+      q = new LinkedList();
+      queues.put(location, q);
+    }
+    q.addLast(d);
+    if (q.size() == 1 || q.size() >= batchSize)
+      notifyAll();
+  }
+
+  // Start ready batch downloads; returns ms until the next queue
+  // needs cutting, 0 if none is queued or no download thread is free
+  private synchronized long dispatch() throws InterruptedException {
+    long now = System.currentTimeMillis(), wait = 0;
+    boolean noMore = submitting == 0 && statPending == 0;
+    for (Iterator i = queues.entrySet().iterator(); i.hasNext() &&
+         downloading < DOWNLOAD_STREAMS;) {
+      Map.Entry e = (Map.Entry) i.next();
+      LinkedList q = (LinkedList) e.getValue();
+      long age = now - ((Download) q.getFirst()).queued;
+      if (q.size() >= batchSize || noMore || age >= LINGER) {
+        List batch = new ArrayList(Math.min(q.size(), batchSize));
+        while (!q.isEmpty() && batch.size() < batchSize)
+          batch.add(q.removeFirst());
+        if (q.isEmpty())
+          i.remove();
+        downloading++;
+        downloaders.execute(new BatchDownload((String) e.getKey(), batch));
+      } else
+        wait = wait == 0 ? LINGER - age : Math.min(wait, LINGER - age);
+    }
+    return downloading < DOWNLOAD_STREAMS ? wait : 0;
+  }
+
+  // Adapt batch size to a completed batch
+  private synchronized void batchDone(int count, long bytes, long time) {
+    downloading--;
+    batches++;
+    if (time > BATCH_LATENCY || bytes > BATCH_BYTES)
+      batchSize = Math.max(1, batchSize / 2);
+    else if (count >= batchSize && time < BATCH_LATENCY / 2 &&
+             bytes < BATCH_BYTES / 2)
+      batchSize = Math.min(maxBatch, batchSize * 2);
+    Log.log("Batch download of " + count + " objects, bytes=" + bytes +
+            ", ms=" + time + "; next batch size=" + batchSize, Log.INFO);
+    notifyAll();
+  }
+
+  private synchronized void admitted() {
+    active++;
+    statPending++;
+    if (active == 1)
+      transfer.startUploadBatch();
+  }
+
+  private synchronized void statDone() {
+    statPending--;
+    if (statPending == 0)
+      notifyAll();
+  }
+
+  private synchronized void endSubmit() {
+    submitting--;
+    notifyAll();
+  }
+
+  private synchronized void done() {
+    active--;
+    if (active == 0)
+      transfer.completeUploadBatch();
+    admission.release();
+  }
+
+  /** Objects submitted by one synchronization call. */
+  public class Job {
+
+    private String location;
+    private int outstanding = 0;
+
+    protected Job(String location) {
+      this.location = location;
+    }
+
+    /** Submit an object for synchronization. Waits if
+     * {@link #MAX_ACTIVE} objects are being synchronized.
+     * @param syncer synchronizer of the object; runs phase 1 of the
+     * synchronization, and must call {@link #statDone} when done with it,
+     * and {@link #done} when done with the object.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void submit(Runnable syncer) throws InterruptedException {
+      admission.acquire();
+      synchronized (this) {
+        outstanding++;
+      }
+      admitted();
+      workers.execute(syncer);
+    }
+
+    /** Signal that all objects of the job have been submitted. */
+    public void endSubmit() {
+      SyncScheduler.this.endSubmit();
+    }
+
+    /** Wait for all submitted objects to be done.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized void waitDone() throws InterruptedException {
+      while (outstanding > 0)
+        wait();
+    }
+
+    /** Signal that an object is through phase 1. */
+    public void statDone() {
+      SyncScheduler.this.statDone();
+    }
+
+    /** Signal that an object is done. */
+    public void done() {
+      synchronized (this) {
+        outstanding--;
+        if (outstanding == 0)
+          notifyAll();
+      }
+      SyncScheduler.this.done();
+    }
+
+    /** Run a phase of synchronization on a worker thread.
+     * @param phase phase to run
+     * @throws InterruptedException if interrupted while queuing
+     */
+    public void execute(Runnable phase) throws InterruptedException {
+      workers.execute(phase);
+    }
+
+    /** Queue object download. The parameters are as for
+     * {@link FileTransfer#download FileTransfer.download}; the download
+     * will be made as a part of a batch.
+     */
+    public void download(GUID object, BLOBStorage storage,
+                         VersionHistory history, boolean requestLock,
+                         FileTransfer.DownloadCompletionHandler ch,
+                         boolean getData, boolean getMetadata) {
+      Download d = new Download(ch);
+      d.task = transfer.new DownloadTask(object.getQueriedUId(), getData,
+          getMetadata, storage, history, requestLock, d, null);
+      SyncScheduler.this.download(location, d);
+    }
+
+    /** Mark an object entering a stage.
+     * @param stage stage entered
+     * @return time of entering, to pass to {@link #exit}
+     */
+    public long enter(int stage) {
+      return stages[stage].enter();
+    }
+
+    /** Mark an object leaving a stage.
+     * @param stage stage left
+     * @param entered value returned by {@link #enter}
+     */
+    public void exit(int stage, long entered) {
+      stages[stage].exit(entered);
+    }
+  }
+
+  /** Metrics of a synchronization stage. The depth of a stage is the
+   * number of objects currently in it, either waiting or in progress. The
+   * latency of an object is the time from entering the stage to leaving
+   * it.
+   */
+  public static class Stage {
+
+    private String name;
+    private int depth = 0;
+    private int maxDepth = 0;
+    private long count = 0;
+    private long totalLatency = 0;
+    private long maxLatency = 0;
+
+    protected Stage(String name) {
+      this.name = name;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /** Get number of objects in the stage. */
+    public synchronized int getDepth() {
+      return depth;
+    }
+
+    /** Get max number of objects that have been in the stage at once. */
+    public synchronized int getMaxDepth() {
+      return maxDepth;
+    }
+
+    /** Get number of objects that have left the stage. */
+    public synchronized long getCount() {
+      return count;
+    }
+
+    /** Get average latency in ms. */
+    public synchronized long getAverageLatency() {
+      return count > 0 ? totalLatency / count : 0l;
+    }
+
+    /** Get max latency in ms. */
+    public synchronized long getMaxLatency() {
+      return maxLatency;
+    }
+
+    /** Reset the metrics. The current depth is kept. */
+    public synchronized void reset() {
+      maxDepth = depth;
+      count = totalLatency = maxLatency = 0l;
+    }
+
+    protected synchronized long enter() {
+      depth++;
+      maxDepth = Math.max(maxDepth, depth);
+      return System.currentTimeMillis();
+    }
+
+    protected synchronized void exit(long entered) {
+      long latency = System.currentTimeMillis() - entered;
+      depth--;
+      count++;
+      totalLatency += latency;
+      maxLatency = Math.max(maxLatency, latency);
+    }
+
+    public synchronized String toString() {
+      return name + ": depth=" + depth + ", max depth=" + maxDepth +
+        ", objects=" + count + ", avg ms=" + getAverageLatency() +
+        ", max ms=" + maxLatency;
+    }
+  }
+
+  // Queued download. Records the download stage, and makes sure the
+  // completion handler gets called exactly once.
+  protected class Download implements FileTransfer.DownloadCompletionHandler {
+
+    FileTransfer.DownloadTask task;
+    final long queued;
+    private FileTransfer.DownloadCompletionHandler ch;
+    private boolean completed = false;
+
+    Download(FileTransfer.DownloadCompletionHandler ch) {
+      this.ch = ch;
+      queued = stages[DOWNLOAD].enter();
+    }
+
+    public void downloadComplete(FileTransfer.DownloadRequestBase req) {
+      synchronized (this) {
+        if (completed)
+          return;
+        completed = true;
+      }
+      stages[DOWNLOAD].exit(queued);
+      ch.downloadComplete(req);
+    }
+
+    // Complete with error status unless completed
+    void fail() {
+      synchronized (this) {
+        if (completed)
+          return;
+      }
+      task.getStatus().setStatus(TransmitStatus.ERROR);
+      downloadComplete(task);
+    }
+  }
+
+  private class BatchDownload implements Runnable {
+
+    private String location;
+    private List batch;
+
+    BatchDownload(String location, List batch) {
+      this.location = location;
+      this.batch = batch;
+    }
+
+    public void run() {
+      long start = System.currentTimeMillis(), bytes = 0;
+      List tasks = new ArrayList(batch.size());
+      for (Iterator i = batch.iterator(); i.hasNext();)
+        tasks.add(((Download) i.next()).task);
+      try {
+        downloadBatch(location, tasks);
+      } catch (IOException x) {
+        Log.log("Batch download failed", Log.ERROR, x);
+      } catch (RuntimeException x) {
+        Log.log("Batch download failed", Log.ERROR, x);
+      } finally {
+        try {
+          for (Iterator i = batch.iterator(); i.hasNext();) {
+            Download d = (Download) i.next();
+            d.fail();
+            if (d.task.getTransferHeader() != null &&
+                d.task.getTransferHeader().getSizeEstimate() > 0)
+              bytes += d.task.getTransferHeader().getSizeEstimate();
+          }
+        } finally {
+          batchDone(batch.size(), bytes, System.currentTimeMillis() - start);
+        }
+      }
+    }
+  }
+
+  private class Dispatcher implements Runnable {
+    public void run() {
+      try {
+        synchronized (SyncScheduler.this) {
+          while (true)
+            SyncScheduler.this.wait(dispatch());
+        }
+      } catch (InterruptedException x) {
+        Log.log("Sync dispatcher interrupted", Log.ERROR, x);
+      }
+    }
+  }
+
+  private static class DaemonFactory implements ThreadFactory {
+
+    private String name;
+    private int count = 0;
+
+    DaemonFactory(String name) {
+      this.name = name;
+    }
+
+    public synchronized Thread newThread(Runnable command) {
+      Thread t = new Thread(command, name + "-" + (count++));
+      t.setDaemon(true);
+      return t;
+    }
+  }
+}
+
+// arch-tag: b332404f-d8ee-411a-8b86-9e53c5733b2f
@@ -39,10 +39,6 @@ import fc.syxaw.util.Util;
 import fc.util.log.Log;
 
 import EDU.oswego.cs.dl.util.concurrent.BoundedLinkedQueue;
-import EDU.oswego.cs.dl.util.concurrent.DirectExecutor;
-import EDU.oswego.cs.dl.util.concurrent.Executor;
-import EDU.oswego.cs.dl.util.concurrent.LinkedQueue;
-import EDU.oswego.cs.dl.util.concurrent.PooledExecutor;
 import EDU.oswego.cs.dl.util.concurrent.Semaphore;
 
 /** Syxaw synchronization engine. This class implements synchronization
@@ -53,9 +49,6 @@ import EDU.oswego.cs.dl.util.concurrent.Semaphore;
 
 public class SynchronizationEngine {
 
-  /** Max no of object in one HTTP request. */
-  public static final int MAX_BATCH=256;
-  
   /** Max number of worker threads.
    * <p>Special values: 1 = upload + download +1 worker thread; 
    * 0=upload+download/worker thread, -1: upload/download/worker in one thread */
@@ -71,6 +64,8 @@ public class SynchronizationEngine {
   
   protected FileTransfer transfer = FileTransfer.getInstance();
 
+  private SyncScheduler scheduler = null;
+
   protected SynchronizationEngine() {
   }
 
@@ -82,6 +77,17 @@ public class SynchronizationEngine {
     return instance;
   }
 
+  /** Get scheduler of batch synchronizations. The scheduler is created
+   * on first use.
+   *
+   * @return scheduler
+   */
+  public synchronized SyncScheduler getScheduler() {
+    if (scheduler == null)
+      scheduler = new SyncScheduler(MAX_WORKERS);
+    return scheduler;
+  }
+
  /** Synchronize a Syxaw object. If a directory is synchronized, all
   * changed (locally or remotely) files in the directory subtree will
   * also be synchronized.
@@ -128,42 +134,26 @@ public class SynchronizationEngine {
         }
         return TransmitStatus.OK; // Well, not entirely true..
       }
-      int failcount = 0;
-      SyxawFile[] dependentFiles = null;// new SyxawFile[dependentObjects.size()];
-      int pos = 0, batchoffset=0;
-      for (Iterator i = dependentObjects.iterator();i.hasNext(); ) {
-        if( dependentFiles != null && pos == dependentFiles.length ) {
-          synchronizeObjectBatch(dependentFiles,merger.getDependentLID());
-          dependentFiles=null;
-        }
-        if( dependentFiles == null ) {
-          dependentFiles = new SyxawFile[
-                           Math.min(MAX_BATCH, dependentObjects.size() - batchoffset)];
-          batchoffset += dependentFiles.length;
-          pos=0;
-          Log.log("New batch of "+dependentFiles.length+" objects. Left="
-                  +(dependentObjects.size()-batchoffset),Log.INFO);
-          Progress.moreStuff(dependentFiles.length);
-        }
+      // The scheduler cuts the objects into download requests
+      SyxawFile[] dependentFiles = new SyxawFile[dependentObjects.size()];
+      int pos = 0;
+      for (Iterator i = dependentObjects.iterator();i.hasNext(); )
         dependentFiles[pos++] = f.newInstance((UID) i.next());
-//        Log.log("Dependent object for " + dependentFiles[pos - 1] + "is " +
-//                dependentFiles[pos - 1].getLink(), Log.INFO);
-      }
-      if( dependentFiles != null ){
-        String q = null;
-        if (!getData && isDir){
-          this.getData = getData;
-          String l = f.getLink();
-          if (l != null){
-            int queryC = l.indexOf(SyxawFile.querySeparatorChar);
-            if (queryC >= 0){
-              q = l.substring(queryC);
-            }
+      Log.log("New batch of "+dependentFiles.length+" objects.",Log.INFO);
+      Progress.moreStuff(dependentFiles.length);
+      String q = null;
+      if (!getData && isDir){
+        this.getData = getData;
+        String l = f.getLink();
+        if (l != null){
+          int queryC = l.indexOf(SyxawFile.querySeparatorChar);
+          if (queryC >= 0){
+            q = l.substring(queryC);
           }
         }
-        synchronizeObjectBatch(dependentFiles,merger.getDependentLID(), q);
       }
-      return failcount == 0 ? TransmitStatus.OK : TransmitStatus.ERROR;
+      synchronizeObjectBatch(dependentFiles,merger.getDependentLID(), q);
+      return TransmitStatus.OK;
     }
     finally {
       if( fc.syxaw.transport.Config.MEASURE_TIMES ) {
@@ -220,8 +210,6 @@ public class SynchronizationEngine {
     }
   }
 
-  private Executor pool = null;
-
   public int synchronizeObjectBatch(ArrayList<fc.syxaw.fs.SyxawFile> af, boolean getData, boolean getMeta) 
   throws FileNotFoundException{
     this.getData = getData;
@@ -248,50 +236,25 @@ FileNotFoundException {
     }
     if( af.length == 0 )
       return TransmitStatus.OK; // Nop
+    SyncScheduler s = getScheduler();
+    SyncScheduler.Job job = s.startJob(locationScope);
     try {
-      Semaphore sync1Done = null;
-      Semaphore sync2Done = null;
-      Semaphore syncDone = null;
       // NOTE: Might be a good idea not to start synchronizers for unlinked 
       // objects, as this saves resources
-      ObjectSynchronizer[] syncers = new ObjectSynchronizer[af.length];
-      if( MAX_WORKERS > 0 ) {
-        PooledExecutor pex = new PooledExecutor(new LinkedQueue());
-        pex.setMinimumPoolSize(MAX_WORKERS);
-        pex.setMaximumPoolSize(MAX_WORKERS);
-        pool = pex;
-      } else {
-        pool = new DirectExecutor();
-      }
-      transfer.startDownloadBatch();
-      transfer.startUploadBatch();
-      sync1Done = new Semaphore( -af.length + 1);
-      sync2Done = new Semaphore( -af.length + 1);
-      syncDone = new Semaphore( -af.length + 1);
-      for (int i = 0; i < syncers.length; i++) {
-        syncers[i] = new ObjectSynchronizer(af[i], false,locationScope, query, 
-                                            af[i].getLinkObjectMerger(),
-                                            sync1Done, sync2Done, syncDone);
-        pool.execute(syncers[i]);
-      }
-      sync1Done.acquire();
-      Log.log("All requests set up", Log.INFO);
       try {
-        transfer.completeDownloadBatch(locationScope);
-      }
-      catch (IOException ex) {
-        Log.log("Yet unhandled", Log.FATALERROR, ex); // FIXME
+        for (int i = 0; i < af.length; i++)
+          job.submit(new ObjectSynchronizer(af[i], false, locationScope,
+              query, af[i].getLinkObjectMerger(), job));
+      } finally {
+        job.endSubmit();
       }
-      ///sync2Done.acquire(); // Upload requests done
-      ///Log.log("All threads ready to enter p3 (upload)", Log.INFO);
-      //transfer.completeUploadBatch();
-      syncDone.acquire(); // Completion semaphore
-      Log.log("Batch download of "+af.length+" objects completed.",
+      Log.log("All requests set up", Log.INFO);
+      job.waitDone();
+      Log.log("Batch sync of "+af.length+" objects completed; "+s,
               Log.INFO);
     } catch (InterruptedException x ) {
         fc.syxaw.util.Log.log("Unexpected interrupt",Log.ASSERTFAILED);
     } finally {
-      transfer.completeUploadBatch();
       if( fc.syxaw.transport.Config.MEASURE_TIMES ) {
           fc.syxaw.util.Log.stat("sync","time",
                  ""+(System.currentTimeMillis()-
@@ -371,14 +334,7 @@ FileNotFoundException {
     // Async exec state
     int retval = TransmitStatus.NO_STATUS;
     Exception retEx = null;
-    Semaphore sync1Done =  null;
-    Semaphore sync2Done = null;
-    Semaphore syncDone = null;
-    
-    // DEbug
-    Semaphore releasedsync1Done =  null;
-    Semaphore releasedsync2Done = null;
-    Semaphore releasedsyncDone = null;
+    SyncScheduler.Job job = null; // null if not batch synced
 
     public ObjectSynchronizer(fc.syxaw.fs.SyxawFile af,
         boolean a__isDir__, String locationScope,
@@ -397,60 +353,21 @@ FileNotFoundException {
     }
     
     public ObjectSynchronizer(fc.syxaw.fs.SyxawFile af,
-        boolean a__isDir__, String locationScope, 
-        ObjectMerger amerger,
-       Semaphore p1Done,
-       Semaphore p2Done,
-       Semaphore done ) {
-      this(af,a__isDir__,locationScope, amerger);
-      sync1Done = p1Done;
-      sync2Done = p2Done;
-      syncDone = done;
-    }
-    
-    public ObjectSynchronizer(fc.syxaw.fs.SyxawFile af,
-                                    boolean a__isDir__, String locationScope, String query, 
-                                    ObjectMerger amerger,
-                                   Semaphore p1Done,
-                                   Semaphore p2Done,
-                                   Semaphore done ) {
-           this(af,a__isDir__,locationScope, query, amerger);
-           sync1Done = p1Done;
-           sync2Done = p2Done;
-           syncDone = done;
+                              boolean a__isDir__, String locationScope,
+                              String query, ObjectMerger amerger,
+                              SyncScheduler.Job job) {
+      this(af, a__isDir__, locationScope, query, amerger);
+      this.job = job;
     }
 
-    protected synchronized void releaseOnce(Semaphore s) {
-      if( s == null ) {
-        // OK, no semaphores inited in single object sync case.
-        //Log.log("Releasing null semaphore",Log.ERROR);
-        return;
-      }
+    // Stage metrics, only kept for batch sync
+    private long enter(int stage) {
+      return job == null ? 0l : job.enter(stage);
+    }
 
-      if( s==sync1Done ) {
-        sync1Done.release();
-        releasedsync1Done = sync1Done;
-        sync1Done = null;
-      } else if( s==sync2Done ) {
-        sync2Done.release();
-        releasedsync2Done = sync2Done;
-        sync2Done = null;
-      } else if( s==syncDone ) {
-        syncDone.release();
-        releasedsyncDone = syncDone;
-        syncDone = null;
-      } else {
-        if( s == releasedsync1Done) {
-          Log.warning("Re-release of sync1Done");
-        } else if( s == releasedsync2Done) {
-          Log.warning("Re-release of sync2Done");
-        } else if( s == releasedsyncDone) {
-          Log.warning("Re-release of syncDone");
-        } else {          
-          Log.log("Unknown semaphore "+s,Log.ERROR);
-        }
-        s.release(); // To be sure
-      }
+    private void exit(int stage, long entered) {
+      if (job != null)
+        job.exit(stage, entered);
     }
 
     // Async run methods
@@ -467,7 +384,7 @@ FileNotFoundException {
         retEx = x;
       } finally {
         Log.log("Exiting phase 1 (stat) for "+f.getUid(),Log.INFO);
-        releaseOnce(sync1Done);
+        job.statDone();
         if (next.isDone)
           cleanup();
         next.release();
@@ -498,8 +415,9 @@ FileNotFoundException {
       
 
       public void doRun() {
+        final long entered = enter(SyncScheduler.MERGE);
         try {
-          pool.execute(new Runnable() {
+          job.execute(new Runnable() {
             public void run() {
               Log.log("Entering phase 2 (reconcile + upload) for "+f.getUid(),Log.INFO);
               PooledPhase next = new PooledPhase3();
@@ -514,7 +432,7 @@ FileNotFoundException {
                 retEx = x;
               } finally {
                 Log.log("Exiting phase 2 (stat) for "+f.getUid(),Log.INFO);
-                releaseOnce(sync2Done);
+                exit(SyncScheduler.MERGE, entered);
                 if (next.isDone)
                   cleanup();
                 next.release();
@@ -531,8 +449,9 @@ FileNotFoundException {
     class PooledPhase3 extends PooledPhase {
       
       public void doRun() {
+        final long entered = enter(SyncScheduler.COMMIT);
         try {
-          pool.execute(new Runnable() {
+          job.execute(new Runnable() {
             public void run() {              
               acquire();
               Log.log("Entering phase 3 (cleanup) for "+f.getUid(),Log.INFO);
@@ -551,6 +470,7 @@ FileNotFoundException {
                 retEx = x;
               }
               finally {
+                exit(SyncScheduler.COMMIT, entered);
                 cleanup();
                 Log.log("Exiting phase 3 (cleanup) for "+f.getUid(),Log.INFO);
               }
@@ -610,13 +530,19 @@ FileNotFoundException {
       if( __isDir__ )
         syncMsg(f,TransmitStatus.NO_STATUS,0x80+1);
       // Download (which is "stat" at the same time)
-      transfer.download(linkGUID, tempStorage, history, localChanges,
-         new FileTransfer.DownloadCompletionHandler() {
+      FileTransfer.DownloadCompletionHandler ch =
+        new FileTransfer.DownloadCompletionHandler() {
         public void downloadComplete(FileTransfer.DownloadRequestBase dlReq) {
           dlRequest = dlReq;
           nextPhase.run();
         }
-      }, getData, getMetadata);
+      };
+      if (job != null)
+        job.download(linkGUID, tempStorage, history, localChanges, ch,
+                     getData, getMetadata);
+      else
+        transfer.download(linkGUID, tempStorage, history, localChanges, ch,
+                          getData, getMetadata);
       nextPhase.willRun();
       return TransmitStatus.NO_STATUS; // Magic continue val
     }
@@ -806,6 +732,7 @@ nonewbase:
         final InputStream uploadStream = f.getLinkInputStream();
         if( __isDir__ )
           syncMsg(f,TransmitStatus.NO_STATUS,0x80+2);
+        final long entered = enter(SyncScheduler.UPLOAD);
         transfer.upload(linkGUID, uploadStream,
                         merger.getMergedMetadata(),
                         localDataChange, localMetaChange, history,
@@ -815,6 +742,7 @@ nonewbase:
                         new FileTransfer.UploadCompletionHandler() {
                           public void uploadComplete(FileTransfer.UploadRequestBase ulReq) {
                             ulRequest = ulReq;
+                            exit(SyncScheduler.UPLOAD, entered);
                             try { uploadStream.close(); }
                             catch (IOException x) {
                               Log.log("Can't close upload stream", Log.FATALERROR);
@@ -883,9 +811,8 @@ nonewbase:
       if(__wasCleaned) // Safety check
         Log.log("Was already cleaned!",Log.ASSERTFAILED);
       __wasCleaned = true;
-      releaseOnce(sync1Done);
-      releaseOnce(sync2Done);
-      releaseOnce(syncDone);
+      if (job != null)
+        job.done();
     }
 
 
@@ -454,6 +454,7 @@ public class SynchronizationServer implements
           FileTransfer.UploadTask task = FileTransfer.getInstance().
                   new UploadTask(uid, uploadStream, md, history,
                                  md.getDataVersion(), request.getVersionsAvailable(),
+                                 th.getAcceptedEncodings(),
                                  request.getData(), request.getMetadata(), this,
                                  flock,
                                  request.getLockRequested() ?
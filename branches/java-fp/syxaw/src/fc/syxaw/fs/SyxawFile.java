@@ -188,6 +188,17 @@ public abstract class SyxawFile implements ISyxawFile/*, NFSDSyxawFile*/ {
   /** Obtain an input stream to the link facet. */
   public abstract InputStream getLinkInputStream() throws FileNotFoundException;
 
+  /** Get the file holding the data of the local facet, if the data is
+   * read directly from a file. The file content is then the same as the
+   * content of {@link #getInputStream}.
+   *
+   * @return file, or <code>null</code> if the data is not directly read
+   * from a file
+   */
+  public java.io.File getDataFile() {
+    return null;
+  }
+
   /** Obtain an output stream to the local facet.
    * @param append set to <code>true</code> to append to existing data
    */
@@ -39,6 +39,7 @@ public class UID implements Serializable {
   private static Random rnd = new Random( rndSeed /* 314159L*/);
 
   private byte[] uidarr=null;
+  private transient int hash=0; // Cached hash code, 0 if not computed
 
   protected UID() {
   }
@@ -51,6 +52,7 @@ public class UID implements Serializable {
   }
 
   protected UID init(byte[] bytes) {
+    hash = 0;
     if( bytes.length == LENGTH_BYTES )
       uidarr = bytes;
     else if( bytes.length > LENGTH_BYTES )
@@ -151,8 +153,17 @@ public class UID implements Serializable {
         Arrays.equals(((UID) o).uidarr,uidarr);
   }
 
+  // UIDs are used as keys of frequently accessed tables, so the hash is
+  // computed from the bytes, and cached
   public int hashCode() {
-    return toHexString().hashCode();
+    int h = hash;
+    if( h == 0 ) {
+      h = 1;
+      for( int i=0;i<uidarr.length;i++)
+        h = 31*h + uidarr[i];
+      hash = h;
+    }
+    return h;
   }
 }
 // arch-tag: 08cf03f5fbdf5b60426f38a7ab1f15e5 *-
@@ -13,6 +13,7 @@
 
 package fc.syxaw.merge;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -30,10 +31,13 @@ import fc.syxaw.fs.SyxawFile;
 import fc.syxaw.fs.VersionHistory;
 import fc.syxaw.proto.Version;
 import fc.syxaw.tdm.MergeUtil;
+import fc.syxaw.util.ContentHasher;
 import fc.syxaw.util.Util;
 import fc.util.Debug;
 import fc.util.log.Log;
 
+import EDU.oswego.cs.dl.util.concurrent.FutureResult;
+
 /** Default reconciliation algorithm for objects.
  * Implements a null reconciliation algorithm for data and basic reconciliation
  * of metadata. A conflict is
@@ -77,29 +81,30 @@ public class DefaultObjectMerger implements ObjectMerger {
                         currentVersion);
     }
     boolean needsMerge = true;
-    InputStream fin = null; 
-    try {
-      fin = f.getInputStream();
-      byte[] dlHash = null; 
-      if( dlVerRef == Constants.NO_VERSION ) {
-        dlHash = Util.copyAndDigestStream(downloadData.getInputStream(), 
-            new Util.Sink());
-      }
-      if (dlHash != null) {
-        byte[] thisHash = Util.copyAndDigestStream(fin, new Util.Sink());
-        needsMerge = !java.security.MessageDigest.isEqual( dlHash, thisHash );
-        Log.info("Hash equality when checking for conflicts=" + (!needsMerge) +
-            " this=" + Util.toString(thisHash) + ", downloaded=" +
-            Util.toString(dlHash) );
-      } else {
-        // No hash given by server, we could hash the received data here by ourselves
-        // Currently no implemented, though
-        Log.log("Cannot compute hash verRef'd data, verRef="+dlVerRef,
-            Log.WARNING);
-      }
-    } finally {
-      if( fin != null )
-        fin.close();
+    if( dlVerRef == Constants.NO_VERSION ) {
+      // Hash the downloaded data in the background while the local data is
+      // hashed. The local hash is cached, as the file is likely unchanged
+      // the next time around.
+      ContentHasher hasher = ContentHasher.getInstance();
+      File dlFile = downloadData.getFile();
+      FutureResult dlResult = dlFile != null ? hasher.submit(dlFile, false) :
+        null;
+      byte[] dlHash = dlResult == null ?
+        hash(hasher, downloadData.getInputStream()) : null;
+      File localFile = f.getDataFile();
+      byte[] thisHash = localFile != null ? hasher.hash(localFile) :
+        hash(hasher, f.getInputStream());
+      if (dlResult != null)
+        dlHash = ContentHasher.get(dlResult);
+      needsMerge = !java.security.MessageDigest.isEqual( dlHash, thisHash );
+      Log.info("Hash equality when checking for conflicts=" + (!needsMerge) +
+          " this=" + Util.toString(thisHash) + ", downloaded=" +
+          Util.toString(dlHash) );
+    } else {
+      // No hash given by server, we could hash the received data here by ourselves
+      // Currently no implemented, though
+      Log.log("Cannot compute hash verRef'd data, verRef="+dlVerRef,
+          Log.WARNING);
     }
     if( needsMerge )
       throw new ObjectMerger.Conflict("Conflicting data. Merger=" +
@@ -109,6 +114,15 @@ public class DefaultObjectMerger implements ObjectMerger {
         Math.max(currentVersion, downloadVersion );
   }
 
+  private static byte[] hash(ContentHasher hasher, InputStream in)
+      throws IOException {
+    try {
+      return hasher.hash(in);
+    } finally {
+      in.close();
+    }
+  }
+
   /** Merges Syxaw metadata. The metadata fields are merged according
    * to the following algorithm:
    * <pre>
@@ -0,0 +1,440 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.syxaw.merge;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.LinkedList;
+
+import name.fraser.neil.plaintext.diff_match_patch;
+import name.fraser.neil.plaintext.diff_match_patch.Patch;
+import fc.util.log.Log;
+
+/** Streaming line-oriented three-way merge of text. The base text and the
+ * two changed texts are read line by line in parallel. Lines that are
+ * equal in all three texts are copied to the output as they are read.
+ * Where the texts differ, lines are buffered until a run of
+ * {@link #ANCHOR_LINES} lines that is unchanged in all three texts is
+ * found. The lines before the run form a <i>hunk</i>, which is merged as
+ * in <code>diff3</code>: if only one text changed the hunk, or both made
+ * the same change, the change is taken. Otherwise the changes conflict,
+ * and if the hunk is small, its changes are merged character-wise with
+ * <code>diff_match_patch</code>. Hunks that still do not merge are
+ * reported as conflicts, and the hunk of the first changed text is
+ * output.
+ * <p>Memory use is bounded by the size of the largest hunk, not by the
+ * size of the texts. Lines end at <code>'\n'</code>, so the texts may be in
+ * any encoding where that byte is only used for line feeds, such as UTF-8.
+ * Character-wise merges of conflicting hunks assume UTF-8.
+ */
+
+public class LineDiff3 {
+
+  /** Number of lines unchanged in all texts that ends a hunk. */
+  public static final int ANCHOR_LINES = 3;
+
+  /** Maximum size in bytes of conflicting hunks merged with
+   * <code>diff_match_patch</code>. */
+  public static final int CHAR_MERGE_LIMIT =
+    Integer.getInteger("syxaw.merge.charlimit", 65536).intValue();
+
+  // Lines initially searched for an anchor in each text
+  private static final int INITIAL_WINDOW = 64;
+
+  private final LineInput base;
+  private final LineInput one;
+  private final LineInput two;
+
+  private long baseLine = 0;
+  private int hunks = 0;
+  private int conflicts = 0;
+  private int maxWindow = 0;
+
+  /** Create a new merge.
+   *
+   * @param base base text
+   * @param one first changed text. Conflicting hunks are taken from this text.
+   * @param two second changed text
+   */
+  public LineDiff3(InputStream base, InputStream one, InputStream two) {
+    this.base = new LineInput(base);
+    this.one = new LineInput(one);
+    this.two = new LineInput(two);
+  }
+
+  /** Merge the texts. The streams are read to the end, but not closed.
+   *
+   * @param out stream to write merged text to
+   * @param conflictLog stream to write a line for each conflicting hunk to
+   * @return number of conflicting hunks
+   * @throws IOException if reading or writing fails
+   */
+  public int merge(OutputStream out, OutputStream conflictLog)
+    throws IOException {
+    out = new BufferedOutputStream(out, 65536);
+    for (;;) {
+      // Copy lines unchanged in all texts
+      byte[] l;
+      while ((l = base.peek()) != null && Arrays.equals(l, one.peek()) &&
+          Arrays.equals(l, two.peek())) {
+        out.write(l);
+        base.skip(1);
+        one.skip(1);
+        two.skip(1);
+        baseLine++;
+      }
+      if (l == null && one.peek() == null && two.peek() == null)
+        break;
+      mergeHunk(out, conflictLog);
+    }
+    out.flush();
+    return conflicts;
+  }
+
+  /** Get number of hunks merged.
+   *
+   * @return number of hunks
+   */
+  public int getHunks() {
+    return hunks;
+  }
+
+  /** Get number of conflicting hunks.
+   *
+   * @return number of conflicting hunks
+   */
+  public int getConflicts() {
+    return conflicts;
+  }
+
+  /** Get the largest number of lines buffered for a text.
+   *
+   * @return largest number of lines buffered
+   */
+  public int getMaxWindow() {
+    return maxWindow;
+  }
+
+  // Find the anchor following the hunk at the start of the texts, growing
+  // the searched windows until one is found or the texts end, and merge the
+  // hunk
+  private void mergeHunk(OutputStream out, OutputStream conflictLog)
+    throws IOException {
+    for (int window = INITIAL_WINDOW;; window <<= 1) {
+      int nb = base.fill(window), no = one.fill(window),
+          nt = two.fill(window);
+      maxWindow = Math.max(maxWindow, Math.max(nb, Math.max(no, nt)));
+      boolean last = nb < window && no < window && nt < window;
+      int[] anchor = findAnchor(nb, no, nt, ANCHOR_LINES, last);
+      if (anchor != null) {
+        resolve(anchor[0], anchor[1], anchor[2], out, conflictLog);
+        return;
+      } else if (last) {
+        resolve(nb, no, nt, out, conflictLog);
+        return;
+      }
+    }
+  }
+
+  // Find the unchanged run of the given length closest to the start of the
+  // texts. Lines may repeat, so a run may be found at several lines of each
+  // text. Of these, the one with the least i + |j - i| + |k - i| is taken,
+  // i.e., the run at the start of the shortest base hunk with the fewest
+  // lines inserted or deleted. Taking the first match instead could pair a
+  // base line with a repeat of it far ahead in a changed text. Returns
+  // {i, j, k}, or null if none.
+  private int[] findAnchor(int nb, int no, int nt, int run, boolean last) {
+    one.index(no);
+    two.index(nt);
+    int[] best = null;
+    int bestCost = Integer.MAX_VALUE;
+    for (int i = 0; i < nb && i < bestCost; i++) {
+      int h = base.hash(i);
+      for (int j = one.first(h); j >= 0; j = one.next(j)) {
+        if (i + Math.abs(j - i) >= bestCost ||
+            !Arrays.equals(base.get(i), one.get(j)))
+          continue;
+        for (int k = two.first(h); k >= 0; k = two.next(k)) {
+          int cost = i + Math.abs(j - i) + Math.abs(k - i);
+          if (cost < bestCost && isAnchor(i, j, k, nb, no, nt, run, last)) {
+            best = new int[] {i, j, k};
+            bestCost = cost;
+          }
+        }
+      }
+    }
+    return best;
+  }
+
+  // Check if an unchanged run starts at i, j, k. A shorter run is enough if
+  // it ends the texts.
+  private boolean isAnchor(int i, int j, int k, int nb, int no, int nt,
+                           int run, boolean last) {
+    for (int r = 0; r < run; r++, i++, j++, k++) {
+      if (i == nb || j == no || k == nt)
+        return last && i == nb && j == no && k == nt;
+      byte[] l = base.get(i);
+      if (!Arrays.equals(l, one.get(j)) || !Arrays.equals(l, two.get(k)))
+        return false;
+    }
+    return true;
+  }
+
+  // Merge a hunk of nb, no and nt lines. Changes in the hunk may still be
+  // separated by single unchanged lines, so the hunk is first split at these.
+  private void resolve(int nb, int no, int nt, OutputStream out,
+                       OutputStream conflictLog) throws IOException {
+    hunks++;
+    int[] anchor;
+    while ((anchor = findAnchor(nb, no, nt, 1, false)) != null) {
+      resolveHunk(anchor[0], anchor[1], anchor[2], out, conflictLog);
+      out.write(base.get(0));
+      base.skip(1);
+      one.skip(1);
+      two.skip(1);
+      baseLine++;
+      nb -= anchor[0] + 1;
+      no -= anchor[1] + 1;
+      nt -= anchor[2] + 1;
+    }
+    resolveHunk(nb, no, nt, out, conflictLog);
+  }
+
+  // Merge a hunk with no lines unchanged in all texts
+  private void resolveHunk(int nb, int no, int nt, OutputStream out,
+                           OutputStream conflictLog) throws IOException {
+    if (LineInput.equals(base, nb, one, no))
+      two.write(out, nt);
+    else if (LineInput.equals(base, nb, two, nt) ||
+        LineInput.equals(one, no, two, nt))
+      one.write(out, no);
+    else if (!charMerge(nb, no, nt, out)) {
+      conflicts++;
+      one.write(out, no);
+      conflictLog.write(("Conflicting changes to lines " + (baseLine + 1) +
+          "-" + (baseLine + nb) + " of base\n").getBytes("UTF-8"));
+    }
+    base.skip(nb);
+    one.skip(no);
+    two.skip(nt);
+    baseLine += nb;
+  }
+
+  // Merge a conflicting hunk character-wise. Returns false if the hunk is
+  // too large, or the changes did not merge
+  private boolean charMerge(int nb, int no, int nt, OutputStream out)
+    throws IOException {
+    if (nb == 0 || base.size(nb) + one.size(no) + two.size(nt) >
+        CHAR_MERGE_LIMIT)
+      return false; // Different inserts at the same position, or too large
+    String b = base.toString(nb), o = one.toString(no), t = two.toString(nt);
+    diff_match_patch dmp = new diff_match_patch();
+    Object[] result;
+    try {
+      LinkedList<Patch> patches = dmp.patch_make(dmp.diff_main(b, o));
+      result = dmp.patch_apply(patches, t);
+    } catch (RuntimeException ex) {
+      // patch_apply() fails on some patches, e.g. in patch_splitMax()
+      Log.debug("Character-wise merge failed", ex);
+      return false;
+    }
+    for (boolean patchOk : (boolean[]) result[1]) {
+      if (!patchOk)
+        return false;
+    }
+    out.write(((String) result[0]).getBytes("UTF-8"));
+    return true;
+  }
+
+  // Buffered lines of a text. Lines are read on demand into a window, and
+  // indexed by hash when searching for anchors.
+  private static class LineInput {
+
+    private final InputStream in;
+    private final byte[] buf = new byte[65536];
+    private int bpos = 0;
+    private int blen = 0;
+    private boolean eof = false;
+
+    private byte[][] lines = new byte[INITIAL_WINDOW][];
+    private int start = 0;
+    private int end = 0;
+
+    private int[] hashes = new int[INITIAL_WINDOW];
+    private int hashed = 0; // Lines from start with hash computed
+    private int[] heads = null; // Index of first line by hash bucket
+    private int[] nexts = null; // Index of next line in bucket
+    private int indexed = 0;
+
+    LineInput(InputStream in) {
+      this.in = in;
+    }
+
+    // First line in window, or null if at end
+    byte[] peek() throws IOException {
+      return fill(1) > 0 ? lines[start] : null;
+    }
+
+    byte[] get(int i) {
+      return lines[start + i];
+    }
+
+    // Read lines until n are buffered or the text ends; returns lines buffered
+    int fill(int n) throws IOException {
+      while (end - start < n) {
+        byte[] l = readLine();
+        if (l == null)
+          break;
+        if (end == lines.length) {
+          int size = end - start;
+          byte[][] nl = size * 2 > lines.length ?
+              new byte[lines.length * 2][] : lines;
+          System.arraycopy(lines, start, nl, 0, size);
+          if (nl == lines)
+            Arrays.fill(lines, size, end, null);
+          int[] nh = new int[nl.length];
+          System.arraycopy(hashes, start, nh, 0, size);
+          lines = nl;
+          hashes = nh;
+          start = 0;
+          end = size;
+          heads = null;
+        }
+        lines[end++] = l;
+      }
+      return end - start;
+    }
+
+    void skip(int n) {
+      for (int i = 0; i < n; i++)
+        lines[start + i] = null;
+      start += n;
+      hashed = Math.max(0, hashed - n);
+      heads = null;
+      if (start == end)
+        start = end = 0;
+    }
+
+    int hash(int i) {
+      for (; hashed <= i; hashed++) {
+        byte[] l = lines[start + hashed];
+        int h = 1;
+        for (int k = 0; k < l.length; k++)
+          h = 31 * h + l[k];
+        hashes[start + hashed] = h;
+      }
+      return hashes[start + i];
+    }
+
+    // Index the first n lines by hash. Bucket chains are in line order.
+    void index(int n) {
+      int size = 2;
+      while (size <= n)
+        size <<= 1;
+      if (heads == null || heads.length != size || indexed != n) {
+        heads = new int[size];
+        nexts = new int[n];
+        Arrays.fill(heads, -1);
+        for (int i = n - 1; i >= 0; i--) {
+          int b = hash(i) & (size - 1);
+          nexts[i] = heads[b];
+          heads[b] = i;
+        }
+        indexed = n;
+      }
+    }
+
+    // First indexed line with hash h, or -1
+    int first(int h) {
+      int i = heads[h & (heads.length - 1)];
+      while (i >= 0 && hash(i) != h)
+        i = nexts[i];
+      return i;
+    }
+
+    // Next indexed line with the same hash as line i, or -1
+    int next(int i) {
+      int h = hash(i);
+      for (i = nexts[i]; i >= 0 && hash(i) != h; i = nexts[i])
+        ;
+      return i;
+    }
+
+    long size(int n) {
+      long size = 0;
+      for (int i = 0; i < n; i++)
+        size += get(i).length;
+      return size;
+    }
+
+    void write(OutputStream out, int n) throws IOException {
+      for (int i = 0; i < n; i++)
+        out.write(get(i));
+    }
+
+    String toString(int n) throws IOException {
+      StringBuffer sb = new StringBuffer();
+      for (int i = 0; i < n; i++)
+        sb.append(new String(get(i), "UTF-8"));
+      return sb.toString();
+    }
+
+    static boolean equals(LineInput a, int na, LineInput b, int nb) {
+      if (na != nb)
+        return false;
+      for (int i = 0; i < na; i++) {
+        if (!Arrays.equals(a.get(i), b.get(i)))
+          return false;
+      }
+      return true;
+    }
+
+    // Next line including any line feed, or null at end of text
+    private byte[] readLine() throws IOException {
+      byte[] line = null;
+      for (;;) {
+        if (bpos == blen) {
+          if (eof || (blen = in.read(buf)) < 0) {
+            eof = true;
+            blen = bpos = 0;
+            return line;
+          }
+          bpos = 0;
+        }
+        int p = bpos;
+        while (p < blen && buf[p] != '\n')
+          p++;
+        boolean lf = p < blen;
+        if (lf)
+          p++;
+        int len = p - bpos;
+        if (line == null) {
+          line = new byte[len];
+          System.arraycopy(buf, bpos, line, 0, len);
+        } else {
+          byte[] nl = new byte[line.length + len];
+          System.arraycopy(line, 0, nl, 0, line.length);
+          System.arraycopy(buf, bpos, nl, line.length, len);
+          line = nl;
+        }
+        bpos = p;
+        if (lf)
+          return line;
+      }
+    }
+  }
+}
+
+// arch-tag: aafa592b-1766-4baf-bb4d-efb683fe9f2f
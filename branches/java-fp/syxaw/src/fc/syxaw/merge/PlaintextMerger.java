@@ -17,17 +17,12 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.LinkedList;
 
-import name.fraser.neil.plaintext.diff_match_patch;
-import name.fraser.neil.plaintext.diff_match_patch.Diff;
-import name.fraser.neil.plaintext.diff_match_patch.Patch;
 import fc.syxaw.fs.BLOBStorage;
 import fc.syxaw.fs.Constants;
 import fc.syxaw.fs.ObjectMerger;
 import fc.syxaw.fs.VersionHistory;
 import fc.syxaw.hierfs.SyxawFile;
-import fc.util.IOUtil;
 import fc.util.log.Log;
 
 public class PlaintextMerger extends DefaultObjectMerger {
@@ -107,36 +102,12 @@ public class PlaintextMerger extends DefaultObjectMerger {
   private void textMerge(InputStream baseIn, InputStream oneIn,
       InputStream twoIn, OutputStream out, ByteArrayOutputStream conflicts) 
     throws IOException {
-    ByteArrayOutputStream bOut = new ByteArrayOutputStream();
-    IOUtil.copyStream(baseIn, bOut);
-    ByteArrayOutputStream oneOut = new ByteArrayOutputStream();
-    IOUtil.copyStream(oneIn, oneOut);
-    ByteArrayOutputStream twoOut = new ByteArrayOutputStream();
-    IOUtil.copyStream(twoIn, twoOut);
-    String base = bOut.toString("UTF-8");
-    String one = oneOut.toString("UTF-8");
-    String two = twoOut.toString("UTF-8");
-    Log.info("Plaintext merge, base=", base);
-    Log.info("one=", one);
-    Log.info("two=", two);
-    diff_match_patch dmp = new diff_match_patch();
-    LinkedList<Diff> diffs = dmp.diff_main(base, one);
-    LinkedList<Patch> patches = dmp.patch_make(diffs);
-    Object[] patchResult = dmp.patch_apply(patches, two);
-    String merge = (String) patchResult[0];
-    Log.info("merge=", merge);
-    boolean[] stats = (boolean[]) patchResult[1];
-    // Check status
-    boolean success = true;
-    for( boolean patchOk : stats ) {
-      success &= patchOk;
-    }
-    Log.info("success="+success);
-    if (success && merge != null) {
-      out.write(merge.getBytes("UTF-8"));
-    } else {
-      conflicts.write("Could not merge texts".getBytes("UTF-8"));
-    }
+    // Local changes win in conflicts
+    LineDiff3 merge = new LineDiff3(baseIn, oneIn, twoIn);
+    merge.merge(out, conflicts);
+    Log.debug("Plaintext merge, hunks=" + merge.getHunks() + ", conflicts="
+        + merge.getConflicts() + ", max lines buffered="
+        + merge.getMaxWindow());
   }
 
   public static class MergerFactory implements ObjectMerger.MergerFactory {
@@ -39,10 +39,26 @@ public class TransferHeader implements java.io.Serializable,
    * The constant value is {@value} */
   public static final int ENC_VERSIONREF = 3;
 
+  /** Constants signifying binary block delta encoding of data.
+   * The constant value is {@value} */
+  public static final int ENC_BLOCKDELTA = 4;
+
+  /** Constants signifying compressed encoding of data.
+   * The constant value is {@value} */
+  public static final int ENC_DEFLATE = 5;
+
   public static final int BS_ON_BRANCH = 1;
 
   /** List of all supported encodings. */
   public static final int[] ALL_ENCODINGS = {TransferHeader.ENC_BINARY,
+      TransferHeader.ENC_VERSIONREF, TransferHeader.ENC_DELTA,
+      TransferHeader.ENC_BLOCKDELTA, TransferHeader.ENC_DEFLATE};
+
+  /** Encodings assumed for a peer that does not list the encodings it
+   * accepts. These are the encodings known before
+   * {@link #ENC_BLOCKDELTA}; peers that predate an encoding omit the list,
+   * so this must not grow with {@link #ALL_ENCODINGS}. */
+  public static final int[] DEFAULT_ENCODINGS = {TransferHeader.ENC_BINARY,
       TransferHeader.ENC_VERSIONREF, TransferHeader.ENC_DELTA};
 
   private static final String[] PS_KEYS =
@@ -50,7 +66,7 @@ public class TransferHeader implements java.io.Serializable,
 
   // Never null (we need class), null values are never serialized
   private static final Object[] PS_DEFAULTS =
-      new Object[] {ALL_ENCODINGS,new Integer(ENC_NONE),new byte[] {},
+      new Object[] {DEFAULT_ENCODINGS,new Integer(ENC_NONE),new byte[] {},
       new Integer(ENC_NONE),new Long(-1L),new Integer(0)};
 
   public PropertySerializable.ClassInfo propInit() {
@@ -17,10 +17,18 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 
 import fc.syxaw.fs.UID;
+import fc.syxaw.util.ContentHasher;
 import fc.xml.xmlr.model.StringKey;
 
 public abstract class AbstractFileSystem {
 
+  /** Name of link facet scan journal file in the directory database. */
+  public static final String LINK_JOURNAL = "scan-link";
+  /** Name of local facet scan journal file in the directory database. */
+  public static final String LOCAL_JOURNAL = "scan-local";
+  /** Name of content hash cache file in the directory database. */
+  public static final String HASH_CACHE = "hash-cache";
+
   //NOCHANGED  private ChangeDaemon changed = null;
   protected LinkTree linkTree = null;
   protected LocalTree localTree = null;
@@ -40,6 +48,15 @@ public abstract class AbstractFileSystem {
     localTree = new LocalTree(newFile(ServerConfig.ROOT_FOLDER_FILE),
                               repo
                               /*NOCHANGED ,changed*/);
+    if( Config.SCAN_JOURNAL ) {
+      linkTree.setScanJournal(new ScanJournal(
+          new File(Toolkit.DIRDB_FOLDER_FILE,LINK_JOURNAL)));
+      localTree.setScanJournal(new ScanJournal(
+          new File(Toolkit.DIRDB_FOLDER_FILE,LOCAL_JOURNAL)));
+    }
+    if( Config.HASH_PERSIST )
+      ContentHasher.getInstance().open(
+          new File(Toolkit.DIRDB_FOLDER_FILE,HASH_CACHE));
     //setNodeId(ServerConfig.ROOT_FOLDER_FILE,VersionedDirectoryTree.ROOT_ID);
   }
   // System ops
@@ -56,6 +73,18 @@ public abstract class AbstractFileSystem {
     return registry;
   }
 
+  /** Report change to the metadata of a file. Must be called when
+   * metadata that may affect the directory tree is changed.
+   *
+   * @param f changed file
+   */
+  protected void metadataChanged(File f) {
+    if( linkTree != null && linkTree.getScanJournal() != null )
+      linkTree.getScanJournal().invalidate(f);
+    if( localTree != null && localTree.getScanJournal() != null )
+      localTree.getScanJournal().invalidate(f);
+  }
+
   // File ops
 
   public abstract boolean create(File f, UID u) throws IOException;
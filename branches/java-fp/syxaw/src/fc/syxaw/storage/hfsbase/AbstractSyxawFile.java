@@ -303,6 +303,13 @@ public abstract class AbstractSyxawFile extends SyxawFile
       return new FileInputStream(f);
   }
 
+  public File getDataFile() {
+    if (query != null || !f.isFile())
+      return null;
+    ObjectProvider op = getObjectProviderNoEx();
+    return op == this || op instanceof DefaultObjectProvider ? f : null;
+  }
+
   public OutputStream getOutputStream(boolean append, boolean linkFacet) throws
     FileNotFoundException {
     if( !f.exists() ) {
@@ -1091,7 +1098,26 @@ public abstract class AbstractSyxawFile extends SyxawFile
 
   private static class BasicRepository implements OldRepository {
   
-      VersionDB db = new VersionDB(Toolkit.VERSION_FOLDER_FILE);
+      VersionDB db = new VersionDB(Toolkit.VERSION_FOLDER_FILE,
+          openBlobStore(), Config.VERSIONDB_DEDUP);
+
+    // The store is also opened if disabled, but used earlier, so that
+    // versions stored in it remain readable
+    private static BlobStore openBlobStore() {
+      if( !Config.VERSIONDB_DEDUP && !Toolkit.BLOB_FOLDER_FILE.exists() )
+        return null;
+      final BlobStore blobs = new BlobStore(Toolkit.BLOB_FOLDER_FILE);
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+        public void run() {
+          try {
+            blobs.close();
+          } catch (IOException x) {
+            Log.log("Cannot close blob store", Log.ERROR, x);
+          }
+        }
+      });
+      return blobs;
+    }
   
     public FullMetadata commit(fc.syxaw.fs.SyxawFile f, InputStream data, FullMetadata md,
                                     boolean link, int version , boolean gotData, boolean gotMetadata) throws
@@ -42,6 +42,10 @@ public class BLOBStorageImpl extends BLOBStorage {
     isTemporary = aisTemporary;
   }
 
+  public File getFile() {
+    return out != null ? null : f;
+  }
+
   public InputStream getInputStream() {
     if( out != null )
       return null;
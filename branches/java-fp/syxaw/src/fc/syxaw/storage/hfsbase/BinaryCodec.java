@@ -0,0 +1,180 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.syxaw.storage.hfsbase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/** Binary codec for node content in a {@link PersistentRefTree}. A binary
+ * codec is used alongside the {@link fc.xml.xmlr.model.XasCodec} of the
+ * tree to store node content compactly. Content is written as a sequence
+ * of bytes, variable length integers and length-prefixed strings; see
+ * {@link Output} and {@link Input}.
+ * <p>Strings that recur in many nodes, such as names and location ids,
+ * may be written through the {@link StringDictionary} of the tree, in
+ * which case only their index in the dictionary is stored with the node.
+ */
+public interface BinaryCodec {
+
+  /** Encode node content.
+   *
+   * @param content node content
+   * @param out output to write to
+   * @throws IOException if the content cannot be encoded
+   */
+  public void encode(Object content, Output out) throws IOException;
+
+  /** Decode node content.
+   *
+   * @param in input to read from
+   * @return node content
+   * @throws IOException if the input is malformed
+   */
+  public Object decode(Input in) throws IOException;
+
+  /** Output of binary encoded content. Integers are written as base 128
+   * varints, signed integers zigzag encoded. A string is written as a
+   * varint tag followed by its UTF-8 bytes; the tag is 0 for
+   * <code>null</code>, <code>(length+1)&lt;&lt;1</code> for an inline
+   * string, and <code>(index&lt;&lt;1)|1</code> for a dictionary string.
+   */
+  public static class Output {
+
+    private ByteArrayOutputStream out;
+    private StringDictionary dict;
+
+    /** Create output.
+     *
+     * @param out stream to write to
+     * @param dict dictionary for shared strings, or <code>null</code> to
+     * write all strings inline
+     */
+    public Output(ByteArrayOutputStream out, StringDictionary dict) {
+      this.out = out;
+      this.dict = dict;
+    }
+
+    /** Write a byte. */
+    public void writeByte(int b) {
+      out.write(b);
+    }
+
+    /** Write a non-negative integer as a varint. */
+    public void writeVarint(long v) {
+      while( (v & ~0x7fl) != 0 ) {
+        out.write((int) (v & 0x7f) | 0x80);
+        v >>>= 7;
+      }
+      out.write((int) v);
+    }
+
+    /** Write a signed integer as a zigzag encoded varint. */
+    public void writeSignedVarint(long v) {
+      writeVarint((v << 1) ^ (v >> 63));
+    }
+
+    /** Write a string inline.
+     *
+     * @param s string, may be <code>null</code>
+     */
+    public void writeString(String s) throws IOException {
+      if( s == null ) {
+        writeVarint(0);
+        return;
+      }
+      byte[] b = s.getBytes("UTF-8");
+      writeVarint(((long) b.length + 1) << 1);
+      out.write(b,0,b.length);
+    }
+
+    /** Write a string that is likely to recur in other nodes. The string
+     * is added to the dictionary, if there is one and it has room.
+     *
+     * @param s string, may be <code>null</code>
+     */
+    public void writeSharedString(String s) throws IOException {
+      int index = s == null || dict == null ? -1 : dict.add(s);
+      if( index < 0 )
+        writeString(s);
+      else
+        writeVarint((((long) index) << 1) | 1);
+    }
+  }
+
+  /** Input of binary encoded content. See {@link Output} for the
+   * encoding. */
+  public static class Input {
+
+    private byte[] b;
+    private int pos;
+    private StringDictionary dict;
+
+    /** Create input.
+     *
+     * @param b data
+     * @param pos offset of content in data
+     * @param dict dictionary for shared strings, or <code>null</code>
+     */
+    public Input(byte[] b, int pos, StringDictionary dict) {
+      this.b = b;
+      this.pos = pos;
+      this.dict = dict;
+    }
+
+    /** Read a byte. */
+    public int readByte() throws IOException {
+      if( pos >= b.length )
+        throw new IOException("Unexpected end of content");
+      return b[pos++] & 0xff;
+    }
+
+    /** Read a varint. */
+    public long readVarint() throws IOException {
+      long v = 0;
+      for( int shift = 0;shift < 64;shift += 7 ) {
+        int c = readByte();
+        v |= ((long) (c & 0x7f)) << shift;
+        if( (c & 0x80) == 0 )
+          return v;
+      }
+      throw new IOException("Malformed varint");
+    }
+
+    /** Read a zigzag encoded varint. */
+    public long readSignedVarint() throws IOException {
+      long v = readVarint();
+      return (v >>> 1) ^ -(v & 1);
+    }
+
+    /** Read a string written by {@link Output#writeString} or
+     * {@link Output#writeSharedString}. */
+    public String readString() throws IOException {
+      long tag = readVarint();
+      if( tag == 0 )
+        return null;
+      if( (tag & 1) != 0 ) {
+        String s = dict == null ? null : dict.get(tag >>> 1);
+        if( s == null )
+          throw new IOException("Unknown dictionary string "+(tag >>> 1));
+        return s;
+      }
+      long len = (tag >>> 1) - 1;
+      if( len > b.length - pos )
+        throw new IOException("Unexpected end of content");
+      String s = new String(b,pos,(int) len,"UTF-8");
+      pos += (int) len;
+      return s;
+    }
+  }
+}
+
+// arch-tag: d4565e4a-4512-4d36-806b-d8234323e36c
@@ -0,0 +1,392 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.syxaw.storage.hfsbase;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import fc.syxaw.util.Util;
+import fc.util.bytedb.Sdbm;
+import fc.util.log.Log;
+
+/** Content-addressed, deduplicating store for data versions.
+ * Data is split into chunks at content-defined boundaries, and each chunk
+ * is stored once, keyed by its SHA-1 hash. A stored object is described
+ * by a <i>recipe</i>, which is the list of its chunks. Since chunk
+ * boundaries depend on the content only, identical objects, as well as
+ * the unchanged parts of different versions of an object, share chunks.
+ * <p>Chunks are reference counted; a chunk is deleted when the last
+ * recipe referencing it is released. As a blob being read may use such a
+ * chunk, chunks are not deleted while any blob is open for reading, but
+ * when the last reader is closed.
+ * <p>Implementation note: chunk boundaries are found using a "gear"
+ * rolling hash. A boundary is placed where the low {@link #BOUNDARY_BITS}
+ * bits of the hash are zero, subject to the {@link #MIN_CHUNK} and
+ * {@link #MAX_CHUNK} limits. Chunk <i>h</i> is stored in the file
+ * <i>hh</i><code>/</code><i>h</i> below the store root, where <i>h</i> is
+ * the hexadecimal hash and <i>hh</i> its first two digits. Reference
+ * counts are kept in an {@link Sdbm} database. A recipe is a sequence of
+ * (hash,length) records.
+ */
+
+public class BlobStore {
+
+  /** Minimum chunk size. */
+  public static final int MIN_CHUNK = 2048;
+  /** Maximum chunk size. */
+  public static final int MAX_CHUNK = 65536;
+  /** Number of hash bits that must be zero at a boundary. The expected
+   * chunk size is <code>2^BOUNDARY_BITS</code> bytes past the minimum. */
+  public static final int BOUNDARY_BITS = 13;
+
+  private static final int BOUNDARY_MASK = (1 << BOUNDARY_BITS) - 1;
+  private static final int HASH_LEN = 20;
+
+  private static final int[] GEAR = new int[256];
+
+  static {
+    // Fixed seed; the table must be the same for all stores
+    Random r = new Random(0x5958415757l);
+    for( int i=0;i<GEAR.length;i++)
+      GEAR[i] = r.nextInt();
+  }
+
+  private File root;
+  private Sdbm refs;
+  private boolean closed = false;
+
+  // Open blob readers, and chunk files to delete when there are none
+  private int readers = 0;
+  private Set unlinked = new HashSet();
+
+  // Statistics since store was opened
+  private long logicalBytes = 0l;
+  private long storedBytes = 0l;
+  private int chunks = 0;
+  private int sharedChunks = 0;
+
+  /** Open store.
+   *
+   * @param aRoot directory holding the store
+   */
+  public BlobStore(File aRoot) {
+    Maintenance.init(aRoot);
+    root = aRoot;
+    try {
+      refs = new Sdbm(aRoot, "refs", "rw");
+    } catch (IOException e) {
+      Log.log("Failed to initialize blob store "+aRoot, Log.FATALERROR, e);
+    }
+  }
+
+  /** Create new blob. The data written to the returned stream is stored,
+   * and the recipe for the data is written to <code>recipe</code> when the
+   * stream is closed.
+   *
+   * @param recipe file to write recipe to
+   * @return stream for blob data
+   * @throws IOException if the recipe file cannot be created
+   */
+  public BlobOutputStream create(File recipe) throws IOException {
+    return new BlobOutputStream(recipe);
+  }
+
+  /** Read blob.
+   *
+   * @param recipe recipe of blob, as written by {@link #create create}
+   * @return input stream to the blob data
+   * @throws IOException if the recipe cannot be read
+   */
+  public InputStream open(File recipe) throws IOException {
+    BlobInputStream in = new BlobInputStream(recipe);
+    synchronized( this ) {
+      readers++;
+    }
+    return in;
+  }
+
+  /** Release blob. Decrements the reference count of each chunk of the
+   * blob, and deletes the recipe.
+   *
+   * @param recipe recipe of blob
+   * @throws IOException if the recipe cannot be read
+   */
+  public synchronized void release(File recipe) throws IOException {
+    DataInputStream in = new DataInputStream(new FileInputStream(recipe));
+    try {
+      byte[] hash = new byte[HASH_LEN];
+      while( readEntry(in,hash) != -1 )
+        unref(hash);
+    } finally {
+      in.close();
+    }
+    if( !recipe.delete() )
+      Log.log("Cannot delete recipe "+recipe,Log.ERROR);
+  }
+
+  /** Get number of bytes written to the store since it was opened. */
+  public synchronized long getLogicalSize() {
+    return logicalBytes;
+  }
+
+  /** Get number of chunk bytes written to disk since the store was
+   * opened. */
+  public synchronized long getStoredSize() {
+    return storedBytes;
+  }
+
+  public synchronized String toString() {
+    return "BlobStore[logical="+logicalBytes+", stored="+storedBytes+
+      ", chunks="+chunks+", shared="+sharedChunks+"]";
+  }
+
+  /** Close the store. Chunks released while blobs were open for reading
+   * are deleted. */
+  public synchronized void close() throws IOException {
+    if( closed )
+      return;
+    closed = true;
+    readers = 0;
+    deleteUnlinked();
+    refs.close();
+  }
+
+  // Store chunk, return true if the chunk was new
+  protected synchronized boolean ref(byte[] hash, byte[] data, int len)
+      throws IOException {
+    int count = getRefs(hash);
+    chunks++;
+    logicalBytes += len;
+    if( count == 0 ) {
+      File f = getChunkFile(hash);
+      unlinked.remove(f);
+      if( !f.exists() ) {
+        File dir = f.getParentFile();
+        if( !dir.exists() && !dir.mkdir() )
+          throw new IOException("Cannot create "+dir);
+        File tmp = new File(dir,f.getName()+".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+          out.write(data,0,len);
+        } finally {
+          out.close();
+        }
+        if( !tmp.renameTo(f) )
+          throw new IOException("Cannot rename "+tmp);
+        storedBytes += len;
+      }
+    } else
+      sharedChunks++;
+    setRefs(hash,count+1);
+    return count == 0;
+  }
+
+  protected synchronized void unref(byte[] hash) throws IOException {
+    int count = getRefs(hash) - 1;
+    if( count > 0 ) {
+      setRefs(hash,count);
+      return;
+    }
+    refs.remove(hash);
+    File f = getChunkFile(hash);
+    if( readers > 0 )
+      unlinked.add(f);
+    else if( !f.delete() )
+      Log.log("Cannot delete chunk "+f,Log.ERROR);
+  }
+
+  private synchronized void closeReader() {
+    if( readers > 0 && --readers == 0 )
+      deleteUnlinked();
+  }
+
+  private void deleteUnlinked() {
+    for( Iterator i = unlinked.iterator();i.hasNext();) {
+      File f = (File) i.next();
+      if( !f.delete() )
+        Log.log("Cannot delete chunk "+f,Log.ERROR);
+    }
+    unlinked.clear();
+  }
+
+  private int getRefs(byte[] hash) throws IOException {
+    byte[] v = refs.get(hash);
+    return v == null ? 0 : (v[0] & 0xff) << 24 | (v[1] & 0xff) << 16 |
+      (v[2] & 0xff) << 8 | (v[3] & 0xff);
+  }
+
+  private void setRefs(byte[] hash, int count) throws IOException {
+    refs.put(hash, new byte[] {(byte) (count >>> 24), (byte) (count >>> 16),
+        (byte) (count >>> 8), (byte) count});
+  }
+
+  private File getChunkFile(byte[] hash) {
+    String name = Util.getHexString(hash);
+    return new File(new File(root,name.substring(0,2)),name);
+  }
+
+  private static int readEntry(DataInputStream in, byte[] hash)
+      throws IOException {
+    try {
+      in.readFully(hash);
+    } catch (EOFException x) {
+      return -1;
+    }
+    return in.readInt();
+  }
+
+  /** Output stream for new blobs. The stream splits the data into chunks,
+   * which are stored as they are completed.
+   */
+  public class BlobOutputStream extends OutputStream {
+
+    private File recipeFile;
+    private DataOutputStream recipe;
+    private List stored = new LinkedList(); // Chunk hashes, for abort
+    private MessageDigest sha;
+    private byte[] chunk = new byte[MAX_CHUNK];
+    private int len = 0;
+    private int hash = 0;
+
+    BlobOutputStream(File recipeFile) throws IOException {
+      try {
+        sha = MessageDigest.getInstance("SHA");
+      } catch (NoSuchAlgorithmException x) {
+        Log.log("Message digest algorithm not found", Log.FATALERROR);
+      }
+      this.recipeFile = recipeFile;
+      recipe = new DataOutputStream(new java.io.BufferedOutputStream(
+          new FileOutputStream(recipeFile)));
+    }
+
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b},0,1);
+    }
+
+    public void write(byte[] b, int off, int count) throws IOException {
+      for( int end=off+count;off<end;off++) {
+        byte c = b[off];
+        chunk[len++] = c;
+        hash = (hash << 1) + GEAR[c & 0xff];
+        if( (len >= MIN_CHUNK && (hash & BOUNDARY_MASK) == 0) ||
+            len == MAX_CHUNK )
+          flushChunk();
+      }
+    }
+
+    public void close() throws IOException {
+      if( len > 0 )
+        flushChunk();
+      recipe.close();
+    }
+
+    /** Abort blob creation. Releases any stored chunks, and deletes
+     * the recipe. */
+    public void abort() {
+      try {
+        recipe.close();
+      } catch (IOException x) {
+        Log.log("Cannot close recipe",Log.ERROR,x);
+      }
+      try {
+        for( Iterator i = stored.iterator();i.hasNext();)
+          unref((byte[]) i.next());
+      } catch (IOException x) {
+        Log.log("Cannot release chunks",Log.ERROR,x);
+      }
+      recipeFile.delete();
+    }
+
+    private void flushChunk() throws IOException {
+      sha.update(chunk,0,len);
+      byte[] h = sha.digest();
+      ref(h,chunk,len);
+      stored.add(h);
+      recipe.write(h);
+      recipe.writeInt(len);
+      len = 0;
+      hash = 0;
+    }
+  }
+
+  private class BlobInputStream extends InputStream {
+
+    private DataInputStream recipe;
+    private InputStream chunk = null;
+    private byte[] hash = new byte[HASH_LEN];
+    private boolean closed = false;
+
+    BlobInputStream(File recipeFile) throws IOException {
+      recipe = new DataInputStream(new java.io.BufferedInputStream(
+          new FileInputStream(recipeFile)));
+    }
+
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b,0,1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+      if( len == 0 )
+        return 0;
+      for(;;) {
+        if( chunk == null ) {
+          if( readEntry(recipe,hash) == -1 )
+            return -1;
+          chunk = new FileInputStream(getChunkFile(hash));
+        }
+        int count = chunk.read(b,off,len);
+        if( count > 0 )
+          return count;
+        chunk.close();
+        chunk = null;
+      }
+    }
+
+    public void close() throws IOException {
+      if( closed )
+        return;
+      closed = true;
+      try {
+        if( chunk != null )
+          chunk.close();
+        recipe.close();
+      } finally {
+        closeReader();
+      }
+    }
+  }
+
+  public static class Maintenance {
+
+    public static void init(File root) {
+      if (!root.exists() && !root.mkdir())
+        Log.log("Can't create " + root, Log.FATALERROR);
+    }
+  }
+}
+// arch-tag: 1a138249-2cc1-49b1-abf7-9a8fb714f0fe
@@ -129,6 +129,112 @@ public class Config {
   public static final String VERSION_FOLDER =
       System.getProperty("syxaw.versiondb", "versions");
 
+  /** Name of directory containing the content-addressed store for data
+   * versions. See {@link BlobStore}.
+   * The directory is read from the system property
+   * <code>syxaw.blobdb</code> and is relative to {@link #SYSTEM_FOLDER}
+   * Default value is <code>blobs</code> */
+
+  public static final String BLOB_FOLDER =
+      System.getProperty("syxaw.blobdb", "blobs");
+
+  /** Store new data versions in the content-addressed {@link BlobStore}
+   * if set to <code>true</code>. A version is then stored as a recipe
+   * file and shared chunks in {@link #BLOB_FOLDER}, rather than as a full
+   * data file. Versions stored either way remain readable if the value is
+   * changed later.
+   * The value is read from the system property
+   * <code>syxaw.versiondb.dedup</code>.
+   * Default value is <code>false</code>. */
+
+  public static final boolean VERSIONDB_DEDUP =
+      Boolean.getBoolean("syxaw.versiondb.dedup");
+
+  /** Size of the read cache of each {@link ObjectDb}, in bytes. The size
+   * of a cached entry is estimated from the length of its key and of its
+   * serialized value.
+   * The value is read from the system property
+   * <code>syxaw.objectdb.cachesize</code>.
+   * Default value is 1048576. */
+
+  public static final long OBJECTDB_CACHE_SIZE =
+      Long.parseLong(System.getProperty("syxaw.objectdb.cachesize","1048576"));
+
+  /** Access {@link ObjectDb} databases through memory mapped files if set
+   * to <code>true</code>. See <code>fc.util.bytedb.MappedSdbm</code>,
+   * which needs <code>java.nio</code>, and is left out of the Foundation
+   * Profile build; there, plain {@link fc.util.bytedb.Sdbm} is used.
+   * The value is read from the system property
+   * <code>syxaw.objectdb.mmap</code>.
+   * Default value is <code>false</code>. */
+
+  public static final boolean OBJECTDB_MMAP =
+      Boolean.getBoolean("syxaw.objectdb.mmap");
+
+  /** Force the edit log of a {@link PersistentRefTree} to disk before
+   * applying a batch of edits, if set to <code>true</code>. Without
+   * this, the tree survives a crash of Syxaw, but not necessarily one of
+   * the operating system.
+   * The value is read from the system property
+   * <code>syxaw.treelog.sync</code>.
+   * Default value is <code>true</code>. */
+
+  public static final boolean TREE_LOG_SYNC =
+      Boolean.valueOf(System.getProperty("syxaw.treelog.sync","true")).
+      booleanValue();
+
+  /** Store the nodes of directory trees in a compact binary form, if set
+   * to <code>true</code>. Otherwise, the nodes are stored as XML. Nodes
+   * are read in either form, so the setting may be changed for an existing
+   * store; when it is set, existing nodes are rewritten in the binary form
+   * on the first start. See {@link PersistentRefTree}.
+   * The value is read from the system property
+   * <code>syxaw.tree.binary</code>.
+   * Default value is <code>false</code>. */
+
+  public static final boolean TREE_BINARY =
+      Boolean.getBoolean("syxaw.tree.binary");
+
+  /** Max number of names and location ids shared by the nodes of a
+   * directory tree stored in binary form. Use <code>0</code> to store
+   * all strings with the node.
+   * The value is read from the system property
+   * <code>syxaw.tree.dictsize</code>.
+   * Default value is <code>65536</code>. */
+
+  public static final int TREE_DICTIONARY_SIZE =
+      Integer.getInteger("syxaw.tree.dictsize", 65536).intValue();
+
+  /** Use a {@link ScanJournal} to skip unchanged subtrees when scanning
+   * the file system for changes, if set to <code>true</code>. Otherwise,
+   * the whole file system is scanned.
+   * The value is read from the system property
+   * <code>syxaw.scan.journal</code>.
+   * Default value is <code>false</code>. */
+
+  public static final boolean SCAN_JOURNAL =
+      Boolean.getBoolean("syxaw.scan.journal");
+
+  /** Only use directory modification times to find changed subtrees, if
+   * set to <code>true</code>. This avoids reading the attributes of each
+   * file when scanning, but misses changes to files that are written in
+   * place, rather than replaced. Only used with {@link #SCAN_JOURNAL}.
+   * The value is read from the system property
+   * <code>syxaw.scan.dirmtime</code>.
+   * Default value is <code>false</code>. */
+
+  public static final boolean SCAN_DIRMTIME =
+      Boolean.getBoolean("syxaw.scan.dirmtime");
+
+  /** Persist the hashes of local files computed by {@link
+   * fc.syxaw.util.ContentHasher} in the directory database, if set to
+   * <code>true</code>. Otherwise, the hashes are only cached in memory.
+   * The value is read from the system property
+   * <code>syxaw.hash.persist</code>.
+   * Default value is <code>false</code>. */
+
+  public static final boolean HASH_PERSIST =
+      Boolean.getBoolean("syxaw.hash.persist");
 
   /** Name of directory containing the directory tree database.
    * The directory is read from the system property
@@ -24,6 +24,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -110,6 +111,8 @@ public abstract class FacetedTree extends AbstractMutableRefTree implements
 
   protected Set linkModFiles=new HashSet();
 
+  protected ScanJournal journal = null;
+
   void pushChangeBuffer() {
     changeBuffers.push(fullTree);
     fullTree = new ChangeTree(fullTree);
@@ -199,7 +202,25 @@ public abstract class FacetedTree extends AbstractMutableRefTree implements
       }
 
     }
-    /** Get XML delta input stream for this tree.
+    /** Set journal used to skip unchanged subtrees when scanning the
+   * file system.
+   *
+   * @param journal scan journal, or <code>null</code> to always scan
+   * the whole file system.
+   */
+  public void setScanJournal(ScanJournal journal) {
+    this.journal = journal;
+  }
+
+  /** Get scan journal of the tree.
+   *
+   * @return scan journal, or <code>null</code> if none
+   */
+  public ScanJournal getScanJournal() {
+    return journal;
+  }
+
+  /** Get XML delta input stream for this tree.
      *
      * @return delta input stream to the XML representation of this tree
      */
@@ -274,6 +295,10 @@ public abstract class FacetedTree extends AbstractMutableRefTree implements
       __toFs = false;
       RefTrees.apply(currentLive, this);
       Log.log("Scanned tree node instances: "+currentLive.__nodes,Log.INFO);
+      // Scans into a pushed change buffer are discarded, so only those
+      // applied to the tree itself may be journaled
+      if( currentLive.scan != null && changeBuffers.isEmpty() )
+        currentLive.scan.commit();
       /*Log.log("After-apply link tree is:",Log.INFO);
       try{XmlUtil.writeRefTree(this,System.err,DirectoryEntry.XAS_CODEC);
       } catch(Exception x) {}
@@ -603,10 +628,13 @@ public abstract class FacetedTree extends AbstractMutableRefTree implements
     DentNode root;
     boolean linkFacet;
     Cache childListCache = new LruCache(Cache.TEMP_MED,64);
+    ScanJournal.Scan scan = null; // Set if unchanged subtrees may be skipped
     
     protected LiveTree( AbstractSyxawFile root,int initialDepth,
                        boolean linkFacet) throws FileNotFoundException {
       this.linkFacet = linkFacet;
+      if( journal != null && initialDepth == 0 )
+        scan = journal.newScan();
       this.root = new DentNode(null,root,initialDepth);
     }
 
@@ -633,6 +661,7 @@ public abstract class FacetedTree extends AbstractMutableRefTree implements
       DirectoryEntry content;
       int expandCount;
       StringKey id=null;
+      boolean linkModified=false;
 
       // ec = 0 produces a <ref:tree>
       public DentNode(DentNode parent, AbstractSyxawFile f, int aExpandCount) throws
@@ -641,12 +670,19 @@ public abstract class FacetedTree extends AbstractMutableRefTree implements
         this.expandCount = aExpandCount;
         this.f = f;
         this.parent = parent;
-        boolean modified =
-          (ServerConfig.CALC_DIRMOD && f.isDirectory()) ||
+        boolean isDir = f.isDirectory();
+        // The contents of an unchanged dir need not be computed, so we only
+        // check its own flags
+        boolean clean = scan != null && isDir && scan.isClean(f.f);
+        boolean modified = clean ?
+          f.isModified(linkFacet ?
+              ForeignMetadata.DATA_EQ_LINKVER|ForeignMetadata.META_EQ_LINKVER :
+              ForeignMetadata.DATA_EQ_LOCALVER|ForeignMetadata.META_EQ_LOCALVER) :
+          (ServerConfig.CALC_DIRMOD && isDir) ||
           f.isDataModified(linkFacet) ||
             f.isMetadataModified(linkFacet);
         int type = parent == null ? DirectoryEntry.TREE :
-            (f.isDirectory() ? DirectoryEntry.DIR : DirectoryEntry.FILE);
+            (isDir ? DirectoryEntry.DIR : DirectoryEntry.FILE);
         if( modified ) {
           expandCount=Math.max(2,expandCount); // Expand  (at least) this level and next level
           if( resetModFlags && type != DirectoryEntry.FILE ) {
@@ -660,6 +696,14 @@ public abstract class FacetedTree extends AbstractMutableRefTree implements
             (f.isDataModified(true) || f.isMetadataModified(true) ) ) {
           Log.log("Link-modified object "+f.getUid(),Log.DEBUG);
           modToLink.add(f.getUid());
+          linkModified = true;
+        }
+        if( clean && expandCount < 2 ) {
+          // Children will not be scanned; get modified ones from journal
+          List tainted = new LinkedList();
+          scan.getTainted(f.f,tainted);
+          for( Iterator i = tainted.iterator();i.hasNext();)
+            modToLink.add(UID.createFromBase64((String) i.next()));
         }
 
         id = f.getDent();
@@ -763,6 +807,16 @@ public abstract class FacetedTree extends AbstractMutableRefTree implements
           }
         }
         Arrays.sort(childArr); // Sort by id
+        if( scan != null ) {
+          List subdirs = new LinkedList(), tainted = new LinkedList();
+          for( int i=0;i<childArr.length;i++) {
+            if( childArr[i].f.isDirectory() )
+              subdirs.add(childArr[i].f.getName());
+            else if( childArr[i].linkModified )
+              tainted.add(childArr[i].f.getUid().toBase64());
+          }
+          scan.record(f.f,subdirs,tainted);
+        }
         children = Arrays.asList(childArr);
         childListCache.put(f.getPath(),children);
         return children;
@@ -34,6 +34,7 @@ import fc.syxaw.fs.VersionHistory;
 import fc.syxaw.hierfs.DirectoryEntry;
 import fc.syxaw.hierfs.DirectoryMerger;
 import fc.syxaw.proto.Version;
+import fc.syxaw.util.ContentHasher;
 import fc.syxaw.util.Util;
 import fc.util.log.Log;
 import fc.xml.xmlr.ChangeTree;
@@ -206,6 +207,9 @@ public class LinkTree extends FacetedTree {
       mapVersion(version,repo.getCurrentVersion());
       fullTree.reset(); // All changes checked in!
       resetDirModFlags(rootDir,true);
+      if( journal != null )
+        journal.save();
+      ContentHasher.getInstance().save();
       __modcount=0;
     } catch (NodeNotFoundException ex) {
       throw new IOException("Missing node " + ex.getId());
@@ -24,6 +24,7 @@ import java.util.Set;
 import fc.syxaw.fs.Constants;
 import fc.syxaw.fs.VersionHistory;
 import fc.syxaw.hierfs.DirectoryEntry;
+import fc.syxaw.util.ContentHasher;
 import fc.util.log.Log;
 import fc.xml.xmlr.AbstractMutableRefTree;
 import fc.xml.xmlr.ChangeTree;
@@ -64,6 +65,9 @@ public class LocalTree extends FacetedTree {
       repo.commit(fullTree);
       fullTree.reset(); // All changes checked in!
       resetDirModFlags(rootDir,false);
+      if( journal != null )
+        journal.save();
+      ContentHasher.getInstance().save();
     } catch (NodeNotFoundException ex) {
       throw new IOException("Missing node " + ex.getId());
     }
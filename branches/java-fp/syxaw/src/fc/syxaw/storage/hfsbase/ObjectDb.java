@@ -14,13 +14,15 @@ package fc.syxaw.storage.hfsbase;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.Iterator;
 
 //import org.w3c.tools.dbm.jdbm;
 
-import fc.syxaw.util.Cache;
-import fc.syxaw.util.LruCache;
+import fc.syxaw.util.StripedCache;
+import fc.syxaw.util.WeightedLruCache;
 import fc.util.bytedb.Sdbm;
 import fc.util.Debug;
 import fc.util.log.Log;
@@ -36,11 +38,12 @@ import fc.util.log.Log;
  * derived from the corresponding key, and the contents of the file is the
  * value. Needless to say, this is a very slow implementation. But it's
  * easy to hack with!
+ * <p>The read cache is keyed by key content, and bounded by the estimated
+ * size of the cached entries, see {@link Config#OBJECTDB_CACHE_SIZE}.
+ * Lookups that hit the cache only lock a stripe of the cache; the
+ * database itself is accessed while holding the lock of this object.
  */
 
-// NOTE: _* functions are for debugging purposes (gathering cache hit/miss
-// statistics )
-
 public abstract class ObjectDb {
 
   private Sdbm db; // Change type here!
@@ -51,10 +54,15 @@ public abstract class ObjectDb {
   //private static final String NULL_VALUE = "ObjectDB:<null>";
 
   private static final Object DELETED_ITEM = new Object();
-  /** Max number of entries in read cache. */
-  public static final int MEMCACHE_SIZE = 64;
 
-  Cache cache = new LruCache(Cache.TEMP_HIGH, MEMCACHE_SIZE);
+  /** Number of independently locked stripes in read cache. */
+  public static final int CACHE_STRIPES = 16;
+
+  // Estimated memory overhead per cache entry
+  private static final int ENTRY_OVERHEAD = 64;
+
+  StripedCache cache = new StripedCache(CACHE_STRIPES,
+                                        Config.OBJECTDB_CACHE_SIZE);
   protected File root;
 
   /** Create new instance.
@@ -68,12 +76,32 @@ public abstract class ObjectDb {
   public ObjectDb(File aRoot, boolean updatemayInsert) {
     root = aRoot;
     try {
-      db = new Sdbm(aRoot, "db", "rw");
+      db = Config.OBJECTDB_MMAP ? openMapped(aRoot) :
+        new Sdbm(aRoot, "db", "rw");
     } catch (IOException e) {
       Log.log("Failed to initialize database "+aRoot, Log.FATALERROR, e);
     }
   }
 
+  // MappedSdbm needs java.nio, and is not in the Foundation Profile build
+  // (see fp-exclude). Load it by name, and fall back to Sdbm if missing
+  private static Sdbm openMapped(File aRoot) throws IOException {
+    try {
+      return (Sdbm) Class.forName("fc.util.bytedb.MappedSdbm").
+        getConstructor(new Class[] {File.class,String.class,String.class}).
+        newInstance(new Object[] {aRoot,"db","rw"});
+    } catch (InvocationTargetException x) {
+      if( x.getTargetException() instanceof IOException )
+        throw (IOException) x.getTargetException();
+      Log.log("Cannot open mapped database "+aRoot, Log.FATALERROR,
+              x.getTargetException());
+    } catch (Exception x) {
+      Log.log("Memory mapped databases not available, using Sdbm",
+              Log.WARNING);
+    }
+    return new Sdbm(aRoot, "db", "rw");
+  }
+
   /** Allocate String and insert value.
    *
    * @param value value to insert
@@ -81,23 +109,26 @@ public abstract class ObjectDb {
    */
 
   /** Insert String,value. */
-  public synchronized void insert(String key,Object value) {
+  public void insert(String key,Object value) {
     insert( key == null ? null : key.getBytes(), value);
   }
 
   public synchronized void insert(byte[] key,Object value) {
+    Key k = new Key(key);
+    byte[] data = serialize(value);
     try {
-      if ( (cache.containsKey(key) && cache.get(key) != DELETED_ITEM)
-          || db.containsKey(key))
+      CacheEntry e = (CacheEntry) cache.get(k);
+      if ( (e != null && e.value != DELETED_ITEM)
+          || (e == null && db.containsKey(key)) )
         Log.log("Id already allocated, val="+lookup(key), Log.FATALERROR, Debug.toPrintable(key));
-      db.put(key, serialize(value));
+      db.put(key, data);
     } catch (IOException e) {
       Log.log("Failed to write ID value",Log.FATALERROR,e);
     }
-    cache.put(key,value);
+    cache.put(k,new CacheEntry(key,value,data));
   }
 
-  public synchronized void delete(String key) {
+  public void delete(String key) {
     delete(key==null ? null : key.getBytes());
   }
   /** Delete entry. */
@@ -105,48 +136,60 @@ public abstract class ObjectDb {
     try {
       db.remove(key);
     } catch (IOException e) {
-      Log.log("Failed to remove id " + key, Log.FATALERROR, e);
+      Log.log("Failed to remove id " + Debug.toPrintable(key), Log.FATALERROR, e);
     }
-    cache.put(key,DELETED_ITEM);
+    cache.put(new Key(key),new CacheEntry(key,DELETED_ITEM,null));
   }
 
-  public synchronized void update(String key, Object value) {
+  public void update(String key, Object value) {
     update(key == null ? null : key.getBytes(),value);
-  }  
+  }
   /** Update value of entry. */
-  public synchronized void update(byte[] key, Object value) {
+  public void update(byte[] key, Object value) {
 /*    if( !updatemayInsert && !cache.containsKey(key) && !f.exists() )
       Log.log("Update to non-existing key "+key,Log.FATALERROR);*/
-    if( cache.containsKey(key) ) _hit(); else _miss(key);
+    update(key,value,serialize(value));
+  }
+
+  // Update with already serialized value
+  synchronized void update(byte[] key, Object value, byte[] data) {
     try {
-      db.put(key,serialize(value));
+      db.put(key,data);
     } catch (IOException e ) {
       Log.log("Failed to update ID value",Log.FATALERROR);
     }
-    cache.put(key,value);
+    cache.put(new Key(key),new CacheEntry(key,value,data));
   }
 
   /** Lookup value for String. */
 
-  public synchronized Object lookup(String key ) {
+  public Object lookup(String key ) {
     return lookup(key == null ? null : key.getBytes());
   }
 
-  public synchronized Object lookup(byte[] key ) {
+  public Object lookup(byte[] key ) {
     if( key == null || key.length == 0 ) // Can't store empty
       return null;
-    Object value = cache.get(key);
-    if( value != null ) _hit();
-    if( value != null )
-      return value == DELETED_ITEM ? null : value;
-    _miss(key);
-    try {
-      value = deserialize(db.get(key));
-    } catch (IOException e ) {
-      Log.log("Failed to lookup ID strval ["+key+"]",Log.FATALERROR,e);
+    Key k = new Key(key);
+    CacheEntry e = (CacheEntry) cache.get(k);
+    if( e == null ) {
+      // Read and cache under the db lock, so that a concurrent write
+      // cannot be overwritten by the value read here
+      synchronized( this ) {
+        Object value = null;
+        byte[] data = null;
+        try {
+          data = db.get(key);
+          value = deserialize(data);
+        } catch (IOException x ) {
+          Log.log("Failed to lookup ID strval ["+Debug.toPrintable(key)+"]",
+                  Log.FATALERROR,x);
+        }
+        e = new CacheEntry(key,value == null ? DELETED_ITEM : value,data);
+        cache.put(k,e);
+      }
     }
-    cache.put(key,value == null ? DELETED_ITEM : value);
-    return value;
+    return e.value == DELETED_ITEM ? null : e.value;
   }
 
   public Iterator keys() {
@@ -176,25 +219,63 @@ public abstract class ObjectDb {
 	  db.close();
     //db.save();
   }
+
+  /** Force all updates of the database to disk. */
+  public void sync() throws IOException {
+    db.sync();
+  }
+
   // Performance monitoring
 
-  private static int _hits=0, _misses =0;
+  /** Get number of lookups answered from the read cache. */
+  public long getCacheHits() {
+    return cache.getHits();
+  }
 
-  private final void _hit() {
-    _hits++;
-    _stat();
+  /** Get number of lookups not answered from the read cache. */
+  public long getCacheMisses() {
+    return cache.getMisses();
   }
 
-  private final void _miss(byte[] val) {
-    //Log.log("Missed "+val,Log.DEBUG);
-    _misses++;
-    _stat();
+  /** Get estimated size of the read cache, in bytes. */
+  public long getCacheSize() {
+    return cache.getWeight();
   }
 
-  private final void _stat() {
-//   if( (_hits+_misses)%100==0)
-//      Log.log("IndexDb hit/miss ratio: "+_hits+"/"+_misses+
-//              " csize="+cache.size() /*+" cache="+cache*/,Log.INFO);
+  // Cache key, compared by content
+  private static final class Key {
+    private final byte[] key;
+    private final int hash;
+
+    Key(byte[] key) {
+      this.key = key;
+      int h = 1;
+      for( int i=0;i<key.length;i++)
+        h = 31*h + key[i];
+      hash = h;
+    }
+
+    public int hashCode() {
+      return hash;
+    }
+
+    public boolean equals(Object o) {
+      return o instanceof Key && Arrays.equals(key,((Key) o).key);
+    }
+  }
+
+  private static final class CacheEntry implements WeightedLruCache.Weighted {
+    final Object value;
+    private final int weight;
+
+    CacheEntry(byte[] key, Object value, byte[] data) {
+      this.value = value;
+      weight = ENTRY_OVERHEAD + key.length + (data == null ? 0 : data.length);
+    }
+
+    public int getWeight() {
+      return weight;
+    }
   }
 }
 // arch-tag: 48b644148b600a3ad22742317860060a *-
@@ -12,16 +12,28 @@
 // $Id: PersistentRefTree.java,v 1.10 2005/02/10 14:51:07 ctl Exp $
 package fc.syxaw.storage.hfsbase;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
 
 import fc.syxaw.util.Util;
 import fc.syxaw.util.XmlUtil;
@@ -36,30 +48,78 @@ import fc.xml.xmlr.model.StringKey;
 import fc.xml.xmlr.model.XasCodec;
 
 /** Persistent mutable reftree.
+ * <p>Edits are made in batches. The edits of a batch are buffered in
+ * memory until the batch is committed. On commit, the edits are written
+ * to an edit log, and then applied to the databases storing the tree.
+ * If Syxaw crashes while applying the edits, they are replayed from the
+ * log when the tree is next opened. A log that was not completely
+ * written is discarded. The tree is thus always either in the state
+ * before or after a batch. Since each node is written once per batch,
+ * a large batch also writes much less than the same edits one by one.
+ * <p>Each edit method that is called outside a batch is run as a batch
+ * of its own. A batch belongs to the thread that began it: the pending
+ * edits are only seen by that thread until committed, and other threads
+ * that begin a batch wait until it ends.
+ * <p>Implementation note: the log is the file {@link #LOG_NAME} in the
+ * store. It holds a (db,id,length,data) record for each changed entry,
+ * followed by an end marker with the number of records and a CRC32 of the
+ * log. Deleted entries have length -1. The log is removed once applied,
+ * and, if {@link Config#TREE_LOG_SYNC} is set, the databases forced to
+ * disk.
+ * <p>Node content is stored as XML by the {@link XasCodec} of the tree.
+ * A tree may also have a {@link BinaryCodec}, which both reads and
+ * writes a compact binary form of the content, with recurring strings in
+ * the {@link StringDictionary} {@link #DICTIONARY_NAME}. Each stored
+ * entry is read in the form it was written in, so a store may hold both
+ * forms. When a store is first opened for binary writing, all content is
+ * rewritten in the binary form.
  */
 
 public class PersistentRefTree extends AbstractMutableRefTree {
 
   public static final String CONTENT_DB_NAME="nodes";
   public static final String PTR_DB_NAME="tree";
+  /** Name of edit log file. */
+  public static final String LOG_NAME="tree.log";
+  /** Name of string dictionary file of binary node content. */
+  public static final String DICTIONARY_NAME="strings";
 
 
   private static final int CONTENT_AVG_SIZE=256;
   private static final int PTR_AVG_SIZE=4*16;
   private static final String UNSORT="u";
+  // Tag of binary content; XML content never starts with it
+  private static final int BINARY_CONTENT = 0x01;
+  // Nodes rewritten per batch when migrating to binary content
+  private static final int MIGRATE_BATCH = 1024;
 
    // '=' to ensure that DIRFILE is not a urlencoded key
 
   private static final String SENTINEL = "="; // Must never be put/get
 
+  // Log record types
+  private static final int LOG_PTR = 'p';
+  private static final int LOG_CONTENT = 'c';
+  private static final int LOG_END = 'e';
+
+  private static final Object REMOVED = new Object();
 
   private ObjectDb pdb;
-  private ObjectDb cdb;
+  private ContentDb cdb;
 
   private StringKey root;
 
   private final Object NO_CONTENT_CHANGE = new Object();
 
+  private File logFile;
+  // Thread running the current batch, and its nesting depth. The pending
+  // edits are only accessed by that thread
+  private volatile Thread writer = null;
+  private int batchDepth = 0;
+  // Edits in current batch, id->value or REMOVED
+  private Map pendingPts = new HashMap();
+  private Map pendingContent = new HashMap();
+
 //  protected Map contentCache = new Cache(2,64,CONTENT_AVG_SIZE);
 //  protected Map ptrCache = new Cache(2,1024,CONTENT_AVG_SIZE);
 
@@ -70,13 +130,48 @@ public class PersistentRefTree extends AbstractMutableRefTree {
    * @param nodeCodec ContentCodec to use for node contents
    */
   public PersistentRefTree(File aStore, XasCodec nodeCodec) {
-    this(aStore,nodeCodec,false);
+    this(aStore,nodeCodec,null,false,false);
+  }
+
+  /** Create a new reftree with binary node content.
+   *
+   * @param aStore File pointing out the location of the store; must be
+   * a directory.
+   * @param nodeCodec ContentCodec to use for node contents
+   * @param binaryCodec binary codec for node contents
+   * @param writeBinary <code>true</code> if node contents are written
+   * by <code>binaryCodec</code>, <code>false</code> if by
+   * <code>nodeCodec</code>. Contents are read by either, as written.
+   */
+  protected PersistentRefTree(File aStore, XasCodec nodeCodec,
+                              BinaryCodec binaryCodec, boolean writeBinary) {
+    this(aStore,nodeCodec,binaryCodec,writeBinary,false);
   }
 
   private PersistentRefTree(File aStore, XasCodec nodeCodec,
-                             boolean inInit) {
+                            BinaryCodec binaryCodec, boolean writeBinary,
+                            boolean inInit) {
     pdb = new PtrDb(new File(aStore,PTR_DB_NAME));
-    cdb = new ContentDb(new File(aStore,CONTENT_DB_NAME),nodeCodec);
+    StringDictionary dict = null;
+    if( binaryCodec != null ) {
+      try {
+        dict = new StringDictionary(new File(aStore,DICTIONARY_NAME),
+                                    Config.TREE_DICTIONARY_SIZE);
+      } catch (IOException x) {
+        Log.log("Cannot read string dictionary",Log.FATALERROR,x);
+      }
+    }
+    cdb = new ContentDb(new File(aStore,CONTENT_DB_NAME),nodeCodec,
+                        binaryCodec,dict,writeBinary);
+    logFile = new File(aStore,LOG_NAME);
+    recover();
+    if( writeBinary && !inInit && !dict.exists() ) {
+      try {
+        migrate();
+      } catch (IOException x) {
+        Log.log("Cannot rewrite node content of "+aStore,Log.FATALERROR,x);
+      }
+    }
     if (!inInit) {
       String[] rootpts = getPts(SENTINEL);
       if (rootpts == null)
@@ -89,10 +184,129 @@ public class PersistentRefTree extends AbstractMutableRefTree {
 
   //Cprotected abstract void cacheContent(String id, Object content);
 
+  /** Begin a batch of edits. Batches may be nested; the edits are
+   * committed when the outermost batch is. Waits until any batch of
+   * another thread has ended.
+   */
+  public synchronized void begin() {
+    Thread t = Thread.currentThread();
+    boolean interrupted = false;
+    while( writer != null && writer != t ) {
+      try {
+        wait();
+      } catch (InterruptedException x) {
+        interrupted = true;
+      }
+    }
+    if( interrupted )
+      t.interrupt();
+    writer = t;
+    batchDepth++;
+  }
+
+  private synchronized void endBatch() {
+    batchDepth = 0;
+    writer = null;
+    notifyAll();
+  }
+
+  /** Commit batch of edits. Has no effect if not in a batch, or if the
+   * batch was rolled back.
+   *
+   * @throws IOException if the edits cannot be logged. The batch is
+   * still pending, and should be rolled back.
+   */
+  public void commit() throws IOException {
+    if( writer != Thread.currentThread() || --batchDepth > 0 )
+      return;
+    if( pendingPts.isEmpty() && pendingContent.isEmpty() ) {
+      endBatch();
+      return;
+    }
+    List edits = new ArrayList(pendingPts.size()+pendingContent.size());
+    getEdits(edits,pendingPts,pdb,LOG_PTR);
+    getEdits(edits,pendingContent,cdb,LOG_CONTENT);
+    try {
+      if( cdb.writeBinary )
+        cdb.dict.flush(); // Logged content may refer to the new strings
+      writeLog(edits);
+    } catch (IOException x) {
+      batchDepth = 1;
+      throw x;
+    }
+    pendingPts.clear();
+    pendingContent.clear();
+    try {
+      applyLog(edits);
+      removeLog();
+    } finally {
+      endBatch();
+    }
+  }
+
+  // Rewrite all node content with the current content codec, in batches.
+  // Flushing the dictionary at the end marks the store as migrated, also
+  // when there are no nodes. An interrupted migration leaves some content
+  // in the old form, which is rewritten when the node is next updated.
+  private void migrate() throws IOException {
+    List ids = new ArrayList();
+    for( Iterator i = cdb.keys();i.hasNext();)
+      ids.add(new String((byte[]) i.next()));
+    Log.log("Rewriting content of "+ids.size()+" nodes",Log.INFO);
+    for( Iterator i = ids.iterator();i.hasNext();) {
+      begin();
+      try {
+        for( int count=0;count<MIGRATE_BATCH && i.hasNext();count++) {
+          String id = (String) i.next();
+          Object content = cdb.lookup(id);
+          if( content != null )
+            pendingContent.put(id,content);
+        }
+        commit();
+      } catch (IOException x) {
+        rollback();
+        throw x;
+      }
+    }
+    cdb.dict.flush();
+  }
+
+  /** Roll back batch. Discards all edits since the outermost
+   * batch was begun.
+   */
+  public void rollback() {
+    if( writer != Thread.currentThread() )
+      return;
+    pendingPts.clear();
+    pendingContent.clear();
+    endBatch();
+  }
+
+  // End edit method run as a (possibly nested) batch
+  private void end(boolean ok) {
+    if( !ok ) {
+      rollback();
+      return;
+    }
+    try {
+      commit();
+    } catch (IOException x) {
+      rollback();
+      Log.log("Cannot commit tree edits",Log.FATALERROR,x);
+    }
+  }
+
   // Ins at particular natural position. May not be supported
   public Key insert( Key parentId, long pos, Key newId,
                       Object content) {
-    insert(parentId.toString(),pos,newId.toString(),content,null);
+    begin();
+    boolean ok = false;
+    try {
+      insert(parentId.toString(),pos,newId.toString(),content,null);
+      ok = true;
+    } finally {
+      end(ok);
+    }
     return newId;
   }
 
@@ -138,14 +352,38 @@ public class PersistentRefTree extends AbstractMutableRefTree {
   }
 
   private final String[] getPts(String id) {
-    return (String[]) pdb.lookup(id);
+    Object pts = writer == Thread.currentThread() ? pendingPts.get(id) : null;
+    if( pts == null ) {
+      // Copy, since callers edit the array, and the edit may be rolled back
+      pts = pdb.lookup(id);
+      return pts == null ? null : (String[]) ((String[]) pts).clone();
+    }
+    return pts == REMOVED ? null : (String[]) pts;
   }
 
   private final void putPts(String id,String[] pts, boolean insert) {
-    pdb.update(id,pts);
+    if( writer != Thread.currentThread() )
+      Log.log("Tree edit outside batch",Log.ASSERTFAILED);
+    pendingPts.put(id,pts);
+  }
+
+  private final void deletePts(String id) {
+    pendingPts.put(id,REMOVED);
   }
 
   private List sortChildren(String pid) {
+    begin();
+    boolean ok = false;
+    try {
+      List l = doSortChildren(pid);
+      ok = true;
+      return l;
+    } finally {
+      end(ok);
+    }
+  }
+
+  private List doSortChildren(String pid) {
     String[] ppts=getPts(pid);
     if( SENTINEL == ppts[5] ) {
       List l = new LinkedList();
@@ -184,11 +422,21 @@ public class PersistentRefTree extends AbstractMutableRefTree {
   }
 
   private final void putContent(String id, Object content, boolean insert) {
-    cdb.update(id,content);
+    if( writer != Thread.currentThread() )
+      Log.log("Tree edit outside batch",Log.ASSERTFAILED);
+    pendingContent.put(id,content);
+  }
+
+  private final void deleteContent(String id) {
+    pendingContent.put(id,REMOVED);
   }
 
   private final Object getContent(String id) {
-    return cdb.lookup(id);
+    Object content = writer == Thread.currentThread() ?
+      pendingContent.get(id) : null;
+    if( content == null )
+      return cdb.lookup(id);
+    return content == REMOVED ? null : content;
   }
 
 
@@ -196,22 +444,43 @@ public class PersistentRefTree extends AbstractMutableRefTree {
       throws NodeNotFoundException {
     // delete & insert structpointers for this
     String __oldPath = getPath((StringKey) nId);
-    String[] pts=delete(nId.toString(),false);
-    insert(parentId.toString(),pos,nId.toString(),NO_CONTENT_CHANGE,pts);
+    begin();
+    boolean ok = false;
+    try {
+      String[] pts=delete(nId.toString(),false);
+      insert(parentId.toString(),pos,nId.toString(),NO_CONTENT_CHANGE,pts);
+      ok = true;
+    } finally {
+      end(ok);
+    }
     Log.log("Moved "+__oldPath+"->"+getPath((StringKey) nId),Log.INFO);
     return nId;
   }
 
   public boolean update( Key nId, Object newContent )
       throws NodeNotFoundException {
-    putContent(zgetFile(nId),newContent,false);
+    begin();
+    boolean ok = false;
+    try {
+      putContent(zgetFile(nId),newContent,false);
+      ok = true;
+    } finally {
+      end(ok);
+    }
     return true;
   }
 
   public void delete( Key id ) throws NodeNotFoundException {
     if( !(id instanceof StringKey) )
       throw new NodeNotFoundException(id);
-    delete(id.toString(),true);
+    begin();
+    boolean ok = false;
+    try {
+      delete(id.toString(),true);
+      ok = true;
+    } finally {
+      end(ok);
+    }
   }
 
   protected String[] delete( String id, boolean reap ) throws NodeNotFoundException {
@@ -259,8 +528,8 @@ public class PersistentRefTree extends AbstractMutableRefTree {
   // Kill all p+c reachable from content
   private final String[] reap(String id,String[] pts) {
     pts = pts == null ? getPts(id) : pts;
-    cdb.delete(zgetFile(id));
-    pdb.delete(id);
+    deleteContent(zgetFile(id));
+    deletePts(id);
     if (pts[2] != SENTINEL) {
       reap(pts[2], null);
     }
@@ -294,11 +563,151 @@ public class PersistentRefTree extends AbstractMutableRefTree {
     return getNode(root);
   }
 
-  void close() throws IOException {
+  /** Close the tree. Any uncommitted edits are lost. */
+  public void close() throws IOException {
+    if( writer != null )
+      Log.log("Closing tree with uncommitted edits",Log.WARNING);
 	  cdb.close();
 	  pdb.close();
   }
 
+  // Edit log
+
+  private void getEdits(List edits, Map pending, ObjectDb db, int type) {
+    for( Iterator i = pending.entrySet().iterator();i.hasNext();) {
+      Map.Entry e = (Map.Entry) i.next();
+      Object value = e.getValue();
+      edits.add(new Edit(type,(String) e.getKey(),
+                         value == REMOVED ? null : value,
+                         value == REMOVED ? null : db.serialize(value)));
+    }
+  }
+
+  private void writeLog(List edits) throws IOException {
+    FileOutputStream fout = new FileOutputStream(logFile);
+    try {
+      CRC32 crc = new CRC32();
+      DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+          new BufferedOutputStream(fout),crc));
+      for( Iterator i = edits.iterator();i.hasNext();) {
+        Edit e = (Edit) i.next();
+        out.writeByte(e.type);
+        out.writeUTF(e.id);
+        if( e.data == null )
+          out.writeInt(-1);
+        else {
+          out.writeInt(e.data.length);
+          out.write(e.data);
+        }
+      }
+      out.writeByte(LOG_END);
+      out.writeInt(edits.size());
+      out.writeLong(crc.getValue());
+      out.flush();
+      if( Config.TREE_LOG_SYNC )
+        fout.getFD().sync();
+    } finally {
+      fout.close();
+    }
+  }
+
+  // Read log; returns null if the log is incomplete
+  private List readLog() throws IOException {
+    CRC32 crc = new CRC32();
+    DataInputStream in = new DataInputStream(new CheckedInputStream(
+        new BufferedInputStream(new FileInputStream(logFile)),crc));
+    try {
+      List edits = new ArrayList();
+      for(;;) {
+        int type = in.read();
+        if( type == LOG_END ) {
+          int count = in.readInt();
+          long sum = crc.getValue();
+          return in.readLong() == sum && count == edits.size() ? edits : null;
+        } else if( type != LOG_PTR && type != LOG_CONTENT )
+          return null;
+        String id = in.readUTF();
+        int len = in.readInt();
+        if( len > logFile.length() )
+          return null;
+        byte[] data = null;
+        if( len >= 0 ) {
+          data = new byte[len];
+          in.readFully(data);
+        }
+        edits.add(new Edit(type,id,null,data));
+      }
+    } catch (EOFException x) {
+      return null;
+    } finally {
+      in.close();
+    }
+  }
+
+  /** Apply logged edits to the databases.
+   * @param edits edits to apply
+   */
+  protected void applyLog(List edits) {
+    for( Iterator i = edits.iterator();i.hasNext();) {
+      Edit e = (Edit) i.next();
+      ObjectDb db = e.type == LOG_PTR ? pdb : cdb;
+      if( e.data == null )
+        db.delete(e.id);
+      else
+        db.update(e.id.getBytes(),
+                  e.value != null ? e.value : db.deserialize(e.data),e.data);
+    }
+  }
+
+  // Replay log left by a crash
+  private void recover() {
+    if( !logFile.exists() )
+      return;
+    List edits = null;
+    try {
+      edits = readLog();
+    } catch (IOException x) {
+      Log.log("Cannot read "+logFile,Log.ERROR,x);
+    }
+    if( edits == null )
+      Log.log("Discarding incomplete tree log "+logFile,Log.WARNING);
+    else {
+      Log.log("Replaying "+edits.size()+" edits from "+logFile,Log.INFO);
+      applyLog(edits);
+    }
+    removeLog();
+  }
+
+  // Remove applied log. The applied edits must be on disk first, or an
+  // operating system crash could lose both them and the log
+  private void removeLog() {
+    if( Config.TREE_LOG_SYNC ) {
+      try {
+        pdb.sync();
+        cdb.sync();
+      } catch (IOException x) {
+        Log.log("Cannot sync tree databases; keeping "+logFile,Log.ERROR,x);
+        return;
+      }
+    }
+    if( !logFile.delete() )
+      Log.log("Cannot remove "+logFile,Log.FATALERROR);
+  }
+
+  private static class Edit {
+    final int type;
+    final String id;
+    final Object value;
+    final byte[] data; // null if removed
+
+    Edit(int type, String id, Object value, byte[] data) {
+      this.type = type;
+      this.id = id;
+      this.value = value;
+      this.data = data;
+    }
+  }
+
   // Get path for a node
 
   private String getPath(RefTreeNode n) {
@@ -412,16 +821,27 @@ public class PersistentRefTree extends AbstractMutableRefTree {
   private static class ContentDb extends ObjectDb {
 
     private XasCodec nodeCodec;
+    private BinaryCodec binaryCodec;
+    final StringDictionary dict;
+    final boolean writeBinary;
 
-    public ContentDb(File aRoot, XasCodec nodeCodec) {
+    public ContentDb(File aRoot, XasCodec nodeCodec, BinaryCodec binaryCodec,
+                     StringDictionary dict, boolean writeBinary) {
       super(aRoot,true);
       this.nodeCodec = nodeCodec;
+      this.binaryCodec = binaryCodec;
+      this.dict = dict;
+      this.writeBinary = writeBinary;
     }
 
     protected byte[] serialize(Object content) {
       ByteArrayOutputStream bos = new ByteArrayOutputStream(CONTENT_AVG_SIZE); // check!
       try {
-        XmlUtil.writeObject(bos,content,nodeCodec);
+        if( writeBinary ) {
+          bos.write(BINARY_CONTENT);
+          binaryCodec.encode(content,new BinaryCodec.Output(bos,dict));
+        } else
+          XmlUtil.writeObject(bos,content,nodeCodec);
         /*DEBUG
          * if( nodeCodec instanceof StoredDirectoryTree.NodeXasCodec ) {
           Log.log("Wrote to contentdb: "+new String(bos.toByteArray()),Log.DEBUG);
@@ -437,14 +857,20 @@ public class PersistentRefTree extends AbstractMutableRefTree {
     }
 
     protected Object deserialize(byte[] b) {
-      ByteArrayInputStream bin = new ByteArrayInputStream(b);
+      if (b == null)
+        return null;
       Object o = null;
       try {
         /*DEBUG
         if( nodeCodec instanceof StoredDirectoryTree.NodeXasCodec )
           Log.log("Reading data from contentdb: "+new String(b),Log.DEBUG);
         */
-        o = XmlUtil.readObject(bin, nodeCodec);
+        if( b.length > 0 && b[0] == BINARY_CONTENT ) {
+          if( binaryCodec == null )
+            throw new IOException("No codec for binary content");
+          o = binaryCodec.decode(new BinaryCodec.Input(b,1,dict));
+        } else
+          o = XmlUtil.readObject(new ByteArrayInputStream(b), nodeCodec);
       } catch (IOException ex) {
         Log.log("Can't read content", Log.FATALERROR, ex);
         return null;
@@ -464,6 +890,21 @@ public class PersistentRefTree extends AbstractMutableRefTree {
      */
     public static void init(File aStore, RefTreeNode theRoot,
                             XasCodec nodeCodec) {
+      init(aStore,theRoot,nodeCodec,null,false);
+    }
+
+    /** Initialize a new persistent reftree with binary node content.
+     *
+     * @param aStore location of the store; must be a directory
+     * @param theRoot RefTreeNode root node
+     * @param nodeCodec ContentCodec to use for node contents
+     * @param binaryCodec binary codec for node contents
+     * @param writeBinary <code>true</code> if the root is written by
+     * <code>binaryCodec</code>
+     */
+    public static void init(File aStore, RefTreeNode theRoot,
+                            XasCodec nodeCodec, BinaryCodec binaryCodec,
+                            boolean writeBinary) {
 
       try {
         File pdbf = new File(aStore,PTR_DB_NAME);
@@ -473,14 +914,17 @@ public class PersistentRefTree extends AbstractMutableRefTree {
         if( !cdbf.exists() && !cdbf.mkdir() )
           Log.log("Can't init "+cdbf,Log.FATALERROR);
 
-        PersistentRefTree t = new PersistentRefTree(aStore,nodeCodec,true);
+        PersistentRefTree t = new PersistentRefTree(aStore,nodeCodec,
+            binaryCodec,writeBinary,true);
         String rId = zgetFile(theRoot.getId().toString());
+        t.begin();
         t.putPts(SENTINEL,new String[] {SENTINEL,SENTINEL,rId,rId,SENTINEL,
                  SENTINEL},true);
         t.putPts(rId,new String[] {SENTINEL,SENTINEL,SENTINEL,SENTINEL,SENTINEL,
                  SENTINEL},
                  true);
         t.putContent(rId,theRoot.getContent(),true);
+        t.commit();
         // BUGFIX-20061023-1: Init did not close files, which breaks tree re-open
         // on some platforms (notably symbian emulator)
         t.close();
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.syxaw.storage.hfsbase;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import fc.syxaw.util.PersistentState;
+
+/** Journal of directory states at the last scan of the file system. The
+ * journal records a stamp for each scanned directory, computed from the
+ * modification time of the directory and the modification times and sizes
+ * of its entries. A directory whose stamp is unchanged, and whose
+ * subdirectories are all unchanged, need not be scanned again.
+ * <p>Changes to the Syxaw metadata of a file are not visible in the
+ * stamp, so such changes must be reported with {@link #invalidate}.
+ * <p>The journal also records the set of files in each directory that
+ * were modified with respect to the link facet at the time of the scan,
+ * so that these can be obtained without scanning.
+ * <p>Implementation note: a directory that has changed less than
+ * {@link #RACY_MARGIN} ms before the scan is not recorded. The journal is
+ * saved by {@link #save} when the scanned directory tree has been
+ * committed, as described in {@link PersistentState}.
+ */
+
+public class ScanJournal extends PersistentState {
+
+  private static final int FORMAT = 1;
+  private static final String[] EMPTY = new String[0];
+
+  private Map entries = new HashMap(); // path->Entry
+
+  /** Open journal. An unreadable journal is treated as empty.
+   *
+   * @param store file storing the journal
+   */
+  public ScanJournal(File store) {
+    open(store);
+  }
+
+  /** Begin a scan of the file system.
+   *
+   * @return new scan
+   */
+  public Scan newScan() {
+    return new Scan();
+  }
+
+  /** Invalidate the directory containing a file. Call this whenever
+   * Syxaw metadata that is visible in the directory tree is changed.
+   *
+   * @param f changed file
+   */
+  public synchronized void invalidate(File f) {
+    if( entries.isEmpty() )
+      return;
+    boolean removed = entries.remove(f.getPath()) != null;
+    File parent = f.getParentFile();
+    removed |= parent != null && entries.remove(parent.getPath()) != null;
+    if( removed )
+      changed();
+  }
+
+  /** Forget all recorded directory states. */
+  public synchronized void clear() {
+    entries.clear();
+    changed();
+  }
+
+  /** Get number of directories in journal. */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  protected String getName() {
+    return "scan journal";
+  }
+
+  protected void clearState() {
+    entries.clear();
+  }
+
+  protected void readState(DataInputStream in) throws IOException {
+    if( in.readInt() != FORMAT )
+      throw new IOException("Unknown journal format");
+    for( int count = in.readInt();count>0;count--) {
+      String path = in.readUTF();
+      entries.put(path,new Entry(in.readLong(),readStrings(in),
+                                 readStrings(in)));
+    }
+  }
+
+  protected void writeState(DataOutputStream out) throws IOException {
+    out.writeInt(FORMAT);
+    out.writeInt(entries.size());
+    for( Iterator i = entries.entrySet().iterator();i.hasNext();) {
+      Map.Entry me = (Map.Entry) i.next();
+      Entry e = (Entry) me.getValue();
+      out.writeUTF((String) me.getKey());
+      out.writeLong(e.stamp);
+      writeStrings(out,e.subdirs);
+      writeStrings(out,e.tainted);
+    }
+  }
+
+  private synchronized Entry getEntry(String path) {
+    return (Entry) entries.get(path);
+  }
+
+  private synchronized void putAll(Map pending) {
+    if( pending.isEmpty() )
+      return;
+    entries.putAll(pending);
+    changed();
+  }
+
+  private static void writeStrings(DataOutputStream out, String[] s)
+      throws IOException {
+    out.writeInt(s.length);
+    for( int i=0;i<s.length;i++)
+      out.writeUTF(s[i]);
+  }
+
+  private static String[] readStrings(DataInputStream in) throws IOException {
+    int len = in.readInt();
+    if( len == 0 )
+      return EMPTY;
+    String[] s = new String[len];
+    for( int i=0;i<len;i++)
+      s[i] = in.readUTF();
+    return s;
+  }
+
+  private static String[] toArray(Collection c) {
+    return c.isEmpty() ? EMPTY : (String[]) c.toArray(new String[c.size()]);
+  }
+
+  /** A scan of the file system. The directories recorded during the scan
+   * are added to the journal when the scan is committed.
+   */
+  public class Scan {
+
+    private long start = System.currentTimeMillis();
+    private Map stamps = new HashMap(); // path->long[] {stamp,last change}
+    private Map clean = new HashMap(); // path->Boolean
+    private Map pending = new HashMap(); // path->Entry
+
+    /** Check if a subtree is unchanged since it was recorded.
+     *
+     * @param dir root directory of subtree
+     * @return <code>true</code> if the subtree is unchanged
+     */
+    public boolean isClean(File dir) {
+      String path = dir.getPath();
+      Boolean c = (Boolean) clean.get(path);
+      if( c != null )
+        return c.booleanValue();
+      long stamp = getStamp(dir)[0]; // Always stamp before the dir is listed
+      Entry e = getEntry(path);
+      boolean ok = e != null && e.stamp == stamp;
+      for( int i=0;ok && i<e.subdirs.length;i++)
+        ok = isClean(new File(dir,e.subdirs[i]));
+      clean.put(path,ok ? Boolean.TRUE : Boolean.FALSE);
+      return ok;
+    }
+
+    /** Get files in a subtree that were modified with respect to the
+     * link facet when the subtree was recorded. Only valid for subtrees
+     * for which {@link #isClean} is <code>true</code>.
+     *
+     * @param dir root directory of subtree
+     * @param tainted collection to add file identifiers to
+     */
+    public void getTainted(File dir, Collection tainted) {
+      Entry e = getEntry(dir.getPath());
+      if( e == null )
+        return;
+      for( int i=0;i<e.tainted.length;i++)
+        tainted.add(e.tainted[i]);
+      for( int i=0;i<e.subdirs.length;i++)
+        getTainted(new File(dir,e.subdirs[i]),tainted);
+    }
+
+    /** Record the state of a scanned directory.
+     *
+     * @param dir directory
+     * @param subdirs names of subdirectories of the directory
+     * @param tainted identifiers of files in the directory that are
+     * modified with respect to the link facet
+     */
+    public void record(File dir, Collection subdirs, Collection tainted) {
+      long[] stamp = getStamp(dir);
+      if( isRacy(stamp[1],start) )
+        return;
+      pending.put(dir.getPath(),new Entry(stamp[0],toArray(subdirs),
+                                          toArray(tainted)));
+    }
+
+    /** Add the recorded directories to the journal. */
+    public void commit() {
+      putAll(pending);
+      pending.clear();
+    }
+
+    private long[] getStamp(File dir) {
+      long[] stamp = (long[]) stamps.get(dir.getPath());
+      if( stamp != null )
+        return stamp;
+      long modt = dir.lastModified();
+      long h = modt, last = modt;
+      if( !Config.SCAN_DIRMTIME ) {
+        String[] names = dir.list();
+        for( int i=0;names != null && i<names.length;i++) {
+          File f = new File(dir,names[i]);
+          long t = f.lastModified();
+          last = Math.max(last,t);
+          // Sum, as the listing order may vary
+          h += ((names[i].hashCode() * 31l) + t) * 31l + f.length();
+        }
+        if( names == null )
+          h = -1l;
+      }
+      stamp = new long[] {h,last};
+      stamps.put(dir.getPath(),stamp);
+      return stamp;
+    }
+  }
+
+  private static class Entry {
+    final long stamp;
+    final String[] subdirs;
+    final String[] tainted;
+
+    Entry(long stamp, String[] subdirs, String[] tainted) {
+      this.stamp = stamp;
+      this.subdirs = subdirs;
+      this.tainted = tainted;
+    }
+  }
+}
+// arch-tag: 1dada2cb-705a-4c66-8596-23077ac599e5
@@ -48,6 +48,7 @@ import fc.xml.xmlr.xas.PeekableItemSource;
 public class StoredDirectoryTree extends PersistentRefTree {
 
   private static final XasCodec codec = new NodeXasCodec();
+  private static final BinaryCodec binaryCodec = new NodeBinaryCodec();
   protected ChangeMonitor cm;
 
   /** Create a new tree.
@@ -60,7 +61,18 @@ public class StoredDirectoryTree extends PersistentRefTree {
   }
 
   public StoredDirectoryTree(File root, ChangeMonitor cm) {
-    super(root,codec);
+    this(root,cm,Config.TREE_BINARY);
+  }
+
+  /** Create a new tree.
+   *
+   * @param root directory of the persistent storage
+   * @param cm change monitor, or <code>null</code> for none
+   * @param binary <code>true</code> if nodes are written in binary form,
+   * <code>false</code> if as XML
+   */
+  public StoredDirectoryTree(File root, ChangeMonitor cm, boolean binary) {
+    super(root,codec,binaryCodec,binary);
     this.cm = cm == null ? new ChangeMonitor() : cm;
   }
 
@@ -568,6 +580,88 @@ public class StoredDirectoryTree extends PersistentRefTree {
     }
   }
 
+  /** Binary codec for <code>StoredDirectoryTree.Node</code>. A node is
+   * written as its type and id, followed by the fields of its type that
+   * {@link NodeXasCodec} writes, in the same order. Names and location ids
+   * are shared strings. Decoding yields the same node as decoding the XML
+   * form.
+   */
+  static class NodeBinaryCodec implements BinaryCodec {
+
+    public void encode(Object content, Output out) throws IOException {
+      if (! (content instanceof Node))
+        Log.log("Wrong class", Log.ASSERTFAILED);
+      Node n = (Node) content;
+      out.writeByte(n.getType());
+      out.writeString(n.getId().toString());
+      switch (n.getType()) {
+        case DirectoryEntry.FILE:
+          out.writeSharedString(n.getName());
+          out.writeSignedVarint(n.getVersion());
+          out.writeString(n.getUid());
+          if( !Util.isEmpty(n.getLinkUid()) ) {
+            out.writeString(n.getLinkUid());
+            out.writeSignedVarint(n.getLinkVersion());
+          } else
+            out.writeString(null);
+          break;
+        case DirectoryEntry.DIR:
+          out.writeSharedString(n.getName());
+          break;
+        case DirectoryEntry.TREE:
+          out.writeSharedString(n.getLocationId());
+          out.writeString(n.getNextId());
+          out.writeString(Util.isEmpty(n.getLinkNextId()) ? null :
+                          n.getLinkNextId());
+          break;
+        default:
+          throw new IOException("Unknown node type " + n.getType());
+      }
+    }
+
+    public Object decode(Input in) throws IOException {
+      int type = in.readByte();
+      String idStr = in.readString();
+      StringKey id = idStr == null ? null : StringKey.createKey(idStr);
+      String nextId = null;
+      String locationId = null;
+      String name = null;
+      int version = Constants.NO_VERSION;
+      String uid = null;
+      int linkVersion = Constants.NO_VERSION;
+      String linkUid = null;
+      String linkNextId = null;
+      boolean ok = id != null;
+      switch (type) {
+        case DirectoryEntry.FILE:
+          name = in.readString();
+          version = (int) in.readSignedVarint();
+          uid = in.readString();
+          linkUid = in.readString();
+          if( linkUid != null )
+            linkVersion = (int) in.readSignedVarint();
+          ok &= name != null && uid != null;
+          break;
+        case DirectoryEntry.DIR:
+          name = in.readString();
+          ok &= name != null;
+          break;
+        case DirectoryEntry.TREE:
+          locationId = in.readString();
+          nextId = in.readString();
+          linkNextId = in.readString();
+          ok &= locationId != null && nextId != null;
+          break;
+        default:
+          throw new IOException("Unknown node type " + type);
+      }
+      if (!ok)
+        throw new IOException("Missing fields for id " + id);
+      return new MutableNode(type, id, locationId, name, nextId, uid, version,
+                             linkVersion, linkUid, linkNextId, id);
+    }
+  }
+
   /** Class for tree change monitoring. The default implementation
    *  does nothing. */
 
@@ -585,7 +679,8 @@ public class StoredDirectoryTree extends PersistentRefTree {
      * @param theRoot root node
      */
     public static void init(File aStore, RefTreeNode theRoot ) {
-      PersistentRefTree.Maintenance.init(aStore,theRoot,new NodeXasCodec());
+      PersistentRefTree.Maintenance.init(aStore,theRoot,new NodeXasCodec(),
+                                         binaryCodec,Config.TREE_BINARY);
     }
   }
 }
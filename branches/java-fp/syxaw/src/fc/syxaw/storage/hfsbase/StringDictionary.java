@@ -0,0 +1,179 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.syxaw.storage.hfsbase;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import fc.util.log.Log;
+
+/** Persistent dictionary of strings shared by the nodes of a
+ * {@link PersistentRefTree}. Each string added to the dictionary is
+ * assigned the next free index, and is never removed. The dictionary is
+ * bounded; once full, no more strings are added.
+ * <p>Added strings are kept in memory until {@link #flush} appends them
+ * to the dictionary file. The tree flushes the dictionary before writing
+ * its edit log, so any logged content only refers to strings in the file.
+ * The file is a format int followed by a (length,UTF-8 bytes) record for
+ * each string. A record that was not completely written is discarded
+ * when the dictionary is opened.
+ */
+
+public class StringDictionary {
+
+  private static final int FORMAT = 1;
+  // Max UTF-8 length of a string in the dictionary
+  private static final int MAX_LENGTH = 0xffff;
+
+  private File store;
+  private int maxSize;
+  private List strings = new ArrayList(); // index->String
+  private Map indexes = new HashMap(); // String->Integer
+  private int flushed = 0;
+
+  /** Open dictionary.
+   *
+   * @param store file storing the dictionary. The file is created by the
+   * first {@link #flush}.
+   * @param maxSize max number of strings in the dictionary
+   * @throws IOException if the dictionary cannot be read
+   */
+  public StringDictionary(File store, int maxSize) throws IOException {
+    this.store = store;
+    this.maxSize = maxSize;
+    if( store.exists() )
+      load();
+  }
+
+  /** Check if the dictionary file exists.
+   *
+   * @return <code>true</code> if the dictionary has been flushed
+   */
+  public boolean exists() {
+    return store.exists();
+  }
+
+  /** Get index of a string, adding it to the dictionary if needed.
+   *
+   * @param s string
+   * @return index, or -1 if the string is not in the dictionary, and the
+   * dictionary is full
+   */
+  public synchronized int add(String s) {
+    Integer index = (Integer) indexes.get(s);
+    if( index != null )
+      return index.intValue();
+    if( strings.size() >= maxSize || s.length() > MAX_LENGTH / 3 )
+      return -1;
+    index = new Integer(strings.size());
+    strings.add(s);
+    indexes.put(s,index);
+    return index.intValue();
+  }
+
+  /** Get string by index.
+   *
+   * @param index index
+   * @return string, or <code>null</code> if there is no string by that
+   * index
+   */
+  public synchronized String get(long index) {
+    return index < strings.size() ? (String) strings.get((int) index) : null;
+  }
+
+  /** Get number of strings in the dictionary. */
+  public synchronized int size() {
+    return strings.size();
+  }
+
+  /** Append added strings to the dictionary file. Creates the file if it
+   * does not exist.
+   *
+   * @throws IOException if the strings cannot be written
+   */
+  public synchronized void flush() throws IOException {
+    if( flushed == strings.size() && store.exists() )
+      return;
+    boolean create = !store.exists();
+    FileOutputStream fout = new FileOutputStream(store.getPath(),!create);
+    try {
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(fout));
+      if( create )
+        out.writeInt(FORMAT);
+      for( int i=flushed;i<strings.size();i++) {
+        byte[] b = ((String) strings.get(i)).getBytes("UTF-8");
+        out.writeShort(b.length);
+        out.write(b);
+      }
+      out.flush();
+      if( Config.TREE_LOG_SYNC )
+        fout.getFD().sync();
+    } finally {
+      fout.close();
+    }
+    flushed = strings.size();
+  }
+
+  private void load() throws IOException {
+    if( store.length() < 4 ) {
+      // Header not completely written
+      if( !store.delete() )
+        throw new IOException("Cannot remove "+store);
+      return;
+    }
+    DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(store)));
+    long valid = 4;
+    try {
+      if( in.readInt() != FORMAT )
+        throw new IOException("Unknown dictionary format in "+store);
+      for(;;) {
+        int len = in.readUnsignedShort();
+        byte[] b = new byte[len];
+        in.readFully(b);
+        String s = new String(b,"UTF-8");
+        indexes.put(s,new Integer(strings.size()));
+        strings.add(s);
+        valid += 2 + len;
+      }
+    } catch (EOFException x) {
+      // End of dictionary
+    } finally {
+      in.close();
+    }
+    flushed = strings.size();
+    if( valid < store.length() ) {
+      Log.log("Discarding incomplete string at end of "+store,Log.WARNING);
+      RandomAccessFile f = new RandomAccessFile(store,"rw");
+      try {
+        f.setLength(valid);
+      } finally {
+        f.close();
+      }
+    }
+  }
+}
+
+// arch-tag: aa0eabd5-9a61-4586-9b29-1255ce9de1d2
@@ -58,6 +58,9 @@ public class Toolkit extends fc.syxaw.tool.Toolkit {
   public static final File VERSION_FOLDER_FILE = new File(SYSTEM_FOLDER_FILE,
       Config.VERSION_FOLDER);
 
+  public static final File BLOB_FOLDER_FILE = new File(SYSTEM_FOLDER_FILE,
+      Config.BLOB_FOLDER);
+
   public static final File CONFLICT_FOLDER_FILE = new File(SYSTEM_FOLDER_FILE,
       Config.CONFLICT_FOLDER);
 
@@ -177,6 +180,7 @@ public class Toolkit extends fc.syxaw.tool.Toolkit {
       index
       dirdb
       versions
+      blobs
       conflicts
       registry
 
@@ -207,6 +211,8 @@ public class Toolkit extends fc.syxaw.tool.Toolkit {
     // Versions
     VersionMapper.Maintenance.init(VERMAP_DB);
     VersionDB.Maintenance.init(VERSION_FOLDER_FILE);
+    if( Config.VERSIONDB_DEDUP )
+      BlobStore.Maintenance.init(BLOB_FOLDER_FILE);
     // Conflicts
     if (!CONFLICT_FOLDER_FILE.exists() &&
         !CONFLICT_FOLDER_FILE.mkdir())
@@ -12,12 +12,17 @@
 // $Id: VersionDB.java,v 1.35 2004/12/02 11:01:05 ctl Exp $
 package fc.syxaw.storage.hfsbase;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URLEncoder;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -34,8 +39,9 @@ import fc.syxaw.fs.UID;
 import fc.syxaw.proto.NotInPrototypeException;
 import fc.syxaw.proto.Version;
 import fc.syxaw.util.Cache;
-import fc.syxaw.util.LruCache;
+import fc.syxaw.util.ContentHasher;
 import fc.syxaw.util.Util;
+import fc.syxaw.util.WeightedLruCache;
 import fc.util.StringUtil;
 import fc.util.log.Log;
 
@@ -71,6 +77,12 @@ import fc.util.log.Log;
  * <code>localhost/alchAABXRJUmkqG7</code>. The data for version 1002 is equal to the
  * data for version 1001, and hence there is no file
  * <code>alchAABXRJUmkqG7@localhost,d1002</code>
+ * <p>If the database stores data versions in a {@link BlobStore}, new
+ * data versions are stored in it, and the data file is replaced by the
+ * recipe file
+ * <i>g'</i><code>,c</code><i>v</i>. Full data files written earlier
+ * remain readable. The blob of a version that is dropped, such as the
+ * version of an interrupted commit, is released from the store.
  * <p>Needless to say, this is a very slow implementation. But it's
  * easy to hack with!
  */
@@ -83,18 +95,53 @@ public class VersionDB {
 
   private static final String META_SUFFIX = ",m";
   private static final String DATA_SUFFIX = ",d";
+  private static final String CHUNKED_SUFFIX = ",c";
 
-  protected static final int LISTCACHE_SIZE = 64;
+  private static final String INDEX_SUFFIX = ",i";
+  private static final int INDEX_ENTRY_SIZE = 8;
 
-  Cache listCache = new LruCache(Cache.TEMP_MED,LISTCACHE_SIZE);
+  /** Maximum total number of versions in cached version lists. */
+  protected static final int LISTCACHE_SIZE = 65536;
+
+  Cache listCache = new WeightedLruCache(LISTCACHE_SIZE);
 
   File root;
+  BlobStore blobs;
+  boolean chunked;
 
+  /** Create version database that stores each data version in full.
+   * @param aRoot directory holding the database
+   */
   public VersionDB(File aRoot) {
+    this(aRoot,null);
+  }
+
+  /** Create version database.
+   * @param aRoot directory holding the database
+   * @param aBlobs store for data versions, or <code>null</code> to store
+   * each data version in full
+   */
+  public VersionDB(File aRoot, BlobStore aBlobs) {
+    this(aRoot,aBlobs,aBlobs != null);
+  }
+
+  /** Create version database.
+   * @param aRoot directory holding the database
+   * @param aBlobs store holding data versions, or <code>null</code> if
+   * there is none
+   * @param aChunked <code>true</code> if new data versions are stored in
+   * <code>aBlobs</code>; otherwise, the store is only used to read and
+   * release versions stored in it earlier
+   */
+  public VersionDB(File aRoot, BlobStore aBlobs, boolean aChunked) {
     if( !aRoot.exists() && !aRoot.isDirectory())
       Log.log("No version DB folder/is file " +
               aRoot, Log.FATALERROR);
+    if( aChunked && aBlobs == null )
+      throw new IllegalArgumentException("No blob store");
     root = aRoot;
+    blobs = aBlobs;
+    chunked = aChunked;
   }
 
   /** Commit object to version database, and automatically assign version number.
@@ -130,18 +177,29 @@ public class VersionDB {
     FullMetadataImpl md = FullMetadataImpl.createFrom(mdRo);
     String key = guidToFile(id);
     VersionList l = getVersionList(key);
-    int newVersion =  l.allocVersion(requestedVersion, is != null,
-                      md.getDataVersion() + 1 > Constants.FIRST_VERSION ?
-                      md.getDataVersion() +1 : Constants.FIRST_VERSION);
-
-    File mdFile = new File( root, key + META_SUFFIX + newVersion );
+    int newVersion = Constants.NO_VERSION;
     byte[] hash = null;
     try {
+      newVersion = l.allocVersion(requestedVersion, is != null,
+                      md.getDataVersion() + 1 > Constants.FIRST_VERSION ?
+                      md.getDataVersion() +1 : Constants.FIRST_VERSION);
+      listCache.put(key,l); // Update weight
+      File mdFile = new File( root, key + META_SUFFIX + newVersion );
       if (is != null) {
-        File dFile = new File(root, key + DATA_SUFFIX + newVersion);
-        FileOutputStream fos = new FileOutputStream(dFile);
-        hash = fc.syxaw.util.Util.copyAndDigestStream(is, fos );
-        fos.close();
+        OutputStream fos = chunked ?
+          (OutputStream) blobs.create(new File(root, key + CHUNKED_SUFFIX +
+                                               newVersion)) :
+          new FileOutputStream(new File(root, key + DATA_SUFFIX + newVersion));
+        boolean ok = false;
+        try {
+          hash = ContentHasher.getInstance().copyAndDigest(is, fos);
+          ok = true;
+        } finally {
+          if( !ok && fos instanceof BlobStore.BlobOutputStream )
+            ((BlobStore.BlobOutputStream) fos).abort();
+          else
+            fos.close();
+        }
       } else {
         hash = md.getHash();
       }
@@ -151,6 +209,11 @@ public class VersionDB {
       return md;
     } catch (IOException x ) {
       Log.log("Commit failed, x="+x,Log.FATALERROR);
+      if( newVersion != Constants.NO_VERSION ) {
+        // Forget the version, so that it is not returned as current
+        l.rollback(newVersion);
+        dropVersion(key,newVersion);
+      }
       return mdRo;
     }
   }
@@ -184,10 +247,17 @@ public class VersionDB {
   public  synchronized InputStream getData(GUID id, int version ) {
     String key = guidToFile(id);
     File dFile = new File( root, key + DATA_SUFFIX + version );
-    if( !dFile.exists() )
-      return null; // No such version
     try {
-      return new FileInputStream(dFile);
+      if( dFile.exists() )
+        return new FileInputStream(dFile);
+      File cFile = new File( root, key + CHUNKED_SUFFIX + version );
+      if( !cFile.exists() )
+        return null; // No such version
+      if( blobs == null ) {
+        Log.log("No blob store for "+cFile,Log.ERROR);
+        return null;
+      }
+      return blobs.open(cFile);
     } catch (IOException x ) {
       Log.log("cannot get-data for "+key+", ver="+version,Log.FATALERROR);
     }
@@ -257,25 +327,99 @@ public class VersionDB {
     VersionList list = (VersionList) listCache.get(key);
     if( list == null ) {
       list = new VersionList(root,key);
+      if( list.dropped != Constants.NO_VERSION )
+        dropVersion(key,list.dropped);
       listCache.put(key,list);
     }
     return list;
   }
 
-  private static class VersionList {
+  // Delete the files of a version that is not in the version list, and
+  // release its blob
+  private void dropVersion(String key, int version) {
+    Log.log("Dropping version "+version+" of "+key,Log.INFO);
+    new File(root, key + META_SUFFIX + version).delete();
+    new File(root, key + DATA_SUFFIX + version).delete();
+    File cFile = new File(root, key + CHUNKED_SUFFIX + version);
+    if( !cFile.exists() )
+      return;
+    if( blobs == null ) {
+      Log.log("No blob store for "+cFile,Log.ERROR);
+      cFile.delete();
+      return;
+    }
+    try {
+      blobs.release(cFile);
+    } catch (IOException x) {
+      Log.log("Cannot release blob "+cFile,Log.ERROR,x);
+    }
+  }
+
+  private static class VersionList implements WeightedLruCache.Weighted {
     final String key;
+    final File index;
     int lastMetaVersion = Constants.NO_VERSION;
     int lastDataVersion = Constants.NO_VERSION;
-    SortedMap versionList; // Entries = (metaver,dataver)
+    // Version of an interrupted commit dropped when loading, if any
+    int dropped = Constants.NO_VERSION;
+    // Entries (metaver,dataver), sorted by metaver
+    int size = 0;
+    int[] metaVersions = new int[4];
+    int[] dataVersions = new int[4];
 
     public VersionList(File dir, String aEntry ) {
       key = aEntry;
+      index = new File(dir, key + INDEX_SUFFIX);
+      if( !index.exists() || !load(dir) ) {
+        scan(dir);
+        if( size > 0 )
+          writeIndex();
+      }
+      if( size > 0 ) {
+        lastMetaVersion = metaVersions[size-1];
+        lastDataVersion = dataVersions[size-1];
+      }
+    }
+
+    // Load index. An entry is appended to the index before the version is
+    // written, and the metadata is written last, so an interrupted commit
+    // shows up as a last entry without a metadata file.
+    private boolean load(File dir) {
+      try {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(index)));
+        try {
+          for( long left = index.length()/INDEX_ENTRY_SIZE;left>0;left--)
+            add(in.readInt(),in.readInt());
+        } finally {
+          in.close();
+        }
+      } catch (IOException x) {
+        Log.log("Cannot read version index "+index+", rebuilding",
+                Log.ERROR, x);
+        size = 0;
+        return false;
+      }
+      if( index.length() % INDEX_ENTRY_SIZE != 0 || ( size > 0 &&
+          !(new File(dir, key + META_SUFFIX + metaVersions[size-1])).exists() ) ) {
+        Log.log("Repairing interrupted commit in "+index,Log.WARNING);
+        if( index.length() % INDEX_ENTRY_SIZE == 0 ) {
+          size--;
+          dropped = metaVersions[size];
+        }
+        writeIndex();
+      }
+      return true;
+    }
+
+    // Recover version list from the directory
+    private void scan(File dir) {
       String[] entries = dir.list(new FilenameFilter() {
         public boolean accept( File f, String s ) {
           return s.startsWith(key);
         }
       });
-      versionList = new TreeMap();
+      SortedMap versionList = new TreeMap();
 
       // build list of metavers
       String metaPrefix = key + META_SUFFIX;
@@ -287,39 +431,85 @@ public class VersionDB {
         }
       }
 
-      // put in data versions
+      // put in data versions, stored in full or in the blob store
       String dataPrefix = key + DATA_SUFFIX;
+      String chunkedPrefix = key + CHUNKED_SUFFIX;
       for( int i=0;i<entries.length;i++) {
-        if( entries[i].startsWith(dataPrefix) ) {
+        if( entries[i].startsWith(dataPrefix) ||
+            entries[i].startsWith(chunkedPrefix) ) {
           Integer version = new Integer(entries[i].substring(dataPrefix.length()));
           versionList.put(version, version);
         }
       }
 
       // Associate unmarked metavers with correct dataver
-      Integer lastVer = null;
+      int lastData = Constants.NO_VERSION;
       for( Iterator i = versionList.entrySet().iterator();i.hasNext();) {
         SortedMap.Entry e = (SortedMap.Entry) i.next();
         Integer val = (Integer) e.getValue();
-        lastVer = (Integer) e.getKey();
         if( val != null )
-          lastDataVersion = val.intValue();
-        else {
-          if( lastDataVersion == Constants.NO_VERSION ) Log.log("Meta w/o data",Log.FATALERROR);
-          e.setValue(new Integer(lastDataVersion));
-        }
+          lastData = val.intValue();
+        else if( lastData == Constants.NO_VERSION )
+          Log.log("Meta w/o data",Log.FATALERROR);
+        add(((Integer) e.getKey()).intValue(), lastData);
       }
-      if( lastVer == null ) {
-        // Empty store
-        lastDataVersion = Constants.NO_VERSION;
-        lastMetaVersion = Constants.NO_VERSION;
-      } else
-        lastMetaVersion = lastVer.intValue();
-      Log.log("Ver list for "+key+":\nlastVer"+lastMetaVersion+", verlist=\n"+
+      Log.log("Recovered ver list for "+key+":\nverlist=\n"+
               versionList.toString(),Log.INFO);
     }
 
-    public int allocVersion(int requestedVersion, boolean allocData, int first) {
+    private void writeIndex() {
+      try {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(index)));
+        try {
+          for( int i=0;i<size;i++) {
+            out.writeInt(metaVersions[i]);
+            out.writeInt(dataVersions[i]);
+          }
+        } finally {
+          out.close();
+        }
+      } catch (IOException x) {
+        Log.log("Cannot write version index "+index,Log.FATALERROR,x);
+      }
+    }
+
+    private void add(int metaVersion, int dataVersion) {
+      if( size == metaVersions.length ) {
+        int[] nmeta = new int[2*size];
+        int[] ndata = new int[2*size];
+        System.arraycopy(metaVersions,0,nmeta,0,size);
+        System.arraycopy(dataVersions,0,ndata,0,size);
+        metaVersions = nmeta;
+        dataVersions = ndata;
+      }
+      metaVersions[size] = metaVersion;
+      dataVersions[size] = dataVersion;
+      size++;
+    }
+
+    private int indexOf(int metaVersion) {
+      int lo = 0, hi = size-1;
+      while( lo <= hi ) {
+        int mid = (lo+hi) >>> 1;
+        if( metaVersions[mid] < metaVersion )
+          lo = mid+1;
+        else if( metaVersions[mid] > metaVersion )
+          hi = mid-1;
+        else
+          return mid;
+      }
+      return -1;
+    }
+
+    public int getWeight() {
+      return size;
+    }
+
+    // Allocate version and append it to the index. If the version cannot
+    // be written, it must be removed by rollback()
+    public int allocVersion(int requestedVersion, boolean allocData, int first)
+        throws IOException {
       if( requestedVersion == Constants.NO_VERSION )
         requestedVersion = lastMetaVersion < first ?
             first : lastMetaVersion + 1;
@@ -327,21 +517,47 @@ public class VersionDB {
         Log.log("Trying to add version older than most current", Log.FATALERROR);
         throw new IllegalArgumentException("Version already in use.");
       }
-      lastMetaVersion=requestedVersion;
-      if( allocData )
-        lastDataVersion = lastMetaVersion;
-      versionList.put(new Integer(lastMetaVersion),new Integer(lastDataVersion));
+      int dataVersion = allocData ? requestedVersion : lastDataVersion;
+      long length = index.length();
+      try {
+        DataOutputStream out = new DataOutputStream(
+            new FileOutputStream(index.getPath(),true));
+        try {
+          out.writeInt(requestedVersion);
+          out.writeInt(dataVersion);
+        } finally {
+          out.close();
+        }
+      } catch (IOException x) {
+        Log.log("Cannot append to version index "+index,Log.ERROR,x);
+        if( index.length() != length )
+          writeIndex(); // Remove partial entry
+        throw x;
+      }
+      add(requestedVersion,dataVersion);
+      lastMetaVersion = requestedVersion;
+      lastDataVersion = dataVersion;
       return lastMetaVersion;
     }
 
+    // Remove the last allocated version
+    public void rollback(int version) {
+      if( size == 0 || metaVersions[size-1] != version )
+        return;
+      size--;
+      lastMetaVersion = size > 0 ? metaVersions[size-1] : Constants.NO_VERSION;
+      lastDataVersion = size > 0 ? dataVersions[size-1] : Constants.NO_VERSION;
+      writeIndex();
+    }
+
 
     public int getDataVersion( int mdVersion ) {
-      Integer dv = (Integer) versionList.get(new Integer(mdVersion));
-      if( dv == null ) {
+      int ix = indexOf(mdVersion);
+      if( ix == -1 ) {
         //Log.log("No data for mdver "+mdVersion,Log.WARNING);
         return Constants.NO_VERSION;
       }
-      return dv.intValue();
+      return dataVersions[ix];
     }
 
     public int getMetadataVersion( int dVersion ) {
@@ -352,26 +568,25 @@ public class VersionDB {
       if( ver == Constants.NO_VERSION )
         return Constants.NO_VERSION;
       int prevver = ver -1;
-      return versionList.containsKey(new Integer(prevver)) ?
-          prevver : Constants.NO_VERSION;
+      return indexOf(prevver) != -1 ? prevver : Constants.NO_VERSION;
     }
 
     public int getPreviousData(int ver) {
-      int thisdataver = getDataVersion(ver);
-      if( thisdataver == Constants.NO_VERSION )
+      int ix = indexOf(ver);
+      if( ix == -1 )
         return Constants.NO_VERSION;
-      do {
-        ver = getPreviousMetadata(ver);
-      } while( thisdataver == getDataVersion(ver) );
-      return ver;
+      // Walk back over consecutive versions with equal data
+      int thisdataver = dataVersions[ix];
+      for( ;ix > 0 && metaVersions[ix-1] == metaVersions[ix]-1; ix--) {
+        if( dataVersions[ix-1] != thisdataver )
+          return metaVersions[ix-1];
+      }
+      return Constants.NO_VERSION;
     }
 
     public int[] getRepositoryVersions() {
-      int[] versions = new int[versionList.size()];
-      int pos = 0;
-      for( Iterator i = versionList.keySet().iterator(); i.hasNext();) {
-        versions[pos++]= ((Integer) i.next()).intValue();
-      }
+      int[] versions = new int[size];
+      System.arraycopy(metaVersions,0,versions,0,size);
       return versions;
     }
 
@@ -460,8 +675,10 @@ public class VersionDB {
         return;
       Log.log("Cleaning version db @" + root + ", entries=" +
               verdbfiles.length / 2, Log.INFO);
-      if (verdbfiles[0].getName().indexOf(",m") == -1 &&
-         verdbfiles[0].getName().indexOf(",d") == -1 )
+      if (verdbfiles[0].getName().indexOf(META_SUFFIX) == -1 &&
+         verdbfiles[0].getName().indexOf(DATA_SUFFIX) == -1 &&
+         verdbfiles[0].getName().indexOf(CHUNKED_SUFFIX) == -1 &&
+         verdbfiles[0].getName().indexOf(INDEX_SUFFIX) == -1 )
        // FP-note: less sure check than in full syxaw
         Log.log("Seems I may not be cleaning the correct dir, bailing out",
                 Log.ASSERTFAILED);
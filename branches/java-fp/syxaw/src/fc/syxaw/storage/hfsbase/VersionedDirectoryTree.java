@@ -255,16 +255,15 @@ public class VersionedDirectoryTree implements IdAddressableRefTree {
 
     }*/
     // Commit!
+    // The edits are applied as a single batch, so the tree is unchanged
+    // on failure. See PersistentRefTree.
+    currentTree.begin();
     try {
       RefTrees.apply(deltaRefTree, currentTree);
+      currentTree.commit();
     } catch( Exception x ) {
-      Log.log("Partial commit. Current revision is broken. Trying to revert...",Log.ERROR,x);
-      try {
-        RefTrees.apply(currentRefsNew, currentTree);
-      } catch( Exception x2 ) {
-        Log.log("Revert failed. Current revision is busted.\n"+
-                "Syxaw may recover on restart",Log.FATALERROR,x2);
-      }
+      Log.log("Commit failed. Reverting...",Log.ERROR,x);
+      currentTree.rollback();
       if( !deltaFile.delete() )
         Log.log("Revert failed - can't delete already commited delta",Log.FATALERROR);
       Log.log("Revert succeeded; Repository is unchanged",Log.INFO);
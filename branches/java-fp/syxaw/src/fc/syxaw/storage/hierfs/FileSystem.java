@@ -324,7 +324,7 @@ public class FileSystem extends AbstractFileSystem {
     if( md != null ) {
       md.setHash(aHash);
       md.setMetaModStamp(0); // All changed
-      setFullMetadata(u,md);
+      setFullMetadata(f,u,md);
     }
   }
 
@@ -334,7 +334,7 @@ public class FileSystem extends AbstractFileSystem {
     if( md != null ) {
       md.setLink(aLink);
       md.setMetaModStamp(0); // All changed
-      setFullMetadata(u,md);
+      setFullMetadata(f,u,md);
     }
   }
 
@@ -344,7 +344,7 @@ public class FileSystem extends AbstractFileSystem {
     if( md != null ) {
       md.setLinkDataVersion(version);
       md.setMetaModStamp(0); // All changed
-      setFullMetadata(u,md);
+      setFullMetadata(f,u,md);
     }
   }
 
@@ -359,7 +359,7 @@ public class FileSystem extends AbstractFileSystem {
     if( md != null ) {
       md.setLinkMetaVersion(version);
       md.setMetaModStamp(0); // All changed
-      setFullMetadata(u,md);
+      setFullMetadata(f,u,md);
     }
   }
 
@@ -369,7 +369,7 @@ public class FileSystem extends AbstractFileSystem {
     if( md != null ) {
       md.setMetaModTime(aMetaModTime);
       md.setMetaModStamp(0); // All changed
-      setFullMetadata(u,md);
+      setFullMetadata(f,u,md);
     }
   }
 
@@ -396,7 +396,7 @@ public class FileSystem extends AbstractFileSystem {
       md.setDataVersion(fmd.getDataVersion());
       md.setMetaVersion(fmd.getMetaVersion());
       md.setBranch(fmd.getBranch());
-      setFullMetadata(u, md);
+      setFullMetadata(f,u,md);
     }
 
   }
@@ -412,7 +412,7 @@ public class FileSystem extends AbstractFileSystem {
     md.setLinkModStamp((aModflags & ForeignMetadata.DATA_EQ_LINKVER) != 0 ?
                changeStamp : -1l);
     md.setMetaModStamp(aModflags);
-    setFullMetadata(u,md);
+    setFullMetadata(f,u,md);
   }
 
   public void setNodeId(File f, StringKey id) {
@@ -421,7 +421,7 @@ public class FileSystem extends AbstractFileSystem {
     if( md != null ) {
       md.setId(id);
       md.setMetaModStamp(0); // All changed
-      setFullMetadata(u,md);
+      setFullMetadata(f,u,md);
     }
   }
 
@@ -431,7 +431,7 @@ public class FileSystem extends AbstractFileSystem {
     if (md != null) {
       md.setType(aType);
       md.setMetaModStamp(0); // All changed
-      setFullMetadata(u, md);
+      setFullMetadata(f,u,md);
     }
   }
 
@@ -441,7 +441,7 @@ public class FileSystem extends AbstractFileSystem {
     if (md != null) {
       md.setDataVersion(version);
       md.setMetaModStamp(0); // All changed
-      setFullMetadata(u, md);
+      setFullMetadata(f,u,md);
     }
   }
   
@@ -451,7 +451,7 @@ public class FileSystem extends AbstractFileSystem {
     if (md != null) {
       md.setMetaVersion(version);
       md.setMetaModStamp(0); // All changed
-      setFullMetadata(u, md);
+      setFullMetadata(f,u,md);
     }
   }
 
@@ -480,6 +480,11 @@ public class FileSystem extends AbstractFileSystem {
     return md;
   }
 
+  private void setFullMetadata(File f, UID u, Metadata md) {
+    metadataChanged(f);
+    setFullMetadata(u,md);
+  }
+
   private void setFullMetadata(UID u, Metadata md ) {
     //Log.log("SET_FullMD for "+u.toBase64(),Log.INFO,md);
     metaByUID.update(u.toBase64(),md);
@@ -192,7 +192,7 @@ public class Metadata implements Serializable, PropertySerializable {
   /** Simple database storing metadata objects. 
    */
 
-  static class MetaDb extends ObjectDb {
+  public static class MetaDb extends ObjectDb {
 
     public MetaDb(File aRoot, boolean updatemayInsert) {
       super(aRoot, updatemayInsert);
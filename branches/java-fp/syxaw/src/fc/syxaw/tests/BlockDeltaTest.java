@@ -0,0 +1,155 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.syxaw.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import fc.syxaw.codec.BlockDeltaDecoder;
+import fc.syxaw.codec.BlockDeltaEncoder;
+import fc.syxaw.fs.FullMetadata;
+import fc.syxaw.fs.VersionHistory;
+import fc.syxaw.transport.ObjectInputStream;
+import fc.syxaw.transport.ObjectOutputStream;
+import fc.util.log.Log;
+
+/** Test the binary block delta codec. Each test encodes a modified version
+ * of a random base object, decodes it against the base, and verifies
+ * the result.
+ */
+
+public class BlockDeltaTest extends TestCase {
+
+  private static final int SIZE = 1024*1024;
+
+  private Random rnd = new Random(42l);
+
+  public BlockDeltaTest(String name) {
+    super(name);
+  }
+
+  /** Change a single byte; the delta should be about one block. */
+  public void testByteChange() throws IOException {
+    byte[] base = randomBytes(SIZE);
+    byte[] data = (byte[]) base.clone();
+    data[SIZE/3] ^= 0x55;
+    int size = roundTrip(base, data);
+    Assert.assertTrue("Delta too large: "+size, size < 8192);
+  }
+
+  /** Insert and delete data, shifting the rest of the object. */
+  public void testInsertDelete() throws IOException {
+    byte[] base = randomBytes(SIZE);
+    byte[] ins = randomBytes(1000);
+    byte[] data = new byte[SIZE+ins.length-500];
+    System.arraycopy(base,0,data,0,1000);
+    System.arraycopy(ins,0,data,1000,ins.length);
+    System.arraycopy(base,1000,data,1000+ins.length,SIZE/2-1000);
+    System.arraycopy(base,SIZE/2+500,data,SIZE/2+ins.length,SIZE/2-500);
+    int size = roundTrip(base, data);
+    Assert.assertTrue("Delta too large: "+size, size < 16384);
+  }
+
+  /** Reorder the object, forcing the decoder to seek backwards. */
+  public void testMove() throws IOException {
+    byte[] base = randomBytes(SIZE);
+    byte[] data = new byte[SIZE];
+    System.arraycopy(base,SIZE/2,data,0,SIZE/2);
+    System.arraycopy(base,0,data,SIZE/2,SIZE/2);
+    int size = roundTrip(base, data);
+    Assert.assertTrue("Delta too large: "+size, size < 8192);
+  }
+
+  /** Unrelated and empty data. */
+  public void testNoMatch() throws IOException {
+    roundTrip(randomBytes(SIZE), randomBytes(SIZE/2));
+    roundTrip(new byte[0], randomBytes(1234));
+    roundTrip(randomBytes(1234), new byte[0]);
+  }
+
+  protected int roundTrip(byte[] base, byte[] data) throws IOException {
+    VersionHistory h = new BaseHistory(base);
+    ByteArrayOutputStream delta = new ByteArrayOutputStream();
+    ObjectOutputStream os = new ObjectOutputStream(delta);
+    BlockDeltaEncoder e = new BlockDeltaEncoder(new ByteArrayInputStream(data),
+        data.length, 1, h);
+    e.write(os);
+    os.flush();
+    ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+    (new BlockDeltaDecoder(decoded, h)).decode(
+        new ObjectInputStream(new ByteArrayInputStream(delta.toByteArray())));
+    Assert.assertTrue("Decoded data differs",
+        Arrays.equals(data, decoded.toByteArray()));
+    Log.info("Block delta of "+data.length+" bytes, encoded size",
+        new Integer(delta.size()));
+    return delta.size();
+  }
+
+  private byte[] randomBytes(int len) {
+    byte[] b = new byte[len];
+    rnd.nextBytes(b);
+    return b;
+  }
+
+  // History with version 1 only
+  private static class BaseHistory implements VersionHistory {
+
+    private byte[] base;
+
+    BaseHistory(byte[] base) {
+      this.base = base;
+    }
+
+    public InputStream getData(int version) {
+      return version == 1 ? new ByteArrayInputStream(base) : null;
+    }
+
+    public int getCurrentVersion() {
+      return 1;
+    }
+
+    public FullMetadata getMetadata(int mdVersion) {
+      return null;
+    }
+
+    public int getPreviousData(int version) {
+      return fc.syxaw.fs.Constants.NO_VERSION;
+    }
+
+    public int getPreviousMetadata(int mdversion) {
+      return fc.syxaw.fs.Constants.NO_VERSION;
+    }
+
+    public List getFullVersions(String branch) {
+      return Collections.EMPTY_LIST;
+    }
+
+    public boolean onBranch() {
+      return false;
+    }
+
+    public boolean versionsEqual(int v1, int v2, boolean meta) {
+      return v1 == v2 && v1 == 1;
+    }
+  }
+}
+
+// arch-tag: 578d67c8-05d8-4ac3-aa99-fcd90dff39ab
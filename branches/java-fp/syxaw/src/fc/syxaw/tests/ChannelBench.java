@@ -0,0 +1,172 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.syxaw.tests;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Map;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import fc.syxaw.protocol.TransmitStatus;
+import fc.syxaw.transport.ChannelProvider;
+import fc.syxaw.transport.HTTPCallChannel;
+import fc.syxaw.transport.ObjectInputStream;
+import fc.syxaw.transport.ObjectOutputStream;
+import fc.syxaw.transport.SynchronousCallChannel;
+import fc.util.log.Log;
+
+import EDU.oswego.cs.dl.util.concurrent.FutureResult;
+
+/** Call channel latency benchmark. Simulates the transfer of many small
+ * objects to a peer over the loopback interface, one RPC per object.
+ * The objects are transferred
+ * <ol>
+ * <li>serially, opening a new connection for each call, as the channel
+ * used to do,</li>
+ * <li>serially, reusing kept-alive connections,</li>
+ * <li>from {@link #THREADS} threads sharing the channel, with as many
+ * calls in flight, each on a kept-alive connection of its own, and</li>
+ * <li>from a single thread, with up to
+ * {@link fc.syxaw.transport.Config#HTTP_MAX_INFLIGHT} calls in flight,
+ * using {@link SynchronousCallChannel#callAsync callAsync}.</li>
+ * </ol>
+ * The average latency per object is logged for each case. The server
+ * is the one used by {@link ServerStress}.
+ */
+
+public class ChannelBench extends TestCase {
+
+  /** Number of objects transferred in each case. */
+  public static final int OBJECTS =
+    Integer.getInteger("syxaw.test.bench.objects", 1000).intValue();
+
+  /** Number of threads making calls in the concurrent case. */
+  public static final int THREADS =
+    Integer.getInteger("syxaw.test.bench.threads", 4).intValue();
+
+  public ChannelBench(String name) {
+    super(name);
+  }
+
+  public void testSmallObjects() throws Exception {
+    ServerStress.startServer();
+    SynchronousCallChannel ch = ChannelProvider.getChannel("localhost");
+    serial(ch, false, OBJECTS/10); // Warm up
+    double close = serial(ch, false, OBJECTS);
+    double keepAlive = serial(ch, true, OBJECTS);
+    double concurrent = concurrent(ch, OBJECTS);
+    double pipelined = pipelined(ch, OBJECTS);
+    Log.info("Small object sync, ms/object: new connection="+close+
+        ", keep-alive="+keepAlive+", concurrent="+concurrent+
+        ", pipelined="+pipelined);
+  }
+
+  protected double serial(SynchronousCallChannel ch, boolean keepAlive,
+      int count) throws IOException {
+    long start = System.currentTimeMillis();
+    for( int i=0;i<count;i++) {
+      TransmitStatus ts = new TransmitStatus();
+      ObjectInputStream in = ch.call(ServerStress.CALL,
+          new SmallObjectCall(keepAlive), new Serializable[0]);
+      Assert.assertNotNull("Call failed", in);
+      in.readObject(ts);
+      in.close();
+      Assert.assertEquals(TransmitStatus.OK, ts.getStatus());
+    }
+    return ((double) (System.currentTimeMillis()-start))/count;
+  }
+
+  protected double concurrent(final SynchronousCallChannel ch, int count)
+    throws Exception {
+    final int perThread = count/THREADS;
+    final Exception[] failure = new Exception[1];
+    Thread[] threads = new Thread[THREADS];
+    long start = System.currentTimeMillis();
+    for( int i=0;i<THREADS;i++) {
+      threads[i] = new Thread() {
+        public void run() {
+          try {
+            serial(ch, true, perThread);
+          } catch (Exception x) {
+            synchronized(failure) {
+              failure[0] = x;
+            }
+          } catch (junit.framework.AssertionFailedError x) {
+            synchronized(failure) {
+              failure[0] = new IOException(x.getMessage());
+            }
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for( int i=0;i<THREADS;i++)
+      threads[i].join();
+    synchronized(failure) {
+      if( failure[0] != null )
+        throw failure[0];
+    }
+    return ((double) (System.currentTimeMillis()-start))/(perThread*THREADS);
+  }
+
+  protected double pipelined(SynchronousCallChannel ch, int count)
+    throws Exception {
+    long start = System.currentTimeMillis();
+    FutureResult[] results = new FutureResult[count];
+    for( int i=0;i<count;i++) {
+      results[i] = ch.callAsync(ServerStress.CALL,
+          new SmallObjectCall(true), new Serializable[0],
+          new SynchronousCallChannel.ReplyHandler() {
+        public Object handleReply(ObjectInputStream in) throws IOException {
+          return in.readObject(new TransmitStatus());
+        }
+      });
+    }
+    for( int i=0;i<count;i++) {
+      TransmitStatus ts = (TransmitStatus) results[i].get();
+      Assert.assertEquals(TransmitStatus.OK, ts.getStatus());
+    }
+    return ((double) (System.currentTimeMillis()-start))/count;
+  }
+
+  // Small object request; a stress call without any server work
+  private static class SmallObjectCall
+    extends HTTPCallChannel.HTTPSynchrounousCall {
+
+    private ServerStress.StressCall call;
+    private boolean keepAlive;
+
+    SmallObjectCall(boolean keepAlive) {
+      call = new ServerStress.StressCall(0);
+      this.keepAlive = keepAlive;
+    }
+
+    public Serializable[] getRequestHeaders(Map headers) throws IOException {
+      if( !keepAlive )
+        headers.put("Connection","close");
+      return call.getRequestHeaders();
+    }
+
+    public void getData(ObjectOutputStream os) {
+      // No data
+    }
+  }
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(ChannelBench.class);
+    System.exit(0); // The HTTP listener threads are not daemons
+  }
+}
+
+// arch-tag: 2de43b58-09af-4dbc-a66c-0e2c57f1d6c0
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.syxaw.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import fc.syxaw.codec.DeflateDecoder;
+import fc.syxaw.codec.DeflateEncoder;
+import fc.syxaw.fs.Config;
+import fc.syxaw.protocol.TransferHeader;
+import fc.syxaw.transport.ObjectInputStream;
+import fc.syxaw.transport.ObjectOutputStream;
+import fc.syxaw.util.Util;
+import fc.util.log.Log;
+
+/** Compression benchmark. Sends a mixed corpus of text, XML, structured
+ * binary and already compressed objects, as in a batch download, with
+ * <ul>
+ * <li>no compression,</li>
+ * <li>gzip of the whole reply, as with
+ * {@link fc.syxaw.transport.Config#COMPRESS_DATA},</li>
+ * <li>{@link DeflateEncoder} on every object, and</li>
+ * <li>{@link DeflateEncoder} on the objects found compressible by
+ * {@link DeflateEncoder#isCompressible}, as with
+ * {@link Config#COMPRESS}, at levels 1 and 6, and in parallel on
+ * {@link Config#COMPRESS_THREADS} threads.</li>
+ * </ul>
+ * The compression ratio, and the CPU time of all threads and the elapsed
+ * time spent encoding, are logged for each method. The decoded objects
+ * are verified.
+ */
+
+public class CompressionBench extends TestCase {
+
+  /** Scale of the corpus; the corpus is about <code>SCALE</code> MB. */
+  public static final int SCALE =
+    Integer.getInteger("syxaw.test.bench.scale", 16).intValue();
+
+  private static final int NONE = 0;
+  private static final int GZIP = 1;
+  private static final int ALWAYS = 2;
+  private static final int ADAPTIVE = 3;
+  private static final int ADAPTIVE_6 = 4;
+  private static final int PARALLEL = 5;
+
+  private static final String[] MODES = {"none", "gzip", "always",
+    "adaptive", "adaptive-6", "parallel"};
+
+  private static final String[] WORDS = {"sync", "file", "version", "the",
+    "of", "object", "lock", "tree", "merge", "data", "int", "return",
+    "public", "if", "for", "new", "null", "and", "to", "is"};
+
+  private static final ThreadMXBean THREADS =
+    ManagementFactory.getThreadMXBean();
+
+  private byte[][] objects;
+  private String[] types;
+  private long corpusSize = 0;
+
+  public CompressionBench(String name) {
+    super(name);
+  }
+
+  protected void setUp() throws IOException {
+    Random rnd = new Random(42);
+    int mb = 1 << 20;
+    int n = 6;
+    objects = new byte[n][];
+    types = new String[n];
+    objects[0] = text(rnd, SCALE * mb / 4);
+    types[0] = "text/plain";
+    objects[1] = xml(rnd, SCALE * mb / 8);
+    types[1] = "text/xml";
+    objects[2] = records(rnd, SCALE * mb / 8);
+    types[2] = "application/octet-stream";
+    objects[3] = random(rnd, SCALE * mb / 4);
+    types[3] = "image/jpeg";
+    objects[4] = random(rnd, SCALE * mb / 8);
+    types[4] = "application/octet-stream"; // Found by sampling
+    objects[5] = zip(text(rnd, SCALE * mb / 2));
+    types[5] = "application/zip";
+    for (int i = 0; i < n; i++)
+      corpusSize += objects[i].length;
+  }
+
+  public void testMixedCorpus() throws IOException {
+    for (int round = 0; round < 2; round++) {
+      for (int mode = 0; mode < MODES.length; mode++) {
+        long cpu = cpuTime();
+        long start = System.currentTimeMillis();
+        byte[] reply = encode(mode);
+        long elapsed = System.currentTimeMillis() - start;
+        cpu = cpuTime() - cpu;
+        decode(reply, mode);
+        if (round > 0)
+          Log.info("Compression: " + MODES[mode] + ", MB=" +
+              (corpusSize >> 20) + ", ratio=" + (reply.length * 1000l /
+              corpusSize / 10.0) + "%, CPU ms=" + (cpu / 1000000) +
+              ", ms=" + elapsed + ", threads=" + (mode == PARALLEL ?
+              Config.COMPRESS_THREADS : 1));
+      }
+    }
+  }
+
+  private byte[] encode(int mode) throws IOException {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    OutputStream dout = mode == GZIP ? new GZIPOutputStream(bout) : bout;
+    ObjectOutputStream out = new ObjectOutputStream(dout, true);
+    for (int i = 0; i < objects.length; i++) {
+      InputStream in = new ByteArrayInputStream(objects[i]);
+      boolean compress = mode == ALWAYS || (mode >= ADAPTIVE &&
+          DeflateEncoder.isCompressible(in, types[i]));
+      out.writeObject(new TransferHeader(1, null, objects[i].length,
+          compress ? TransferHeader.ENC_DEFLATE : TransferHeader.ENC_BINARY,
+          TransferHeader.ENC_NONE, TransferHeader.ALL_ENCODINGS));
+      if (compress)
+        new DeflateEncoder(in, mode == ADAPTIVE_6 ? 6 : 1,
+            mode == PARALLEL).write(out);
+      else {
+        ObjectOutputStream sos = out.writeSubStream(null, objects[i].length,
+            false);
+        sos.write(objects[i]);
+        sos.close();
+      }
+    }
+    out.flush();
+    if (mode == GZIP)
+      ((GZIPOutputStream) dout).finish();
+    return bout.toByteArray();
+  }
+
+  private void decode(byte[] reply, int mode) throws IOException {
+    InputStream rin = new ByteArrayInputStream(reply);
+    ObjectInputStream in = new ObjectInputStream(mode == GZIP ?
+        new GZIPInputStream(rin) : rin, true);
+    for (int i = 0; i < objects.length; i++) {
+      TransferHeader th = new TransferHeader();
+      in.readObject(th);
+      ByteArrayOutputStream data = new ByteArrayOutputStream();
+      if (th.getEncoding() == TransferHeader.ENC_DEFLATE)
+        new DeflateDecoder(data).decode(in);
+      else {
+        ObjectInputStream sin = in.readSubStream();
+        Util.copyStream(sin, data);
+        sin.close();
+      }
+      Assert.assertTrue("Object " + i + " differs", Arrays.equals(
+          objects[i], data.toByteArray()));
+    }
+  }
+
+  private static long cpuTime() {
+    long[] ids = THREADS.getAllThreadIds();
+    long total = 0;
+    for (int i = 0; i < ids.length; i++) {
+      long t = THREADS.getThreadCpuTime(ids[i]);
+      if (t > 0)
+        total += t;
+    }
+    return total;
+  }
+
+  private static byte[] text(Random rnd, int size) {
+    StringBuffer sb = new StringBuffer(size + 80);
+    while (sb.length() < size) {
+      for (int i = rnd.nextInt(10); i >= 0; i--)
+        sb.append(WORDS[rnd.nextInt(WORDS.length)]).append(' ');
+      sb.append(rnd.nextInt(1000)).append(";\n");
+    }
+    sb.setLength(size);
+    return sb.toString().getBytes();
+  }
+
+  private static byte[] xml(Random rnd, int size) {
+    StringBuffer sb = new StringBuffer(size + 160);
+    while (sb.length() < size)
+      sb.append("<file id=\"" + Long.toString(rnd.nextLong(), 36) +
+          "\" version=\"" + rnd.nextInt(100) + "\"><name>" +
+          WORDS[rnd.nextInt(WORDS.length)] + rnd.nextInt(10000) +
+          "</name></file>\n");
+    sb.setLength(size);
+    return sb.toString().getBytes();
+  }
+
+  // Records of slowly changing numbers, as in a database or index file
+  private static byte[] records(Random rnd, int size) {
+    byte[] b = new byte[size];
+    int v = 0;
+    for (int i = 0; i + 8 <= size; i += 8) {
+      v += rnd.nextInt(16);
+      b[i] = (byte) (v >>> 24);
+      b[i + 1] = (byte) (v >>> 16);
+      b[i + 2] = (byte) (v >>> 8);
+      b[i + 3] = (byte) v;
+      b[i + 4] = (byte) rnd.nextInt(4);
+    }
+    return b;
+  }
+
+  private static byte[] random(Random rnd, int size) {
+    byte[] b = new byte[size];
+    rnd.nextBytes(b);
+    return b;
+  }
+
+  private static byte[] zip(byte[] data) throws IOException {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    ZipOutputStream zout = new ZipOutputStream(bout);
+    zout.putNextEntry(new ZipEntry("data.txt"));
+    zout.write(data);
+    zout.closeEntry();
+    zout.close();
+    return bout.toByteArray();
+  }
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(CompressionBench.class);
+  }
+}
+
+// arch-tag: 05b71302-4f66-40c3-8131-074c8a201e6f
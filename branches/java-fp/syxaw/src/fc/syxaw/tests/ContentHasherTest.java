@@ -0,0 +1,172 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.syxaw.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import fc.syxaw.util.ContentHasher;
+import fc.syxaw.util.Util;
+import fc.util.IOUtil;
+
+/** Tests for the hash cache of {@link ContentHasher}. Checks that an
+ * unchanged file is hashed once, and that a change to the content, size
+ * or modification time of a file, a recent change, and
+ * {@link ContentHasher#invalidate} all cause it to be hashed again. The
+ * cache is also saved and reloaded.
+ */
+
+public class ContentHasherTest extends TestCase {
+
+  // Old enough not to be racy
+  private static final long OLD = 10 * ContentHasher.RACY_MARGIN;
+
+  private File dir;
+  private File store;
+  private ContentHasher hasher;
+  private long hits;
+  private long misses;
+
+  public ContentHasherTest(String name) {
+    super(name);
+  }
+
+  protected void setUp() throws IOException {
+    dir = File.createTempFile("hasher", "");
+    dir.delete();
+    dir.mkdirs();
+    store = new File(dir, "cache");
+    hasher = ContentHasher.getInstance();
+    hasher.open(store);
+  }
+
+  protected void tearDown() throws IOException {
+    hasher.open(null);
+    IOUtil.delTree(dir);
+  }
+
+  public void testCache() throws IOException {
+    File f = new File(dir, "a");
+    long old = now() - OLD;
+    write(f, "first", old);
+    check(f, "first", false);
+    check(f, "first", true);
+    check(f, "first", true);
+    // Same size, new time
+    write(f, "other", old + 1000);
+    check(f, "other", false);
+    check(f, "other", true);
+    // New size, same time
+    write(f, "longer", old + 1000);
+    check(f, "longer", false);
+    check(f, "longer", true);
+    hasher.invalidate(f);
+    check(f, "longer", false);
+    check(f, "longer", true);
+    // Uncached hashes do not touch the cache
+    hits = hasher.getHits();
+    misses = hasher.getMisses();
+    Assert.assertTrue(MessageDigest.isEqual(digest("longer"),
+        ContentHasher.get(hasher.submit(f, false))));
+    Assert.assertEquals(hits, hasher.getHits());
+    Assert.assertEquals(misses, hasher.getMisses());
+    Assert.assertTrue(MessageDigest.isEqual(digest("longer"),
+        ContentHasher.get(hasher.submit(f, true))));
+    expect(true);
+  }
+
+  public void testRacy() throws IOException {
+    File f = new File(dir, "a");
+    write(f, "recent", now());
+    check(f, "recent", false);
+    check(f, "recent", false);
+    f.setLastModified(now() - OLD);
+    check(f, "recent", false);
+    check(f, "recent", true);
+  }
+
+  public void testPersist() throws IOException {
+    File f = new File(dir, "a"), g = new File(dir, "b");
+    long old = now() - OLD;
+    write(f, "first", old);
+    write(g, "second", old);
+    check(f, "first", false);
+    check(g, "second", false);
+    hasher.save();
+    Assert.assertTrue(store.exists());
+    hasher.open(store);
+    check(f, "first", true);
+    check(g, "second", true);
+    // A change removes the saved cache
+    write(g, "changed", old);
+    check(g, "changed", false);
+    Assert.assertFalse(store.exists());
+    hasher.save();
+    hasher.open(store);
+    check(f, "first", true);
+    check(g, "changed", true);
+    // Corrupt cache is ignored
+    write(store, "garbage", old);
+    hasher.open(store);
+    check(f, "first", false);
+  }
+
+  // Hash f and check the hash, and whether it was cached
+  private void check(File f, String content, boolean hit)
+      throws IOException {
+    hits = hasher.getHits();
+    misses = hasher.getMisses();
+    Assert.assertTrue("Bad hash of " + content, MessageDigest.isEqual(
+        digest(content), hasher.hash(f)));
+    expect(hit);
+  }
+
+  private void expect(boolean hit) {
+    Assert.assertEquals("Hits", hits + (hit ? 1 : 0), hasher.getHits());
+    Assert.assertEquals("Misses", misses + (hit ? 0 : 1),
+        hasher.getMisses());
+  }
+
+  private static byte[] digest(String content) throws IOException {
+    return Util.copyAndDigestStream(new ByteArrayInputStream(
+        content.getBytes()), new ByteArrayOutputStream());
+  }
+
+  private static void write(File f, String content, long modified)
+      throws IOException {
+    FileOutputStream out = new FileOutputStream(f);
+    try {
+      out.write(content.getBytes());
+    } finally {
+      out.close();
+    }
+    Assert.assertTrue(f.setLastModified(modified));
+  }
+
+  // Now, rounded down to a second, as some file systems do
+  private static long now() {
+    return System.currentTimeMillis() / 1000 * 1000;
+  }
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(ContentHasherTest.class);
+  }
+}
+
+// arch-tag: 53c8bcc8-7c28-4ff0-bf61-babbffa4552c
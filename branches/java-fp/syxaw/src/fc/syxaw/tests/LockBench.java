@@ -0,0 +1,258 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.syxaw.tests;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import fc.syxaw.api.ISyxawFile;
+import fc.syxaw.api.Metadata;
+import fc.syxaw.fs.BLOBStorage;
+import fc.syxaw.fs.FullMetadata;
+import fc.syxaw.fs.GUID;
+import fc.syxaw.fs.LockManager;
+import fc.syxaw.fs.ObjectMerger;
+import fc.syxaw.fs.ObjectProvider;
+import fc.syxaw.fs.SyxawFile;
+import fc.syxaw.fs.UID;
+import fc.syxaw.fs.VersionHistory;
+import fc.syxaw.util.TimingWheel;
+import fc.util.log.Log;
+
+/** Lock manager contention benchmark. Runs an increasing number of
+ * threads, each repeatedly locking a random file the way the
+ * synchronization server does: a new lock is acquired exclusively, and
+ * either released fully, or released to the soft-locked state and then
+ * looked up by its token, acquired and released fully. The throughput,
+ * along with the lock wait and hold time histograms, is logged for a
+ * large set of files, and for a small set of hot files, where threads
+ * mostly contend for the same locks.
+ * <p>The timing wheel used for lock expiry is also tested.
+ */
+
+public class LockBench extends TestCase {
+
+  /** Lock operations made by each thread. */
+  public static final int OPS =
+    Integer.getInteger("syxaw.test.bench.ops", 20000).intValue();
+
+  /** Max number of threads. */
+  public static final int THREADS =
+    Integer.getInteger("syxaw.test.bench.threads", 8).intValue();
+
+  /** Number of files in the large set. */
+  public static final int FILES = 4096;
+
+  /** Number of files in the hot set. */
+  public static final int HOT_FILES = 4;
+
+  public LockBench(String name) {
+    super(name);
+  }
+
+  public void testContention() throws InterruptedException {
+    BenchFile[] files = new BenchFile[FILES];
+    for (int i = 0; i < FILES; i++)
+      files[i] = new BenchFile(UID.newUID());
+    for (int set = FILES; set >= HOT_FILES; set = set == FILES ? HOT_FILES :
+        0) {
+      for (int threads = 1; threads <= THREADS; threads *= 2) {
+        LockManager lm = new LockManager();
+        long start = System.currentTimeMillis();
+        run(lm, files, set, threads);
+        long elapsed = Math.max(1l, System.currentTimeMillis() - start);
+        Log.info("Locks: files=" + set + ", threads=" + threads + ", ops/s=" +
+            (1000l * threads * OPS / elapsed), lm);
+        // Each op acquires at least once, and each acquire is released
+        Assert.assertTrue(lm.getWaitTimes().getCount() >= (long) threads * OPS);
+        Assert.assertEquals(lm.getWaitTimes().getCount(),
+            lm.getHoldTimes().getCount());
+      }
+    }
+  }
+
+  private void run(final LockManager lm, final BenchFile[] files,
+      final int set, int threads) throws InterruptedException {
+    final int[] failed = new int[1];
+    Thread[] workers = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      final Random rnd = new Random(i);
+      workers[i] = new Thread() {
+        public void run() {
+          try {
+            for (int op = 0; op < OPS; op++) {
+              BenchFile f = files[rnd.nextInt(set)];
+              LockManager.Lock l = lm.newLock(f);
+              Object mex = l.acquireExclusive();
+              f.touch();
+              if ((op & 1) == 0) {
+                l.release(mex);
+                continue;
+              }
+              l.releaseExclusive(mex);
+              l = lm.get(l.getToken(), f);
+              if (l == null)
+                continue; // Released by another thread
+              mex = l.acquireExclusive();
+              f.touch();
+              l.release(mex);
+            }
+          } catch (RuntimeException x) {
+            Log.error("Lock worker failed", x);
+            synchronized (failed) {
+              failed[0]++;
+            }
+          }
+        }
+      };
+      workers[i].start();
+    }
+    for (int i = 0; i < threads; i++)
+      workers[i].join();
+    Assert.assertEquals("Failed workers", 0, failed[0]);
+  }
+
+  public void testTimingWheel() throws InterruptedException {
+    TimingWheel wheel = new TimingWheel("test-wheel", 10);
+    final long start = System.currentTimeMillis();
+    final int tasks = 200;
+    final long[] ran = new long[tasks];
+    Object[] handles = new Object[tasks];
+    for (int i = 0; i < tasks; i++) {
+      final int task = i;
+      handles[i] = wheel.executeAfterDelay(i * 10, new Runnable() {
+        public void run() {
+          synchronized (ran) {
+            ran[task] = System.currentTimeMillis() - start;
+            ran.notifyAll();
+          }
+        }
+      });
+    }
+    for (int i = 1; i < tasks; i += 2)
+      wheel.cancel(handles[i]);
+    synchronized (ran) {
+      while (ran[tasks - 2] == 0)
+        ran.wait(5000);
+    }
+    Thread.sleep(100);
+    for (int i = 0; i < tasks; i++) {
+      if ((i & 1) == 1)
+        Assert.assertEquals("Cancelled task " + i + " ran", 0, ran[i]);
+      else
+        Assert.assertTrue("Task " + i + " ran at " + ran[i], ran[i] >= i * 10
+            && ran[i] < i * 10 + 1000);
+    }
+    Assert.assertEquals(0, wheel.size());
+  }
+
+  // File that only supports locking
+  private static class BenchFile extends SyxawFile {
+
+    private UID uid;
+    private int touched = 0;
+
+    BenchFile(UID uid) {
+      this.uid = uid;
+    }
+
+    // Access that must be exclusive
+    void touch() {
+      int t = touched;
+      for (int i = 0; i < 64; i++)
+        t = t * 31 + i;
+      touched = t + 1;
+    }
+
+    public UID getUid() {
+      return uid;
+    }
+
+    public Lock lock() {
+      return new Lock();
+    }
+
+    public String toString() {
+      return uid.toString();
+    }
+
+    // Unsupported operations
+    public SyxawFile newInstance(UID g) { return null; }
+    public Metadata getMetadata() { return null; }
+    public void setMetadata(Metadata smd) { }
+    public FullMetadata getFullMetadata() { return null; }
+    public GUID getGuid() { return null; }
+    public boolean canRead() { return false; }
+    public boolean canWrite() { return false; }
+    public boolean exists() { return false; }
+    public boolean createNewFile() { return false; }
+    public boolean delete() { return false; }
+    public boolean isDataModified(boolean toLink) { return false; }
+    public boolean isMetadataModified(boolean toLink) { return false; }
+    public String getLink() { return null; }
+    public boolean setLink(Integer version, Boolean metaModified,
+        Boolean dataModified) { return false; }
+    public boolean setLink(Integer version, Boolean metaModified,
+        Boolean dataModified, boolean datasync, boolean metasync) {
+      return false;
+    }
+    public boolean setLocal(Integer version, Boolean metaModified,
+        Boolean dataModified) { return false; }
+    public boolean setLink(String link, Integer version, Boolean metaModified,
+        Boolean dataModified) { return false; }
+    public boolean setLink(String link, Integer version, Boolean metaModified,
+        Boolean dataModified, boolean datasync, boolean metasync) {
+      return false;
+    }
+    public int getLinkDataVersion() { return 0; }
+    public int getLinkMetaVersion() { return 0; }
+    public InputStream getInputStream() { return null; }
+    public InputStream getLinkInputStream() { return null; }
+    public OutputStream getOutputStream(boolean append) { return null; }
+    public OutputStream getLinkOutputStream(boolean append) { return null; }
+    public int getNextVersion() { return 0; }
+    public FullMetadata commit(boolean gotData,
+        boolean gotMetadata) { return null; }
+    public Metadata commitLink(int version, boolean gotData,
+        boolean gotMetadata) { return null; }
+    public VersionHistory getVersionHistory() { return null; }
+    public VersionHistory getLinkVersionHistory(boolean meta) { return null; }
+    public BLOBStorage createStorage(String puposeHint,
+        boolean isTemporary) { return null; }
+    public void rebindStorage(BLOBStorage s) { }
+    public void rebindLinkStorage(BLOBStorage s) { }
+    public ObjectMerger getLinkObjectMerger() { return null; }
+    public String getBranch() { return null; }
+    public void setBranch(String branch) { }
+    public ObjectProvider getObjectProvider() { return null; }
+    public String getId() { return null; }
+    public void sync(boolean data, boolean metadata) { }
+    public void sync() { }
+    public void createLink(String link) { }
+    public ISyxawFile getConflictingFile() { return null; }
+    public ISyxawFile getConflictLog() { return null; }
+    public boolean hasConflicts() { return false; }
+    public void conflictsResolved() { }
+    public void mount(String link) { }
+    public void umount() { }
+  }
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(LockBench.class);
+  }
+}
+
+// arch-tag: 91c096ac-1bee-4467-9e79-387316462582
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.syxaw.tests;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import name.fraser.neil.plaintext.diff_match_patch;
+import fc.syxaw.merge.LineDiff3;
+import fc.util.IOUtil;
+import fc.util.log.Log;
+
+/** Plaintext merge benchmark. Generates a log file of each given size as
+ * the base text, and two changed versions of it with edits spread over
+ * the file, one conflicting edit in the middle, and lines added at the
+ * start and at the end. The versions are merged with {@link LineDiff3},
+ * and the time, throughput and peak heap use are logged. The merged text
+ * is verified against the expected merge. Files up to a given size are
+ * also merged in memory with <code>diff_match_patch</code>, as
+ * <code>PlaintextMerger</code> used to do, for comparison.
+ */
+
+public class MergeBench extends TestCase {
+
+  /** Comma-separated list of base text sizes in MB. */
+  public static final String SIZES =
+    System.getProperty("syxaw.test.bench.sizes", "1,100,1024");
+
+  /** Largest size in MB also merged in memory. */
+  public static final int MEMORY_MAX =
+    Integer.getInteger("syxaw.test.bench.memorymax", 1).intValue();
+
+  // Intervals of lines edited by one, by two, and deleted by one
+  private static final int ONE_EDIT = 997;
+  private static final int TWO_EDIT = 1009;
+  private static final int ONE_DELETE = 2003;
+  private static final int ADDED = 5;
+
+  public MergeBench(String name) {
+    super(name);
+  }
+
+  public void testMerge() throws IOException, NoSuchAlgorithmException {
+    File dir = File.createTempFile("merge", "");
+    dir.delete();
+    dir.mkdirs();
+    try {
+      String[] sizes = SIZES.split(",");
+      for (int i = 0; i < sizes.length; i++)
+        merge(dir, Integer.parseInt(sizes[i].trim()));
+    } finally {
+      IOUtil.delTree(dir, true);
+    }
+  }
+
+  // Anchors must not be matched to repeats of the same lines elsewhere in
+  // the window, which misaligned the texts
+  public void testRepeatedLines() throws IOException {
+    StringBuffer b = new StringBuffer(), o = new StringBuffer(),
+        t = new StringBuffer(), m = new StringBuffer();
+    for (int i = 0; i < 66; i++) {
+      String l = "line " + (i % 10) + "\n";
+      String ol = i == 1 ? "local " + i + "\n" : l;
+      String tl = i == 51 ? "remote " + i + "\n" : l;
+      b.append(l);
+      o.append(ol);
+      t.append(tl);
+      m.append(ol != l ? ol : tl);
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream(),
+        conflicts = new ByteArrayOutputStream();
+    LineDiff3 merge = new LineDiff3(
+        new ByteArrayInputStream(b.toString().getBytes("UTF-8")),
+        new ByteArrayInputStream(o.toString().getBytes("UTF-8")),
+        new ByteArrayInputStream(t.toString().getBytes("UTF-8")));
+    Assert.assertEquals("Conflicts", 0, merge.merge(out, conflicts));
+    Assert.assertEquals(m.toString(), out.toString("UTF-8"));
+    Assert.assertEquals("Hunks", 2, merge.getHunks());
+  }
+
+  protected void merge(File dir, int mb)
+    throws IOException, NoSuchAlgorithmException {
+    File base = new File(dir, "base"), one = new File(dir, "one"),
+        two = new File(dir, "two"), merged = new File(dir, "merged");
+    byte[] expected = generate(((long) mb) << 20, base, one, two);
+    System.gc();
+    resetPeakHeap();
+    long start = System.currentTimeMillis();
+    InputStream bin = new FileInputStream(base), oin = new FileInputStream(one),
+        tin = new FileInputStream(two);
+    MessageDigest md = MessageDigest.getInstance("MD5");
+    OutputStream out = new DigestOutputStream(new FileOutputStream(merged), md);
+    ByteArrayOutputStream conflicts = new ByteArrayOutputStream();
+    LineDiff3 merge = new LineDiff3(bin, oin, tin);
+    try {
+      merge.merge(out, conflicts);
+    } finally {
+      bin.close();
+      oin.close();
+      tin.close();
+      out.close();
+    }
+    long elapsed = Math.max(1l, System.currentTimeMillis() - start);
+    Log.info("Merge: size=" + mb + "MB, ms=" + elapsed + ", MB/s=" +
+        (1000l * mb / elapsed) + ", peak heap MB=" + (peakHeap() >> 20) +
+        ", hunks=" + merge.getHunks() + ", max lines buffered=" +
+        merge.getMaxWindow() + ", conflicts=" + conflicts.toString("UTF-8")
+        .trim());
+    Assert.assertEquals("Conflicts", 1, merge.getConflicts());
+    Assert.assertTrue("Bad merge", Arrays.equals(expected, md.digest()));
+    if (mb <= MEMORY_MAX)
+      memoryMerge(mb, base, one, two);
+    base.delete();
+    one.delete();
+    two.delete();
+    merged.delete();
+  }
+
+  // The merge as formerly done by PlaintextMerger
+  protected void memoryMerge(int mb, File base, File one, File two)
+    throws IOException {
+    System.gc();
+    resetPeakHeap();
+    long start = System.currentTimeMillis();
+    String b = read(base), o = read(one), t = read(two);
+    diff_match_patch dmp = new diff_match_patch();
+    Object[] result = dmp.patch_apply(dmp.patch_make(dmp.diff_main(b, o)), t);
+    long elapsed = Math.max(1l, System.currentTimeMillis() - start);
+    boolean ok = true;
+    for (boolean patchOk : (boolean[]) result[1])
+      ok &= patchOk;
+    Log.info("In-memory merge: size=" + mb + "MB, ms=" + elapsed +
+        ", peak heap MB=" + (peakHeap() >> 20) + ", success=" + ok);
+  }
+
+  private static String read(File f) throws IOException {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    InputStream in = new FileInputStream(f);
+    try {
+      IOUtil.copyStream(in, bout);
+    } finally {
+      in.close();
+    }
+    return bout.toString("UTF-8");
+  }
+
+  // Generate base, one and two of the given size; returns MD5 of the
+  // expected merge
+  private static byte[] generate(long size, File base, File one, File two)
+    throws IOException, NoSuchAlgorithmException {
+    OutputStream bout = new BufferedOutputStream(new FileOutputStream(base),
+        65536), oout = new BufferedOutputStream(new FileOutputStream(one),
+        65536), tout = new BufferedOutputStream(new FileOutputStream(two),
+        65536);
+    MessageDigest md = MessageDigest.getInstance("MD5");
+    Random rnd = new Random(size);
+    try {
+      for (int i = 0; i < ADDED; i++) {
+        byte[] l = ("# Header line " + i + " added remotely\n").getBytes();
+        tout.write(l);
+        md.update(l);
+      }
+      long lines = 0, conflict = -1;
+      for (long len = 0; len < size; lines++) {
+        byte[] l = line(lines, rnd, "");
+        len += l.length;
+        if (conflict < 0 && len >= size / 2)
+          conflict = lines;
+        byte[] o = l, t = l;
+        if (lines == conflict) {
+          o = ("Conflicting local line\n").getBytes();
+          t = ("Conflicting remote line\n").getBytes();
+        } else if (lines % ONE_DELETE == 1000)
+          o = null;
+        else if (lines % ONE_EDIT == 500)
+          o = line(lines, new Random(lines), " edited locally");
+        else if (lines % TWO_EDIT == 700 && !oneChanges(lines - 1) &&
+            !oneChanges(lines + 1) && lines - 1 != conflict)
+          t = line(lines, new Random(lines), " edited remotely");
+        bout.write(l);
+        if (o != null)
+          oout.write(o);
+        tout.write(t);
+        if (o != l)
+          t = o;
+        if (t != null)
+          md.update(t);
+      }
+      for (int i = 0; i < ADDED; i++) {
+        byte[] l = ("# Footer line " + i + " added locally\n").getBytes();
+        oout.write(l);
+        md.update(l);
+      }
+    } finally {
+      bout.close();
+      oout.close();
+      tout.close();
+    }
+    return md.digest();
+  }
+
+  // Changes to adjacent lines conflict, so two only edits lines not next to
+  // lines changed by one
+  private static boolean oneChanges(long i) {
+    return i % ONE_DELETE == 1000 || i % ONE_EDIT == 500;
+  }
+
+  private static byte[] line(long i, Random rnd, String suffix) {
+    return ("2008-05-" + (10 + i / 8640000 % 20) + " " + (i / 360000 % 24) +
+        ":" + (i / 6000 % 60) + ":" + (i / 100 % 60) + "." + (i % 100) +
+        " INFO [worker-" + rnd.nextInt(16) + "] request " + i +
+        " served in " + rnd.nextInt(1000) + " ms" + suffix + "\n").getBytes();
+  }
+
+  private static void resetPeakHeap() {
+    for (Iterator i = ManagementFactory.getMemoryPoolMXBeans().iterator();
+         i.hasNext();) {
+      MemoryPoolMXBean pool = (MemoryPoolMXBean) i.next();
+      if (pool.getType() == MemoryType.HEAP)
+        pool.resetPeakUsage();
+    }
+  }
+
+  private static long peakHeap() {
+    long peak = 0;
+    for (Iterator i = ManagementFactory.getMemoryPoolMXBeans().iterator();
+         i.hasNext();) {
+      MemoryPoolMXBean pool = (MemoryPoolMXBean) i.next();
+      if (pool.getType() == MemoryType.HEAP)
+        peak += pool.getPeakUsage().getUsed();
+    }
+    return peak;
+  }
+}
+
+// arch-tag: 568c0906-615c-40fa-8cae-738e121cbe9b
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.syxaw.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import fc.syxaw.storage.hierfs.Metadata;
+import fc.util.IOUtil;
+import fc.util.log.Log;
+import fc.xml.xmlr.model.StringKey;
+
+/** Metadata database lookup benchmark. Fills a
+ * {@link Metadata.MetaDb} with entries, and logs the time per lookup
+ * by String key for
+ * <ol>
+ * <li>a first pass over all keys, which reads each entry from disk,</li>
+ * <li>a single thread looking up random keys in a working set, and</li>
+ * <li>the same number of lookups spread over several threads.</li>
+ * </ol>
+ * The cache hit and miss counts of the database are logged after each
+ * case.
+ */
+
+public class MetaDbBench extends TestCase {
+
+  /** Number of entries in database. */
+  public static final int ENTRIES =
+    Integer.getInteger("syxaw.test.bench.entries", 10000).intValue();
+
+  /** Number of keys in the working set. */
+  public static final int WORKING_SET =
+    Integer.getInteger("syxaw.test.bench.workingset", 2000).intValue();
+
+  /** Number of lookups in the working set cases. */
+  public static final int LOOKUPS =
+    Integer.getInteger("syxaw.test.bench.lookups", 200000).intValue();
+
+  /** Number of threads in the concurrent case. */
+  public static final int THREADS =
+    Integer.getInteger("syxaw.test.bench.threads", 4).intValue();
+
+  public MetaDbBench(String name) {
+    super(name);
+  }
+
+  public void testLookup() throws Exception {
+    File dir = File.createTempFile("metadb", "");
+    dir.delete();
+    dir.mkdirs();
+    try {
+      Metadata.MetaDb db = new Metadata.MetaDb(dir,true);
+      for( int i=0;i<ENTRIES;i++)
+        db.insert(key(i), new Metadata(StringKey.createKey(key(i)), 0,
+            "text/plain", 1000+i, System.currentTimeMillis(), "/file"+i));
+      db.close();
+      db = new Metadata.MetaDb(dir,true);
+      long start = System.currentTimeMillis();
+      for( int i=0;i<ENTRIES;i++)
+        Assert.assertNotNull(db.lookup(key(i)));
+      log("first pass", start, ENTRIES, db);
+      start = System.currentTimeMillis();
+      lookups(db, LOOKUPS, 1);
+      log("working set", start, LOOKUPS, db);
+      final Metadata.MetaDb tdb = db;
+      final int[] failed = new int[1];
+      Thread[] threads = new Thread[THREADS];
+      start = System.currentTimeMillis();
+      for( int i=0;i<THREADS;i++) {
+        final int seed = i+2;
+        threads[i] = new Thread() {
+          public void run() {
+            try {
+              lookups(tdb, LOOKUPS/THREADS, seed);
+            } catch (Throwable x) {
+              Log.error("Lookup thread failed",x);
+              synchronized(failed) {
+                failed[0]++;
+              }
+            }
+          }
+        };
+        threads[i].start();
+      }
+      for( int i=0;i<THREADS;i++)
+        threads[i].join();
+      log(THREADS+" threads", start, LOOKUPS, db);
+      Assert.assertEquals(0,failed[0]);
+      db.close();
+    } finally {
+      IOUtil.delTree(dir);
+    }
+  }
+
+  protected void lookups(Metadata.MetaDb db, int count, long seed) {
+    Random rnd = new Random(seed);
+    for( int i=0;i<count;i++) {
+      int ix = rnd.nextInt(WORKING_SET);
+      Metadata md = (Metadata) db.lookup(key(ix));
+      Assert.assertEquals(1000+ix,md.getDataVersion());
+    }
+  }
+
+  private static String key(int i) {
+    return "00000000-0000-0000-0000-"+(100000000000l+i);
+  }
+
+  private static long hits = 0l, misses = 0l;
+
+  private static void log(String name, long start, int count,
+                          Metadata.MetaDb db) {
+    long time = System.currentTimeMillis()-start;
+    Log.info("MetaDb lookup, "+name+": us/lookup="+(1000.0*time/count)+
+             ", hits="+(db.getCacheHits()-hits)+", misses="+
+             (db.getCacheMisses()-misses)+", cache bytes="+db.getCacheSize());
+    hits = db.getCacheHits();
+    misses = db.getCacheMisses();
+  }
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(MetaDbBench.class);
+  }
+}
+
+// arch-tag: 73120939-60c1-4e66-98b4-8d315dafb5ae
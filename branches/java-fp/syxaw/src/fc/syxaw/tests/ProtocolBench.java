@@ -0,0 +1,159 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.syxaw.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.apache.axis.transport.http.ChunkedInputStream;
+
+import fc.syxaw.protocol.DownloadRequest;
+import fc.syxaw.protocol.TransferHeader;
+import fc.syxaw.protocol.UploadRequest;
+import fc.syxaw.transport.ObjectInputStream;
+import fc.syxaw.transport.ObjectOutputStream;
+import fc.syxaw.util.Util;
+import fc.syxaw.util.XmlUtil;
+import fc.util.log.Log;
+
+/** Object stream decoding microbenchmark. Encodes a batch of objects as
+ * in a batch transfer, each object being a {@link TransferHeader}, an
+ * {@link UploadRequest} and a {@link DownloadRequest} followed by a small
+ * data substream. The batch is decoded by {@link ObjectInputStream}, and
+ * by the former decoder, which read the object header a byte at a time
+ * and copied each object before parsing it. The decoded objects are
+ * verified, and the time per object is logged for encoding and for both
+ * decoders.
+ */
+
+public class ProtocolBench extends TestCase {
+
+  /** Number of objects in the batch. */
+  public static final int OBJECTS =
+    Integer.getInteger("syxaw.test.bench.objects", 5000).intValue();
+
+  /** Number of rounds. */
+  public static final int ROUNDS = 5;
+
+  private static final byte[] DATA = new byte[64];
+  private static final int[] VERSIONS = {1000, 1001, 1002, 1005};
+
+  public ProtocolBench(String name) {
+    super(name);
+  }
+
+  public void testDecode() throws IOException {
+    byte[] batch = null;
+    for (int round = 0; round < ROUNDS; round++) {
+      long start = System.nanoTime();
+      batch = encode();
+      long encode = System.nanoTime() - start;
+      start = System.nanoTime();
+      decode(new ObjectInputStream(new ByteArrayInputStream(batch)), null);
+      long decode = System.nanoTime() - start;
+      start = System.nanoTime();
+      decode(null, new ByteArrayInputStream(batch));
+      long legacy = System.nanoTime() - start;
+      Log.info("Object stream: round=" + round + ", objects=" + OBJECTS +
+          ", bytes=" + batch.length + ", us/object encode=" +
+          (encode / 1000 / OBJECTS) + ", decode=" + (decode / 1000 / OBJECTS)
+          + ", former decode=" + (legacy / 1000 / OBJECTS));
+    }
+  }
+
+  private byte[] encode() throws IOException {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bout);
+    for (int i = 0; i < OBJECTS; i++) {
+      byte[] hash = new byte[20];
+      Arrays.fill(hash, (byte) i);
+      out.writeObject(new TransferHeader(1000 + i, hash, 64,
+          TransferHeader.ENC_BINARY, TransferHeader.ENC_NONE,
+          TransferHeader.ALL_ENCODINGS));
+      out.writeObject(new UploadRequest("object-" + i, true, true, "lock-" +
+          i));
+      out.writeObject(new DownloadRequest("object-" + i, VERSIONS, true,
+          true, false, null));
+      OutputStream sub = out.writeSubStream(null, DATA.length, false);
+      sub.write(DATA);
+      sub.close();
+    }
+    out.flush();
+    return bout.toByteArray();
+  }
+
+  // Decode with the stream, or with the former decoder if the stream is
+  // null
+  private void decode(ObjectInputStream in, InputStream legacy)
+    throws IOException {
+    byte[] data = new byte[DATA.length];
+    for (int i = 0; i < OBJECTS; i++) {
+      TransferHeader th = new TransferHeader();
+      UploadRequest ur = new UploadRequest();
+      DownloadRequest dr = new DownloadRequest();
+      InputStream sub;
+      if (in != null) {
+        in.readObject(th);
+        in.readObject(ur);
+        in.readObject(dr);
+        sub = in.readSubStream();
+      } else {
+        legacyReadObject(legacy, th);
+        legacyReadObject(legacy, ur);
+        legacyReadObject(legacy, dr);
+        sub = new ChunkedInputStream(legacy);
+      }
+      int len = 0;
+      for (int n; (n = sub.read(data, len, data.length - len)) > 0;)
+        len += n;
+      Assert.assertEquals(DATA.length, len);
+      Assert.assertEquals(-1, sub.read());
+      Assert.assertEquals((byte) i, th.getHash()[0]);
+      Assert.assertEquals(64, th.getSizeEstimate());
+      Assert.assertTrue(Arrays.equals(TransferHeader.ALL_ENCODINGS,
+          th.getAcceptedEncodings()));
+      Assert.assertEquals("lock-" + i, ur.getLock());
+      Assert.assertEquals("object-" + i, dr.getObject());
+      Assert.assertTrue(Arrays.equals(VERSIONS, dr.getVersionsAvailable()));
+    }
+    if (in != null)
+      Assert.assertEquals(-1, in.read());
+  }
+
+  // The decoding formerly done by ObjectInputStream.readObject()
+  private static void legacyReadObject(InputStream in, Object obj)
+    throws IOException {
+    ByteArrayOutputStream lin = new ByteArrayOutputStream();
+    int c;
+    for (; (c = in.read()) != 0x0d && c != 0x0a && c != -1;)
+      lin.write(c);
+    if (c == 0x0d && in.read() != 0x0a)
+      throw new IOException("Invalid linefeed");
+    long size = Long.parseLong(new String(lin.toByteArray()).trim(), 16);
+    ByteArrayOutputStream oin = new ByteArrayOutputStream();
+    Util.copyStream(in, oin, size);
+    XmlUtil.readBean(new ByteArrayInputStream(oin.toByteArray()), obj);
+  }
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(ProtocolBench.class);
+  }
+}
+
+// arch-tag: be6aecaa-e886-4183-af69-4567fe2ac123
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.syxaw.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import fc.syxaw.storage.hfsbase.PersistentRefTree;
+import fc.syxaw.storage.hfsbase.Registry;
+import fc.util.IOUtil;
+import fc.util.log.Log;
+import fc.xml.xmlr.RefTreeNode;
+import fc.xml.xmlr.model.StringKey;
+
+/** Test the edit log of persistent reftrees. The tests edit a
+ * {@link Registry} in batches, simulate crashes at different points of
+ * the commit, and verify the tree when it is reopened.
+ */
+
+public class RefTreeLogTest extends TestCase {
+
+  /** Number of nodes inserted per batch. */
+  public static final int NODES =
+    Integer.getInteger("syxaw.test.bench.nodes", 500).intValue();
+
+  private File dir;
+
+  public RefTreeLogTest(String name) {
+    super(name);
+  }
+
+  protected void setUp() throws IOException {
+    dir = File.createTempFile("reftree", "");
+    dir.delete();
+    Registry.Maintenance.init(dir);
+  }
+
+  protected void tearDown() throws IOException {
+    IOUtil.delTree(dir);
+  }
+
+  /** Insert nodes one by one and in a batch, and log the times. */
+  public void testBatch() throws IOException {
+    Registry r = new Registry(dir);
+    long start = System.currentTimeMillis();
+    insert(r,0,NODES);
+    long single = System.currentTimeMillis()-start;
+    start = System.currentTimeMillis();
+    r.begin();
+    insert(r,NODES,2*NODES);
+    r.commit();
+    long batch = System.currentTimeMillis()-start;
+    r.close();
+    Log.info("Tree edit log: nodes="+NODES+", ms one by one="+single+
+             ", ms batched="+batch);
+    verify(new Registry(dir),2*NODES);
+  }
+
+  /** Crash after the log is written; the edits should be replayed. */
+  public void testReplay() throws IOException {
+    CrashingRegistry r = new CrashingRegistry(dir);
+    insert(r,0,NODES);
+    r.crashAfter = NODES/2;
+    r.begin();
+    insert(r,NODES,2*NODES);
+    try {
+      r.commit();
+      Assert.fail("No crash");
+    } catch (IllegalStateException x) {
+      // Simulated crash
+    }
+    Assert.assertTrue(new File(dir,PersistentRefTree.LOG_NAME).exists());
+    r.close();
+    verify(new Registry(dir),2*NODES);
+    Assert.assertFalse(new File(dir,PersistentRefTree.LOG_NAME).exists());
+  }
+
+  /** Crash while the log is written; the batch should be lost. */
+  public void testTruncatedLog() throws IOException {
+    CrashingRegistry r = new CrashingRegistry(dir);
+    insert(r,0,NODES);
+    r.crashAfter = 0;
+    r.begin();
+    insert(r,NODES,2*NODES);
+    try {
+      r.commit();
+      Assert.fail("No crash");
+    } catch (IllegalStateException x) {
+      // Simulated crash
+    }
+    r.close();
+    File log = new File(dir,PersistentRefTree.LOG_NAME);
+    RandomAccessFile f = new RandomAccessFile(log,"rw");
+    try {
+      f.setLength(f.length()-5);
+    } finally {
+      f.close();
+    }
+    verify(new Registry(dir),NODES);
+    Assert.assertFalse(log.exists());
+  }
+
+  /** Roll back a batch. */
+  public void testRollback() throws IOException {
+    Registry r = new Registry(dir);
+    insert(r,0,NODES);
+    r.begin();
+    insert(r,NODES,2*NODES);
+    r.rollback();
+    verify(r,NODES);
+    r.close();
+    verify(new Registry(dir),NODES);
+  }
+
+  private void insert(Registry r, int from, int to) {
+    for( int i=from;i<to;i++) {
+      StringKey k = StringKey.createKey("key"+i);
+      r.insert(Registry.ROOT_KEY,-1,k,new Registry.KeyValue(k,"value"+i));
+    }
+  }
+
+  private void verify(Registry r, int count) throws IOException {
+    int i = 0;
+    for( Iterator ci = r.getRoot().getChildIterator();ci.hasNext();i++) {
+      Registry.KeyValue kv =
+        (Registry.KeyValue) ((RefTreeNode) ci.next()).getContent();
+      Assert.assertEquals("key"+i,kv.getKey().toString());
+      Assert.assertEquals("value"+i,kv.getValue());
+    }
+    Assert.assertEquals(count,i);
+    r.close();
+  }
+
+  // Registry that crashes after applying some logged edits
+  private static class CrashingRegistry extends Registry {
+
+    int crashAfter = -1;
+
+    CrashingRegistry(File root) {
+      super(root);
+    }
+
+    protected void applyLog(List edits) {
+      if( crashAfter < 0 ) {
+        super.applyLog(edits);
+        return;
+      }
+      super.applyLog(edits.subList(0,Math.min(crashAfter,edits.size())));
+      throw new IllegalStateException("Crash");
+    }
+  }
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(RefTreeLogTest.class);
+  }
+}
+
+// arch-tag: 33752d22-38fc-44d4-855f-3a50273b8ec5
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.syxaw.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import fc.syxaw.hierfs.DirectoryEntry;
+import fc.syxaw.storage.hfsbase.AbstractFileSystem;
+import fc.syxaw.storage.hfsbase.LocalTree;
+import fc.syxaw.storage.hfsbase.ScanJournal;
+import fc.syxaw.storage.hfsbase.Toolkit;
+import fc.util.IOUtil;
+import fc.util.log.Log;
+import fc.xml.xmlr.RefTreeNode;
+
+/** File system scan benchmark. Generates a directory tree with
+ * {@link FileSystemEditGen}, and logs the time to bring the local
+ * facet of the Syxaw directory tree in sync with the file system after
+ * a few random edits, both by scanning the whole file system and by using
+ * a {@link ScanJournal}. The local facet is verified against the file
+ * system after each scan.
+ * <p>The benchmark runs Syxaw in-process on a temporary root folder, so
+ * it must be run in a JVM of its own.
+ */
+
+public class ScanBench extends TestCase {
+
+  /** Number of files and directories in generated tree. */
+  public static final int NODES =
+    Integer.getInteger("syxaw.test.bench.nodes", 2000).intValue();
+
+  /** Number of edits between scans. */
+  public static final int EDITS =
+    Integer.getInteger("syxaw.test.bench.edits", 10).intValue();
+
+  /** Number of scans timed. */
+  public static final int ROUNDS =
+    Integer.getInteger("syxaw.test.bench.rounds", 5).intValue();
+
+  public ScanBench(String name) {
+    super(name);
+  }
+
+  public void testScan() throws IOException {
+    File root = File.createTempFile("scan", "");
+    root.delete();
+    root.mkdirs();
+    System.setProperty("syxaw.rootfolder", root.getPath());
+    try {
+      DirectorySync.TestDir tree = new DirectorySync.TestDir("",
+          new DirectorySync.Node[] {new DirectorySync.TestDir("a"),
+                                    new DirectorySync.TestDir("b")});
+      new File(root, "a").mkdir();
+      new File(root, "b").mkdir();
+      FileSystemEditGen gen = new FileSystemEditGen(tree, 42l);
+      Assert.assertTrue(gen.editFs(NODES, "iiiiiiiiII".toCharArray()).
+                        exec(root));
+      Toolkit tk = (Toolkit) fc.syxaw.fs.Syxaw.getToolkit();
+      tk.init(false);
+      fc.syxaw.fs.Syxaw.getFile(root.getPath()); // Starts the file system
+      AbstractFileSystem fs = tk.getFs();
+      LocalTree lt = fs.getLocalTree();
+      long start = System.currentTimeMillis();
+      lt.ensureLocalAndLiveInSync(null, false);
+      Log.info("Scan: initial scan ms="+(System.currentTimeMillis()-start));
+      long full = scan(lt, gen, root);
+      lt.setScanJournal(new ScanJournal(new File(Toolkit.DIRDB_FOLDER_FILE,
+          AbstractFileSystem.LOCAL_JOURNAL)));
+      scan(lt, gen, root); // Primes the journal
+      long incremental = scan(lt, gen, root);
+      Log.info("Scan: nodes="+NODES+", edits="+EDITS+", ms/scan full="+
+               full+", journaled="+incremental+", dirmtime only="+
+               fc.syxaw.storage.hfsbase.Config.SCAN_DIRMTIME);
+    } finally {
+      IOUtil.delTree(root);
+    }
+  }
+
+  // Edit file system and scan; returns average ms per scan
+  private long scan(LocalTree lt, FileSystemEditGen gen, File root) {
+    long time = 0l;
+    for( int i=0;i<ROUNDS;i++) {
+      Assert.assertTrue(gen.editFs(EDITS, "iiIdm".toCharArray()).exec(root));
+      try {
+        Thread.sleep(ScanJournal.RACY_MARGIN);
+      } catch (InterruptedException x) {
+        // Deliberately empty
+      }
+      long start = System.currentTimeMillis();
+      lt.ensureLocalAndLiveInSync(null, false);
+      time += System.currentTimeMillis()-start;
+      verify(lt.getRoot(), root);
+    }
+    return time / ROUNDS;
+  }
+
+  private void verify(RefTreeNode n, File dir) {
+    List names = new LinkedList();
+    for( Iterator i = n.getChildIterator();i.hasNext();) {
+      RefTreeNode c = (RefTreeNode) i.next();
+      DirectoryEntry e = (DirectoryEntry) c.getContent();
+      names.add(e.getName());
+      if( e.getType() == DirectoryEntry.DIR )
+        verify(c, new File(dir, e.getName()));
+    }
+    List files = new LinkedList();
+    String[] entries = dir.list();
+    for( int i=0;i<entries.length;i++) {
+      if( !entries[i].startsWith(
+          fc.syxaw.storage.hfsbase.Config.SYXAW_PREFIX) )
+        files.add(entries[i]);
+    }
+    Object[] a = names.toArray(), b = files.toArray();
+    Arrays.sort(a);
+    Arrays.sort(b);
+    Assert.assertTrue("Tree differs at "+dir, Arrays.equals(a, b));
+  }
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(ScanBench.class);
+  }
+}
+
+// arch-tag: c9fe71f4-b209-43aa-aad5-b7e1b5b6abf1
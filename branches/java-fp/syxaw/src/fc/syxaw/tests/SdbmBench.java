@@ -0,0 +1,160 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.syxaw.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import fc.util.IOUtil;
+import fc.util.bytedb.MappedSdbm;
+import fc.util.bytedb.Sdbm;
+import fc.util.log.Log;
+
+/** Sdbm read/write benchmark. Runs a mix of lookups and updates on a
+ * database, using {@link Sdbm} and {@link MappedSdbm}, with one and with
+ * several threads, and logs the throughput of each. Some updates insert
+ * new keys, causing page splits. Each thread updates its own set of keys,
+ * so that the final contents of the database are known; these are
+ * verified by reopening the database with {@link Sdbm}.
+ */
+
+public class SdbmBench extends TestCase {
+
+  /** Number of keys initially in the database. */
+  public static final int KEYS =
+    Integer.getInteger("syxaw.test.bench.keys", 20000).intValue();
+
+  /** Number of operations in each case. */
+  public static final int OPERATIONS =
+    Integer.getInteger("syxaw.test.bench.operations", 200000).intValue();
+
+  /** Percentage of updates of all operations. */
+  public static final int UPDATES =
+    Integer.getInteger("syxaw.test.bench.updates", 10).intValue();
+
+  /** Number of threads in the concurrent cases. */
+  public static final int THREADS =
+    Integer.getInteger("syxaw.test.bench.threads", 4).intValue();
+
+  public SdbmBench(String name) {
+    super(name);
+  }
+
+  public void testReadWrite() throws Exception {
+    double plain1 = run(false, 1);
+    double plainN = run(false, THREADS);
+    double mapped1 = run(true, 1);
+    double mappedN = run(true, THREADS);
+    Log.info("Sdbm kops/s: Sdbm 1 thread="+plain1+", "+THREADS+" threads="+
+             plainN+"; MappedSdbm 1 thread="+mapped1+", "+THREADS+
+             " threads="+mappedN);
+  }
+
+  protected double run(boolean mapped, int threads) throws Exception {
+    File dir = File.createTempFile("sdbm", "");
+    dir.delete();
+    dir.mkdirs();
+    try {
+      final Sdbm db = open(dir, mapped);
+      final byte[][] values = new byte[KEYS+OPERATIONS][];
+      for( int i=0;i<KEYS;i++) {
+        values[i] = value(i, 0);
+        db.put(key(i), values[i]);
+      }
+      final int[] failed = new int[1];
+      Thread[] workers = new Thread[threads];
+      final int count = threads;
+      long start = System.currentTimeMillis();
+      for( int t=0;t<threads;t++) {
+        final int id = t;
+        workers[t] = new Thread() {
+          public void run() {
+            try {
+              work(db, values, id, count);
+            } catch (Throwable x) {
+              Log.error("Worker failed",x);
+              synchronized(failed) {
+                failed[0]++;
+              }
+            }
+          }
+        };
+        workers[t].start();
+      }
+      for( int t=0;t<threads;t++)
+        workers[t].join();
+      long time = Math.max(1l,System.currentTimeMillis()-start);
+      Assert.assertEquals(0,failed[0]);
+      db.close();
+      Sdbm check = new Sdbm(dir, "db", "rw");
+      for( int i=0;i<values.length;i++) {
+        byte[] v = check.get(key(i));
+        Assert.assertTrue("Wrong value for "+i,
+            values[i] == null ? v == null : Arrays.equals(values[i],v));
+      }
+      check.close();
+      return ((double) OPERATIONS)/time;
+    } finally {
+      IOUtil.delTree(dir);
+    }
+  }
+
+  // Thread id updates keys with key % threads == id; new keys
+  // are allocated after the initial ones
+  protected void work(Sdbm db, byte[][] values, int id, int threads)
+      throws IOException {
+    Random rnd = new Random(id);
+    int next = KEYS + id;
+    for( int i=0;i<OPERATIONS/threads;i++) {
+      if( rnd.nextInt(100) < UPDATES ) {
+        int k;
+        if( rnd.nextInt(4) == 0 ) {
+          k = next;
+          next += threads;
+        } else {
+          k = rnd.nextInt(KEYS/threads)*threads+id;
+        }
+        values[k] = value(k, rnd.nextInt(100));
+        db.put(key(k), values[k]);
+      } else {
+        int k = rnd.nextInt(KEYS);
+        Assert.assertNotNull(db.get(key(k)));
+      }
+    }
+  }
+
+  private static Sdbm open(File dir, boolean mapped) throws IOException {
+    return mapped ? new MappedSdbm(dir, "db", "rw") :
+      new Sdbm(dir, "db", "rw");
+  }
+
+  private static byte[] key(int i) {
+    return ("key"+i).getBytes();
+  }
+
+  private static byte[] value(int i, int extra) {
+    byte[] v = new byte[20+(i%80)+extra];
+    Arrays.fill(v,(byte) i);
+    return v;
+  }
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(SdbmBench.class);
+  }
+}
+
+// arch-tag: 1c196860-93dd-4bbc-8bb1-d5a1e5346636
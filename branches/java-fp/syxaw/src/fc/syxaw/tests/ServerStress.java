@@ -0,0 +1,222 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.syxaw.tests;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import fc.syxaw.protocol.CreateRequest;
+import fc.syxaw.protocol.TransmitStatus;
+import fc.syxaw.transport.ChannelProvider;
+import fc.syxaw.transport.HTTPCallServer;
+import fc.syxaw.transport.ObjectInputStream;
+import fc.syxaw.transport.ObjectOutputStream;
+import fc.syxaw.transport.SynchronousCallChannel;
+import fc.util.log.Log;
+
+/** Stress test for the RPC server. The test starts a server on the
+ * local host, and then runs an increasing number of parallel clients
+ * against it. Each call performs a fixed amount of CPU-bound work on the
+ * server. The test checks that every call completes with the expected
+ * reply, and that the call dispatcher admitted all calls without
+ * rejecting any. The throughput for each client count is logged, along
+ * with the call dispatcher statistics.
+ * <p>Run once with <code>-Dsyxaw.http.mtserver=true</code> and once
+ * without to compare concurrent and serialized dispatch. With concurrent
+ * dispatch the throughput should scale up to the number of cores. The
+ * listen and request ports (<code>syxaw.http.listenport</code>,
+ * <code>syxaw.http.requestport</code>) must be equal and free.
+ */
+
+public class ServerStress extends TestCase {
+
+  /** Name of the call served by the test server. */
+  public static final String CALL = "stress";
+
+  /** Calls made by each client. */
+  public static final int CALLS =
+    Integer.getInteger("syxaw.test.stress.calls", 200).intValue();
+
+  /** Digest rounds performed by the server for each call. */
+  public static final int WORK =
+    Integer.getInteger("syxaw.test.stress.work", 64).intValue();
+
+  /** Max number of parallel clients. */
+  public static final int CLIENTS =
+    Integer.getInteger("syxaw.test.stress.clients", 8).intValue();
+
+  /** Maximum time to wait for a client to complete its calls, in ms. */
+  public static final long TIMEOUT =
+    Long.getLong("syxaw.test.stress.timeout", 300000l).longValue();
+
+  private static boolean serverStarted = false;
+
+  public ServerStress(String name) {
+    super(name);
+  }
+
+  public void testThroughput() throws Exception {
+    startServer();
+    double base = -1.0;
+    for( int clients=1;clients<=CLIENTS;clients*=2) {
+      long[] before = HTTPCallServer.getDispatcher().getStatistics();
+      long start = System.currentTimeMillis();
+      int failed = runClients(clients);
+      long elapsed = Math.max(1l,System.currentTimeMillis()-start);
+      long[] after = HTTPCallServer.getDispatcher().getStatistics();
+      Assert.assertEquals("Failed calls", 0, failed);
+      // All calls admitted and completed, none rejected or left queued
+      Assert.assertEquals("Dispatched calls", clients*CALLS,
+          after[3]-before[3]);
+      Assert.assertEquals("Rejected calls", 0, after[4]-before[4]);
+      Assert.assertEquals("Queued calls", 0, after[0]);
+      Assert.assertEquals("Active calls", 0, after[1]);
+      Assert.assertTrue("Queue depth over limit",
+          after[2] <= fc.syxaw.transport.Config.SERVER_QUEUE);
+      double rate = (1000.0*clients*CALLS)/elapsed;
+      if( base < 0 )
+        base = rate;
+      Log.info("Stress: clients="+clients+", calls/s="+rate+
+          ", speedup="+(rate/base), HTTPCallServer.getDispatcher());
+    }
+  }
+
+  // Returns number of failed clients. A client that does not complete
+  // within the timeout counts as failed.
+  protected int runClients(int clients) throws InterruptedException {
+    final int[] failed = new int[1];
+    Thread[] threads = new Thread[clients];
+    for( int i=0;i<clients;i++) {
+      threads[i] = new Thread() {
+        public void run() {
+          try {
+            SynchronousCallChannel ch =
+              ChannelProvider.getChannel("localhost");
+            for( int c=0;c<CALLS;c++) {
+              ObjectInputStream in = ch.call(CALL, new StressCall(WORK),
+                  new Serializable[0]);
+              if( in == null )
+                throw new IOException("Call failed");
+              TransmitStatus status = new TransmitStatus();
+              in.readObject(status);
+              in.close();
+              if( status.getStatus() != TransmitStatus.OK ||
+                  status.getVersion() != WORK )
+                throw new IOException("Bad reply "+status.getStatus()+"/"+
+                    status.getVersion());
+            }
+          } catch (Exception x) {
+            Log.error("Stress client failed",x);
+            synchronized(failed) {
+              failed[0]++;
+            }
+          }
+        }
+      };
+      threads[i].start();
+    }
+    int hung = 0;
+    for( int i=0;i<clients;i++) {
+      threads[i].join(TIMEOUT);
+      if( threads[i].isAlive() )
+        hung++;
+    }
+    synchronized(failed) {
+      return failed[0]+hung;
+    }
+  }
+
+  protected static synchronized void startServer()
+    throws InterruptedException {
+    if( serverStarted )
+      return;
+    Thread t = new Thread() {
+      public void run() {
+        try {
+          HTTPCallServer.listen(new SynchronousCallChannel.CallMultiplexer() {
+            public SynchronousCallChannel.SynchronousCallHandler
+              getHandler(String call) {
+              return CALL.equals(call) ? new StressHandler() : null;
+            }
+          });
+        } catch (IOException x) {
+          Log.fatal("Cannot start server",x);
+        }
+      }
+    };
+    t.setDaemon(true);
+    t.start();
+    Thread.sleep(2000); // Let the listener come up
+    serverStarted = true;
+  }
+
+  static class StressCall
+    implements SynchronousCallChannel.SynchronousCall {
+
+    private int work;
+
+    StressCall(int work) {
+      this.work = work;
+    }
+
+    public Serializable[] getRequestHeaders() {
+      // The object count is used as the amount of work to do
+      return new Serializable[] {new CreateRequest(work)};
+    }
+
+    public void getData(ObjectOutputStream os) {
+      // No data
+    }
+  }
+
+  private static class StressHandler
+    implements SynchronousCallChannel.SynchronousCallHandler {
+
+    private CreateRequest request = new CreateRequest();
+
+    public Serializable[] getRequestHeaders() {
+      return new Serializable[] {request};
+    }
+
+    public Serializable[] invoke(ObjectInputStream in) throws IOException {
+      byte[] block = new byte[16384];
+      try {
+        MessageDigest md = MessageDigest.getInstance("SHA");
+        for( int i=0;i<request.getObjectCount();i++) {
+          md.update(block);
+          block[i%block.length] = md.digest()[0];
+        }
+      } catch (NoSuchAlgorithmException x) {
+        throw new IOException("No SHA digest");
+      }
+      return new Serializable[0];
+    }
+
+    public void getData(ObjectOutputStream os) throws IOException {
+      // Reply with a small object
+      os.writeObject(new TransmitStatus(TransmitStatus.OK,
+          request.getObjectCount()));
+    }
+  }
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(ServerStress.class);
+    System.exit(0); // The HTTP listener threads are not daemons
+  }
+}
+
+// arch-tag: b64ce0ca-8ff6-43ca-b833-84c178c6263e
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.syxaw.tests;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import fc.syxaw.fs.FileTransfer;
+import fc.syxaw.fs.GUID;
+import fc.syxaw.fs.QueriedUID;
+import fc.syxaw.fs.SyncScheduler;
+import fc.syxaw.fs.UID;
+import fc.syxaw.fs.VersionHistory;
+import fc.util.log.Log;
+
+/** Tests for {@link SyncScheduler}. Objects are run through the download,
+ * merge and commit stages the way <code>SynchronizationEngine</code> does,
+ * with batch downloads that complete at once, and checked to pass every
+ * stage exactly once and in order. A few objects have a slow merge; they
+ * must not hold up the objects submitted after them. More objects than
+ * {@link SyncScheduler#MAX_ACTIVE} are submitted, so that admission is
+ * exercised too.
+ */
+
+public class SyncSchedulerTest extends TestCase {
+
+  /** Number of objects synchronized. */
+  public static final int OBJECTS =
+    Integer.getInteger("syxaw.test.sync.objects",
+        2 * SyncScheduler.MAX_ACTIVE + 100).intValue();
+
+  /** Interval of objects with a slow merge. */
+  public static final int SLOW_INTERVAL = 500;
+
+  /** Time in ms taken by a slow merge. */
+  public static final int SLOW_MERGE = 500;
+
+  /** Max time in ms for the synchronization to complete. */
+  public static final long TIMEOUT = 60000l;
+
+  private static final String LOCATION = "test";
+
+  // Events recorded for each object
+  private static final int DOWNLOADED = 0;
+  private static final int MERGED = 1;
+  private static final int COMMITTED = 2;
+
+  private int[][] seq; // Sequence number of each event, by object
+  private int events = 0;
+  private int active = 0;
+  private int maxActive = 0;
+  private int batchObjects = 0;
+  private int maxBatch = 0;
+
+  public SyncSchedulerTest(String name) {
+    super(name);
+  }
+
+  public void testPipeline() throws InterruptedException {
+    seq = new int[OBJECTS][3];
+    final SyncScheduler s = new TestScheduler(4);
+    final SyncScheduler.Job job = s.startJob(LOCATION);
+    final Throwable[] failure = new Throwable[1];
+    Thread t = new Thread() {
+      public void run() {
+        try {
+          try {
+            for (int i = 0; i < OBJECTS; i++)
+              job.submit(new Syncer(job, i));
+          } finally {
+            job.endSubmit();
+          }
+          job.waitDone();
+        } catch (Throwable x) {
+          failure[0] = x;
+        }
+      }
+    };
+    long start = System.currentTimeMillis();
+    t.start();
+    t.join(TIMEOUT);
+    Assert.assertFalse("Synchronization did not complete", t.isAlive());
+    Assert.assertNull("Synchronization failed", failure[0]);
+    Log.info("Synchronized " + OBJECTS + " objects, ms=" +
+        (System.currentTimeMillis() - start) + "; " + s);
+    synchronized (this) {
+      Assert.assertEquals("Events", 3 * OBJECTS, events);
+      Assert.assertEquals("Objects downloaded", OBJECTS, batchObjects);
+      Assert.assertEquals("Active objects", 0, active);
+      Assert.assertTrue("Max active " + maxActive,
+          maxActive <= SyncScheduler.MAX_ACTIVE);
+      Assert.assertTrue("Max batch " + maxBatch,
+          maxBatch <= SyncScheduler.MAX_BATCH);
+    }
+    Assert.assertTrue("Batches", s.getBatches() > 0);
+    int[] stages = {SyncScheduler.DOWNLOAD, SyncScheduler.MERGE,
+        SyncScheduler.COMMIT};
+    for (int i = 0; i < stages.length; i++) {
+      SyncScheduler.Stage st = s.getStage(stages[i]);
+      Assert.assertEquals(st.getName() + " count", OBJECTS, st.getCount());
+      Assert.assertEquals(st.getName() + " depth", 0, st.getDepth());
+    }
+    for (int i = 0; i < OBJECTS; i++) {
+      Assert.assertTrue("Object " + i + " merged before download",
+          seq[i][DOWNLOADED] < seq[i][MERGED]);
+      Assert.assertTrue("Object " + i + " committed before merge",
+          seq[i][MERGED] < seq[i][COMMITTED]);
+    }
+    // A slow object does not hold up the next ones
+    for (int i = 0; i + 1 < OBJECTS; i += SLOW_INTERVAL)
+      Assert.assertTrue("Object " + (i + 1) + " waited for slow object " + i,
+          seq[i + 1][COMMITTED] < seq[i][COMMITTED]);
+  }
+
+  private synchronized void event(int object, int event) {
+    Assert.assertEquals("Object " + object + " event " + event + " repeated",
+        0, seq[object][event]);
+    seq[object][event] = ++events;
+  }
+
+  private synchronized void started() {
+    active++;
+    maxActive = Math.max(maxActive, active);
+  }
+
+  private synchronized void finished() {
+    active--;
+  }
+
+  private synchronized void batch(int size) {
+    batchObjects += size;
+    maxBatch = Math.max(maxBatch, size);
+  }
+
+  // Synchronizer of an object, split into phases as in
+  // SynchronizationEngine
+  private class Syncer implements Runnable,
+      FileTransfer.DownloadCompletionHandler {
+
+    private SyncScheduler.Job job;
+    private int object;
+
+    Syncer(SyncScheduler.Job job, int object) {
+      this.job = job;
+      this.object = object;
+    }
+
+    public void run() {
+      started();
+      job.download(new GUID(LOCATION, QueriedUID.createFromBase64Q(
+          UID.newUID().toBase64())), null,
+          VersionHistory.EMPTY_HISTORY, false, this, true, true);
+      job.statDone();
+    }
+
+    public void downloadComplete(FileTransfer.DownloadRequestBase req) {
+      event(object, DOWNLOADED);
+      try {
+        job.execute(new Runnable() {
+          public void run() {
+            merge();
+          }
+        });
+      } catch (InterruptedException x) {
+        Assert.fail("Interrupted");
+      }
+    }
+
+    private void merge() {
+      long entered = job.enter(SyncScheduler.MERGE);
+      if (object % SLOW_INTERVAL == 0) {
+        try {
+          Thread.sleep(SLOW_MERGE);
+        } catch (InterruptedException x) {
+          Assert.fail("Interrupted");
+        }
+      }
+      event(object, MERGED);
+      job.exit(SyncScheduler.MERGE, entered);
+      entered = job.enter(SyncScheduler.COMMIT);
+      event(object, COMMITTED);
+      job.exit(SyncScheduler.COMMIT, entered);
+      finished();
+      job.done();
+    }
+  }
+
+  // Scheduler whose batch downloads complete each object at once
+  private class TestScheduler extends SyncScheduler {
+
+    TestScheduler(int workerCount) {
+      super(workerCount);
+    }
+
+    protected void downloadBatch(String location, List tasks) {
+      Assert.assertEquals(LOCATION, location);
+      batch(tasks.size());
+      for (Iterator i = new ArrayList(tasks).iterator(); i.hasNext();) {
+        FileTransfer.DownloadTask t = (FileTransfer.DownloadTask) i.next();
+        t.getCh().downloadComplete(t);
+      }
+    }
+  }
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(SyncSchedulerTest.class);
+  }
+}
+
+// arch-tag: 672b2bb1-0cef-4f87-b7b0-d56201615194
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.syxaw.tests;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import fc.syxaw.protocol.TransferHeader;
+import fc.syxaw.transport.Config;
+import fc.syxaw.transport.ObjectInputStream;
+import fc.syxaw.transport.ObjectOutputStream;
+import fc.syxaw.util.Util;
+import fc.util.log.Log;
+
+/** File download throughput benchmark. Sends a file of {@link #SIZE}
+ * bytes as a transfer header and a sub-stream over a loopback socket,
+ * as when serving a plain binary download, and receives it with an
+ * {@link ObjectInputStream}. The file is copied to the sub-stream with
+ * {@link Util#copyStream}, and the reply stream is
+ * <ul>
+ * <li>an {@link ObjectOutputStream} on a buffered socket stream, which
+ * passes sub-stream writes on in bulk, and</li>
+ * <li>the same, but with the sub-stream writes split into single-byte
+ * writes on the buffered stream, as <code>FilterOutputStream</code>
+ * did before {@link ObjectOutputStream} overrode bulk writes.</li>
+ * </ul>
+ * The throughput and the CPU time of the sending thread are logged for
+ * each method. The file is sparse, so that its size is not limited by
+ * free disk space.
+ */
+
+public class TransferBench extends TestCase {
+
+  /** Size of the file. */
+  public static final long SIZE =
+    Long.getLong("syxaw.test.bench.size", 256l << 20).longValue();
+
+  private static final long MARKER = 0x5379786177l;
+
+  private static final ThreadMXBean THREADS =
+    ManagementFactory.getThreadMXBean();
+
+  public TransferBench(String name) {
+    super(name);
+  }
+
+  public void testDownload() throws IOException, InterruptedException {
+    File f = File.createTempFile("transfer", ".bin");
+    try {
+      RandomAccessFile rf = new RandomAccessFile(f, "rw");
+      rf.setLength(SIZE);
+      rf.seek(SIZE - 8);
+      rf.writeLong(MARKER);
+      rf.close();
+      for (int mode = 0; mode < 2; mode++)
+        download(f, mode);
+    } finally {
+      f.delete();
+    }
+  }
+
+  private void download(File f, final int mode) throws IOException,
+      InterruptedException {
+    ServerSocket server = new ServerSocket(0, 1,
+        InetAddress.getByName("127.0.0.1"));
+    final Socket receiver = new Socket(server.getInetAddress(),
+        server.getLocalPort());
+    Socket sender = server.accept();
+    server.close();
+    final long[] received = new long[2];
+    final IOException[] failure = new IOException[1];
+    Thread t = new Thread() {
+      public void run() {
+        try {
+          received[0] = receive(receiver.getInputStream(), received);
+        } catch (IOException x) {
+          failure[0] = x;
+        }
+      }
+    };
+    t.start();
+    long start = System.currentTimeMillis();
+    long cpu = THREADS.getCurrentThreadCpuTime();
+    FileInputStream in = new FileInputStream(f);
+    try {
+      OutputStream sout = new BufferedOutputStream(sender.getOutputStream(),
+          Config.SENDBUF_SIZE);
+      if (mode == 1)
+        sout = new FilterOutputStream(sout) {}; // Writes byte by byte
+      ObjectOutputStream out = new ObjectOutputStream(sout, true);
+      out.writeObject(new TransferHeader(1, new byte[20], SIZE,
+          TransferHeader.ENC_BINARY, TransferHeader.ENC_NONE,
+          TransferHeader.ALL_ENCODINGS));
+      ObjectOutputStream sos = out.writeSubStream(null, SIZE, true);
+      Util.copyStream(in, sos);
+      sos.close();
+      out.flush();
+    } finally {
+      in.close();
+    }
+    cpu = THREADS.getCurrentThreadCpuTime() - cpu;
+    t.join();
+    long elapsed = Math.max(1l, System.currentTimeMillis() - start);
+    sender.close();
+    receiver.close();
+    if (failure[0] != null)
+      throw failure[0];
+    Assert.assertEquals(SIZE, received[0]);
+    Assert.assertEquals(MARKER, received[1]);
+    Log.info("Transfer: " + (mode == 0 ? "bulk" : "bytewise") + ", MB=" +
+        (SIZE >> 20) + ", MB/s=" + (SIZE * 1000 / elapsed >> 20) +
+        ", sender CPU ms=" + (cpu / 1000000));
+  }
+
+  // Returns data length, and stores the last 8 bytes in tail[1]
+  private static long receive(InputStream is, long[] tail)
+      throws IOException {
+    ObjectInputStream in = new ObjectInputStream(is, true);
+    TransferHeader th = new TransferHeader();
+    in.readObject(th);
+    Assert.assertEquals(SIZE, th.getSizeEstimate());
+    InputStream sin = in.readSubStream();
+    byte[] buf = new byte[64 * 1024];
+    long len = 0;
+    for (int n; (n = sin.read(buf, 0, buf.length)) > 0;) {
+      len += n;
+      for (int i = Math.max(0, n - 8); i < n; i++)
+        tail[1] = (tail[1] << 8) | (buf[i] & 0xff);
+    }
+    return len;
+  }
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(TransferBench.class);
+  }
+}
+
+// arch-tag: 68a7c75f-ae4b-4582-8b38-5697cc415c5e
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.syxaw.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import fc.syxaw.hierfs.DirectoryEntry;
+import fc.syxaw.storage.hfsbase.StoredDirectoryTree;
+import fc.util.IOUtil;
+import fc.util.log.Log;
+import fc.xml.xmlr.NodeNotFoundException;
+import fc.xml.xmlr.RefTreeNode;
+import fc.xml.xmlr.RefTreeNodeImpl;
+import fc.xml.xmlr.model.StringKey;
+
+/** Directory tree node codec benchmark. Builds a directory tree with XML
+ * node content, and times a traversal of the tree, reading the content of
+ * each node, and an update of the version of each file. The tree is then
+ * reopened with binary node content, which rewrites all nodes, and the
+ * traversal and update are timed again. The content read in both forms is
+ * verified to be equal. The traversals start from a freshly opened tree,
+ * so that the read cache of the tree is empty.
+ */
+
+public class TreeCodecBench extends TestCase {
+
+  /** Number of files in the tree. */
+  public static final int FILES =
+    Integer.getInteger("syxaw.test.bench.nodes", 20000).intValue();
+
+  /** Number of nodes updated per batch. */
+  public static final int BATCH = 1000;
+
+  private static final int FANOUT = 20;
+  // Common file names; the rest are unique
+  private static final String[] NAMES = {"Makefile", "README", "index.html",
+    "build.xml", "package.html", "CVS", "Entries", "Root", "Repository"};
+
+  private File dir;
+
+  public TreeCodecBench(String name) {
+    super(name);
+  }
+
+  protected void setUp() throws IOException {
+    dir = File.createTempFile("dirtree", "");
+    dir.delete();
+    dir.mkdirs();
+    StringKey rootId = StringKey.createKey("0");
+    StoredDirectoryTree.Maintenance.init(dir, new RefTreeNodeImpl(null,
+        rootId, new StoredDirectoryTree.NodeImpl(DirectoryEntry.TREE, rootId,
+        "location-0", null, "1", null, 0, 0, null, "1", rootId)));
+  }
+
+  protected void tearDown() throws IOException {
+    IOUtil.delTree(dir);
+  }
+
+  public void testCodecs() throws IOException, NodeNotFoundException {
+    StoredDirectoryTree t = new StoredDirectoryTree(dir, null, false);
+    build(t);
+    t.close();
+    long xmlTraverse = traverse(false, new ArrayList());
+    long xmlUpdate = update(false);
+    List xmlNodes = new ArrayList();
+    traverse(false, xmlNodes);
+
+    long start = System.currentTimeMillis();
+    new StoredDirectoryTree(dir, null, true).close();
+    long migrate = System.currentTimeMillis() - start;
+    List binNodes = new ArrayList();
+    long binTraverse = traverse(true, binNodes);
+    Assert.assertEquals(xmlNodes.size(), binNodes.size());
+    for (int i = 0; i < xmlNodes.size(); i++)
+      Assert.assertEquals(xmlNodes.get(i), binNodes.get(i));
+    long binUpdate = update(true);
+    Log.info("Directory tree: nodes=" + xmlNodes.size() + ", XML traverse ms="
+        + xmlTraverse + ", update ms=" + xmlUpdate + "; binary traverse ms="
+        + binTraverse + ", update ms=" + binUpdate + "; migrate ms=" +
+        migrate);
+    // Binary nodes are read also when writing XML
+    binNodes.clear();
+    traverse(false, binNodes);
+    Assert.assertEquals(xmlNodes.size(), binNodes.size());
+  }
+
+  // Tree of directories with FANOUT entries each
+  private void build(StoredDirectoryTree t) throws IOException {
+    Random rnd = new Random(FILES);
+    LinkedList dirs = new LinkedList();
+    dirs.add(StringKey.createKey("0"));
+    int id = 1, files = 0;
+    t.begin();
+    while (files < FILES) {
+      StringKey parent = (StringKey) dirs.removeFirst();
+      for (int i = 0; i < FANOUT && files < FILES; i++) {
+        StringKey key = StringKey.createKey(String.valueOf(id++));
+        if (i % 5 == 0) {
+          t.insert(parent, -1, key, new StoredDirectoryTree.NodeImpl(
+              DirectoryEntry.DIR, key, null, "dir" + id, null, null, 0, 0, null,
+              null, key));
+          dirs.add(key);
+        } else {
+          String name = rnd.nextInt(3) == 0 ? NAMES[rnd.nextInt(NAMES.length)] :
+            "file" + id + ".java";
+          t.insert(parent, -1, key, new StoredDirectoryTree.NodeImpl(
+              DirectoryEntry.FILE, key, null, name, null,
+              Long.toString(rnd.nextLong() & Long.MAX_VALUE, 36) + "AAAA",
+              rnd.nextInt(100), rnd.nextInt(100), null, null, key));
+          files++;
+        }
+      }
+      if (files % BATCH < FANOUT) {
+        t.commit();
+        t.begin();
+      }
+    }
+    t.commit();
+  }
+
+  // Read content of each node; returns ms
+  private long traverse(boolean binary, List nodes) throws IOException {
+    long start = System.currentTimeMillis();
+    StoredDirectoryTree t = new StoredDirectoryTree(dir, null, binary);
+    traverse(t.getRoot(), nodes);
+    t.close();
+    return System.currentTimeMillis() - start;
+  }
+
+  private void traverse(RefTreeNode n, List nodes) {
+    nodes.add(n.getContent());
+    for (Iterator i = n.getChildIterator(); i.hasNext();)
+      traverse((RefTreeNode) i.next(), nodes);
+  }
+
+  // Bump version of each file, in batches; returns ms
+  private long update(boolean binary)
+    throws IOException, NodeNotFoundException {
+    StoredDirectoryTree t = new StoredDirectoryTree(dir, null, binary);
+    List nodes = new ArrayList();
+    traverse(t.getRoot(), nodes);
+    long start = System.currentTimeMillis();
+    int count = 0;
+    t.begin();
+    for (Iterator i = nodes.iterator(); i.hasNext();) {
+      StoredDirectoryTree.Node n = (StoredDirectoryTree.Node) i.next();
+      if (n.getType() != DirectoryEntry.FILE)
+        continue;
+      t.update(n.getId(), new StoredDirectoryTree.NodeImpl(n.getType(),
+          (StringKey) n.getId(), null, n.getName(), null, n.getUid(),
+          n.getVersion() + 1, n.getLinkVersion(), n.getLinkUid(), null,
+          (StringKey) n.getId()));
+      if (++count % BATCH == 0) {
+        t.commit();
+        t.begin();
+      }
+    }
+    t.commit();
+    long elapsed = System.currentTimeMillis() - start;
+    t.close();
+    return elapsed;
+  }
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(TreeCodecBench.class);
+  }
+}
+
+// arch-tag: 421a176f-8f5a-475d-ac94-cab62e533cc0
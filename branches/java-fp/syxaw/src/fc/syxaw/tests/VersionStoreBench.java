@@ -0,0 +1,339 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.syxaw.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import fc.syxaw.fs.Constants;
+import fc.syxaw.fs.FullMetadata;
+import fc.syxaw.fs.FullMetadataImpl;
+import fc.syxaw.fs.GUID;
+import fc.syxaw.fs.UID;
+import fc.syxaw.storage.hfsbase.BlobStore;
+import fc.syxaw.storage.hfsbase.VersionDB;
+import fc.util.IOUtil;
+import fc.util.log.Log;
+
+/** Version database benchmark. Commits a synthetic version history to a
+ * version database storing full copies, and to one using a
+ * {@link BlobStore}, and logs the disk space used and the commit
+ * throughput of each. Each version of an object overwrites a few small
+ * regions of the previous one, and sometimes inserts data. Some objects
+ * start out as copies of other objects.
+ * <p>The lookup benchmark grows a store of mostly metadata-only histories, and
+ * logs the time to find the current version of an object in a freshly
+ * opened database, both using the version index and when recovering the
+ * version lists from the directory.
+ * <p>Also checks that the version of a failed commit is rolled back, and
+ * that the version of an interrupted commit is dropped, and its blob
+ * released, when the database is reopened, and that the chunks of a
+ * blob released while it is read are kept until the reader is closed.
+ */
+
+public class VersionStoreBench extends TestCase {
+
+  /** Number of objects. */
+  public static final int OBJECTS =
+    Integer.getInteger("syxaw.test.bench.objects", 40).intValue();
+
+  /** Versions committed per object. */
+  public static final int VERSIONS =
+    Integer.getInteger("syxaw.test.bench.versions", 10).intValue();
+
+  /** Initial object size. */
+  public static final int SIZE =
+    Integer.getInteger("syxaw.test.bench.size", 262144).intValue();
+
+  /** Number of objects in the first step of the lookup benchmark. The
+   * store is doubled in size for each following step. */
+  public static final int LOOKUP_OBJECTS =
+    Integer.getInteger("syxaw.test.bench.lookup.objects", 250).intValue();
+
+  /** Number of steps in the lookup benchmark. */
+  public static final int LOOKUP_STEPS =
+    Integer.getInteger("syxaw.test.bench.lookup.steps", 4).intValue();
+
+  public VersionStoreBench(String name) {
+    super(name);
+  }
+
+  public void testHistory() throws IOException {
+    File dir = File.createTempFile("verdb", "");
+    dir.delete();
+    try {
+      File full = new File(dir,"full");
+      File chunked = new File(dir,"chunked");
+      full.mkdirs();
+      chunked.mkdirs();
+      long fullTime = commitHistory(new VersionDB(full));
+      BlobStore blobs = new BlobStore(new File(dir,"blobs"));
+      long chunkedTime = commitHistory(new VersionDB(chunked,blobs));
+      blobs.close();
+      long fullSize = du(full);
+      long chunkedSize = du(chunked) + du(new File(dir,"blobs"));
+      double mb = ((double) blobs.getLogicalSize())/(1024*1024);
+      Log.info("Version store: full copies size="+fullSize+", MB/s="+
+          (1000.0*mb/Math.max(1l,fullTime)));
+      Log.info("Version store: blob store size="+chunkedSize+", MB/s="+
+          (1000.0*mb/Math.max(1l,chunkedTime))+", saved="+
+          (100-(100*chunkedSize)/Math.max(1l,fullSize))+"%", blobs);
+    } finally {
+      IOUtil.delTree(dir);
+    }
+  }
+
+  public void testLookup() throws IOException {
+    File dir = File.createTempFile("verdb", "");
+    dir.delete();
+    dir.mkdirs();
+    try {
+      VersionDB db = new VersionDB(dir);
+      int count = 0;
+      for( int step=0;step<LOOKUP_STEPS;step++) {
+        int objects = LOOKUP_OBJECTS << step;
+        for( ;count<objects;count++) {
+          GUID id = lookupId(count);
+          for( int v=0;v<VERSIONS;v++) {
+            FullMetadataImpl md = new FullMetadataImpl();
+            md.setHash(new byte[16]);
+            db.commit(id, md, v == 0 ? new ByteArrayInputStream(new byte[16])
+                                     : null);
+          }
+        }
+        long indexed = timeLookups(dir, objects);
+        File[] files = dir.listFiles();
+        for( int i=0;i<files.length;i++) {
+          if( files[i].getName().endsWith(",i") )
+            files[i].delete();
+        }
+        long recovered = timeLookups(dir, objects);
+        Log.info("Version lookup: objects="+objects+", versions="+
+                 objects*VERSIONS+", us/lookup indexed="+
+                 (1000*indexed/objects)+", recovered="+
+                 (1000*recovered/objects));
+      }
+    } finally {
+      IOUtil.delTree(dir);
+    }
+  }
+
+  /** Check that the version of an interrupted commit is dropped, and its
+   * chunks released, when the database is reopened. */
+  public void testInterruptedCommit() throws IOException {
+    File dir = File.createTempFile("verdb", "");
+    dir.delete();
+    dir.mkdirs();
+    try {
+      File blobDir = new File(dir,"blobs");
+      BlobStore blobs = new BlobStore(blobDir);
+      GUID id = lookupId(0);
+      Random rnd = new Random(42l);
+      byte[] data = new byte[SIZE];
+      rnd.nextBytes(data);
+      int v1 = new VersionDB(dir,blobs).commit(id, new FullMetadataImpl(),
+          new ByteArrayInputStream(data)).getDataVersion();
+      long chunks = countFiles(blobDir);
+      rnd.nextBytes(data);
+      int v2 = new VersionDB(dir,blobs).commit(id, new FullMetadataImpl(),
+          new ByteArrayInputStream(data)).getDataVersion();
+      Assert.assertTrue(countFiles(blobDir) > chunks);
+      // Interrupt the commit of v2 before its metadata is written
+      Assert.assertTrue(new File(dir,id.getUId().toBase64()+"@"+
+          id.getLocation()+",m"+v2).delete());
+      VersionDB db = new VersionDB(dir,blobs);
+      Assert.assertEquals(v1,db.getHistory(id).getCurrentVersion());
+      Assert.assertNull(db.getHistory(id).getData(v2));
+      Assert.assertEquals(chunks,countFiles(blobDir));
+      blobs.close();
+    } finally {
+      IOUtil.delTree(dir);
+    }
+  }
+
+  /** Check that the chunks of a released blob are not deleted while the
+   * blob is read. */
+  public void testReleaseWhileReading() throws IOException {
+    File dir = File.createTempFile("verdb", "");
+    dir.delete();
+    dir.mkdirs();
+    try {
+      File blobDir = new File(dir,"blobs");
+      BlobStore blobs = new BlobStore(blobDir);
+      byte[] data = new byte[SIZE];
+      new Random(42l).nextBytes(data);
+      File recipe = new File(dir,"recipe");
+      OutputStream out = blobs.create(recipe);
+      out.write(data);
+      out.close();
+      long chunks = countFiles(blobDir);
+      Assert.assertTrue(chunks > 1);
+      InputStream in = blobs.open(recipe);
+      blobs.release(recipe);
+      Assert.assertEquals(chunks,countFiles(blobDir));
+      ByteArrayOutputStream read = new ByteArrayOutputStream();
+      byte[] buf = new byte[4096];
+      for( int n;(n = in.read(buf,0,buf.length)) > -1;)
+        read.write(buf,0,n);
+      Assert.assertTrue(Arrays.equals(data,read.toByteArray()));
+      in.close();
+      Assert.assertEquals(0l,countFiles(blobDir));
+      blobs.close();
+    } finally {
+      IOUtil.delTree(dir);
+    }
+  }
+
+  /** Check that a commit that fails while writing the data leaves no
+   * version behind, in memory or in the index. */
+  public void testFailedCommit() throws IOException {
+    File dir = File.createTempFile("verdb", "");
+    dir.delete();
+    dir.mkdirs();
+    try {
+      VersionDB db = new VersionDB(dir);
+      GUID id = lookupId(0);
+      int v1 = db.commit(id, new FullMetadataImpl(),
+          new ByteArrayInputStream(new byte[16])).getDataVersion();
+      InputStream failing = new InputStream() {
+        int left = 1024;
+        public int read() throws IOException {
+          if( left <= 0 )
+            throw new IOException("Simulated read error");
+          left--;
+          return 0;
+        }
+      };
+      db.commit(id, new FullMetadataImpl(), failing);
+      Assert.assertEquals(v1,db.getHistory(id).getCurrentVersion());
+      Assert.assertEquals(v1,new VersionDB(dir).getHistory(id).
+          getCurrentVersion());
+      int v2 = db.commit(id, new FullMetadataImpl(),
+          new ByteArrayInputStream(new byte[32])).getDataVersion();
+      Assert.assertEquals(v1+1,v2);
+      Assert.assertEquals(v2,new VersionDB(dir).getHistory(id).
+          getCurrentVersion());
+    } finally {
+      IOUtil.delTree(dir);
+    }
+  }
+
+  // Look up current version of each object in a freshly opened db
+  private long timeLookups(File dir, int objects) {
+    VersionDB db = new VersionDB(dir);
+    long start = System.currentTimeMillis();
+    for( int i=0;i<objects;i++) {
+      int v = db.getHistory(lookupId(i)).getCurrentVersion();
+      Assert.assertEquals(Constants.FIRST_VERSION+VERSIONS-1,v);
+    }
+    return System.currentTimeMillis()-start;
+  }
+
+  private static GUID lookupId(int i) {
+    return new GUID("bench",UID.createFromBytes(new byte[] {(byte) i,
+        (byte) (i >> 8), (byte) (i >> 16), 2, 3, 4, 5, 6, 7, 8, 9, 10, 11,
+        12, 13, 14}));
+  }
+
+  // Commit same history to db, verifying the last version
+  protected long commitHistory(VersionDB db) throws IOException {
+    Random rnd = new Random(42l);
+    byte[][] data = new byte[OBJECTS][];
+    GUID[] ids = new GUID[OBJECTS];
+    for( int i=0;i<OBJECTS;i++) {
+      ids[i] = new GUID("bench",UID.createFromBytes(new byte[] {(byte) i,
+          (byte) (i >> 8), 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14}));
+      if( i > 0 && rnd.nextInt(5) == 0 )
+        data[i] = (byte[]) data[rnd.nextInt(i)].clone();
+      else {
+        data[i] = new byte[SIZE];
+        rnd.nextBytes(data[i]);
+      }
+    }
+    long start = System.currentTimeMillis();
+    int[] lastVersion = new int[OBJECTS];
+    for( int v=0;v<VERSIONS;v++) {
+      for( int i=0;i<OBJECTS;i++) {
+        if( v > 0 )
+          data[i] = edit(data[i],rnd);
+        FullMetadata md = db.commit(ids[i], new FullMetadataImpl(),
+            new ByteArrayInputStream(data[i]));
+        lastVersion[i] = md.getDataVersion();
+      }
+    }
+    long time = System.currentTimeMillis()-start;
+    for( int i=0;i<OBJECTS;i++) {
+      InputStream in = db.getHistory(ids[i]).getData(lastVersion[i]);
+      try {
+        for( int j=0;j<data[i].length;j++)
+          Assert.assertEquals((byte) in.read(),data[i][j]);
+        Assert.assertEquals(-1,in.read());
+      } finally {
+        in.close();
+      }
+    }
+    return time;
+  }
+
+  private byte[] edit(byte[] data, Random rnd) {
+    for( int i=0;i<3;i++) {
+      int pos = rnd.nextInt(data.length-100);
+      for( int j=0;j<100;j++)
+        data[pos+j] = (byte) rnd.nextInt();
+    }
+    if( rnd.nextBoolean() ) {
+      int pos = rnd.nextInt(data.length);
+      byte[] ndata = new byte[data.length+200];
+      System.arraycopy(data,0,ndata,0,pos);
+      System.arraycopy(data,pos,ndata,pos+200,data.length-pos);
+      data = ndata;
+    }
+    return data;
+  }
+
+  private static long du(File f) {
+    if( !f.isDirectory() )
+      return f.length();
+    long size = 0l;
+    File[] files = f.listFiles();
+    for( int i=0;i<files.length;i++)
+      size += du(files[i]);
+    return size;
+  }
+
+  // Number of files in the subdirectories of dir, i.e., chunks of a blob
+  // store
+  private static long countFiles(File dir) {
+    long count = 0l;
+    File[] files = dir.listFiles();
+    for( int i=0;i<files.length;i++) {
+      if( files[i].isDirectory() )
+        count += files[i].list().length;
+    }
+    return count;
+  }
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(VersionStoreBench.class);
+  }
+}
+
+// arch-tag: b518157d-8953-44f5-b988-c41c3a181ff5
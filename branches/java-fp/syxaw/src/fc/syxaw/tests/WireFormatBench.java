@@ -0,0 +1,218 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.syxaw.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.servlet.http.HttpUtils;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import fc.syxaw.api.StatusCodes;
+import fc.syxaw.protocol.DownloadRequest;
+import fc.syxaw.protocol.TransferHeader;
+import fc.syxaw.protocol.TransmitStatus;
+import fc.syxaw.transport.BinaryPropertyDeserializer;
+import fc.syxaw.transport.BinaryPropertySerializer;
+import fc.syxaw.transport.ObjectInputStream;
+import fc.syxaw.transport.ObjectOutputStream;
+import fc.syxaw.transport.PropertyDeserializer;
+import fc.syxaw.transport.PropertySerializable;
+import fc.syxaw.transport.PropertySerializer;
+import fc.util.log.Log;
+
+/** Wire format benchmark. Simulates the batch download of a directory
+ * of {@link #FILES} files, as made by a directory sync, in the text
+ * formats and in the binary format negotiated by
+ * {@link fc.syxaw.transport.HTTPCallChannel}. The exchange consists of
+ * <ul>
+ * <li>the request header, a {@link DownloadRequest} with a sub-request for
+ * each file, sent as an URL encoded query string or a binary object,</li>
+ * <li>the reply header, sent as <code>X</code> HTTP headers or a binary
+ * object, and</li>
+ * <li>for each file, a {@link TransmitStatus}, a {@link TransferHeader} and
+ * {@link #DATA_SIZE} bytes of data, sent as XML or binary objects.</li>
+ * </ul>
+ * Both formats are encoded and decoded, and the decoded objects verified.
+ * The bytes on the wire and the CPU time per file are logged for both
+ * formats. HTTP framing, which is the same for both formats, is not
+ * counted.
+ */
+
+public class WireFormatBench extends TestCase {
+
+  /** Number of files in the directory. */
+  public static final int FILES =
+    Integer.getInteger("syxaw.test.bench.files", 10000).intValue();
+
+  /** Bytes of data per file. */
+  public static final int DATA_SIZE = 64;
+
+  /** Number of rounds. */
+  public static final int ROUNDS = 3;
+
+  private static final ThreadMXBean THREADS =
+    ManagementFactory.getThreadMXBean();
+
+  public WireFormatBench(String name) {
+    super(name);
+  }
+
+  public void testDirectorySync() throws IOException {
+    for (int round = 0; round < ROUNDS; round++) {
+      long[] text = exchange(false);
+      long[] binary = exchange(true);
+      Log.info("Wire format: files=" + FILES + ", bytes/file text=" +
+          (text[0] / FILES) + " (request " + (text[1] / FILES) +
+          "), binary=" + (binary[0] / FILES) + " (request " +
+          (binary[1] / FILES) + "); CPU us/file text=" + (text[2] / 1000 /
+          FILES) + ", binary=" + (binary[2] / 1000 / FILES));
+    }
+  }
+
+  // Returns {total bytes, request bytes, CPU ns}
+  private long[] exchange(boolean binary) throws IOException {
+    long cpu = THREADS.getCurrentThreadCpuTime();
+    // Request
+    DownloadRequest[] subs = new DownloadRequest[FILES];
+    for (int i = 0; i < FILES; i++)
+      subs[i] = new DownloadRequest(objectId(i), new int[] {1000 + i % 7},
+          true, true, false, null);
+    DownloadRequest req = new DownloadRequest("", null, true, true, false,
+        subs);
+    byte[] request = binary ? writeBinary(req) : writeQuery(req);
+    DownloadRequest rreq = new DownloadRequest();
+    if (binary)
+      new BinaryPropertyDeserializer(request, 0, request.length).readObjects(
+          new PropertySerializable[] {rreq});
+    else
+      readQuery(request, rreq);
+    Assert.assertEquals(FILES, rreq.getObjects().length);
+
+    // Reply
+    TransmitStatus status = new TransmitStatus(StatusCodes.SEE_SUBSTATUSES,
+        1000);
+    byte[] replyHeader = binary ? writeBinary(status) : writeHeaders(status);
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bout, binary);
+    byte[] data = new byte[DATA_SIZE];
+    for (int i = 0; i < FILES; i++) {
+      DownloadRequest sub = rreq.getObjects()[i];
+      byte[] hash = new byte[20];
+      hash[0] = (byte) i;
+      out.writeObject(new TransmitStatus(StatusCodes.OK,
+          sub.getVersionsAvailable()[0] + 1, sub.getObject()));
+      out.writeObject(new TransferHeader(sub.getVersionsAvailable()[0] + 1,
+          hash, DATA_SIZE, TransferHeader.ENC_BINARY, TransferHeader.ENC_NONE,
+          TransferHeader.ALL_ENCODINGS));
+      OutputStream sout = out.writeSubStream(null, DATA_SIZE, false);
+      sout.write(data);
+      sout.close();
+    }
+    out.flush();
+    byte[] reply = bout.toByteArray();
+    ObjectInputStream in = new ObjectInputStream(
+        new ByteArrayInputStream(reply), binary);
+    for (int i = 0; i < FILES; i++) {
+      TransmitStatus ts = new TransmitStatus();
+      TransferHeader th = new TransferHeader();
+      in.readObject(ts);
+      in.readObject(th);
+      InputStream sin = in.readSubStream();
+      int len = 0;
+      for (int n; (n = sin.read(data, 0, data.length)) > 0;)
+        len += n;
+      Assert.assertEquals(DATA_SIZE, len);
+      Assert.assertEquals(objectId(i), ts.getObject());
+      Assert.assertEquals(1001 + i % 7, ts.getVersion());
+      Assert.assertEquals((byte) i, th.getHash()[0]);
+      Assert.assertEquals(DATA_SIZE, th.getSizeEstimate());
+    }
+    cpu = THREADS.getCurrentThreadCpuTime() - cpu;
+    return new long[] {request.length + replyHeader.length + reply.length,
+        request.length, cpu};
+  }
+
+  private static String objectId(int i) {
+    // Base64 UID, as in fs.UID.toBase64Q()
+    return "alc" + Integer.toString(1000000 + i, 36) + "HJhtfsiy2Wf";
+  }
+
+  private static byte[] writeBinary(PropertySerializable obj)
+    throws IOException {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    new BinaryPropertySerializer(bout).writeObjects(
+        new PropertySerializable[] {obj});
+    return bout.toByteArray();
+  }
+
+  // As in HTTPCallChannel.getDefaultFile()
+  private static byte[] writeQuery(PropertySerializable obj)
+    throws IOException {
+    Map props = new HashMap();
+    new PropertySerializer(props).writeObject(obj);
+    StringBuffer sb = new StringBuffer();
+    for (Iterator i = props.entrySet().iterator(); i.hasNext();) {
+      Map.Entry e = (Map.Entry) i.next();
+      if (sb.length() > 0)
+        sb.append('&');
+      sb.append(URLEncoder.encode((String) e.getKey(), "UTF-8"));
+      sb.append('=');
+      sb.append(URLEncoder.encode((String) e.getValue(), "UTF-8"));
+    }
+    return sb.toString().getBytes("ISO-8859-1");
+  }
+
+  // As in HTTPCallServer.service()
+  private static void readQuery(byte[] query, PropertySerializable obj) {
+    Map params = HttpUtils.parseQueryString(new String(query));
+    Map props = new HashMap();
+    for (Iterator i = params.entrySet().iterator(); i.hasNext();) {
+      Map.Entry e = (Map.Entry) i.next();
+      props.put(e.getKey(), ((String[]) e.getValue())[0]);
+    }
+    new PropertyDeserializer(props).readObject(obj);
+  }
+
+  // Reply headers as X HTTP header lines
+  private static byte[] writeHeaders(PropertySerializable obj) {
+    Map props = new HashMap();
+    try {
+      new PropertySerializer(props).writeObject(obj);
+    } catch (IOException x) {
+      Log.fatal(x);
+    }
+    StringBuffer sb = new StringBuffer();
+    for (Iterator i = props.entrySet().iterator(); i.hasNext();) {
+      Map.Entry e = (Map.Entry) i.next();
+      sb.append("X" + e.getKey() + ": " + e.getValue() + "\r\n");
+    }
+    return sb.toString().getBytes();
+  }
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(WireFormatBench.class);
+  }
+}
+
+// arch-tag: 86ef1f04-3ffb-4b78-ba34-4f01f80b75be
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.syxaw.transport;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+
+/** Deserialize object from the binary property format.
+ * @see BinaryPropertySerializer for a description of the serialized format.
+ */
+
+public class BinaryPropertyDeserializer {
+
+  protected byte[] b;
+  protected int pos;
+  protected int end;
+
+  /** Create deserializer.
+   *
+   * @param b buffer to deserialize from
+   * @param off offset of serialized data in buffer
+   * @param len length of serialized data
+   */
+  public BinaryPropertyDeserializer(byte[] b, int off, int len) {
+    this.b = b;
+    this.pos = off;
+    this.end = off + len;
+  }
+
+  /** Read object.
+   *
+   * @param obj Object which is initialized with the deserialized values
+   * @return <code>obj</code>
+   * @throws IOException if the data is malformed
+   */
+  public Object readObject(PropertySerializable obj) throws IOException {
+    PropertySerializable.ClassInfo ci =
+      BinaryPropertySerializer.getClassInfo(obj);
+    Class[] types = ci.keyClasses;
+    Object[] sprops = new Object[ci.keys.length];
+    System.arraycopy(ci.defaults, 0, sprops, 0, sprops.length);
+    for( long key;(key = readVarint()) != BinaryPropertySerializer.END;) {
+      int wireType = (int) (key & BinaryPropertySerializer.TYPE_MASK);
+      long index = (key >>> BinaryPropertySerializer.TYPE_BITS) - 1;
+      Class type = index >= 0 && index < sprops.length ?
+        types[(int) index] : null;
+      if( type == null || wireType != getWireType(type) ) {
+        skip(wireType); // Unknown property
+        continue;
+      }
+      Object val = null;
+      if( type == String.class )
+        val = readString();
+      else if( type == Boolean.class )
+        val = readSignedVarint() != 0 ? Boolean.TRUE : Boolean.FALSE;
+      else if( type == Byte.class )
+        val = new Byte((byte) readSignedVarint());
+      else if( type == Short.class )
+        val = new Short((short) readSignedVarint());
+      else if( type == Character.class )
+        val = new Character((char) readSignedVarint());
+      else if( type == Integer.class )
+        val = new Integer((int) readSignedVarint());
+      else if( type == Long.class )
+        val = new Long(readSignedVarint());
+      else if( type == byte[].class ) {
+        int len = readLength();
+        byte[] v = new byte[len];
+        System.arraycopy(b, pos, v, 0, len);
+        pos += len;
+        val = v;
+      } else if( type == int[].class ) {
+        int[] v = new int[readCount()];
+        for( int j=0;j<v.length;j++)
+          v[j] = (int) readSignedVarint();
+        val = v;
+      } else if( type == String[].class ) {
+        String[] v = new String[readCount()];
+        for( int j=0;j<v.length;j++)
+          v[j] = readString();
+        val = v;
+      } else {
+        int len = readCount();
+        Class entryType = type.getComponentType();
+        PropertySerializable[] v =
+          (PropertySerializable[]) Array.newInstance(entryType,len);
+        for( int j=0;j<len;j++)
+          v[j] = (PropertySerializable) readObject(newInstance(entryType));
+        val = v;
+      }
+      sprops[(int) index] = val;
+    }
+    obj.propDeserialize(sprops);
+    return obj;
+  }
+
+  /** Read a list of objects written by
+   * {@link BinaryPropertySerializer#writeObjects}. If the list holds fewer
+   * objects than given, the remaining objects are initialized with
+   * default values. Excess objects in the list are skipped.
+   *
+   * @param objs objects to initialize with the deserialized values
+   * @throws IOException if the data is malformed
+   */
+  public void readObjects(PropertySerializable[] objs) throws IOException {
+    int count = readCount();
+    for( int i=0;i<Math.max(count,objs.length);i++) {
+      if( i >= count )
+        readDefaults(objs[i]);
+      else if( i < objs.length )
+        readObject(objs[i]);
+      else
+        skipObject();
+    }
+  }
+
+  protected void readDefaults(PropertySerializable obj) {
+    PropertySerializable.ClassInfo ci =
+      BinaryPropertySerializer.getClassInfo(obj);
+    Object[] sprops = new Object[ci.keys.length];
+    System.arraycopy(ci.defaults, 0, sprops, 0, sprops.length);
+    obj.propDeserialize(sprops);
+  }
+
+  static int getWireType(Class type) {
+    if( type == String.class || type == byte[].class )
+      return BinaryPropertySerializer.BYTES;
+    else if( type == int[].class )
+      return BinaryPropertySerializer.INTS;
+    else if( type == String[].class )
+      return BinaryPropertySerializer.STRINGS;
+    else if( PropertySerializable[].class.isAssignableFrom(type) )
+      return BinaryPropertySerializer.OBJECTS;
+    else if( type == Boolean.class || type == Byte.class ||
+        type == Short.class || type == Character.class ||
+        type == Integer.class || type == Long.class )
+      return BinaryPropertySerializer.VARINT;
+    return -1; // Not serializable
+  }
+
+  protected void skip(int wireType) throws IOException {
+    switch( wireType ) {
+      case BinaryPropertySerializer.VARINT:
+        readVarint();
+        break;
+      case BinaryPropertySerializer.BYTES:
+        pos += readLength();
+        break;
+      case BinaryPropertySerializer.INTS:
+        for( int i = readCount();i>0;i--)
+          readVarint();
+        break;
+      case BinaryPropertySerializer.STRINGS:
+        for( int i = readCount();i>0;i--)
+          pos += readLength();
+        break;
+      case BinaryPropertySerializer.OBJECTS:
+        for( int i = readCount();i>0;i--)
+          skipObject();
+        break;
+      default:
+        throw new IOException("Unknown wire type "+wireType);
+    }
+  }
+
+  protected void skipObject() throws IOException {
+    for( long key;(key = readVarint()) != BinaryPropertySerializer.END;)
+      skip((int) (key & BinaryPropertySerializer.TYPE_MASK));
+  }
+
+  protected long readVarint() throws IOException {
+    long v = 0;
+    for( int shift = 0;shift < 64;shift += 7 ) {
+      if( pos >= end )
+        throw new IOException("Unexpected end of object");
+      int c = b[pos++];
+      v |= ((long) (c & 0x7f)) << shift;
+      if( (c & 0x80) == 0 )
+        return v;
+    }
+    throw new IOException("Malformed varint");
+  }
+
+  protected long readSignedVarint() throws IOException {
+    long v = readVarint();
+    return (v >>> 1) ^ -(v & 1);
+  }
+
+  // Length of data that follows
+  protected int readLength() throws IOException {
+    long len = readVarint();
+    if( len > end - pos )
+      throw new IOException("Unexpected end of object");
+    return (int) len;
+  }
+
+  // Number of entries that follow; each entry takes at least a byte
+  protected int readCount() throws IOException {
+    return readLength();
+  }
+
+  protected String readString() throws IOException {
+    int len = readLength();
+    String s = new String(b, pos, len, "UTF-8");
+    pos += len;
+    return s;
+  }
+
+  private static PropertySerializable newInstance(Class c)
+      throws IOException {
+    try {
+      return (PropertySerializable) c.newInstance();
+    } catch (Exception x) {
+      throw new IOException("Cannot instantiate "+c.getName()+": "+x);
+    }
+  }
+}
+
+// arch-tag: bd31d512-55c1-4b6a-9742-0d054c7c505f
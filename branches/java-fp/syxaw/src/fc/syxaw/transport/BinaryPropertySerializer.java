@@ -0,0 +1,180 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.syxaw.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import fc.util.log.Log;
+
+/** Class for serializing an object in a compact binary format. The class
+ * serializes the same properties as {@link PropertySerializer}, and has the
+ * same limitations, but writes them as tagged binary fields rather than
+ * as a map of strings.
+ * <p>An object is serialized as a sequence of fields terminated by a
+ * zero byte. Each field is a key followed by the value of the field. The
+ * key is the varint <code>((index+1)&lt;&lt;3)|type</code>, where
+ * <code>index</code> is the position of the property in the
+ * {@link PropertySerializable.ClassInfo} of the object, and
+ * <code>type</code> is the wire type of the value, one of:
+ * <dl>
+ * <dt>{@link #VARINT}</dt>
+ * <dd><code>Boolean</code>, <code>Byte</code>, <code>Short</code>,
+ * <code>Character</code>, <code>Integer</code> and <code>Long</code>. The
+ * value is a zigzag encoded varint.</dd>
+ * <dt>{@link #BYTES}</dt>
+ * <dd><code>String</code> and <code>byte[]</code>. The value is the varint
+ * length of the data, followed by the data. Strings are UTF-8 encoded.</dd>
+ * <dt>{@link #INTS}</dt>
+ * <dd><code>int[]</code>. The value is the varint length of the array,
+ * followed by each integer as a zigzag encoded varint.</dd>
+ * <dt>{@link #STRINGS}</dt>
+ * <dd><code>String[]</code>. The value is the varint length of the array,
+ * followed by each string as a {@link #BYTES} value.</dd>
+ * <dt>{@link #OBJECTS}</dt>
+ * <dd><code>PropertySerializable[]</code>. The value is the varint length
+ * of the array, followed by each serialized object.</dd>
+ * </dl>
+ * Varints are written in base 128, least significant group first. As with
+ * the property format, fields having the default value are not
+ * serialized. Since each field carries its wire type, a reader skips any
+ * field it does not know; new properties must hence be appended to the
+ * keys of a class, so that the index of existing properties is kept.
+ * <p>Example serialization of a {@link fc.syxaw.codec.VersionReference}
+ * referencing version 1008 (hex): <code>08 e0 0f 00</code>.
+ */
+
+public class BinaryPropertySerializer {
+
+  /** Wire type of integer values. */
+  public static final int VARINT = 0;
+  /** Wire type of strings and byte arrays. */
+  public static final int BYTES = 1;
+  /** Wire type of integer arrays. */
+  public static final int INTS = 2;
+  /** Wire type of string arrays. */
+  public static final int STRINGS = 3;
+  /** Wire type of object arrays. */
+  public static final int OBJECTS = 4;
+
+  static final int TYPE_BITS = 3;
+  static final int TYPE_MASK = (1 << TYPE_BITS) - 1;
+  static final int END = 0;
+
+  protected ByteArrayOutputStream out;
+
+  /** Create serializer.
+   *
+   * @param out stream to serialize to
+   */
+  public BinaryPropertySerializer(ByteArrayOutputStream out) {
+    this.out = out;
+  }
+
+  /** Serialize object.
+   *
+   * @param obj object to serialize
+   * @throws IOException Serialization failure
+   */
+  public void writeObject(PropertySerializable obj) throws IOException {
+    PropertySerializable.ClassInfo ci = getClassInfo(obj);
+    Object[] sprops = obj.propSerialize();
+    for (int i = 0; i < sprops.length; i++) {
+      Object val = sprops[i];
+      if( val == null || ci.defaults[i].equals(val) )
+        continue; // Default val, no serialization
+      int key = (i+1) << TYPE_BITS;
+      if( val instanceof String ) {
+        writeVarint(key | BYTES);
+        writeString((String) val);
+      } else if( val instanceof Boolean ) {
+        writeVarint(key | VARINT);
+        writeVarint(((Boolean) val).booleanValue() ? 2 : 0);
+      } else if( val instanceof Byte || val instanceof Short ||
+          val instanceof Integer || val instanceof Long ) {
+        writeVarint(key | VARINT);
+        writeSignedVarint(((Number) val).longValue());
+      } else if( val instanceof Character ) {
+        writeVarint(key | VARINT);
+        writeSignedVarint(((Character) val).charValue());
+      } else if( val instanceof byte[] ) {
+        byte[] v = (byte[]) val;
+        writeVarint(key | BYTES);
+        writeVarint(v.length);
+        out.write(v,0,v.length);
+      } else if( val instanceof int[] ) {
+        int[] v = (int[]) val;
+        writeVarint(key | INTS);
+        writeVarint(v.length);
+        for( int j=0;j<v.length;j++)
+          writeSignedVarint(v[j]);
+      } else if( val instanceof String[] ) {
+        String[] v = (String[]) val;
+        writeVarint(key | STRINGS);
+        writeVarint(v.length);
+        for( int j=0;j<v.length;j++)
+          writeString(v[j]);
+      } else if( val instanceof PropertySerializable[] ) {
+        PropertySerializable[] v = (PropertySerializable[]) val;
+        writeVarint(key | OBJECTS);
+        writeVarint(v.length);
+        for( int j=0;j<v.length;j++)
+          writeObject(v[j]);
+      } else
+        Log.log("Unable to serialize type: "+val.getClass(),Log.ERROR);
+    }
+    out.write(END);
+  }
+
+  /** Serialize a list of objects, such as the headers of a call. The
+   * list is written as its varint length followed by each object.
+   *
+   * @param objs objects to serialize
+   * @throws IOException Serialization failure
+   */
+  public void writeObjects(PropertySerializable[] objs) throws IOException {
+    writeVarint(objs.length);
+    for( int i=0;i<objs.length;i++)
+      writeObject(objs[i]);
+  }
+
+  protected void writeVarint(long v) {
+    while( (v & ~0x7fl) != 0 ) {
+      out.write((int) (v & 0x7f) | 0x80);
+      v >>>= 7;
+    }
+    out.write((int) v);
+  }
+
+  protected void writeSignedVarint(long v) {
+    writeVarint((v << 1) ^ (v >> 63));
+  }
+
+  protected void writeString(String s) throws IOException {
+    byte[] b = s.getBytes("UTF-8");
+    writeVarint(b.length);
+    out.write(b,0,b.length);
+  }
+
+  static PropertySerializable.ClassInfo getClassInfo(PropertySerializable obj) {
+    Class objC = obj.getClass();
+    PropertySerializable.ClassInfo ci = (PropertySerializable.ClassInfo)
+      PropertySerializable.ClassInfo.classInfos.get(objC);
+    if( ci == null ) {
+      ci = obj.propInit();
+      PropertySerializable.ClassInfo.classInfos.put(objC, ci);
+    }
+    return ci;
+  }
+}
+
+// arch-tag: 38976ec8-07dd-4055-9fc0-76f1ad42f6d4
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.syxaw.transport;
+
+import fc.util.log.Log;
+
+import EDU.oswego.cs.dl.util.concurrent.FIFOSemaphore;
+
+/** Admission control for incoming RPC calls. The dispatcher bounds the
+ * number of call handlers that may execute concurrently, and the number
+ * of calls that may wait for a free slot. With a single slot the
+ * dispatcher serializes all calls, which is the traditional behavior
+ * of the Syxaw server. With several slots, mutual exclusion is left to
+ * the per-object locks of {@link fc.syxaw.fs.LockManager}.
+ * <p>The dispatcher also collects queue depth and wait time statistics,
+ * see {@link #getStatistics()}.
+ */
+
+public class CallDispatcher {
+
+  private final int workers;
+  private final int maxQueued;
+  private final FIFOSemaphore slots;
+
+  // Statistics; guarded by this
+  private int queued = 0;
+  private int active = 0;
+  private int maxQueueDepth = 0;
+  private long calls = 0l;
+  private long rejected = 0l;
+  private long totalWait = 0l;
+  private long maxWait = 0l;
+
+  /** Create a new dispatcher.
+   *
+   * @param workers maximum number of concurrently executing calls
+   * @param maxQueued maximum number of calls waiting to execute.
+   */
+  public CallDispatcher(int workers, int maxQueued) {
+    if( workers < 1 )
+      throw new IllegalArgumentException("Need at least one worker");
+    this.workers = workers;
+    this.maxQueued = maxQueued;
+    slots = new FIFOSemaphore(workers);
+  }
+
+  /** Enter the dispatcher. Blocks until a worker slot is available.
+   *
+   * @return <code>true</code> if the call may proceed, <code>false</code>
+   * if the call was rejected because the wait queue is full. A call that
+   * may proceed must be followed by a call to {@link #leave()}.
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public boolean enter() throws InterruptedException {
+    synchronized(this) {
+      if( queued >= maxQueued && active >= workers ) {
+        rejected++;
+        return false;
+      }
+      queued++;
+      if( queued > maxQueueDepth )
+        maxQueueDepth = queued;
+    }
+    long start = System.currentTimeMillis();
+    boolean acquired = false;
+    try {
+      slots.acquire();
+      acquired = true;
+    } finally {
+      long wait = System.currentTimeMillis()-start;
+      synchronized(this) {
+        queued--;
+        if( acquired ) {
+          active++;
+          calls++;
+          totalWait += wait;
+          if( wait > maxWait )
+            maxWait = wait;
+        }
+      }
+      if(wait > 100) {
+        Log.warning("Waited for RPC request handler ms="+wait);
+      }
+    }
+    return true;
+  }
+
+  /** Leave the dispatcher. Frees the worker slot obtained by
+   * {@link #enter()}.
+   */
+  public void leave() {
+    synchronized(this) {
+      active--;
+    }
+    slots.release();
+  }
+
+  /** Get maximum number of concurrently executing calls. */
+  public int getWorkers() {
+    return workers;
+  }
+
+  /** Get dispatcher statistics. The statistics are returned as an
+   * array <code>{queued, active, maxQueueDepth, calls, rejected,
+   * totalWaitMs, maxWaitMs}</code>.
+   *
+   * @return statistics snapshot
+   */
+  public synchronized long[] getStatistics() {
+    return new long[] {queued, active, maxQueueDepth, calls, rejected,
+        totalWait, maxWait};
+  }
+
+  /** Log dispatcher statistics to the <code>RPC-DISPATCH</code> stat log. */
+  public void logStatistics() {
+    long[] s = getStatistics();
+    fc.syxaw.util.Log.stat("RPC-DISPATCH",
+        "queued", ""+s[0],
+        "max-queue", ""+s[2],
+        "calls", ""+s[3],
+        "rejected", ""+s[4],
+        "avg-wait-ms", ""+(s[3] > 0 ? s[5]/s[3] : 0));
+  }
+
+  public String toString() {
+    long[] s = getStatistics();
+    return "CallDispatcher{workers="+workers+",queued="+s[0]+",active="+s[1]+
+        ",maxQueue="+s[2]+",calls="+s[3]+",rejected="+s[4]+",totalWait="+s[5]+
+        ",maxWait="+s[6]+"}";
+  }
+}
+
+// arch-tag: 2d9c16e8-4b5e-4a1c-9f0e-cd8f7a51d3b2
@@ -30,6 +30,11 @@ public class ChannelProvider {
     cp.put(SimpleGetPutChannel.URI, SimpleGetPutChannel.class);
     CHANNEL_PROVIDERS = cp; 
   }
+
+  // HTTP channels are thread safe and kept alive, so we keep one per
+  // destination
+  private static final Map/*!5 <String, HTTPCallChannel> */ HTTP_CHANNELS =
+    new HashMap/*!5 <String, HTTPCallChannel> */();
   
   public static SynchronousCallChannel getChannel(String destination)
       throws IOException {
@@ -57,7 +62,14 @@ public class ChannelProvider {
       throw new IOException("Could not create channel of type " + ch +
           " to " + destination);
     }
-    return new HTTPCallChannel(destination);
+    synchronized (HTTP_CHANNELS) {
+      HTTPCallChannel hc = (HTTPCallChannel) HTTP_CHANNELS.get(destination);
+      if (hc == null) {
+        hc = new HTTPCallChannel(destination);
+        HTTP_CHANNELS.put(destination, hc);
+      }
+      return hc;
+    }
   }
   
 }
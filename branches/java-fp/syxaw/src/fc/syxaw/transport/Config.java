@@ -24,7 +24,10 @@ import fc.util.log.Log;
 public class Config {
 
   /** Compress data when transmitting over the network. Set to <code>true</code> to
-   * enable data compression using the gzip method.
+   * enable data compression using the gzip method. This compresses all
+   * data, including objects that are already compressed; objects are
+   * normally compressed individually instead, see
+   * {@link fc.syxaw.fs.Config#COMPRESS}.
    * The value is read from the system property
    * <code>syxaw.compressdata</code>. The default value is
    * <code>false</code>.
@@ -92,10 +95,70 @@ public class Config {
 
   public static final int MAX_URL_LENGTH = 512;
 
+  /** Serve RPC requests concurrently. If <code>false</code>, the server
+   * executes one RPC call at a time. If <code>true</code>, up to
+   * {@link #SERVER_WORKERS} calls execute concurrently, and access to
+   * individual objects is serialized by the object locks.
+   * The value is read from the system property
+   * <code>syxaw.http.mtserver</code>. The default value is
+   * <code>false</code>. The deprecated property
+   * <code>syxaw.debug.mt_server</code> is also honored.
+   */
+  public static final boolean MT_SERVER =
+      Boolean.valueOf(System.getProperty("syxaw.http.mtserver",
+          String.valueOf(System.getProperty("syxaw.debug.mt_server",null)
+              != null))).booleanValue();
+
+  /** Maximum number of concurrently executing RPC calls when
+   * {@link #MT_SERVER} is enabled.
+   * The value is read from the system property
+   * <code>syxaw.http.serverworkers</code>. The default value is 4.
+   */
+  public static final int SERVER_WORKERS =
+      Integer.parseInt(System.getProperty("syxaw.http.serverworkers","4"));
+
+  /** Maximum number of RPC calls waiting for a free worker. Calls
+   * arriving when the queue is full are rejected with HTTP status 503.
+   * The value is read from the system property
+   * <code>syxaw.http.serverqueue</code>. The default value is 64.
+   */
+  public static final int SERVER_QUEUE =
+      Integer.parseInt(System.getProperty("syxaw.http.serverqueue","64"));
+
   public static final Map LID_HOST_MAP;
   public static final Map LID_PORT_MAP;
 
-  public static final int HTTP_RETRIES = 
+  /** Keep HTTP connections alive between calls. If <code>false</code>,
+   * a new connection is opened for each call.
+   * The value is read from the system property
+   * <code>syxaw.http.keepalive</code>. The default value is
+   * <code>true</code>.
+   */
+  public static final boolean HTTP_KEEPALIVE =
+      Boolean.valueOf(System.getProperty("syxaw.http.keepalive",
+                                         "true")).booleanValue();
+
+  /** Maximum number of concurrent asynchronous calls to a single
+   * destination.
+   * The value is read from the system property
+   * <code>syxaw.http.maxinflight</code>. The default value is 4.
+   */
+  public static final int HTTP_MAX_INFLIGHT =
+      Integer.parseInt(System.getProperty("syxaw.http.maxinflight","4"));
+
+  /** Use the binary wire format with peers that support it. If enabled,
+   * call headers and objects are exchanged in the format of
+   * {@link BinaryPropertySerializer} once the peer has announced support
+   * for it; the XML and property formats are used with other peers.
+   * The value is read from the system property
+   * <code>syxaw.http.binary</code>. The default value is
+   * <code>true</code>.
+   */
+  public static final boolean BINARY_PROTOCOL =
+      Boolean.valueOf(System.getProperty("syxaw.http.binary",
+                                         "true")).booleanValue();
+
+  public static final int HTTP_RETRIES =
     Integer.parseInt(System.getProperty("syxaw.http.retries", "1") );
   
   static {
@@ -29,6 +29,11 @@ import fc.syxaw.fs.Constants;
 import fc.syxaw.util.Util;
 import fc.util.log.Log;
 
+import EDU.oswego.cs.dl.util.concurrent.FutureResult;
+import EDU.oswego.cs.dl.util.concurrent.LinkedQueue;
+import EDU.oswego.cs.dl.util.concurrent.PooledExecutor;
+import EDU.oswego.cs.dl.util.concurrent.ThreadFactory;
+
 /** HTTP implementation of synchronous call channel.
  * <p><b>Synchronization protocol RPC fomat</b>
  * <p><i>RPC request format</i>
@@ -77,24 +82,106 @@ Xversion: 1003
 14
 ....................
 </pre>
+ * <p><b>Binary format</b>
+ * <p>If {@link Config#BINARY_PROTOCOL} is enabled, requests announce
+ * support for the binary format by listing {@link #BINARY_CONTENT_TYPE}
+ * in the <code>Accept</code> header. A server that supports the format
+ * replies with that content type, and sends the reply headers as the first
+ * object of the reply data, followed by the reply data with objects
+ * serialized by {@link BinaryPropertySerializer}. Once a peer has replied
+ * in the binary format, further requests to it are sent by
+ * <code>POST</code> with the binary content type, the request headers
+ * being the first object of the request data. Peers that do not know the
+ * format ignore the <code>Accept</code> value, and the formats above are
+ * used with them.
  *  */
 
 public class HTTPCallChannel extends SynchronousCallChannel {
 
-  protected static long _requestCounter=0;
+  protected static long _requestCounter=0; // Guarded by HTTPCallChannel.class
   protected String destName;
-  
+  protected String destHost;
+  protected int destPort;
+
   /** Prefix used for all Syxaw HTTP headers. */
   public static final String SYXAW_HEADER_PREFIX = "X";
 
   protected static final String GZIP_ENCODING = "gzip";
 
+  /** Content type of Syxaw request and reply data. */
+  public static final String CONTENT_TYPE = "application/syxaw";
+
+  /** Content type of Syxaw request and reply data in the binary format. */
+  public static final String BINARY_CONTENT_TYPE = "application/syxaw-binary";
+
+  protected static final String USER_AGENT = "Syxaw/"+Constants.SYXAW_VERSION+
+    " (Java "+System.getProperty("java.version")+")";
+
+  /** Max bytes of unread reply data to drain in order to keep the connection
+   * alive. Connections with more data left are closed instead. */
+  protected static final int DRAIN_LIMIT = 65536;
+
+  // Executor for asynchronous calls; initialized on first use
+  private PooledExecutor asyncCalls = null;
+
+  // Set when the destination last replied in the binary format
+  private volatile boolean peerBinary = false;
+
+  /** Create a new channel. The channel is safe to use from several
+   * threads. Each call uses a connection of its own; connections are
+   * kept alive and reused across calls if {@link Config#HTTP_KEEPALIVE} is
+   * set.
+   * @param dest destination location id
+   * @throws IOException if the channel cannot be created
+   */
   protected HTTPCallChannel(String dest) throws IOException {
     super(dest);
     destName = dest; //OLD: dest.resolve().getHostName();
+    destHost = getRealDest(dest);
+    destPort = getRequestPort(dest);
   }
 
-  public synchronized ObjectInputStream call(String name,
+  /** Invoke RPC call asynchronously. Up to {@link Config#HTTP_MAX_INFLIGHT}
+   * asynchronous calls to the destination execute concurrently, each
+   * over a connection of its own. Further calls are queued.
+   */
+  public FutureResult callAsync( final String name,
+                                 final SynchronousCall call,
+                                 final Serializable[] replyHeaders,
+                                 final ReplyHandler handler ) {
+    final FutureResult result = new FutureResult();
+    Runnable task = result.setter(
+        new EDU.oswego.cs.dl.util.concurrent.Callable() {
+      public Object call() throws Exception {
+        return handleReply(HTTPCallChannel.this.call(name, call, replyHeaders),
+                           handler);
+      }
+    });
+    try {
+      getAsyncExecutor().execute(task);
+    } catch (InterruptedException x) {
+      result.setException(x);
+    }
+    return result;
+  }
+
+  protected synchronized PooledExecutor getAsyncExecutor() {
+    if( asyncCalls == null ) {
+      asyncCalls = new PooledExecutor(new LinkedQueue(),
+          Config.HTTP_MAX_INFLIGHT);
+      asyncCalls.setMinimumPoolSize(Config.HTTP_MAX_INFLIGHT);
+      asyncCalls.setThreadFactory(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r,"rpc-"+destName);
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return asyncCalls;
+  }
+
+  public ObjectInputStream call(String name,
       SynchronousCallChannel.SynchronousCall call, Serializable[] replyHeaders
   ) throws IOException {
     int left = Config.HTTP_RETRIES;
@@ -116,17 +203,20 @@ public class HTTPCallChannel extends SynchronousCallChannel {
         ok = false;
         delay = delay * 2;
         try {
-          wait(delay);
+          Thread.sleep(delay);
         } catch (InterruptedException i) {/*woken up*/ }
       }
     } while (!ok && left-->0);
     return is;
   }
 
-  public synchronized ObjectInputStream callImpl(String name,
+  public ObjectInputStream callImpl(String name,
       SynchronousCallChannel.SynchronousCall call, Serializable[] replyHeaders
       ) throws IOException {
-    _requestCounter++;
+    long requestNo;
+    synchronized(HTTPCallChannel.class) {
+      requestNo = ++_requestCounter;
+    }
     if( Config.MEASURE_TIMES ) {
         fc.syxaw.util.Log.putDebugObj(HTTPCallChannel.class, "time-b-rpc",
                       System.currentTimeMillis());
@@ -137,12 +227,15 @@ public class HTTPCallChannel extends SynchronousCallChannel {
     Map httpRequestProperties = new java.util.HashMap();
     Serializable[] requestHeader = null;
     String postQueryString = null;
+    // Headers go in the request data if the peer speaks the binary format
+    boolean binary = Config.BINARY_PROTOCOL && peerBinary;
     if( call instanceof HTTPSynchrounousCall )
       requestHeader =
           ((HTTPSynchrounousCall) call).getRequestHeaders(httpRequestProperties);
     else
       requestHeader = call.getRequestHeaders();
-    for( int i=0;requestHeader != null && i<requestHeader.length;i++)
+    for( int i=0;!binary && requestHeader != null && i<requestHeader.length;
+         i++)
       os.writeObject((PropertySerializable) requestHeader[i]);
     os.close();
 
@@ -155,11 +248,12 @@ public class HTTPCallChannel extends SynchronousCallChannel {
           getDefaultFile(name,callRequestProperties);
       if( file.length() > Config.MAX_URL_LENGTH || hasdata ) {
         int splitpos = file.indexOf('?');
-        postQueryString = file.substring(splitpos+1);
-        file = file.substring(0,splitpos);
+        if( splitpos >= 0 ) { // No query string if no request headers
+          postQueryString = file.substring(splitpos+1);
+          file = file.substring(0,splitpos);
+        }
       }
-      dest = new URL("http", getRealDest(destName), getRequestPort(destName),
-                     file);
+      dest = new URL("http", destHost, destPort, file);
     } catch (java.net.MalformedURLException x ) {
       Log.log("Malformed url",Log.ASSERTFAILED);
     }
@@ -167,12 +261,14 @@ public class HTTPCallChannel extends SynchronousCallChannel {
     if( !Util.isEmpty(postQueryString) )
       Log.log("Post query str: "+postQueryString,Log.INFO);
     HttpURLConnection conn = (HttpURLConnection) dest.openConnection();
-        String requestMethod = postQueryString != null ? "POST" : "GET";
+        String requestMethod = binary || postQueryString != null ?
+            "POST" : "GET";
     conn.setRequestMethod(requestMethod );
     for( Iterator i = httpRequestProperties.entrySet().iterator();i.hasNext();) {
       Map.Entry e = (Map.Entry) i.next();
       String value = (String) e.getValue();
-      if ( !Util.isEmpty(postQueryString) && "Content-Length".equalsIgnoreCase((String) e.getKey())) {
+      if ( (binary || !Util.isEmpty(postQueryString)) &&
+           "Content-Length".equalsIgnoreCase((String) e.getKey())) {
 	  continue;
 	  /* Include when correct
 	  long v = Long.parseLong(value);
@@ -185,23 +281,27 @@ public class HTTPCallChannel extends SynchronousCallChannel {
       }
       conn.setRequestProperty((String) e.getKey(),value);
     }
-    conn.setRequestProperty("User-Agent","Syxaw/"+Constants.SYXAW_VERSION+
-                            " (Java "+System.getProperty("java.version")+")");
-    conn.setRequestProperty("Accept","application/syxaw"); // No accept header
+    conn.setRequestProperty("User-Agent",USER_AGENT);
+    if( !Config.HTTP_KEEPALIVE )
+      conn.setRequestProperty("Connection","close");
+    conn.setRequestProperty("Accept",Config.BINARY_PROTOCOL ?
+        BINARY_CONTENT_TYPE + ", " + CONTENT_TYPE : CONTENT_TYPE);
     if( Config.COMPRESS_DATA ) {
       // Note: not sure if it's valid HTTP/1.1 to use ContEnc with POST
       conn.setRequestProperty("Content-Encoding",GZIP_ENCODING);
       conn.setRequestProperty("Accept-Encoding",GZIP_ENCODING);
     }
     fc.syxaw.util.Log.time("START RPC "+name);
-    if( _requestCounter == 1) {
+    if( requestNo == 1) {
       Log.log("Connection class is", Log.DEBUG, conn.getClass().getName());
     }
-    if(hasdata || postQueryString != null) {
+    if(hasdata || binary || postQueryString != null) {
       conn.setDoOutput(true); // Needed for data upload
       /*!5 conn.setChunkedStreamingMode(Config.SENDBUF_SIZE); */
-      if( hasdata )
-        conn.setRequestProperty("Content-Type","application/syxaw");
+      if( binary )
+        conn.setRequestProperty("Content-Type",BINARY_CONTENT_TYPE);
+      else if( hasdata )
+        conn.setRequestProperty("Content-Type",CONTENT_TYPE);
       else
         conn.setRequestProperty("Content-Type","application/x-www-form-urlencoded");
 
@@ -227,7 +327,10 @@ public class HTTPCallChannel extends SynchronousCallChannel {
       if( Config.MEASURE_TIMES ) {
           fc.syxaw.util.Log.putDebugObj(HTTPCallChannel.class,"time-b-gzip",System.currentTimeMillis());
       }
-      ObjectOutputStream oos = new ObjectOutputStream(requestDataStream);
+      ObjectOutputStream oos = new ObjectOutputStream(requestDataStream,
+          binary);
+      if( binary )
+        oos.writeHeaders(requestHeader);
       if( hasdata )
         call.getData(oos);
       if (requestDataStream instanceof GZIPOutputStream)
@@ -290,8 +393,11 @@ public class HTTPCallChannel extends SynchronousCallChannel {
                           conn.getHeaderField(i));
     }
 
+    boolean binaryReply = isBinary(conn.getContentType());
+    if( conn.getResponseCode() == HttpURLConnection.HTTP_OK )
+      peerBinary = binaryReply;
     PropertyDeserializer rhDes = new PropertyDeserializer(replyHeadersMap);
-    for( int i=0;i<replyHeaders.length;i++)
+    for( int i=0;!binaryReply && i<replyHeaders.length;i++)
       rhDes.readObject((PropertySerializable) replyHeaders[i]);
     InputStream replyIn = conn.getInputStream();
     if( Config.MEASURE_TIMES ) {
@@ -336,7 +442,40 @@ public class HTTPCallChannel extends SynchronousCallChannel {
 	       "winsize",""+(winend-winstart),
                "request-bytes",""+rqbytes);
     }
-    return new ObjectInputStream( replyIn );
+    ObjectInputStream reply = new ReplyInputStream( replyIn, binaryReply );
+    if( binaryReply )
+      reply.readHeaders(replyHeaders);
+    return reply;
+  }
+
+  /** Check if a content type is the binary Syxaw content type.
+   *
+   * @param contentType content type, may be <code>null</code>
+   * @return <code>true</code> if binary
+   */
+  protected static boolean isBinary(String contentType) {
+    return contentType != null &&
+      contentType.toLowerCase().startsWith(BINARY_CONTENT_TYPE);
+  }
+
+  /** Reply stream that drains any unread data on close. Draining allows
+   * the underlying connection to be reused for another call. */
+  private static class ReplyInputStream extends ObjectInputStream {
+
+    public ReplyInputStream(InputStream in, boolean binary) {
+      super(in, binary);
+    }
+
+    public void close() throws IOException {
+      if( !inEof ) {
+        byte[] buf = new byte[4096];
+        int left = DRAIN_LIMIT;
+        for( int count = 0; left > 0 && count != -1;
+             count = in.read(buf, 0, Math.min(buf.length, left)) )
+          left -= count;
+      }
+      in.close();
+    }
   }
 
   /** Call handler providing access to HTTP call channel specific features. */
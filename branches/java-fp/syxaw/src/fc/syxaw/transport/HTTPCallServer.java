@@ -38,14 +38,11 @@ import org.mortbay.jetty.servlet.ServletHandler;
 
 public class HTTPCallServer extends HTTPCallChannel {
 
-  // Be careful with this!
-  private static final boolean MULTITHREAD_SERVER = 
-    System.getProperty("syxaw.debug.mt_server",null) != null ;
-  
   private static CallMultiplexer multiplexer = null;
   private static Object LISTENER_LOCK = new Object();
 
-  private static Object serverLock = new Object();
+  private static CallDispatcher dispatcher = new CallDispatcher(
+      Config.MT_SERVER ? Config.SERVER_WORKERS : 1, Config.SERVER_QUEUE);
 
   HTTPCallServer(String dest) throws IOException {
     super(dest);
@@ -109,6 +106,14 @@ public class HTTPCallServer extends HTTPCallChannel {
       catch (InterruptedException x) {}
     }
   }
+  /** Get the dispatcher admitting incoming calls. The dispatcher may be
+   * queried for call queue statistics.
+   * @return call dispatcher
+   */
+  public static CallDispatcher getDispatcher() {
+    return dispatcher;
+  }
+
   static void service( String method, HttpServletRequest request,
                        HttpServletResponse response)
       throws ServletException, IOException {
@@ -148,8 +153,13 @@ public class HTTPCallServer extends HTTPCallChannel {
         GZIP_ENCODING.equalsIgnoreCase(request.getHeader("Content-Encoding") ) )
         requestIn = new GZIPInputStream(requestIn);
 
+    // Binary requests carry the headers in the request data
+    boolean binaryIn = "POST".equalsIgnoreCase(method) &&
+      isBinary(request.getContentType());
     Map parameterMap =  null;
-    if( "POST".equalsIgnoreCase(method) ) {
+    if( binaryIn )
+      parameterMap = new java.util.HashMap();
+    else if( "POST".equalsIgnoreCase(method) ) {
       // NOTE: If we use request.getParameterMap() here we're screwed,
       // as that method will parse the (entire) input stream as a list of key=value
       // First <EOS> or <CR><LF> terminated line = Query string
@@ -172,26 +182,35 @@ public class HTTPCallServer extends HTTPCallChannel {
                        ((String[]) e.getValue())[0]);
     }
     //Log.log("=======HTTP Parameter map is "+flattenedMap,Log.INFO);
-    ObjectInputStream in = new ObjectInputStream( requestIn );
+    ObjectInputStream in = new ObjectInputStream( requestIn, binaryIn );
     PropertyDeserializer is = new PropertyDeserializer(flattenedMap );
     Serializable[] repHeads = h.getRequestHeaders();
-    for( int i=0;i<repHeads.length;i++)
-      is.readObject((PropertySerializable) repHeads[i]);
+    if( binaryIn )
+      in.readHeaders(repHeads);
+    else {
+      for( int i=0;i<repHeads.length;i++)
+        is.readObject((PropertySerializable) repHeads[i]);
+    }
+    // Reply in the binary format if the caller accepts it
+    String accept = request.getHeader("Accept");
+    boolean binaryOut = Config.BINARY_PROTOCOL && accept != null &&
+      accept.toLowerCase().indexOf(BINARY_CONTENT_TYPE) != -1;
 
     Serializable[] rh = null;
     try {
-      long wait = System.currentTimeMillis();
-      serverLock = MULTITHREAD_SERVER ? new Object() : serverLock;
-      synchronized(serverLock) {
-        wait = (-wait+System.currentTimeMillis());
-        if(wait > 100) {
-          Log.warning("Waited for RPC request handler ms="+wait);
-        }
+      if( !dispatcher.enter() ) {
+        Log.warning("RPC queue full, rejecting "+callName, dispatcher);
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        return;
+      }
+      try {
         if (h instanceof HTTPSynchrounousCallHandler)
           rh =
                 ((HTTPSynchrounousCallHandler) h).invoke(in, response);
         else
           rh = h.invoke(in);
+      } finally {
+        dispatcher.leave();
       }
     } catch ( Exception x ) {
       System.out.println("THROWABLE IN HTTPCALLSERVER!");
@@ -199,7 +218,9 @@ public class HTTPCallServer extends HTTPCallChannel {
       response.sendError(HttpServletResponse.SC_BAD_REQUEST);
       return;
     }
-    if( rh != null ) {
+    if( binaryOut )
+      response.setContentType(BINARY_CONTENT_TYPE);
+    else if( rh != null ) {
       Map replyHeaders=new java.util.HashMap();
       PropertySerializer ps = new PropertySerializer(replyHeaders);
       // Send reply headers
@@ -225,7 +246,10 @@ public class HTTPCallServer extends HTTPCallChannel {
       response.setHeader("Content-Length",null);
       dataOut = new GZIPOutputStream( dataOut );
     }
-    h.getData(new ObjectOutputStream( dataOut ));
+    ObjectOutputStream replyOut = new ObjectOutputStream( dataOut, binaryOut );
+    if( binaryOut )
+      replyOut.writeHeaders(rh);
+    h.getData(replyOut);
     dataOut.flush();
     if( dataOut instanceof GZIPOutputStream )
       ((GZIPOutputStream) dataOut).finish();
@@ -14,11 +14,11 @@
 package fc.syxaw.transport;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Serializable;
 
 import fc.syxaw.fs.Constants;
 import fc.syxaw.util.StringHolder;
@@ -30,17 +30,36 @@ import org.apache.axis.transport.http.ChunkedInputStream;
 
 /** Input stream that supports reading XML-encoded objects. The
  * objects must be serialized using an encoding compatible with
- * {@link ObjectOutputStream}.
+ * {@link ObjectOutputStream}. A stream created in binary mode reads
+ * objects in the binary format of {@link BinaryPropertySerializer}.
+ * <p>Implementation note: the stream reads the underlying stream through
+ * an internal buffer, so no other reader should access the underlying
+ * stream while this stream is in use. Object headers are parsed from the
+ * buffer, and an object that fits in the buffer is parsed in place.
+ * Larger objects are parsed through a view of the stream that ends at
+ * the end of the object. Since the buffer may hold data beyond the
+ * current position, mark and reset are not supported.
  * @see ObjectOutputStream for a description of the serialization format.
  */
 
 public class ObjectInputStream extends FilterInputStream {
 
-  protected long bytesLeft = Long.MAX_VALUE;
-  protected long markBytesLeft = Long.MAX_VALUE;
+  /** Size of the read buffer. Objects up to this size are parsed without
+   * copying. */
+  public static final int BUF_SIZE = 8192;
+
+  /** Max length of an object header line. */
+  public static final int MAX_HEADER = 256;
+
+  protected long bytesLeft = Long.MAX_VALUE; // Not yet read from in
   protected boolean inEof = false;
   protected long size = Constants.NO_SIZE;
   protected String name = null;
+  protected boolean binary = false;
+
+  private byte[] buf = null;
+  private int pos = 0;
+  private int count = 0;
 
   static final int RADIX = 16; // HTTP/1.1 chunked encoding compatibility
   static final String OBJECT_HEADER = ""; // HTTP/1.1 chunked encoding compatibility
@@ -53,11 +72,20 @@ public class ObjectInputStream extends FilterInputStream {
     super(in);
   }
 
+  /** Create stream.
+   * @param in underlying input stream
+   * @param binary <code>true</code> if objects are in the binary format
+   * written by {@link BinaryPropertySerializer}
+   */
+  public ObjectInputStream( InputStream in, boolean binary ) {
+    super(in);
+    this.binary = binary;
+  }
+
   protected ObjectInputStream( InputStream in, long aSize, String aName ) {
     super(in);
     size = aSize;
     bytesLeft = aSize;
-    markBytesLeft = aSize;
     name = aName;
   }
 
@@ -76,30 +104,66 @@ public class ObjectInputStream extends FilterInputStream {
     long objSize=getNameLenHeader(null);
     if( objSize == -1)
       throw new EOFException();
-    // NOTE: Slow but "safe" implementation -- makes sure XML reading won't
-    // read bytes past end of XML (due to buffering etc) by first storing the
-    // XML in a byte buffer. A faster implementation would be to implement a read
-    // limit for this class that can be activated when reading objects
-    // Another option is to use an XML deserializer that is known never to
-    // read past the close of the root tag.
-    ByteArrayOutputStream oin = new ByteArrayOutputStream();
-    Util.copyStream(this,oin,objSize);
-    /* DEBUG CODE
-    Log.log("===Objstr is --"+oin.toString("iso-8859-1")+"--",Log.DEBUG);
-    Log.log("===Objhexdump is --"+Util.toString(oin.toByteArray())+"--",Log.DEBUG);
-    try {
-      fc.util.xas.TypedXmlParser rd= XmlUtil.getXmlParser(
-          new ByteArrayInputStream(oin.toByteArray()));
-      fc.util.xas.EventStream es =
-      new fc.util.xas.EventStream(rd);
-      Log.log("===Esdump is "+es,Log.WARNING);
-    } catch( Exception x) {
-    }
-    */
-    XmlUtil.readBean(new ByteArrayInputStream(oin.toByteArray()),obj);
+    if( binary ) {
+      getBinaryObject(objSize).readObject((PropertySerializable) obj);
+      return obj;
+    }
+    // The XML reader must not read past the end of the object, so it reads
+    // either a buffered object in place, or a view limited to the object
+    if( objSize <= BUF_SIZE && fill((int) objSize) >= objSize ) {
+      int start = pos;
+      pos += (int) objSize;
+      XmlUtil.readBean(new ByteArrayInputStream(buf,start,(int) objSize),obj);
+    } else {
+      ObjectView view = new ObjectView(objSize);
+      XmlUtil.readBean(view,obj);
+      view.close();
+    }
     return obj;
   }
 
+  /** Check if objects are read in the binary format.
+   *
+   * @return <code>true</code> if the stream is in binary mode
+   */
+  public boolean isBinary() {
+    return binary;
+  }
+
+  /** Read call headers written by {@link ObjectOutputStream#writeHeaders}.
+   *
+   * @param headers headers to initialize from the stream
+   * @throws IOException if the headers cannot be read
+   */
+  void readHeaders(Serializable[] headers) throws IOException {
+    long objSize=getNameLenHeader(null);
+    if( objSize == -1)
+      throw new EOFException();
+    PropertySerializable[] ph = new PropertySerializable[headers.length];
+    for( int i=0;i<ph.length;i++)
+      ph[i] = (PropertySerializable) headers[i];
+    getBinaryObject(objSize).readObjects(ph);
+  }
+
+  // Get deserializer for the next objSize bytes, which are consumed
+  private BinaryPropertyDeserializer getBinaryObject(long objSize)
+      throws IOException {
+    if( objSize <= BUF_SIZE && fill((int) objSize) >= objSize ) {
+      int start = pos;
+      pos += (int) objSize;
+      return new BinaryPropertyDeserializer(buf,start,(int) objSize);
+    }
+    if( objSize > Integer.MAX_VALUE )
+      throw new IOException("Object too large: "+objSize);
+    byte[] b = new byte[(int) objSize];
+    int len = 0;
+    for( int n;len < b.length && (n = read(b,len,b.length-len)) > 0;)
+      len += n;
+    if( len < b.length )
+      throw new EOFException();
+    return new BinaryPropertyDeserializer(b,0,b.length);
+  }
+
   /** Read substream.
    *
    * @throws IOException if an I/O error occurs
@@ -112,32 +176,23 @@ public class ObjectInputStream extends FilterInputStream {
     if( subSize == Constants.NO_SIZE )
        Log.log("Substream has no size",Log.FATALERROR);
     return new ObjectInputStream(this,subSize,subName.getString());*/
-    return new ObjectInputStream( new ChunkedInputStream( this ));
+    return new ObjectInputStream( new ChunkedInputStream( this ), binary );
   }
 
   protected long getNameLenHeader(StringHolder name) throws IOException {
     long objSize = -1L;
-    // NOTE: Ugly-looking code. What is the appropriate way to
-    // read a single line from in terminated by crlf?
-    // Don't want to use Buffer*Streams, as they may buffer past end-of-line :(
-    ByteArrayOutputStream lin = new ByteArrayOutputStream();
-    int c = -1;
-    for (; (c = read()) != 0x0d && c != 0x0a && c != -1; )
-      lin.write(c);
-    if( c == -1 )
+    String objHeader = readHeaderLine();
+    // The chunked input stream of a substream does not consume the empty
+    // line ending the chunked data, so skip it
+    if( objHeader != null && objHeader.length()==0 )
+      objHeader = readHeaderLine();
+    if( objHeader == null )
       return -1;
-    if (c == 0x0d && read() != 0x0a)
-      throw new IOException("Invalid linefeed");
-    String objHeader = new String(lin.toByteArray());
-    if( objHeader.length()==0 ) {
-      if( in.read()==-1 )
-        return -1;
-      else
-        throw new IOException("Invalid object header: empty header");
-    }
+    if( objHeader.length()==0 )
+      throw new IOException("Invalid object header: empty header");
     if (!objHeader.startsWith(OBJECT_HEADER)) {
       Log.log("Invalid object header, rest of stream follows", Log.INFO);
-      Util.copyStream(in, System.err);
+      Util.copyStream(this, System.err);
       throw new IOException("Invalid object header: " + objHeader);
     }
     try {
@@ -155,12 +210,36 @@ public class ObjectInputStream extends FilterInputStream {
     }
     catch (NumberFormatException x) {
       Log.log("Invalid size in object header, dumping rest of str; hdr=",Log.ERROR,objHeader);
-      Util.copyStream(in, System.err);
+      Util.copyStream(this, System.err);
       throw new IOException("Invalid size in object header");
     }
     return objSize;
   }
 
+  // Read a CRLF or LF terminated line, or return null at end of stream
+  private String readHeaderLine() throws IOException {
+    // Find the end of line in the buffer, reading more as needed
+    int end = -1;
+    for( int scanned = 0;end == -1;) {
+      for( int i = pos + scanned;i < count && end == -1;i++) {
+        if( buf[i] == 0x0a || buf[i] == 0x0d )
+          end = i;
+      }
+      scanned = count - pos;
+      if( end == -1 ) {
+        if( scanned >= MAX_HEADER )
+          throw new IOException("Invalid object header: too long");
+        if( fill(scanned + 1) <= scanned )
+          return null;
+      }
+    }
+    String line = new String(buf,pos,end-pos,"ISO-8859-1");
+    pos = end + 1;
+    if (buf[end] == 0x0d && read() != 0x0a)
+      throw new IOException("Invalid linefeed");
+    return line;
+  }
+
   /*
   // Stuff for supporting a fixed-length substream
   public String getName() {
@@ -171,26 +250,32 @@ public class ObjectInputStream extends FilterInputStream {
     return size;
   }*/
 
-
-  public int read() throws IOException {
-    if( bytesLeft > 0 ) {
-      bytesLeft--;
-      int count = in.read();
-      inEof = count == -1;
-      return count;
-    } else
-      return -1;
-  }
-
-  public int read(byte b[]) throws IOException {
-      return read(b, 0, b.length);
+  // Make at least len bytes available in the buffer, unless the stream
+  // ends first. Returns the number of bytes available.
+  private int fill(int len) throws IOException {
+    if( buf == null )
+      buf = new byte[BUF_SIZE];
+    if( count - pos >= len )
+      return count - pos;
+    if( pos + len > buf.length ) {
+      System.arraycopy(buf,pos,buf,0,count-pos);
+      count -= pos;
+      pos = 0;
+    }
+    while( count - pos < len ) {
+      int n = readIn(buf,count,buf.length-count);
+      if( n == -1 )
+        break;
+      count += n;
+    }
+    return count - pos;
   }
 
-  public int read(byte b[], int off, int len) throws IOException {
-    if( bytesLeft < 0L)
+  // Read from the underlying stream
+  private int readIn(byte b[], int off, int len) throws IOException {
+    if( bytesLeft <= 0L )
       return -1;
     len = bytesLeft > len ? len : (int) bytesLeft;
-    bytesLeft -= len;
     int count = in.read(b, off, len);
     if( count == 0 && len > 0 && in instanceof ChunkedInputStream ) {
       // The current apache chunkedis sometimes misses the eof from the
@@ -205,19 +290,56 @@ public class ObjectInputStream extends FilterInputStream {
       throw new IOException("Bad size of data chunk, data corrupted");
     }
     inEof = count == -1;
+    if( count > 0 )
+      bytesLeft -= count;
     return count;
   }
 
+  public int read() throws IOException {
+    if( pos < count || fill(1) > 0 )
+      return buf[pos++] & 0xff;
+    return -1;
+  }
+
+  public int read(byte b[]) throws IOException {
+      return read(b, 0, b.length);
+  }
+
+  public int read(byte b[], int off, int len) throws IOException {
+    if( len == 0 )
+      return 0;
+    if( pos == count ) {
+      if( len >= BUF_SIZE )
+        return readIn(b, off, len); // Large read, bypass buffer
+      pos = count = 0;
+      if( fill(1) == 0 )
+        return -1;
+    }
+    len = Math.min(len, count - pos);
+    System.arraycopy(buf, pos, b, off, len);
+    pos += len;
+    return len;
+  }
+
   public long skip(long n) throws IOException {
-    n = bytesLeft > n ? n : (int) bytesLeft;
-    return in.skip(n);
+    if( pos < count ) {
+      n = Math.min(n, count - pos);
+      pos += (int) n;
+      return n;
+    }
+    n = bytesLeft > n ? n : bytesLeft;
+    n = in.skip(n);
+    bytesLeft -= n;
+    return n;
   }
+
   public int available() throws IOException {
     int avail = in.available();
-    return avail > bytesLeft ? (int) bytesLeft : avail;
+    return (count - pos) + (avail > bytesLeft ? (int) bytesLeft : avail);
   }
 
   public void close() throws IOException {
+    pos = count = 0;
     if( inEof )
       in.close();
     else
@@ -225,17 +347,58 @@ public class ObjectInputStream extends FilterInputStream {
   }
 
   public boolean markSupported() {
-    return in.markSupported();
+    return false;
   }
 
   public synchronized void reset() throws IOException {
-    bytesLeft = markBytesLeft;
-    in.reset();
+    throw new IOException("mark/reset not supported");
   }
 
   public synchronized void mark(int readlimit) {
-    markBytesLeft = bytesLeft;
-    in.mark(readlimit);
+  }
+
+  // View of this stream that ends at the end of an object
+  private class ObjectView extends InputStream {
+
+    private long left;
+
+    ObjectView(long size) {
+      left = size;
+    }
+
+    public int read() throws IOException {
+      if( left <= 0 )
+        return -1;
+      int c = ObjectInputStream.this.read();
+      if( c != -1 )
+        left--;
+      return c;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+      if( left <= 0 )
+        return -1;
+      int n = ObjectInputStream.this.read(b, off,
+          left > len ? len : (int) left);
+      if( n > 0 )
+        left -= n;
+      return n;
+    }
+
+    public int available() throws IOException {
+      int avail = ObjectInputStream.this.available();
+      return avail > left ? (int) left : avail;
+    }
+
+    // Skip any part of the object that the reader left unread
+    public void close() throws IOException {
+      while( left > 0 ) {
+        long n = ObjectInputStream.this.skip(left);
+        if( n <= 0 && read() == -1 )
+          break;
+        left -= Math.max(n, 0);
+      }
+    }
   }
 
 }
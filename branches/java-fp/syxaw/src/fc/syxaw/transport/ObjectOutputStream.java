@@ -18,6 +18,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.Serializable;
 
 import fc.syxaw.fs.Constants;
 import fc.syxaw.util.Util;
@@ -40,6 +41,11 @@ import org.apache.axis.transport.http.ChunkedOutputStream;
  * may not be known in advance. The format for the sub-streams is HTTP/1.1
  * chunked encoding; a single chunk is used if the length is known in
  * advance.
+ * <p>A stream may instead be created in binary mode, in which case the
+ * objects are serialized by {@link BinaryPropertySerializer}, and the size
+ * header gives the length of the binary data. Binary mode is used on
+ * channels where both peers have agreed to it. Sub-streams inherit the
+ * mode of the stream.
  * <p>Below is example serialization of a
  * {@link fc.syxaw.codec.VersionReference} object:<pre>
  6f
@@ -60,6 +66,8 @@ public class ObjectOutputStream
 
   protected boolean gotLastSubstream=false;
 
+  protected boolean binary=false;
+
   /** Create stream.
    *
    * @param os Underlying output stream
@@ -69,6 +77,25 @@ public class ObjectOutputStream
     super(os);
   }
 
+  /** Create stream.
+   *
+   * @param os Underlying output stream
+   * @param binary <code>true</code> to write objects in the binary format
+   */
+
+  public ObjectOutputStream(OutputStream os, boolean binary) {
+    super(os);
+    this.binary = binary;
+  }
+
+  /** Check if objects are written in the binary format.
+   *
+   * @return <code>true</code> if the stream is in binary mode
+   */
+  public boolean isBinary() {
+    return binary;
+  }
+
   /** Write object to stream.
    *
    * @param obj Object to write
@@ -76,10 +103,35 @@ public class ObjectOutputStream
    */
   public void writeObject(Object obj) throws IOException {
     ByteArrayOutputStream oout = new ByteArrayOutputStream();
-    XmlUtil.writeBean(oout,obj);
+    if( binary )
+      new BinaryPropertySerializer(oout).writeObject(
+          (PropertySerializable) obj);
+    else
+      XmlUtil.writeBean(oout,obj);
     //oout.write(CRLF); Xebu enc doesn't like additional whitespace, so skip it!
     writeNameLenHeader(null, oout.size());
-    out.write(oout.toByteArray());
+    oout.writeTo(out);
+  }
+
+  public void write(byte[] b, int off, int len) throws IOException {
+    out.write(b,off,len); // FilterOutputStream writes byte by byte
+  }
+
+  /** Write call headers to a binary mode stream. The headers are written
+   * as a single object holding the list of headers.
+   *
+   * @param headers headers to write
+   * @throws IOException if an I/O error occurs
+   */
+  void writeHeaders(Serializable[] headers) throws IOException {
+    PropertySerializable[] ph = new PropertySerializable[headers == null ? 0 :
+      headers.length];
+    for( int i=0;i<ph.length;i++)
+      ph[i] = (PropertySerializable) headers[i];
+    ByteArrayOutputStream oout = new ByteArrayOutputStream();
+    new BinaryPropertySerializer(oout).writeObjects(ph);
+    writeNameLenHeader(null, oout.size());
+    oout.writeTo(out);
   }
 
   /** Write substream.
@@ -100,8 +152,8 @@ public class ObjectOutputStream
 
     class NoCloseStream extends ObjectOutputStream {
 
-      NoCloseStream( OutputStream aout ) {
-        super(aout);
+      NoCloseStream( OutputStream aout, boolean binary ) {
+        super(aout, binary);
       }
 
       public void close() throws IOException {
@@ -116,7 +168,7 @@ public class ObjectOutputStream
       long left;
 
       FixedChunkOutputStream( ObjectOutputStream aout, long len ) throws IOException {
-        super(aout);
+        super(aout, aout.binary);
         left = len;
         // BUGFIX-050913-1: Do not write a nameLen header if len=0, as we'll
         // otherwise get 2 times '0' CR LF in the stream (the second emitted
@@ -163,8 +215,8 @@ public class ObjectOutputStream
       return new ObjectOutputStream(
         new BufferedOutputStream(
          new ChunkedOutputStream(
-         new NoCloseStream( this )),
-         CHUNKBUF_SIZE ) );
+         new NoCloseStream( this, binary )),
+         CHUNKBUF_SIZE ), binary );
     if( length < 0L && length != Constants.NO_SIZE )
       throw new IllegalArgumentException("Illegal length");
     return new FixedChunkOutputStream(this,length);
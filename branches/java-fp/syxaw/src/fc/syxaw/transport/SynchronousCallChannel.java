@@ -15,6 +15,8 @@ package fc.syxaw.transport;
 import java.io.IOException;
 import java.io.Serializable;
 
+import EDU.oswego.cs.dl.util.concurrent.FutureResult;
+
 /** Synchronous large-object RPC channel. Abstract class for a communications
  * channel between two devices suitable for synchronous RPCs which require
  * arbitrary amounts of data to be transmitted (such as file downloads and
@@ -40,6 +42,61 @@ public abstract class SynchronousCallChannel  {
                                              Serializable[] replyHeaders )
       throws IOException;
 
+  /** Invoke RPC call asynchronously. The call is made, and the reply
+   * is passed to <code>handler</code>, which must consume the reply data.
+   * The reply stream is closed once the handler returns. Channels
+   * that support several concurrent calls to the same destination may
+   * overlap independent asynchronous calls; the default implementation
+   * makes the call synchronously in the calling thread.
+   *
+   * @param name name of RPC call, e.g. <code>download</code>
+   * @param call RPC call request.
+   * @param replyHeaders Array of empty header objects that will be filled
+   * in before the handler is invoked.
+   * @param handler handler for the reply data
+   * @return result holder, which will receive the object returned by the
+   * handler, or the exception thrown by the call or handler.
+   */
+  public FutureResult callAsync( final String name,
+                                 final SynchronousCall call,
+                                 final Serializable[] replyHeaders,
+                                 final ReplyHandler handler ) {
+    FutureResult result = new FutureResult();
+    result.setter(new EDU.oswego.cs.dl.util.concurrent.Callable() {
+      public Object call() throws Exception {
+        return handleReply(
+            SynchronousCallChannel.this.call(name, call, replyHeaders),
+            handler);
+      }
+    }).run();
+    return result;
+  }
+
+  /** Pass reply to handler, and close the reply stream. */
+  protected static Object handleReply(ObjectInputStream in,
+                                      ReplyHandler handler)
+    throws IOException {
+    if( in == null )
+      throw new IOException("Call failed");
+    try {
+      return handler.handleReply(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  /** Interface for handling the reply of an asynchronous call. */
+  public interface ReplyHandler {
+    /** Handle reply data. The reply headers have been filled in when
+     * this method is called.
+     *
+     * @param replyDataStream data stream from callee
+     * @return result of the call
+     * @throws IOException if reading the reply fails
+     */
+    public Object handleReply(ObjectInputStream replyDataStream)
+      throws IOException;
+  }
 
   /** Interface for RPC requests. The call channel handles
    * an outgoing RPC requests by <ol>
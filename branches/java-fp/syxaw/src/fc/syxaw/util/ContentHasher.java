@@ -0,0 +1,343 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.syxaw.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import fc.util.log.Log;
+
+import EDU.oswego.cs.dl.util.concurrent.Callable;
+import EDU.oswego.cs.dl.util.concurrent.FutureResult;
+import EDU.oswego.cs.dl.util.concurrent.LinkedQueue;
+import EDU.oswego.cs.dl.util.concurrent.PooledExecutor;
+import EDU.oswego.cs.dl.util.concurrent.ThreadFactory;
+
+/** Content hashing service. Computes the same SHA-1 hashes as
+ * {@link Util#copyAndDigestStream}, and keeps a cache of file hashes keyed
+ * by path, size and modification time, so that an unchanged file is
+ * hashed only once.
+ * <p>Files may also be hashed in the background by {@link #submit}. The
+ * background hashes run on a shared pool of {@link #THREADS} threads,
+ * which lets the hashes of several files, such as the local and
+ * downloaded versions of an object, proceed in parallel.
+ * <p>The cache holds at most {@link #CACHE_SIZE} files, and is persisted
+ * by {@link #open} and {@link #save}, as described in
+ * {@link PersistentState}. A file changed less than {@link #RACY_MARGIN}
+ * ms before it was hashed is not cached. Neither is a file whose size or
+ * modification time changed while it was hashed.
+ */
+
+public class ContentHasher extends PersistentState {
+
+  /** Number of threads hashing in the background. The value is read
+   * from the system property <code>syxaw.hash.threads</code>. Default value
+   * is <code>2</code>. */
+  public static final int THREADS = Math.max(1,
+      Integer.getInteger("syxaw.hash.threads", 2).intValue());
+
+  /** Max number of files in the hash cache. The value is read from the
+   * system property <code>syxaw.hash.cachesize</code>. Default value is
+   * <code>65536</code>. */
+  public static final int CACHE_SIZE =
+    Integer.getInteger("syxaw.hash.cachesize", 65536).intValue();
+
+  /** Size of the buffers used for reading. */
+  public static final int BUF_SIZE = 65536;
+
+  private static final int FORMAT = 1;
+  private static final String ALGORITHM = "SHA";
+
+  private static ContentHasher instance = new ContentHasher();
+
+  private WeightedLruCache cache = new WeightedLruCache(CACHE_SIZE);
+    // path->Entry
+  private PooledExecutor executor = null;
+  private LinkedList buffers = new LinkedList();
+
+  private long hits = 0;
+  private long misses = 0;
+  private long bytes = 0;
+
+  /** Get the shared instance.
+   *
+   * @return hashing service
+   */
+  public static ContentHasher getInstance() {
+    return instance;
+  }
+
+  /** Open the persistent hash cache. Cached hashes are loaded from the
+   * given file, and {@link #save} stores them to it. An unreadable file is
+   * treated as empty.
+   *
+   * @param store file storing the cache
+   */
+  public void open(File store) {
+    super.open(store);
+  }
+
+  /** Forget a cached hash. Not needed for correctness, as a changed file
+   * is detected by its size and modification time.
+   *
+   * @param f file
+   */
+  public synchronized void invalidate(File f) {
+    if( cache.remove(f.getAbsolutePath()) != null )
+      changed();
+  }
+
+  /** Hash a file. The cached hash is returned if the file is unchanged
+   * since it was cached.
+   *
+   * @param f file to hash
+   * @return SHA-1 hash of file content
+   * @throws IOException if the file cannot be read
+   */
+  public byte[] hash(File f) throws IOException {
+    return hash(f,true);
+  }
+
+  /** Hash a file in the background.
+   *
+   * @param f file to hash
+   * @param cached <code>true</code> if the hash cache is to be used.
+   * Temporary files should not be cached.
+   * @return result, which is the SHA-1 hash of the file content. Use
+   * {@link #get} to obtain it.
+   */
+  public FutureResult submit(final File f, final boolean cached) {
+    final FutureResult result = new FutureResult();
+    Runnable task = result.setter(new Callable() {
+      public Object call() throws Exception {
+        return hash(f,cached);
+      }
+    });
+    try {
+      getExecutor().execute(task);
+    } catch (InterruptedException x) {
+      Thread.currentThread().interrupt();
+      task.run();
+    }
+    return result;
+  }
+
+  /** Get the result of a background hash.
+   *
+   * @param result result from {@link #submit}
+   * @return SHA-1 hash
+   * @throws IOException if the file could not be read
+   */
+  public static byte[] get(FutureResult result) throws IOException {
+    try {
+      return (byte[]) result.get();
+    } catch (InterruptedException x) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while hashing");
+    } catch (InvocationTargetException x) {
+      Throwable t = x.getTargetException();
+      if( t instanceof IOException )
+        throw (IOException) t;
+      if( t instanceof RuntimeException )
+        throw (RuntimeException) t;
+      if( t instanceof Error )
+        throw (Error) t;
+      throw new IOException("Hashing failed: "+t);
+    }
+  }
+
+  /** Hash a stream. The stream is read to its end, but not closed.
+   *
+   * @param in stream to hash
+   * @return SHA-1 hash of stream content
+   * @throws IOException if the stream cannot be read
+   */
+  public byte[] hash(InputStream in) throws IOException {
+    return copyAndDigest(in,null);
+  }
+
+  /** Copy a stream while hashing it. Same as
+   * {@link Util#copyAndDigestStream}, but the copy may be omitted.
+   *
+   * @param src stream to read. The stream is not closed.
+   * @param dest stream to copy to, or <code>null</code> to only hash
+   * @return SHA-1 hash of stream content
+   * @throws IOException if the stream cannot be read or written
+   */
+  public byte[] copyAndDigest(InputStream src, OutputStream dest)
+      throws IOException {
+    MessageDigest sha = newDigest();
+    byte[] b = getBuffer();
+    long total = 0;
+    try {
+      for( int count;(count = src.read(b)) > -1;) {
+        sha.update(b,0,count);
+        if( dest != null )
+          dest.write(b,0,count);
+        total += count;
+      }
+    } finally {
+      freeBuffer(b);
+    }
+    synchronized (this) {
+      bytes += total;
+    }
+    return sha.digest();
+  }
+
+  /** Get number of file hashes found in the cache.
+   *
+   * @return number of cache hits
+   */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /** Get number of cached file hashes not found in the cache.
+   *
+   * @return number of cache misses
+   */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  public synchronized String toString() {
+    return "ContentHasher{threads="+THREADS+", cached="+cache.size()+
+      ", hits="+hits+", misses="+misses+", bytes="+bytes+"}";
+  }
+
+  protected String getName() {
+    return "hash cache";
+  }
+
+  protected void clearState() {
+    cache.clear();
+  }
+
+  protected void readState(DataInputStream in) throws IOException {
+    if( in.readInt() != FORMAT )
+      throw new IOException("Unknown hash cache format");
+    int len = newDigest().getDigestLength();
+    for( int count = in.readInt();count>0;count--) {
+      String path = in.readUTF();
+      long size = in.readLong(), modified = in.readLong();
+      byte[] hash = new byte[len];
+      in.readFully(hash);
+      cache.put(path,new Entry(size,modified,hash));
+    }
+  }
+
+  protected void writeState(DataOutputStream out) throws IOException {
+    // Least recently used first, so that the order is kept when loaded
+    out.writeInt(FORMAT);
+    out.writeInt(cache.size());
+    for( Iterator i = cache.keys();i.hasNext();) {
+      String path = (String) i.next();
+      Entry e = (Entry) cache.get(path);
+      out.writeUTF(path);
+      out.writeLong(e.size);
+      out.writeLong(e.modified);
+      out.write(e.hash);
+    }
+  }
+
+  private byte[] hash(File f, boolean cached) throws IOException {
+    String path = cached ? f.getAbsolutePath() : null;
+    long size = f.length(), modified = f.lastModified();
+    if( cached ) {
+      synchronized (this) {
+        Entry e = (Entry) cache.get(path);
+        if( e != null && e.size == size && e.modified == modified ) {
+          hits++;
+          return (byte[]) e.hash.clone();
+        }
+        misses++;
+      }
+    }
+    long start = System.currentTimeMillis();
+    byte[] hash;
+    FileInputStream in = new FileInputStream(f);
+    try {
+      hash = copyAndDigest(in,null);
+    } finally {
+      in.close();
+    }
+    if( cached && !isRacy(modified,start) && f.length() == size &&
+        f.lastModified() == modified ) {
+      synchronized (this) {
+        cache.put(path,new Entry(size,modified,(byte[]) hash.clone()));
+        changed();
+      }
+    }
+    return hash;
+  }
+
+  private synchronized PooledExecutor getExecutor() {
+    if( executor == null ) {
+      executor = new PooledExecutor(new LinkedQueue());
+      executor.setMinimumPoolSize(THREADS);
+      executor.setMaximumPoolSize(THREADS);
+      executor.setThreadFactory(new ThreadFactory() {
+        private int count = 0;
+
+        public synchronized Thread newThread(Runnable command) {
+          Thread t = new Thread(command, "hasher-" + (count++));
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return executor;
+  }
+
+  private synchronized byte[] getBuffer() {
+    return buffers.isEmpty() ? new byte[BUF_SIZE] :
+      (byte[]) buffers.removeFirst();
+  }
+
+  private synchronized void freeBuffer(byte[] buf) {
+    buffers.addLast(buf);
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance(ALGORITHM);
+    } catch (NoSuchAlgorithmException x) {
+      Log.log("Message digest algorithm not found", Log.FATALERROR);
+      return null;
+    }
+  }
+
+  private static class Entry {
+    final long size;
+    final long modified;
+    final byte[] hash;
+
+    Entry(long size, long modified, byte[] hash) {
+      this.size = size;
+      this.modified = modified;
+      this.hash = hash;
+    }
+  }
+}
+
+// arch-tag: eaf0733a-f3e1-4b4c-9973-d0dd864bf7a7
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.syxaw.util;
+
+/** Histogram of non-negative values, such as durations. Values are
+ * counted in buckets of power of 2 width, so that bucket <i>i</i> counts
+ * values in <code>[2<sup>i-1</sup>,2<sup>i</sup>)</code>, and bucket 0
+ * counts zeroes. Percentiles are hence accurate to within a factor of 2.
+ * The histogram is not thread safe; concurrent users should keep
+ * histograms of their own, and {@link #add} them for reporting.
+ */
+
+public class Histogram {
+
+  private static final int BUCKETS = 64;
+
+  private long[] counts = new long[BUCKETS];
+  private long count = 0;
+  private long sum = 0;
+  private long max = 0;
+
+  /** Add a value.
+   *
+   * @param value value; negative values are counted as 0
+   */
+  public void record(long value) {
+    if( value < 0 )
+      value = 0;
+    int bucket = 0; // Bit length of value
+    for( long v = value;v != 0;v >>>= 1)
+      bucket++;
+    counts[bucket]++;
+    count++;
+    sum += value;
+    if( value > max )
+      max = value;
+  }
+
+  /** Add the values of another histogram.
+   *
+   * @param h histogram to add
+   */
+  public void add(Histogram h) {
+    for( int i=0;i<BUCKETS;i++)
+      counts[i] += h.counts[i];
+    count += h.count;
+    sum += h.sum;
+    max = Math.max(max,h.max);
+  }
+
+  /** Get number of values. */
+  public long getCount() {
+    return count;
+  }
+
+  /** Get mean value, or 0 if there are no values. */
+  public double getMean() {
+    return count == 0 ? 0.0 : ((double) sum) / count;
+  }
+
+  /** Get max value. */
+  public long getMax() {
+    return max;
+  }
+
+  /** Get approximate percentile. Returns the upper bound of the bucket
+   * holding the percentile, or {@link #getMax} if that is smaller.
+   *
+   * @param p percentile, 0-100
+   * @return value, or 0 if there are no values
+   */
+  public long getPercentile(double p) {
+    long rank = (long) Math.ceil(count * p / 100.0);
+    long seen = 0;
+    for( int i=0;i<BUCKETS;i++) {
+      seen += counts[i];
+      if( seen >= rank && seen > 0 )
+        return i == 0 ? 0 : Math.min(max, (1l << i) - 1);
+    }
+    return max;
+  }
+
+  public String toString() {
+    return "{n="+count+", mean="+((long) getMean())+", p50="+
+      getPercentile(50)+", p99="+getPercentile(99)+", max="+max+"}";
+  }
+}
+
+// arch-tag: d1dacc4d-faa7-4930-94d9-2d54575958ad
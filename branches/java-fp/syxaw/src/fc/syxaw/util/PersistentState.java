@@ -0,0 +1,145 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.syxaw.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import fc.util.log.Log;
+
+/** In-memory state derived from file modification times, saved to a file
+ * between runs. Used for caches that let unchanged files or directories
+ * be skipped, such as the scan journal and the content hash cache.
+ * <p>A file that has changed less than {@link #RACY_MARGIN} ms before it
+ * was examined must not be recorded, since a further change within the
+ * resolution of the file system clock might not alter its modification
+ * time. See {@link #isRacy}.
+ * <p>The state is saved by {@link #save} to a temporary file, which is
+ * then renamed over the store file. The store file is removed on the
+ * first change after that, so that a crash cannot leave stale state
+ * behind. An unreadable store file is treated as empty.
+ * <p>Subclasses read and write their state with {@link #readState} and
+ * {@link #writeState}, and call {@link #changed} on every change. All
+ * three are called holding the lock on this object.
+ */
+
+public abstract class PersistentState {
+
+  /** Minimum age, in milliseconds, of the last change to a file or
+   * directory whose state is recorded. */
+  public static final long RACY_MARGIN = 2000l;
+
+  private File store = null;
+  private boolean saved = false;
+
+  /** Check if a change is too recent to record.
+   *
+   * @param modified time of the change
+   * @param examined time the file was examined, i.e., the time its
+   * state was read
+   * @return <code>true</code> if the change is less than
+   * {@link #RACY_MARGIN} ms older than the time examined
+   */
+  public static boolean isRacy(long modified, long examined) {
+    return modified > examined - RACY_MARGIN;
+  }
+
+  /** Set the store file, and load the state from it. The current state is
+   * cleared first.
+   *
+   * @param store file storing the state, or <code>null</code> for none
+   */
+  protected synchronized void open(File store) {
+    this.store = store;
+    saved = false;
+    clearState();
+    if( store == null || !store.exists() )
+      return;
+    try {
+      DataInputStream in = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(store)));
+      try {
+        readState(in);
+      } finally {
+        in.close();
+      }
+      saved = true;
+    } catch (IOException x) {
+      Log.log("Ignoring unreadable "+getName()+" "+store,Log.WARNING,x);
+      clearState();
+    }
+  }
+
+  /** Save the state, unless unchanged since last saved or loaded. Does
+   * nothing if there is no store file. A failure to save is logged.
+   */
+  public synchronized void save() {
+    if( saved || store == null )
+      return;
+    File tmp = new File(store.getPath()+".tmp");
+    try {
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(tmp)));
+      try {
+        writeState(out);
+      } finally {
+        out.close();
+      }
+      if( !tmp.renameTo(store) && !(store.delete() && tmp.renameTo(store)) )
+        throw new IOException("Cannot rename "+tmp);
+      saved = true;
+    } catch (IOException x) {
+      Log.log("Cannot save "+getName()+" "+store,Log.ERROR,x);
+      tmp.delete();
+    }
+  }
+
+  /** Mark the state changed. Removes the store file if the state was
+   * saved. */
+  protected void changed() {
+    if( saved && !store.delete() )
+      Log.log("Cannot remove "+store,Log.ERROR);
+    saved = false;
+  }
+
+  /** Get a name for the state, used in log messages.
+   *
+   * @return name of the state
+   */
+  protected abstract String getName();
+
+  /** Clear the state. */
+  protected abstract void clearState();
+
+  /** Read the state from the store file.
+   *
+   * @param in stream to read from
+   * @throws IOException if the state cannot be read
+   */
+  protected abstract void readState(DataInputStream in) throws IOException;
+
+  /** Write the state to the store file.
+   *
+   * @param out stream to write to
+   * @throws IOException if the state cannot be written
+   */
+  protected abstract void writeState(DataOutputStream out)
+      throws IOException;
+}
+
+// arch-tag: 67cd3f9c-2d1c-4e65-ac18-57fbc05a3cd7
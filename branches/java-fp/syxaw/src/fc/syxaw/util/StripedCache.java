@@ -0,0 +1,98 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.syxaw.util;
+
+/** Weight bounded LRU cache for concurrent access. The cache is split into
+ * a number of independently locked {@link WeightedLruCache} stripes, each
+ * holding an equal share of the total weight. The stripe of a key is
+ * selected by the key hash code, so that threads accessing different keys
+ * seldom contend for the same lock. LRU order is maintained per stripe.
+ */
+
+public class StripedCache implements Cache {
+
+  private WeightedLruCache[] stripes;
+
+  /** Create a cache.
+   *
+   * @param stripeCount number of stripes, must be a power of 2
+   * @param maxWeight maximum total weight of cached items
+   */
+  public StripedCache(int stripeCount, long maxWeight) {
+    if( stripeCount < 1 || (stripeCount & (stripeCount - 1)) != 0 )
+      throw new IllegalArgumentException("Not a power of 2: "+stripeCount);
+    stripes = new WeightedLruCache[stripeCount];
+    for( int i=0;i<stripeCount;i++)
+      stripes[i] = new WeightedLruCache(maxWeight/stripeCount);
+  }
+
+  public Object get(Object key) {
+    return stripe(key).get(key);
+  }
+
+  public Object put(Object key, Object value) {
+    return stripe(key).put(key,value);
+  }
+
+  public Object remove(Object key) {
+    return stripe(key).remove(key);
+  }
+
+  public boolean containsKey(Object k) {
+    return stripe(k).containsKey(k);
+  }
+
+  public void clear() {
+    for( int i=0;i<stripes.length;i++)
+      stripes[i].clear();
+  }
+
+  /** Get total weight of cached items. */
+  public long getWeight() {
+    long w = 0l;
+    for( int i=0;i<stripes.length;i++)
+      w += stripes[i].getWeight();
+    return w;
+  }
+
+  /** Get number of successful lookups. */
+  public long getHits() {
+    long h = 0l;
+    for( int i=0;i<stripes.length;i++)
+      h += stripes[i].getHits();
+    return h;
+  }
+
+  /** Get number of failed lookups. */
+  public long getMisses() {
+    long m = 0l;
+    for( int i=0;i<stripes.length;i++)
+      m += stripes[i].getMisses();
+    return m;
+  }
+
+  /** Get number of cached items. */
+  public int size() {
+    int n = 0;
+    for( int i=0;i<stripes.length;i++)
+      n += stripes[i].size();
+    return n;
+  }
+
+  private WeightedLruCache stripe(Object key) {
+    int h = key.hashCode();
+    h ^= (h >>> 16);
+    h ^= (h >>> 8);
+    return stripes[h & (stripes.length - 1)];
+  }
+}
+// arch-tag: f7c3f047-7de9-4f7d-ba3c-62d792cca7ab
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.syxaw.util;
+
+import fc.util.log.Log;
+
+/** Hierarchical timing wheel for executing tasks after a delay. Time is
+ * divided into ticks of fixed length, and tasks are kept in wheels of
+ * {@link #SLOTS} slots each. The first wheel holds the tasks due within
+ * {@link #SLOTS} ticks, one slot per tick; each further wheel covers
+ * {@link #SLOTS} times the span of the previous one. When a wheel has
+ * turned around, the tasks of the next slot of the wheel above are moved
+ * to lower wheels. Scheduling and cancelling a task take constant time,
+ * regardless of the number of scheduled tasks.
+ * <p>Tasks are run in the order of their ticks by a single daemon thread,
+ * which is started when the first task is scheduled. A task runs at the
+ * earliest one tick after its delay has passed, and should be short, as
+ * it delays the tasks after it.
+ */
+
+public class TimingWheel {
+
+  /** Number of slots in each wheel. */
+  public static final int SLOTS = 64;
+
+  /** Number of wheels. Delays beyond the span of all wheels are
+   * truncated to that span. */
+  public static final int WHEELS = 4;
+
+  private static final int SLOT_BITS = 6;
+  private static final int SLOT_MASK = SLOTS - 1;
+
+  private final String name;
+  private final long tickMs;
+  private final long start = System.currentTimeMillis();
+  private final Timeout[][] wheels = new Timeout[WHEELS][SLOTS];
+  private long tick = 0; // Last processed tick
+  private int size = 0;
+  private Thread thread = null;
+
+  /** Create a timing wheel.
+   *
+   * @param name name of the thread running the tasks
+   * @param tickMs length of a tick in milliseconds
+   */
+  public TimingWheel(String name, long tickMs) {
+    if( tickMs < 1 )
+      throw new IllegalArgumentException("Invalid tick "+tickMs);
+    this.name = name;
+    this.tickMs = tickMs;
+  }
+
+  /** Execute a task after a delay.
+   *
+   * @param delay delay in milliseconds
+   * @param task task to execute
+   * @return handle for cancelling the task
+   */
+  public synchronized Object executeAfterDelay(long delay, Runnable task) {
+    if( thread == null ) {
+      thread = new Thread(new Runnable() {
+        public void run() {
+          runTasks();
+        }
+      }, name);
+      thread.setDaemon(true);
+      thread.start();
+    }
+    if( size == 0 )
+      tick = currentTick(); // Nothing to cascade, skip idle ticks
+    long ticks = Math.max(1, (delay + tickMs - 1) / tickMs);
+    Timeout t = new Timeout(tick + Math.min(ticks, maxTicks()), task);
+    insert(t);
+    if( ++size == 1 )
+      notifyAll();
+    return t;
+  }
+
+  /** Cancel a task. Has no effect if the task has already run or been
+   * cancelled.
+   *
+   * @param handle handle returned by {@link #executeAfterDelay}
+   */
+  public synchronized void cancel(Object handle) {
+    Timeout t = (Timeout) handle;
+    if( t.wheel < 0 )
+      return;
+    unlink(t);
+    size--;
+  }
+
+  /** Get number of scheduled tasks. */
+  public synchronized int size() {
+    return size;
+  }
+
+  private void runTasks() {
+    for(;;) {
+      Timeout due = null;
+      try {
+        synchronized (this) {
+          while( size == 0 )
+            wait();
+          long now = currentTick();
+          if( now <= tick ) {
+            wait(Math.max(1, start + (tick + 1) * tickMs -
+                System.currentTimeMillis()));
+            continue;
+          }
+          while( tick < now && due == null )
+            due = advance();
+        }
+      } catch (InterruptedException x) {
+        Log.log("Timing wheel interrupted",Log.WARNING);
+        continue;
+      }
+      for( ;due != null;due = due.next) {
+        try {
+          due.task.run();
+        } catch (RuntimeException x) {
+          Log.log("Timed task failed",Log.ERROR,x);
+        }
+      }
+    }
+  }
+
+  // Advance one tick; returns the tasks that became due
+  private Timeout advance() {
+    tick++;
+    // Cascade the wheels that turned around
+    for( int w=1;w<WHEELS && ((tick >>> ((w-1) * SLOT_BITS)) & SLOT_MASK)
+         == 0;w++) {
+      int slot = (int) (tick >>> (w * SLOT_BITS)) & SLOT_MASK;
+      Timeout t = wheels[w][slot];
+      wheels[w][slot] = null;
+      while( t != null ) {
+        Timeout next = t.next;
+        insert(t);
+        t = next;
+      }
+    }
+    int slot = (int) tick & SLOT_MASK;
+    Timeout due = wheels[0][slot];
+    wheels[0][slot] = null;
+    for( Timeout t = due;t != null;t = t.next) {
+      t.wheel = -1;
+      size--;
+    }
+    return due;
+  }
+
+  private void insert(Timeout t) {
+    long delta = t.deadline - tick;
+    int w = 0;
+    while( w < WHEELS - 1 && delta >= (1l << ((w + 1) * SLOT_BITS)) )
+      w++;
+    t.wheel = w;
+    t.slot = (int) (t.deadline >>> (w * SLOT_BITS)) & SLOT_MASK;
+    t.prev = null;
+    t.next = wheels[w][t.slot];
+    if( t.next != null )
+      t.next.prev = t;
+    wheels[w][t.slot] = t;
+  }
+
+  private void unlink(Timeout t) {
+    if( t.prev != null )
+      t.prev.next = t.next;
+    else
+      wheels[t.wheel][t.slot] = t.next;
+    if( t.next != null )
+      t.next.prev = t.prev;
+    t.wheel = -1;
+    t.prev = t.next = null;
+  }
+
+  private long currentTick() {
+    return (System.currentTimeMillis() - start) / tickMs;
+  }
+
+  private static long maxTicks() {
+    return (1l << (WHEELS * SLOT_BITS)) - 1;
+  }
+
+  private static class Timeout {
+    final long deadline;
+    final Runnable task;
+    int wheel = -1;
+    int slot;
+    Timeout prev;
+    Timeout next;
+
+    Timeout(long deadline, Runnable task) {
+      this.deadline = deadline;
+      this.task = task;
+    }
+  }
+}
+
+// arch-tag: efb11561-4f2c-4aec-b8ce-63ec26ce0cf7
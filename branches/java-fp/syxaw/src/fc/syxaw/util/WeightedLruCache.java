@@ -0,0 +1,154 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.syxaw.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/** LRU cache bounded by total item weight. Unlike {@link LruCache}, which
+ * bounds the number of items, this cache bounds the sum of the weights of
+ * the items, so that a few very large items cannot exhaust memory. The
+ * weight of an item implementing {@link Weighted} is sampled when the item
+ * is put in the cache; other items weigh 1. Least recently used items are
+ * evicted until the total weight is within bounds. An item heavier than
+ * the bound is not cached at all.
+ */
+
+public class WeightedLruCache implements Cache {
+
+  /** Item with a weight. */
+  public interface Weighted {
+    /** Get weight of item. */
+    public int getWeight();
+  }
+
+  private final long maxWeight;
+  private long weight = 0l;
+  private long hits = 0l, misses = 0l;
+  private Map entries = new HashMap();
+  private Entry head = new Entry(null,null,0); // Most recent after head
+
+  /** Create a cache.
+   *
+   * @param maxWeight maximum total weight of cached items
+   */
+  public WeightedLruCache(long maxWeight) {
+    this.maxWeight = maxWeight;
+    head.next = head.prev = head;
+  }
+
+  public synchronized Object get(Object key) {
+    Entry e = (Entry) entries.get(key);
+    if( e == null ) {
+      misses++;
+      return null;
+    }
+    hits++;
+    e.unlink();
+    e.linkAfter(head);
+    return e.value;
+  }
+
+  public synchronized Object put(Object key, Object value) {
+    Object old = remove(key);
+    if( value == null )
+      return old;
+    int w = value instanceof Weighted ? ((Weighted) value).getWeight() : 1;
+    if( w > maxWeight )
+      return old;
+    Entry e = new Entry(key,value,w);
+    entries.put(key,e);
+    e.linkAfter(head);
+    weight += w;
+    while( weight > maxWeight )
+      remove(head.prev.key);
+    return old;
+  }
+
+  public synchronized Object remove(Object key) {
+    Entry e = (Entry) entries.remove(key);
+    if( e == null )
+      return null;
+    e.unlink();
+    weight -= e.weight;
+    return e.value;
+  }
+
+  public synchronized boolean containsKey(Object k) {
+    return entries.containsKey(k);
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+    head.next = head.prev = head;
+    weight = 0l;
+  }
+
+  /** Get total weight of cached items. */
+  public synchronized long getWeight() {
+    return weight;
+  }
+
+  /** Get number of successful lookups by {@link #get get}. */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /** Get number of failed lookups by {@link #get get}. */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /** Get number of cached items. */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /** Get the keys of the cached items, least recently used first. The
+   * keys are copied, so the cache may be changed while iterating.
+   */
+  public synchronized Iterator keys() {
+    List keys = new ArrayList(entries.size());
+    for( Entry e = head.prev;e != head;e = e.prev)
+      keys.add(e.key);
+    return keys.iterator();
+  }
+
+  private static class Entry {
+    Object key;
+    Object value;
+    int weight;
+    Entry prev, next;
+
+    Entry(Object key, Object value, int weight) {
+      this.key = key;
+      this.value = value;
+      this.weight = weight;
+    }
+
+    void unlink() {
+      prev.next = next;
+      next.prev = prev;
+    }
+
+    void linkAfter(Entry e) {
+      next = e.next;
+      prev = e;
+      e.next.prev = this;
+      e.next = this;
+    }
+  }
+}
+// arch-tag: 1bb9ec2f-e249-47c9-a693-2942dd049bb4
@@ -0,0 +1,379 @@
+package fc.util.bytedb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import fc.util.log.Log;
+
+import EDU.oswego.cs.dl.util.concurrent.ReadWriteLock;
+import EDU.oswego.cs.dl.util.concurrent.ReentrantWriterPreferenceReadWriteLock;
+import EDU.oswego.cs.dl.util.concurrent.Sync;
+import EDU.oswego.cs.dl.util.concurrent.WriterPreferenceReadWriteLock;
+
+/**
+ * Sdbm database accessed through memory mapped files. The database files
+ * have the same format as those of {@link Sdbm}. The page and directory
+ * files are mapped into memory, and grown in large steps as the database
+ * grows. The files are truncated to their real size on {@link #close}.
+ * <p>Concurrency: lookups, removals and updates that fit into the page of
+ * the key run concurrently. These hold a shared lock on the database
+ * structure and a lock on the page, so that readers do not block each
+ * other, and writers only block accesses to pages sharing the same
+ * lock stripe. An update that needs to split a page or to grow the files
+ * holds the structure lock exclusively.
+ * <p>The class needs <code>java.nio</code>, which is not in Foundation
+ * Profile 1.0, and is hence listed in <code>fp-exclude</code>. Load it by
+ * name where the Foundation Profile build must compile without it.
+ */
+
+public class MappedSdbm extends Sdbm {
+
+  /** Number of page lock stripes. */
+  public static final int LOCK_STRIPES = 64;
+
+  // Minimum number of bytes to grow a mapped file by
+  private static final int MIN_GROWTH = 65536;
+
+  private final ReadWriteLock structure =
+    new ReentrantWriterPreferenceReadWriteLock();
+  private final ReadWriteLock[] pageLocks = new ReadWriteLock[LOCK_STRIPES];
+
+  // Mapped files, and the used length of each. The buffers are only
+  // replaced under the exclusive structure lock and the object monitor
+  private MappedByteBuffer pagMap;
+  private MappedByteBuffer dirMap;
+  private volatile int pagLength;
+  private volatile int dirLength;
+
+  /**
+   * @param name The name of the database, a name.pag and a name.dir file will be created.
+   * @param mode The mode to open the database in, either "r" or "rw"
+   */
+  public MappedSdbm(File baseDir, String name, String mode)
+    throws IOException {
+    super(baseDir, name, mode);
+    for (int i = 0; i < LOCK_STRIPES; i++) {
+      pageLocks[i] = new WriterPreferenceReadWriteLock();
+    }
+    map();
+  }
+
+  public byte[] get(byte[] keyBytes) throws IOException {
+    Page p = readShared(keyBytes);
+    return p == null ? null : p.get(keyBytes);
+  }
+
+  public boolean containsKey(byte[] keyBytes) throws IOException {
+    Page p = readShared(keyBytes);
+    return p != null && p.containsKey(keyBytes);
+  }
+
+  public String put(byte[] keyBytes, byte[] value) throws IOException,
+  SdbmException {
+    checkKey(keyBytes);
+    int need = keyBytes.length + value.length;
+    if (need > PAIRMAX) {
+      throw new SdbmException("Pair is too big for this database");
+    }
+    int hash = Hash.hash(keyBytes);
+    acquire(structure.readLock());
+    try {
+      int bno = pageOf(hash);
+      if (inPageFile(bno)) {
+        Sync l = pageLock(bno).writeLock();
+        acquire(l);
+        try {
+          Page p = loadPage(bno);
+          byte[] old = p.remove(keyBytes);
+          if (p.hasRoom(need)) {
+            p.put(keyBytes, value);
+            storePage(p);
+            return old == null ? null : new String(old);
+          }
+        } finally {
+          l.release();
+        }
+      }
+    } finally {
+      structure.readLock().release();
+    }
+    // Need to split or add a page
+    acquire(structure.writeLock());
+    try {
+      synchronized (this) {
+        try {
+          return super.put(keyBytes, value);
+        } finally {
+          page = null; // May be changed by shared writers
+        }
+      }
+    } finally {
+      structure.writeLock().release();
+    }
+  }
+
+  public String remove(byte[] keyBytes) throws IOException {
+    checkKey(keyBytes);
+    int hash = Hash.hash(keyBytes);
+    acquire(structure.readLock());
+    try {
+      int bno = pageOf(hash);
+      if (!inPageFile(bno)) {
+        return null;
+      }
+      Sync l = pageLock(bno).writeLock();
+      acquire(l);
+      try {
+        Page p = loadPage(bno);
+        byte[] old = p.remove(keyBytes);
+        if (old == null) {
+          return null;
+        }
+        storePage(p);
+        return new String(old);
+      } finally {
+        l.release();
+      }
+    } finally {
+      structure.readLock().release();
+    }
+  }
+
+  public void clear() throws IOException {
+    acquire(structure.writeLock());
+    try {
+      synchronized (this) {
+        super.clear();
+        map();
+      }
+    } finally {
+      structure.writeLock().release();
+    }
+  }
+
+  public void clean() throws IOException {
+    acquire(structure.writeLock());
+    try {
+      synchronized (this) {
+        try {
+          super.clean();
+        } finally {
+          page = null;
+        }
+        map();
+      }
+    } finally {
+      structure.writeLock().release();
+    }
+  }
+
+  public void close() throws IOException {
+    acquire(structure.writeLock());
+    try {
+      synchronized (this) {
+        if ("rw".equals(mode)) {
+          try {
+            pagRaf.setLength(pagLength);
+            dirRaf.setLength(dirLength);
+          } catch (IOException x) {
+            // Unused space at the end is harmless
+            Log.log("Cannot truncate " + pagFile, Log.WARNING, x);
+          }
+        }
+        super.close();
+      }
+    } finally {
+      structure.writeLock().release();
+    }
+  }
+
+  public void sync() throws IOException {
+    acquire(structure.writeLock());
+    try {
+      synchronized (this) {
+        pagMap.force();
+        dirMap.force();
+        super.sync();
+      }
+    } finally {
+      structure.writeLock().release();
+    }
+  }
+
+  // Page and directory access by Sdbm. Called with the object monitor
+  // held, and, except for reading pages, the exclusive structure lock.
+
+  protected void readPage(int bno, byte[] b) throws IOException {
+    if (!inPageFile(bno)) {
+      clearByteArray(b);
+      return;
+    }
+    Sync l = pageLock(bno).readLock();
+    acquire(l);
+    try {
+      copyPage(bno, b);
+    } finally {
+      l.release();
+    }
+  }
+
+  protected void writePage(Page p) throws IOException {
+    long end = ( (long) p.bno + 1) * PBLKSIZ;
+    if (end > pagLength) {
+      if (end > pagMap.capacity()) {
+        pagMap = grow(pagRaf, pagMap, end);
+      }
+      pagLength = (int) end;
+    }
+    storePage(p);
+  }
+
+  protected void readDir(int dirb, byte[] b) throws IOException {
+    int off = dirb * DBLKSIZ;
+    int len = Math.max(0, Math.min(DBLKSIZ, dirLength - off));
+    if (len > 0) {
+      ByteBuffer buf = dirMap.duplicate();
+      buf.position(off);
+      buf.get(b, 0, len);
+    }
+    for (int i = len; i < DBLKSIZ; i++) {
+      b[i] = 0;
+    }
+  }
+
+  protected void writeDir(int dirb, byte[] b) throws IOException {
+    long end = ( (long) dirb + 1) * DBLKSIZ;
+    if (end > dirLength) {
+      if (end > dirMap.capacity()) {
+        dirMap = grow(dirRaf, dirMap, end);
+      }
+      dirLength = (int) end;
+    }
+    ByteBuffer buf = dirMap.duplicate();
+    buf.position(dirb * DBLKSIZ);
+    buf.put(b, 0, DBLKSIZ);
+  }
+
+  protected long pageFileLength() {
+    return pagLength;
+  }
+
+  // Read page of key with the structure lock shared
+  private Page readShared(byte[] keyBytes) throws IOException {
+    checkKey(keyBytes);
+    int hash = Hash.hash(keyBytes);
+    acquire(structure.readLock());
+    try {
+      int bno = pageOf(hash);
+      if (!inPageFile(bno)) {
+        return null;
+      }
+      byte[] b = new byte[PBLKSIZ];
+      Sync l = pageLock(bno).readLock();
+      acquire(l);
+      try {
+        copyPage(bno, b);
+      } finally {
+        l.release();
+      }
+      Page p = new Page(b);
+      return p.isValid() ? p : null;
+    } finally {
+      structure.readLock().release();
+    }
+  }
+
+  // Same as the traversal in getPage(), but without touching the
+  // current page and directory block
+  private int pageOf(int hash) {
+    int hbit = 0;
+    int dbit = 0;
+    while (dbit < maxbno && dirBit(dbit)) {
+      dbit = 2 * dbit + ( (hash & (1 << hbit++)) != 0 ? 2 : 1);
+    }
+    return hash & ( (1 << hbit) - 1);
+  }
+
+  private boolean dirBit(int dbit) {
+    int c = dbit / BITSINBYTE;
+    return c < dirLength &&
+      (dirMap.get(c) & (1 << dbit % BITSINBYTE)) != 0;
+  }
+
+  private boolean inPageFile(int bno) {
+    return ( (long) bno + 1) * PBLKSIZ <= pagLength;
+  }
+
+  private ReadWriteLock pageLock(int bno) {
+    return pageLocks[bno & (LOCK_STRIPES - 1)];
+  }
+
+  private Page loadPage(int bno) {
+    byte[] b = new byte[PBLKSIZ];
+    copyPage(bno, b);
+    Page p = new Page(b);
+    if (!p.isValid()) {
+      // Corrupt page, use an empty one like getPage()
+      p = new Page(PBLKSIZ);
+    }
+    p.bno = bno;
+    return p;
+  }
+
+  private void copyPage(int bno, byte[] b) {
+    ByteBuffer buf = pagMap.duplicate();
+    buf.position(bno * PBLKSIZ);
+    buf.get(b, 0, PBLKSIZ);
+  }
+
+  private void storePage(Page p) {
+    ByteBuffer buf = pagMap.duplicate();
+    buf.position(p.bno * PBLKSIZ);
+    buf.put(p.pag, 0, PBLKSIZ);
+  }
+
+  private void map() throws IOException {
+    pagLength = mappableLength(pagRaf);
+    dirLength = mappableLength(dirRaf);
+    FileChannel.MapMode mm = "rw".equals(mode) ?
+      FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+    pagMap = pagRaf.getChannel().map(mm, 0, pagLength);
+    dirMap = dirRaf.getChannel().map(mm, 0, dirLength);
+  }
+
+  private static int mappableLength(RandomAccessFile f) throws IOException {
+    long len = f.length();
+    if (len > Integer.MAX_VALUE) {
+      throw new SdbmException("Database too large to map");
+    }
+    return (int) len;
+  }
+
+  private static MappedByteBuffer grow(RandomAccessFile f,
+                                       MappedByteBuffer m, long size)
+    throws IOException {
+    if (size > Integer.MAX_VALUE) {
+      throw new SdbmException("Database too large to map");
+    }
+    long cap = Math.min(Integer.MAX_VALUE,
+                        Math.max(size, Math.max(2l * m.capacity(),
+                                                MIN_GROWTH)));
+    if (f.length() < cap) {
+      f.setLength(cap);
+    }
+    return f.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, cap);
+  }
+
+  private static void acquire(Sync s) throws IOException {
+    try {
+      s.acquire();
+    } catch (InterruptedException x) {
+      throw new InterruptedIOException("Interrupted while waiting for lock");
+    }
+  }
+}
@@ -129,7 +129,7 @@ public class Sdbm {
     //System.out.println("size:"+dirRaf.length());
   }
 
-  private static final void checkKey(byte[] key) {
+  static final void checkKey(byte[] key) {
     if (key == null) {
       throw new NullPointerException();
     } else if (key.length <= 0) {
@@ -164,6 +164,14 @@ public class Sdbm {
     pagRaf.close();
   }
 
+  /**
+   * Force all updates of the database to disk.
+   */
+  public synchronized void sync() throws IOException {
+    dirRaf.getFD().sync();
+    pagRaf.getFD().sync();
+  }
+
   /**
    * Get the value associated with the key, returns null if that
    * value doesn't exist.
@@ -318,8 +326,7 @@ public class Sdbm {
     }
 
     // update the page file
-    pseek(pagRaf,OFF_PAG(page.bno));
-    pagRaf.write(page.pag, 0, PBLKSIZ);
+    writePage(page);
 
     return val;
   }
@@ -377,8 +384,7 @@ public class Sdbm {
       pagRaf.seek(OFF_PAG(page.bno));*/
 
 
-    pseek(pagRaf,OFF_PAG(page.bno));
-    pagRaf.write(page.pag, 0, PBLKSIZ);
+    writePage(page);
 
     return val;
   }
@@ -471,15 +477,13 @@ public class Sdbm {
       // page is not updated here, as put will do so, after it inserts
       // the incoming pair.
       if ( (hash & (hmask + 1)) != 0) {
-        pseek(pagRaf,OFF_PAG(page.bno));
-        pagRaf.write(page.pag, 0, PBLKSIZ);
+        writePage(page);
         page = newPage;
       } else {
         /* if( OFF_PAG(newPage.bno) > pagRaf.length() )
             Log.log("Seek beyoond eof",Log.FATALERROR);
           pagRaf.seek(OFF_PAG(newPage.bno));*/
-        pseek(pagRaf,OFF_PAG(newPage.bno));
-        pagRaf.write(newPage.pag, 0, PBLKSIZ);
+        writePage(newPage);
       }
 
       setdbit(curbit);
@@ -495,8 +499,7 @@ public class Sdbm {
       curbit = 2 * curbit + ( (hash & (hmask + 1)) != 0 ? 2 : 1);
       hmask |= hmask + 1;
 
-      pseek(pagRaf,OFF_PAG(page.bno));
-      pagRaf.write(page.pag, 0, PBLKSIZ);
+      writePage(page);
 
     }
     while (--smax != 0);
@@ -522,7 +525,7 @@ public class Sdbm {
       synchronized (Sdbm.this) {
         //If we're at the end of the file.
         try {
-          if (OFF_PAG(blkptr) >= pagRaf.length()) {
+          if (OFF_PAG(blkptr) >= pageFileLength()) {
             return false;
           }
 
@@ -541,8 +544,7 @@ public class Sdbm {
         Page p = new Page(PBLKSIZ);
         if (page == null || page.bno != blkptr) {
           try {
-            pseek(pagRaf,OFF_PAG(blkptr));
-            readLots(pagRaf, p.pag, 0, PBLKSIZ);
+            readPage(blkptr, p.pag);
           } catch (IOException e) {
             throw new NoSuchElementException(e.getMessage());
           }
@@ -660,9 +662,8 @@ public class Sdbm {
     // note: this lookaside cache has about 10% hit rate.
     if (page == null || pagb != page.bno) {
 
-      pseek(pagRaf,OFF_PAG(pagb));
       byte[] b = new byte[PBLKSIZ];
-      readLots(pagRaf, b, 0, PBLKSIZ);
+      readPage(pagb, b);
       newPage = new Page(b);
 
       if (!newPage.isValid()) {
@@ -690,8 +691,7 @@ public class Sdbm {
     dirb = c / DBLKSIZ;
 
     if (dirb != dirbno) {
-      pseek(dirRaf,OFF_DIR(dirb));
-      readLots(dirRaf, dirbuf, 0, DBLKSIZ);
+      readDir(dirb, dirbuf);
 
       dirbno = dirb;
 
@@ -707,8 +707,7 @@ public class Sdbm {
 
     if (dirb != dirbno) {
       clearByteArray(dirbuf);
-      pseek(dirRaf,OFF_DIR(dirb));
-      readLots(dirRaf, dirbuf, 0, DBLKSIZ);
+      readDir(dirb, dirbuf);
 
       dirbno = dirb;
 
@@ -720,9 +719,40 @@ public class Sdbm {
     if (dbit >= maxbno)
       maxbno += DBLKSIZ * BITSINBYTE;
 
+    writeDir(dirb, dirbuf);
+
+  }
+
+  // Page and directory file access. Subclasses may store the files
+  // differently by overriding these.
+
+  /** Read page <code>bno</code> into <code>b</code>. */
+  protected void readPage(int bno, byte[] b) throws IOException {
+    pseek(pagRaf,OFF_PAG(bno));
+    readLots(pagRaf, b, 0, PBLKSIZ);
+  }
+
+  /** Write page to the page file at block <code>p.bno</code>. */
+  protected void writePage(Page p) throws IOException {
+    pseek(pagRaf,OFF_PAG(p.bno));
+    pagRaf.write(p.pag, 0, PBLKSIZ);
+  }
+
+  /** Read directory block <code>dirb</code> into <code>b</code>. */
+  protected void readDir(int dirb, byte[] b) throws IOException {
     pseek(dirRaf,OFF_DIR(dirb));
-    dirRaf.write(dirbuf, 0, DBLKSIZ);
+    readLots(dirRaf, b, 0, DBLKSIZ);
+  }
+
+  /** Write directory block <code>dirb</code>. */
+  protected void writeDir(int dirb, byte[] b) throws IOException {
+    pseek(dirRaf,OFF_DIR(dirb));
+    dirRaf.write(b, 0, DBLKSIZ);
+  }
 
+  /** Get length of the page file. */
+  protected long pageFileLength() throws IOException {
+    return pagRaf.length();
   }
 
   public static void clearByteArray(byte[] arr) {
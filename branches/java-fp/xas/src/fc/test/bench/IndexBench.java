@@ -0,0 +1,122 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.test.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Random;
+
+import fc.util.Util;
+import fc.xml.xas.index.DeweyKey;
+import fc.xml.xas.index.Index;
+import fc.xml.xas.index.SeekableKXmlSource;
+
+/**
+ * Benchmark of building a complete {@link Index} and of random lookups in it.
+ * The document is a number of deep spines under the root element. Each level
+ * of a spine has a number of leaf elements with text content, and one
+ * element holding the next level. Lookups are of random elements and text
+ * nodes, with the keys built from integer arrays as a client would.
+ */
+public class IndexBench {
+
+    private static final int ROUNDS = 10;
+
+    private static byte[] generate (int spines, int depth, int leaves)
+	    throws Exception {
+	ByteArrayOutputStream bout = new ByteArrayOutputStream();
+	Writer w = new OutputStreamWriter(bout, "UTF-8");
+	w.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?><doc>");
+	for (int s = 0; s < spines; s++) {
+	    for (int l = 0; l < depth; l++) {
+		w.write("<n>");
+		for (int j = 0; j < leaves; j++) {
+		    w.write("<leaf>text " + j + "</leaf>");
+		}
+	    }
+	    for (int l = 0; l < depth; l++) {
+		w.write("</n>");
+	    }
+	}
+	w.write("</doc>");
+	w.close();
+	return bout.toByteArray();
+    }
+
+    // Random key of a level element, leaf element, or leaf text. Level l of
+    // spine s has key /0/s followed by l steps to the last child
+    private static int[] randomPath (Random rnd, int spines, int depth,
+	    int leaves) {
+	int level = rnd.nextInt(depth);
+	int kind = rnd.nextInt(3);
+	int[] path = new int[2 + level + (kind > 0 ? 1 : 0) + (kind > 1 ? 1 : 0)];
+	path[0] = 0;
+	path[1] = rnd.nextInt(spines);
+	for (int i = 0; i < level; i++) {
+	    path[2 + i] = leaves;
+	}
+	if (kind > 0) {
+	    path[2 + level] = rnd.nextInt(leaves);
+	}
+	if (kind > 1) {
+	    path[3 + level] = 0;
+	}
+	return path;
+    }
+
+    public static void main (String[] args) {
+	try {
+	    int spines = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+	    int depth = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+	    int leaves = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+	    int finds = args.length > 3 ? Integer.parseInt(args[3]) : 1000000;
+	    byte[] doc = generate(spines, depth, leaves);
+	    System.out.println("Document: " + doc.length + " bytes, depth "
+		    + (depth + 3));
+	    int[][] paths = new int[finds][];
+	    Random rnd = new Random(42);
+	    for (int i = 0; i < finds; i++) {
+		paths[i] = randomPath(rnd, spines, depth, leaves);
+	    }
+	    Index index = null;
+	    for (int round = 0; round < ROUNDS; round++) {
+		index = null;
+		Util.runGc();
+		long beginMemory = Util.usedMemory();
+		long start = System.currentTimeMillis();
+		index = Index.buildFull(new SeekableKXmlSource(doc, 0,
+		    doc.length));
+		long build = System.currentTimeMillis() - start;
+		Util.runGc();
+		long size = Util.usedMemory() - beginMemory;
+		start = System.currentTimeMillis();
+		for (int i = 0; i < finds; i++) {
+		    if (index.find(DeweyKey.construct(paths[i])) == null) {
+			throw new IllegalStateException("Not found: "
+				+ DeweyKey.construct(paths[i]));
+		    }
+		}
+		long find = System.currentTimeMillis() - start;
+		System.out.println("Round " + round + ": entries="
+			+ index.size() + " build ms=" + build + " index bytes="
+			+ size + " ns/find=" + (find * 1000000l / finds));
+	    }
+	} catch (Exception ex) {
+	    ex.printStackTrace();
+	    System.exit(1);
+	}
+    }
+
+}
+
+// arch-tag: b7053686-8624-43f6-b062-ce79c64d731f
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.test.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+
+import org.kxml2.io.KXmlParser;
+
+import fc.xml.xas.Item;
+import fc.xml.xas.ItemList;
+import fc.xml.xas.XmlOutput;
+import fc.xml.xas.XmlPullSource;
+
+/**
+ * Benchmark of {@link XmlOutput} alone. The file is parsed into memory once,
+ * and the items are then serialized repeatedly into a memory buffer, so
+ * that parsing and disk writes are not measured.
+ */
+public class XmlOutputBench {
+
+    public static void main (String[] args) {
+	try {
+	    if (args.length < 1) {
+		System.err.println("Usage: XmlOutputBench <file> [encoding]"
+			+ " [rounds]");
+		System.exit(1);
+	    }
+	    String encoding = args.length > 1 ? args[1] : "UTF-8";
+	    int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+	    XmlPullSource source = new XmlPullSource(new KXmlParser(),
+		new FileInputStream(args[0]));
+	    ItemList items = new ItemList();
+	    Item item;
+	    while ((item = source.next()) != null) {
+		items.append(item);
+	    }
+	    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+	    for (int round = 0; round < rounds; round++) {
+		bout.reset();
+		long start = System.currentTimeMillis();
+		XmlOutput out = new XmlOutput(bout, encoding);
+		for (int i = 0; i < items.size(); i++) {
+		    out.append(items.get(i));
+		}
+		out.flush();
+		long time = Math.max(1, System.currentTimeMillis() - start);
+		System.out.println("Round " + round + ": bytes=" + bout.size()
+			+ " ms=" + time + " MB/s="
+			+ (bout.size() / 1000 / time));
+	    }
+	} catch (Exception ex) {
+	    ex.printStackTrace();
+	    System.exit(1);
+	}
+    }
+
+}
+
+// arch-tag: 3b731c96-755a-49bb-914d-6152d497bc6e
@@ -61,11 +61,12 @@ public class XmlPass {
 	serializer.serialize(document);
     }
 
-    private static void xasPass (String inFile, String outFile)
+    private static void xasPass (String inFile, String outFile, boolean reuse)
 	    throws Exception {
 	KXmlParser parser = new KXmlParser();
 	FileInputStream in = new FileInputStream(inFile);
 	XmlPullSource source = new XmlPullSource(parser, in);
+	source.setReuseItems(reuse);
 	XmlOutput serializer = null;
 	FileOutputStream out = new FileOutputStream(outFile);
 	serializer = new XmlOutput(out, source.getEncoding());
@@ -78,7 +79,7 @@ public class XmlPass {
     public static void main (String[] args) {
 	try {
 	    if (args.length != 2) {
-		System.err.println("Usage: XmlPass (sax|dom|xas) <file>");
+		System.err.println("Usage: XmlPass (sax|dom|xas|xasr) <file>");
 		System.exit(1);
 	    }
 	    Measurer.init(Measurer.TIMING);
@@ -94,9 +95,11 @@ public class XmlPass {
 		} else if (args[0].equals("dom")) {
 		    domPass(args[1], outFile);
 		} else if (args[0].equals("xas")) {
-		    xasPass(args[1], outFile);
+		    xasPass(args[1], outFile, false);
+		} else if (args[0].equals("xasr")) {
+		    xasPass(args[1], outFile, true);
 		} else {
-		    System.err.println("Usage: XmlPass (sax|dom|xas) <file>");
+		    System.err.println("Usage: XmlPass (sax|dom|xas|xasr) <file>");
 		    System.exit(1);
 		}
 		if (i >= end - 2) {
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.test.junit;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import fc.xml.xas.index.DeweyKey;
+import fc.xml.xas.index.Index;
+import fc.xml.xas.index.SeekableKXmlSource;
+
+/**
+ * Tests for the packed {@link DeweyKey} and the open-addressing
+ * {@link Index}.
+ */
+public class IndexTest extends TestCase {
+
+    private static final int[][] PATHS = { {}, { 0 }, { 5 }, { 0, 0 },
+	    { 1, 2, 3 }, { 127 }, { 128 }, { 16383, 16384 },
+	    { Integer.MAX_VALUE }, { 0, 127, 128, 255, 256, 1 << 21, 1 << 28 } };
+
+    // Hash of a key as computed before keys were packed
+    private static int oldHash (int[] path) {
+	int h = 0;
+	for (int i = 0; i < path.length; i++) {
+	    h = 37 * h + path[i];
+	}
+	return h;
+    }
+
+    private static DeweyKey chain (int[] path) {
+	DeweyKey k = DeweyKey.root();
+	for (int i = 0; i < path.length; i++) {
+	    k = k.child(path[i]);
+	}
+	return k;
+    }
+
+    public void testRoundTrip () {
+	for (int i = 0; i < PATHS.length; i++) {
+	    int[] path = PATHS[i];
+	    DeweyKey k = DeweyKey.construct(path);
+	    assertTrue("Round trip of " + k, Arrays.equals(path,
+		k.deconstruct()));
+	    assertEquals(path.length, k.size());
+	    assertEquals(oldHash(path), k.hashCode());
+	    assertEquals(k, chain(path));
+	    assertEquals(k.hashCode(), chain(path).hashCode());
+	    if (path.length > 0) {
+		assertEquals(path[path.length - 1], k.getLastStep());
+		assertEquals(k, k.up().child(k.getLastStep()));
+	    }
+	}
+	int[] padded = { 9, 1, 2, 3, 9 };
+	assertEquals(DeweyKey.construct(new int[] { 1, 2, 3 }), DeweyKey
+	    .construct(padded, 1, 3));
+	assertEquals(DeweyKey.construct(new int[] { 4, 1, 2 }), DeweyKey
+	    .construct(new int[] { 4 }).append(padded, 1, 2));
+    }
+
+    public void testRoot () {
+	DeweyKey root = DeweyKey.root();
+	assertTrue(root.isRoot());
+	assertEquals(0, root.size());
+	assertEquals(0, root.deconstruct().length);
+	assertEquals(root, DeweyKey.construct(new int[0]));
+	assertEquals(root, DeweyKey.construct(null));
+	assertEquals(root, DeweyKey.initial().up());
+	assertEquals("/", root.toString());
+	assertTrue(DeweyKey.initial().isChild(root));
+	assertTrue(DeweyKey.initial().isDescendant(root));
+	assertFalse(root.isDescendant(DeweyKey.initial()));
+	try {
+	    root.up();
+	    fail("Root has no parent");
+	} catch (IllegalStateException ex) {
+	}
+	try {
+	    DeweyKey.topLevel(-1);
+	    fail("Negative component accepted");
+	} catch (IllegalArgumentException ex) {
+	}
+    }
+
+    public void testDeepKeys () {
+	int depth = 10000;
+	int[] path = new int[depth];
+	for (int i = 0; i < depth; i++) {
+	    path[i] = i % 300;
+	}
+	DeweyKey k = DeweyKey.construct(path);
+	assertEquals(depth, k.size());
+	assertTrue(Arrays.equals(path, k.deconstruct()));
+	assertEquals(oldHash(path), k.hashCode());
+	DeweyKey a = DeweyKey.construct(path, 0, depth / 2);
+	assertTrue(k.isDescendant(a));
+	assertFalse(a.isDescendant(k));
+	assertEquals(a, k.commonAncestor(a));
+	DeweyKey b = DeweyKey.construct(new int[] { 7, 7 });
+	assertEquals(b.append(path, depth / 2, depth - depth / 2), k
+	    .replaceAncestor(a, b));
+	DeweyKey up = k;
+	for (int i = depth; i > 1; i--) {
+	    up = up.up();
+	}
+	assertEquals(DeweyKey.initial(), up);
+    }
+
+    public void testCompare () {
+	DeweyKey a = DeweyKey.construct(new int[] { 1, 2, 127 });
+	DeweyKey b = a.next();
+	assertEquals(DeweyKey.construct(new int[] { 1, 2, 128 }), b);
+	assertEquals(a, b.prev());
+	assertEquals(a.hashCode(), b.prev().hashCode());
+	assertTrue(a.precedeSibling(b));
+	assertFalse(b.precedeSibling(a));
+	assertTrue(b.followSibling(a));
+	assertFalse(a.precedeSibling(a));
+	assertTrue(b.child(3).descendantFollowSibling(a));
+	assertFalse(a.child(3).descendantFollowSibling(b));
+	assertEquals(a.up(), a.commonAncestor(b));
+	assertEquals(DeweyKey.construct(new int[] { 1, 3, 0 }), a
+	    .next(DeweyKey.initial().next()).up().child(0));
+	assertFalse(a.equals(a.up()));
+	assertFalse(a.equals(null));
+	assertFalse(a.equals("/1/2/127"));
+	assertEquals("/1/2/127", a.toString());
+	// Equal hash codes, different keys
+	DeweyKey c = DeweyKey.construct(new int[] { 0, 37 });
+	DeweyKey d = DeweyKey.construct(new int[] { 1, 0 });
+	assertEquals(c.hashCode(), d.hashCode());
+	assertFalse(c.equals(d));
+	// Byte prefix is a component prefix
+	assertFalse(DeweyKey.construct(new int[] { 129 }).isDescendant(
+	    DeweyKey.construct(new int[] { 1 })));
+    }
+
+    public void testIndexGrowth () {
+	Index index = new Index(null);
+	int n = 5000;
+	for (int i = 0; i < n; i++) {
+	    index.insert(key(i), i * 10, i * 10 + 5, null);
+	}
+	assertEquals(n, index.size());
+	for (int i = 0; i < n; i++) {
+	    Index.Entry e = index.find(key(i));
+	    assertNotNull("Missing " + key(i), e);
+	    assertEquals(i * 10, e.getOffset());
+	    assertEquals(5, e.getLength());
+	    assertEquals(i * 10 + 5, e.getEnd());
+	}
+	assertNull(index.find(key(n)));
+	// Reinsert replaces
+	index.insert(key(7), 1, 2, null);
+	assertEquals(n, index.size());
+	assertEquals(1, index.find(key(7)).getOffset());
+    }
+
+    public void testIndexCollisions () {
+	Index index = new Index(null);
+	// All keys /i/(37*(k-i)) have hash 37*k
+	int k = 50;
+	for (int i = 0; i <= k; i++) {
+	    DeweyKey key = DeweyKey.construct(new int[] { i, 37 * (k - i) });
+	    assertEquals(37 * k, key.hashCode());
+	    index.insert(key, i, i + 1, null);
+	}
+	index.insert(DeweyKey.topLevel(37 * k), -1, 0, null);
+	assertEquals(k + 2, index.size());
+	for (int i = 0; i <= k; i++) {
+	    assertEquals(i, index.find(DeweyKey.construct(new int[] { i,
+		    37 * (k - i) })).getOffset());
+	}
+	assertEquals(-1, index.find(DeweyKey.topLevel(37 * k)).getOffset());
+	assertNull(index.find(DeweyKey.construct(new int[] { k + 1, 0 })));
+    }
+
+    public void testLongOffsets () {
+	Index index = new Index(null);
+	long start = (1l << 31) + 10;
+	long end = (5l << 31) + 3;
+	index.insert(DeweyKey.initial(), start, end, null);
+	index.insert(DeweyKey.initial().next(), 10l, (1l << 31) - 1, null);
+	Index.Entry e = index.find(DeweyKey.initial());
+	assertEquals(start, e.getLongOffset());
+	assertEquals(end - start, e.getLongLength());
+	assertEquals(end, e.getLongEnd());
+	try {
+	    e.getOffset();
+	    fail("Offset beyond 2 GB returned as int");
+	} catch (IllegalStateException ex) {
+	}
+	try {
+	    e.getEnd();
+	    fail("End beyond 2 GB returned as int");
+	} catch (IllegalStateException ex) {
+	}
+	e = index.find(DeweyKey.initial().next());
+	assertEquals(10, e.getOffset());
+	assertEquals(Integer.MAX_VALUE, e.getEnd());
+    }
+
+    public void testBuildFull () throws Exception {
+	byte[] doc = ("<?xml version=\"1.0\"?><doc><a>text</a><b><c/></b>"
+		+ "</doc>").getBytes("UTF-8");
+	Index index = Index.buildFull(new SeekableKXmlSource(doc, 0,
+	    doc.length));
+	DeweyKey a = DeweyKey.initial().down();
+	Index.Entry doce = index.find(DeweyKey.initial());
+	Index.Entry ae = index.find(a);
+	Index.Entry ce = index.find(a.next().down());
+	assertNotNull(doce);
+	assertNotNull(ae);
+	assertNotNull(index.find(a.down()));
+	assertNotNull(ce);
+	assertNull(index.find(a.next().next()));
+	assertEquals("<a>text</a>", new String(doc, ae.getOffset(), ae
+	    .getLength(), "UTF-8"));
+	assertEquals("<c/>", new String(doc, ce.getOffset(), ce.getLength(),
+	    "UTF-8"));
+	assertTrue(doce.getOffset() < ae.getOffset()
+		&& ae.getEnd() < doce.getEnd());
+    }
+
+    // Keys of varying depth and component size
+    private static DeweyKey key (int i) {
+	return DeweyKey.construct(new int[] { i % 7, i, i % 3 }, 0,
+	    2 + i % 2);
+    }
+
+    public static void main (String[] args) {
+	junit.textui.TestRunner.run(IndexTest.class);
+    }
+
+}
+
+// arch-tag: 8ca58e8d-070c-4a75-9536-1b33f75c7acb
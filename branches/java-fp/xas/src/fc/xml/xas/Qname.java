@@ -11,16 +11,27 @@
 
 package fc.xml.xas;
 
+/**
+ * A qualified name. The namespace and local name strings are interned, and
+ * the hash code is computed at construction, so comparing names is cheap.
+ * Parsers use a {@link QnameTable} to avoid creating a new name for each tag.
+ */
 public final class Qname implements Comparable<Qname> {
 
     private String namespace;
     private String name;
+    private int hash;
 
     public Qname (String namespace, String name) {
 	Verifier.checkNamespace(namespace);
 	Verifier.checkName(name);
 	this.namespace = namespace.intern();
 	this.name = name.intern();
+	this.hash = hashCode(this.namespace, this.name);
+    }
+
+    static int hashCode (String namespace, String name) {
+	return name.hashCode() ^ namespace.hashCode();
     }
 
     public String getNamespace () {
@@ -37,13 +48,15 @@ public final class Qname implements Comparable<Qname> {
 	} else if (!(o instanceof Qname)) {
 	    return false;
 	} else {
+	    // The strings are interned
 	    Qname q = (Qname) o;
-	    return name.equals(q.name) && namespace.equals(q.namespace);
+	    return hash == q.hash && name == q.name
+		    && namespace == q.namespace;
 	}
     }
 
     public int hashCode () {
-	return name.hashCode() ^ namespace.hashCode();
+	return hash;
     }
 
     public int compareTo (Qname q) {
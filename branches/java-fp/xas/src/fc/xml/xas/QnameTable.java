@@ -0,0 +1,116 @@
+/*
+ * Copyright 2005--2008 Helsinki Institute for Information Technology
+ *
+ * This file is a part of Fuego middleware.  Fuego middleware is free
+ * software; you can redistribute it and/or modify it under the terms
+ * of the MIT license, included as the file MIT-LICENSE in the Fuego
+ * middleware source distribution.  If you did not receive the MIT
+ * license with the distribution, write to the Fuego Core project at
+ * fuego-core-users@googlegroups.com.
+ */
+
+package fc.xml.xas;
+
+/**
+ * A symbol table of qualified names. The table maps namespace and local name
+ * pairs to canonical {@link Qname} instances, and each name to a shared
+ * {@link EndTag}. A parser with a table creates a name and end tag object
+ * only the first time it sees the name, and does not need to intern the
+ * strings it gets from the underlying parser. Documents typically use only
+ * a handful of names, so the table stays small.
+ * 
+ * A table is not thread-safe. It is usually owned by a single source.
+ */
+public class QnameTable {
+
+    private static final int INITIAL_CAPACITY = 32;
+
+    private Entry[] table = new Entry[INITIAL_CAPACITY];
+    private int size = 0;
+
+    /**
+         * Get the canonical name for a namespace and local name.
+         * 
+         * @param namespace the namespace URI of the name
+         * @param name the local name
+         * @return the canonical name
+         */
+    public Qname get (String namespace, String name) {
+	return lookup(namespace, name).qname;
+    }
+
+    /**
+         * Get the shared end tag for a namespace and local name.
+         * 
+         * @param namespace the namespace URI of the name
+         * @param name the local name
+         * @return an end tag with the canonical name
+         */
+    public EndTag getEndTag (String namespace, String name) {
+	Entry e = lookup(namespace, name);
+	if (e.endTag == null) {
+	    e.endTag = new EndTag(e.qname);
+	}
+	return e.endTag;
+    }
+
+    /**
+         * Get the number of names in the table.
+         */
+    public int size () {
+	return size;
+    }
+
+    private Entry lookup (String namespace, String name) {
+	if (namespace == null || name == null) {
+	    // Let the Qname constructor report it
+	    return new Entry(new Qname(namespace, name), null);
+	}
+	int hash = Qname.hashCode(namespace, name);
+	int i = hash & (table.length - 1);
+	for (Entry e = table[i]; e != null; e = e.next) {
+	    Qname q = e.qname;
+	    if (q.hashCode() == hash && q.getName().equals(name)
+		    && q.getNamespace().equals(namespace)) {
+		return e;
+	    }
+	}
+	Entry e = new Entry(new Qname(namespace, name), table[i]);
+	table[i] = e;
+	if (++size > table.length) {
+	    rehash();
+	}
+	return e;
+    }
+
+    private void rehash () {
+	Entry[] old = table;
+	table = new Entry[2 * old.length];
+	for (int j = 0; j < old.length; j++) {
+	    Entry e = old[j];
+	    while (e != null) {
+		Entry next = e.next;
+		int i = e.qname.hashCode() & (table.length - 1);
+		e.next = table[i];
+		table[i] = e;
+		e = next;
+	    }
+	}
+    }
+
+    private static class Entry {
+
+	Qname qname;
+	EndTag endTag;
+	Entry next;
+
+	Entry (Qname qname, Entry next) {
+	    this.qname = qname;
+	    this.next = next;
+	}
+
+    }
+
+}
+
+// arch-tag: 01d4967b-961a-4da9-b93f-d5a17ade3414
@@ -25,6 +25,12 @@ public class Text extends Item {
 	return data;
     }
 
+    // Used by sources that reuse their items
+    void setData (String data) {
+	Verifier.checkText(data);
+	this.data = data;
+    }
+
     public boolean equals (Object o) {
 	if (this == o) {
 	    return true;
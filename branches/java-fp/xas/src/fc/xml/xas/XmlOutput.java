@@ -14,6 +14,7 @@ package fc.xml.xas;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.StringWriter;
 import java.io.Writer;
 import java.util.Iterator;
 import java.util.Stack;
@@ -23,63 +24,181 @@ import fc.util.log.Log;
 // BUGFIX-20060921-2: the getPrefix methods now throw an exception instead of
 // failing silently by returning null
 
+/**
+ * A serializer of items to XML text. Characters are collected into a buffer,
+ * and runs of characters that need no escaping are copied into it in bulk.
+ * For UTF-8, the buffer is encoded directly into bytes; other encodings go
+ * through an {@link OutputStreamWriter}. The output is flushed to the
+ * underlying stream when the document ends, on {@link #flush()}, and
+ * before bytes are written to the {@link #getOutputStream() output stream}
+ * of this serializer.
+ */
 public class XmlOutput implements SerializerTarget {
 
-    private Writer writer;
+    private static final int BUFFER_SIZE = 4096;
+
+    private OutputStream stream;
+    private Writer writer; // null if encoding UTF-8 ourselves
     private TargetOutputStream out;
     private String encoding;
     private Stack sts;
     private boolean insideDocument;
+    private char[] cbuf = new char[BUFFER_SIZE];
+    private int cpos = 0;
+    private byte[] bbuf;
 
     private void writeValue (String value) throws IOException {
-	for (int i = 0; i < value.length(); i++) {
+	int len = value.length();
+	int start = 0;
+	for (int i = 0; i < len; i++) {
 	    char c = value.charAt(i);
+	    // All escaped characters are at most '<'
+	    if (c > '<') {
+		continue;
+	    }
+	    String esc;
 	    switch (c) {
 	    case '&':
-		writer.write("&amp;");
+		esc = "&amp;";
 		break;
 	    case '<':
-		writer.write("&lt;");
+		esc = "&lt;";
 		break;
 	    case '"':
-		writer.write("&quot;");
+		esc = "&quot;";
 		break;
 	    case 0x9:
-		writer.write("&#x9;");
+		esc = "&#x9;";
 		break;
 	    case 0xA:
-		writer.write("&#xA;");
+		esc = "&#xA;";
 		break;
 	    case 0xD:
-		writer.write("&#xD;");
+		esc = "&#xD;";
 		break;
 	    default:
-		writer.write(c);
+		continue;
 	    }
+	    write(value, start, i);
+	    write(esc);
+	    start = i + 1;
 	}
+	write(value, start, len);
     }
 
     private void writeText (String text) throws IOException {
-	for (int i = 0; i < text.length(); i++) {
+	int len = text.length();
+	int start = 0;
+	for (int i = 0; i < len; i++) {
 	    char c = text.charAt(i);
+	    if (c > '<') {
+		continue;
+	    }
+	    String esc;
 	    switch (c) {
 	    case '&':
-		writer.write("&amp;");
+		esc = "&amp;";
 		break;
 	    case '<':
-		writer.write("&lt;");
+		esc = "&lt;";
 		break;
 	    case 0xD:
-		writer.write("&#xD;");
+		esc = "&#xD;";
 		break;
 	    default:
-		writer.write(c);
+		continue;
+	    }
+	    write(text, start, i);
+	    write(esc);
+	    start = i + 1;
+	}
+	write(text, start, len);
+    }
+
+    private void write (char c) throws IOException {
+	if (cpos == cbuf.length) {
+	    drain();
+	}
+	cbuf[cpos++] = c;
+    }
+
+    private void write (String s) throws IOException {
+	write(s, 0, s.length());
+    }
+
+    // Write characters start..end-1 of s
+    private void write (String s, int start, int end) throws IOException {
+	while (start < end) {
+	    if (cpos == cbuf.length) {
+		drain();
+	    }
+	    int n = Math.min(end - start, cbuf.length - cpos);
+	    s.getChars(start, start + n, cbuf, cpos);
+	    cpos += n;
+	    start += n;
+	}
+    }
+
+    private static boolean isHighSurrogate (char c) {
+	return c >= 0xd800 && c <= 0xdbff;
+    }
+
+    private static boolean isLowSurrogate (char c) {
+	return c >= 0xdc00 && c <= 0xdfff;
+    }
+
+    // Pass the buffered characters on, keeping a trailing high surrogate
+    // in the buffer, as its pair may be in the next write
+    private void drain () throws IOException {
+	if (writer != null) {
+	    writer.write(cbuf, 0, cpos);
+	    cpos = 0;
+	    return;
+	}
+	int n = cpos;
+	if (n > 0 && isHighSurrogate(cbuf[n - 1])) {
+	    n--;
+	}
+	int bpos = 0;
+	for (int i = 0; i < n; i++) {
+	    char c = cbuf[i];
+	    if (c < 0x80) {
+		bbuf[bpos++] = (byte) c;
+	    } else if (c < 0x800) {
+		bbuf[bpos++] = (byte) (0xc0 | (c >> 6));
+		bbuf[bpos++] = (byte) (0x80 | (c & 0x3f));
+	    } else if (isHighSurrogate(c) && i + 1 < n
+		    && isLowSurrogate(cbuf[i + 1])) {
+		int cp = ((c - 0xd800) << 10) + (cbuf[++i] - 0xdc00) + 0x10000;
+		bbuf[bpos++] = (byte) (0xf0 | (cp >> 18));
+		bbuf[bpos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+		bbuf[bpos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+		bbuf[bpos++] = (byte) (0x80 | (cp & 0x3f));
+	    } else if (isHighSurrogate(c)
+		    || isLowSurrogate(c)) {
+		// Unpaired surrogate; replaced like OutputStreamWriter does
+		bbuf[bpos++] = (byte) '?';
+	    } else {
+		bbuf[bpos++] = (byte) (0xe0 | (c >> 12));
+		bbuf[bpos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+		bbuf[bpos++] = (byte) (0x80 | (c & 0x3f));
 	    }
 	}
+	stream.write(bbuf, 0, bpos);
+	cpos -= n;
+	if (cpos > 0) {
+	    cbuf[0] = cbuf[n];
+	}
     }
 
     public XmlOutput (OutputStream out, String encoding) throws IOException {
-	this.writer = new OutputStreamWriter(out, encoding);
+	this.stream = out;
+	if (encoding.equalsIgnoreCase("UTF-8")
+		|| encoding.equalsIgnoreCase("UTF8")) {
+	    this.bbuf = new byte[3 * BUFFER_SIZE];
+	} else {
+	    this.writer = new OutputStreamWriter(out, encoding);
+	}
 	this.out = new TargetOutputStream(this, out);
 	this.encoding = encoding;
 	this.sts = new Stack();
@@ -107,27 +226,27 @@ public class XmlOutput implements SerializerTarget {
 	switch (item.getType()) {
 	case Item.START_DOCUMENT:
 	    if (!insideDocument) {
-		writer.write("<?xml version=\"1.0\" encoding=\"");
-		writer.write(encoding);
-		writer.write("\"?>");
+		write("<?xml version=\"1.0\" encoding=\"");
+		write(encoding);
+		write("\"?>");
 	    } else {
 		throw new IOException(
 		    "Attempt to write StartDocument inside document");
 	    }
 	    break;
 	case Item.END_DOCUMENT:
-	    writer.flush();
+	    flush();
 	    insideDocument = false;
 	    return;
 	case Item.START_TAG: {
 	    StartTag st = (StartTag) item;
-	    writer.write('<');
+	    write('<');
 	    String prefix = st.getPrefix();
 	    if (prefix.length() > 0) {
-		writer.write(prefix);
-		writer.write(':');
+		write(prefix);
+		write(':');
 	    }
-	    writer.write(st.getName().getName());
+	    write(st.getName().getName());
 	    Iterator<PrefixNode> it = null;
 	    if (st.getContext() != null && sts.peek() == null) {
 		it = st.detachedPrefixes();
@@ -136,33 +255,33 @@ public class XmlOutput implements SerializerTarget {
 	    }
 	    while (it.hasNext()) {
 		PrefixNode pn = it.next();
-		writer.write(" xmlns");
+		write(" xmlns");
 		String pr = pn.getPrefix();
 		if (pr.length() > 0) {
-		    writer.write(':');
-		    writer.write(pn.getPrefix());
+		    write(':');
+		    write(pn.getPrefix());
 		}
-		writer.write("=\"");
-		writer.write(pn.getNamespace());
-		writer.write('"');
+		write("=\"");
+		write(pn.getNamespace());
+		write('"');
 	    }
 	    sts.push(st);
 	    for (Iterator<AttributeNode> ait = st.attributes(); ait.hasNext();) {
 		AttributeNode an = ait.next();
-		writer.write(' ');
+		write(' ');
 		String ans = an.getName().getNamespace();
 		if (ans.length() > 0) {
 		    String pr = st.getPrefix(an.getName().getNamespace());
 		    if (pr.length() > 0) {
-			writer.write(pr);
-			writer.write(':');
+			write(pr);
+			write(':');
 		    }
 		}
-		writer.write(an.getName().getName());
-		writer.write("=\"");
+		write(an.getName().getName());
+		write("=\"");
 		Object value = an.getValue();
 		if (value instanceof SerializableItem) {
-		    writer.flush();
+		    flush();
 		    ((SerializableItem) value).serialize(XasUtil.XML_MIME_TYPE,
 			this);
 		} else if (value instanceof String) {
@@ -171,27 +290,27 @@ public class XmlOutput implements SerializerTarget {
 		    throw new IOException("Value of attribute " + an
 			+ " not serializable");
 		}
-		writer.write('"');
+		write('"');
 	    }
-	    writer.write('>');
+	    write('>');
 	    break;
 	}
 	case Item.END_TAG: {
 	    EndTag et = (EndTag) item;
 	    StartTag st = (StartTag) sts.pop();
-	    writer.write("</");
+	    write("</");
 	    if (st != null) {
 		String pr = st.getPrefix(et.getName().getNamespace());
 		if (pr.length() > 0) {
-		    writer.write(pr);
-		    writer.write(':');
+		    write(pr);
+		    write(':');
 		}
 	    } else {
 		throw new IOException("Superfluous end tag " + et.getName()
 		    + " encountered");
 	    }
-	    writer.write(et.getName().getName());
-	    writer.write('>');
+	    write(et.getName().getName());
+	    write('>');
 	    break;
 	}
 	case Item.TEXT: {
@@ -201,51 +320,53 @@ public class XmlOutput implements SerializerTarget {
 	}
 	case Item.PI: {
 	    Pi p = (Pi) item;
-	    writer.write("<?");
-	    writer.write(p.getTarget());
+	    write("<?");
+	    write(p.getTarget());
 	    String instruction = p.getInstruction();
 	    if (instruction.length() > 0) {
-		writer.write(' ');
-		writer.write(instruction);
+		write(' ');
+		write(instruction);
 	    }
-	    writer.write("?>");
+	    write("?>");
 	    break;
 	}
 	case Item.COMMENT: {
 	    Comment c = (Comment) item;
-	    writer.write("<!--");
-	    writer.write(c.getText());
-	    writer.write("-->");
+	    write("<!--");
+	    write(c.getText());
+	    write("-->");
 	    break;
 	}
 	case Item.ENTITY_REF: {
 	    EntityRef e = (EntityRef) item;
-	    writer.write('&');
-	    writer.write(e.getName());
-	    writer.write(';');
+	    write('&');
+	    write(e.getName());
+	    write(';');
 	    break;
 	}
 	case Item.DOCTYPE: {
 	    Doctype dtd = (Doctype) item;
-	    writer.write("<!DOCTYPE ");
-	    writer.write(dtd.getName());
-	    writer.write(' ');
+	    write("<!DOCTYPE ");
+	    write(dtd.getName());
+	    write(' ');
 	    String publicId = dtd.getPublicId();
 	    if (publicId != null) {
-		writer.write("PUBLIC \"");
-		writer.write(publicId);
-		writer.write('"');
+		write("PUBLIC \"");
+		write(publicId);
+		write('"');
 	    } else {
-		writer.write("SYSTEM");
+		write("SYSTEM");
 	    }
-	    writer.write(' ');
-	    dtd.outputSystemLiteral(writer);
-	    writer.write('>');
+	    write(' ');
+	    StringWriter wr = new StringWriter();
+	    dtd.outputSystemLiteral(wr);
+	    write(wr.toString());
+	    write('>');
 	    break;
 	}
 	default:
 	    if (item instanceof SerializableItem) {
-		writer.flush();
+		flush();
 		((SerializableItem) item)
 		    .serialize(XasUtil.XML_MIME_TYPE, this);
 	    } else if (item instanceof AppendableItem) {
@@ -260,7 +381,12 @@ public class XmlOutput implements SerializerTarget {
     }
 
     public void flush () throws IOException {
-	writer.flush();
+	drain();
+	if (writer != null) {
+	    writer.flush();
+	} else {
+	    stream.flush();
+	}
     }
 
 }
@@ -19,6 +19,11 @@ import java.util.Stack;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
+/**
+ * A source of items parsed by an XML pull parser. Names are canonicalized
+ * with a per-source {@link QnameTable}, so repeated names share one
+ * {@link Qname}, and end tags with the same name are the same object.
+ */
 public class XmlPullSource implements ParserSource {
 
     private XmlPullParser parser;
@@ -26,6 +31,8 @@ public class XmlPullSource implements ParserSource {
     private boolean inProgress;
     private boolean atStart;
     private Stack sts = new Stack();
+    private QnameTable names = new QnameTable();
+    private Text text = null; // Reused text item, if any
 
     // XXX - this needs to be eliminated
     public XmlPullSource (XmlPullParser parser, InputStream in, Reader reader) {
@@ -62,6 +69,26 @@ public class XmlPullSource implements ParserSource {
 	atStart = true;
     }
 
+    /**
+         * Set whether items are reused. When set, the source returns the same
+         * {@link Text} object for every text item, so a text item is valid
+         * only until the next call to {@link #next()}. This is intended for
+         * passes that stream each item through without keeping it. Start
+         * tags are never reused, as they are the context of later items.
+         * 
+         * @param reuse <code>true</code> to reuse items
+         */
+    public void setReuseItems (boolean reuse) {
+	text = reuse ? new Text("") : null;
+    }
+
+    /**
+         * Get the table used to canonicalize names of this source.
+         */
+    public QnameTable getQnameTable () {
+	return names;
+    }
+
     public Item next () throws IOException {
 	Item result = null;
 	if (inProgress) {
@@ -84,7 +111,7 @@ public class XmlPullSource implements ParserSource {
 			inProgress = false;
 			break;
 		    case XmlPullParser.START_TAG: {
-			StartTag st = new StartTag(new Qname(parser
+			StartTag st = new StartTag(names.get(parser
 			    .getNamespace(), parser.getName()), (StartTag) sts.peek());
 			int start = parser
 			    .getNamespaceCount(parser.getDepth() - 1);
@@ -99,7 +126,7 @@ public class XmlPullSource implements ParserSource {
 			}
 			int atts = parser.getAttributeCount();
 			for (int i = 0; i < atts; i++) {
-			    st.addAttribute(new Qname(parser
+			    st.addAttribute(names.get(parser
 				.getAttributeNamespace(i), parser
 				.getAttributeName(i)), parser
 				.getAttributeValue(i));
@@ -109,12 +136,17 @@ public class XmlPullSource implements ParserSource {
 			break;
 		    }
 		    case XmlPullParser.END_TAG:
-			result = new EndTag(new Qname(parser.getNamespace(),
-			    parser.getName()));
+			result = names.getEndTag(parser.getNamespace(),
+			    parser.getName());
 			sts.pop();
 			break;
 		    case XmlPullParser.TEXT:
-			result = new Text(parser.getText());
+			if (text != null) {
+			    text.setData(parser.getText());
+			    result = text;
+			} else {
+			    result = new Text(parser.getText());
+			}
 			break;
 		    case XmlPullParser.ENTITY_REF: {
 			String name = parser.getName();
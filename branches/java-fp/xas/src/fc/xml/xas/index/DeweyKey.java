@@ -11,7 +11,8 @@
 
 package fc.xml.xas.index;
 
-import fc.util.Util;
+import java.util.Arrays;
+
 import fc.xml.xas.Verifier;
 
 /**
@@ -24,17 +25,26 @@ import fc.xml.xas.Verifier;
  * containing non-negative values. The root key corresponds to an empty array.
  * The class has methods for converting in either direction between these
  * representations.
+ * 
+ * A key is stored as its components packed into a byte array, 7 bits per
+ * byte with the high bit set on all but the last byte of a component, so
+ * that most components take a single byte. The hash code and size are
+ * computed at construction, so hashing, comparison, and {@link #size()} do
+ * not need to walk a chain of ancestor keys. Deriving a key from another
+ * copies the packed bytes.
  */
 public final class DeweyKey {
 
-    private static final DeweyKey ROOT = new DeweyKey(null, 0);
+    private static final DeweyKey ROOT = new DeweyKey(new byte[0], 0, 0);
 
-    private DeweyKey parent;
-    private int value;
+    private final byte[] steps;
+    private final int size;
+    private final int hash;
 
-    private DeweyKey (DeweyKey parent, int value) {
-	this.parent = parent;
-	this.value = value;
+    private DeweyKey (byte[] steps, int size, int hash) {
+	this.steps = steps;
+	this.size = size;
+	this.hash = hash;
     }
 
     /**
@@ -64,14 +74,15 @@ public final class DeweyKey {
 	    throw new IllegalArgumentException("DeweyKey component " + value
 		    + " negative");
 	}
-	return new DeweyKey(ROOT, value);
+	return ROOT.child(value);
     }
 
-    private static DeweyKey construct (int[] path, int last) {
-	if (last == 0) {
-	    return topLevel(path[0]);
-	} else {
-	    return construct(path, last - 1).child(path[last]);
+    private static void checkPath (int[] path, int offset, int length) {
+	for (int i = offset; i < offset + length; i++) {
+	    if (path[i] < 0) {
+		throw new IllegalArgumentException("Negative value " + path[i]
+			+ " not allowed as DeweyKey component");
+	    }
 	}
     }
 
@@ -96,11 +107,23 @@ public final class DeweyKey {
          * @param length the number of indices to append
          */
     public DeweyKey append (int[] path, int offset, int length) {
-	DeweyKey k = this;
-	for (int i = 0; i < length; i++) {
-	    k = k.child(path[offset + i]);
+	if (length == 0) {
+	    return this;
+	}
+	checkPath(path, offset, length);
+	int n = steps.length;
+	int h = hash;
+	for (int i = offset; i < offset + length; i++) {
+	    n += packedLength(path[i]);
+	    h = 37 * h + path[i];
 	}
-	return k;
+	byte[] b = new byte[n];
+	System.arraycopy(steps, 0, b, 0, steps.length);
+	n = steps.length;
+	for (int i = offset; i < offset + length; i++) {
+	    n = pack(path[i], b, n);
+	}
+	return new DeweyKey(b, size + length, h);
     }
 
     /**
@@ -112,7 +135,7 @@ public final class DeweyKey {
 	if (path == null || path.length == 0) {
 	    return ROOT;
 	} else {
-	    return construct(path, path.length - 1);
+	    return ROOT.append(path, 0, path.length);
 	}
     }
 
@@ -132,45 +155,43 @@ public final class DeweyKey {
 	    throw new IllegalArgumentException("offset=" + offset + ",length="
 		    + length);
 	}
-	if (length == 1) {
-	    return topLevel(path[offset]);
-	} else {
-	    return construct(path, offset, length - 1);
-	}
-    }
-
-    private int[] deconstruct (int depth) {
-	int[] result;
-	if (parent.isRoot()) {
-	    result = new int[depth + 1];
-	    result[0] = value;
-	} else {
-	    result = parent.deconstruct(depth + 1);
-	    result[result.length - depth - 1] = value;
-	}
-	return result;
+	return ROOT.append(path, offset, length);
     }
 
     /**
          * Convert a Dewey key to an integer array.
          */
     public int[] deconstruct () {
-	if (isRoot()) {
-	    return new int[0];
-	} else {
-	    return deconstruct(0);
+	int[] path = new int[size];
+	int pos = 0;
+	for (int i = 0; i < size; i++) {
+	    int v = 0;
+	    for (int shift = 0;; shift += 7) {
+		byte b = steps[pos++];
+		v |= (b & 0x7f) << shift;
+		if (b >= 0) {
+		    break;
+		}
+	    }
+	    path[i] = v;
 	}
+	return path;
     }
 
     public boolean isRoot () {
-	return this == ROOT;
+	return size == 0;
     }
 
     public DeweyKey up () {
 	if (isRoot()) {
 	    throw new IllegalStateException("Cannot go up from root DeweyKey");
 	}
-	return parent;
+	if (size == 1) {
+	    return ROOT;
+	}
+	byte[] b = new byte[lastStart()];
+	System.arraycopy(steps, 0, b, 0, b.length);
+	return new DeweyKey(b, size - 1, hashOf(b));
     }
 
     public DeweyKey next () {
@@ -178,17 +199,17 @@ public final class DeweyKey {
 	    throw new IllegalStateException(
 		"Root DeweyKey does not have a next key");
 	}
-	return new DeweyKey(parent, value + 1);
+	return sibling(getLastStep() + 1, 1);
     }
 
     public DeweyKey prev () {
 	if (isRoot()) {
 	    throw new IllegalStateException(
 		"Root DeweyKey does not have a previous key");
-	} else if (value == 0) {
+	} else if (getLastStep() == 0) {
 	    throw new IllegalStateException("Key " + this + " is first child");
 	} else {
-	    return new DeweyKey(parent, value - 1);
+	    return sibling(getLastStep() - 1, -1);
 	}
     }
 
@@ -201,31 +222,29 @@ public final class DeweyKey {
 	    throw new IllegalArgumentException("Negative value " + value
 		    + " not allowed as DeweyKey component");
 	}
-	return new DeweyKey(this, value);
+	byte[] b = new byte[steps.length + packedLength(value)];
+	System.arraycopy(steps, 0, b, 0, steps.length);
+	pack(value, b, steps.length);
+	return new DeweyKey(b, size + 1, 37 * hash + value);
     }
 
     public DeweyKey next (DeweyKey ancestor) {
 	Verifier.checkNotNull(ancestor);
-	if (Util.equals(parent, ancestor)) {
-	    return next();
-	} else if (parent.isRoot()) {
-	    throw new IllegalArgumentException("Key " + ancestor
-		    + " not an ancestor of " + this);
-	} else {
-	    return parent.next(ancestor).child(value);
-	}
+	int[] path = deconstruct();
+	checkAncestor(ancestor);
+	return step(path, ancestor.size, 1);
     }
 
     public DeweyKey prev (DeweyKey ancestor) {
 	Verifier.checkNotNull(ancestor);
-	if (Util.equals(parent, ancestor)) {
-	    return prev();
-	} else if (parent.isRoot()) {
-	    throw new IllegalArgumentException("Key " + ancestor
-		    + " not an ancestor of " + this);
-	} else {
-	    return parent.prev(ancestor).child(value);
+	int[] path = deconstruct();
+	checkAncestor(ancestor);
+	int i = ancestor.size;
+	if (path[i] == 0) {
+	    throw new IllegalStateException("Key " + prefix(path, i + 1)
+		    + " is first child");
 	}
+	return step(path, i, -1);
     }
 
     public DeweyKey replaceAncestorSelf (DeweyKey old, DeweyKey repl) {
@@ -241,31 +260,20 @@ public final class DeweyKey {
     public DeweyKey replaceAncestor (DeweyKey old, DeweyKey repl) {
 	Verifier.checkNotNull(old);
 	Verifier.checkNotNull(repl);
-	if (Util.equals(parent, old)) {
-	    if (repl.isRoot()) {
-		return DeweyKey.topLevel(value);
-	    } else {
-		return repl.child(value);
-	    }
-	} else if (parent == null || parent.isRoot()) { 
-	    // BUGFIX-20061215-1: Null check for parent (catches doing 
-	    // replaceAncestor on ROOT); w/o it we get an NPX
-	    throw new IllegalArgumentException("Key " + old
-		    + " not an ancestor of " + this);
-	} else {
-	    return parent.replaceAncestor(old, repl).child(value);
-	}
+	int[] path = deconstruct();
+	checkAncestor(old);
+	int n = old.size;
+	return repl.append(path, n, path.length - n);
     }
 
     public boolean isChild (DeweyKey key) {
 	Verifier.checkNotNull(key);
-	return Util.equals(parent, key);
+	return size == key.size + 1 && isPrefix(key);
     }
 
     public boolean isDescendant (DeweyKey key) {
 	Verifier.checkNotNull(key);
-	return key.isRoot() || isChild(key)
-		|| (!parent.isRoot() && parent.isDescendant(key));
+	return key.isRoot() || (size > key.size && isPrefix(key));
     }
 
     public boolean isDescendantSelf (DeweyKey key) {
@@ -275,8 +283,12 @@ public final class DeweyKey {
 
     public boolean precedeSibling (DeweyKey key) {
 	Verifier.checkNotNull(key);
-	return !key.isRoot() && Util.equals(parent, key.parent)
-		&& value < key.value;
+	if (size == 0 || size != key.size) {
+	    return false;
+	}
+	int[] path = deconstruct(), kpath = key.deconstruct();
+	return commonLength(path, kpath) == size - 1
+		&& path[size - 1] < kpath[size - 1];
     }
 
     public boolean followSibling (DeweyKey key) {
@@ -289,51 +301,40 @@ public final class DeweyKey {
 	if (key.isRoot()) {
 	    return false;
 	}
-	DeweyKey targetKey = key.parent;
-	int targetValue = key.value;
-	DeweyKey currentKey = parent;
-	int currentValue = value;
-	if (targetKey.isRoot()) {
-	    while (!currentKey.isRoot()) {
-		currentValue = currentKey.value;
-		currentKey = currentKey.parent;
-	    }
-	    return currentValue > targetValue;
-	} else {
-	    while (!currentKey.isRoot() && !currentKey.equals(targetKey)) {
-		currentValue = currentKey.value;
-		currentKey = currentKey.parent;
-	    }
-	    if (currentKey.isRoot()) {
-		return false;
-	    } else {
-		return currentValue > targetValue;
-	    }
+	int n = key.size - 1;
+	if (size <= n) {
+	    return false;
 	}
+	int[] path = deconstruct(), kpath = key.deconstruct();
+	return commonLength(path, kpath) >= n && path[n] > kpath[n];
     }
 
     public DeweyKey commonAncestor (DeweyKey key) {
 	Verifier.checkNotNull(key);
-	while (!this.isDescendant(key)) {
-	    key = key.parent;
-	}
-	return key;
+	int[] kpath = key.deconstruct();
+	int n = Math.max(0, Math.min(commonLength(deconstruct(), kpath),
+	    size - 1));
+	return n == key.size ? key : prefix(kpath, n);
     }
 
     public int getLastStep () {
-	return value;
-    }
-
-    public int size () {
 	if (isRoot()) {
 	    return 0;
-	} else {
-	    return parent.size() + 1;
 	}
+	int start = lastStart();
+	int v = 0;
+	for (int shift = 0; start < steps.length; shift += 7) {
+	    v |= (steps[start++] & 0x7f) << shift;
+	}
+	return v;
+    }
+
+    public int size () {
+	return size;
     }
 
     public int hashCode () {
-	return 37 * Util.hashCode(parent) + value;
+	return hash;
     }
 
     public boolean equals (Object o) {
@@ -343,18 +344,136 @@ public final class DeweyKey {
 	    return false;
 	} else {
 	    DeweyKey d = (DeweyKey) o;
-	    return value == d.value && Util.equals(parent, d.parent);
+	    return hash == d.hash && size == d.size
+		    && Arrays.equals(steps, d.steps);
 	}
     }
 
     public String toString () {
 	if (isRoot()) {
 	    return "/";
-	} else if (parent.isRoot()) {
-	    return "/" + value;
-	} else {
-	    return parent.toString() + "/" + value;
 	}
+	int[] path = deconstruct();
+	StringBuffer sb = new StringBuffer(4 * path.length);
+	for (int i = 0; i < path.length; i++) {
+	    sb.append('/').append(path[i]);
+	}
+	return sb.toString();
+    }
+
+    /**
+         * Get the packed components of this key. The returned array must not
+         * be modified.
+         */
+    byte[] getSteps () {
+	return steps;
+    }
+
+    /**
+         * Get the key with the given packed components.
+         * 
+         * @param steps packed components, as returned by {@link #getSteps()}
+         */
+    static DeweyKey fromSteps (byte[] steps) {
+	int size = 0;
+	for (int i = 0; i < steps.length; i++) {
+	    if (steps[i] >= 0) {
+		size++;
+	    }
+	}
+	return size == 0 ? ROOT : new DeweyKey(steps, size, hashOf(steps));
+    }
+
+    private static int packedLength (int value) {
+	int n = 1;
+	while ((value >>>= 7) != 0) {
+	    n++;
+	}
+	return n;
+    }
+
+    // Pack value into b at pos; returns position after value
+    private static int pack (int value, byte[] b, int pos) {
+	while ((value & ~0x7f) != 0) {
+	    b[pos++] = (byte) ((value & 0x7f) | 0x80);
+	    value >>>= 7;
+	}
+	b[pos++] = (byte) value;
+	return pos;
+    }
+
+    private static int hashOf (byte[] b) {
+	int h = 0, v = 0, shift = 0;
+	for (int i = 0; i < b.length; i++) {
+	    v |= (b[i] & 0x7f) << shift;
+	    shift += 7;
+	    if (b[i] >= 0) {
+		h = 37 * h + v;
+		v = 0;
+		shift = 0;
+	    }
+	}
+	return h;
+    }
+
+    // Start of the packed last component
+    private int lastStart () {
+	int i = steps.length - 1;
+	while (i > 0 && steps[i - 1] < 0) {
+	    i--;
+	}
+	return i;
+    }
+
+    // True if the packed components of key are a prefix of ours
+    private boolean isPrefix (DeweyKey key) {
+	if (key.steps.length > steps.length) {
+	    return false;
+	}
+	for (int i = key.steps.length - 1; i >= 0; i--) {
+	    if (steps[i] != key.steps[i]) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    // Number of leading components shared by two paths
+    private static int commonLength (int[] a, int[] b) {
+	int n = Math.min(a.length, b.length);
+	for (int i = 0; i < n; i++) {
+	    if (a[i] != b[i]) {
+		return i;
+	    }
+	}
+	return n;
+    }
+
+    private void checkAncestor (DeweyKey ancestor) {
+	if (size <= ancestor.size || !isPrefix(ancestor)) {
+	    throw new IllegalArgumentException("Key " + ancestor
+		    + " not an ancestor of " + this);
+	}
+    }
+
+    private static DeweyKey prefix (int[] path, int length) {
+	return ROOT.append(path, 0, length);
+    }
+
+    // Key with the last component replaced by value, which is the old
+    // value plus delta
+    private DeweyKey sibling (int value, int delta) {
+	int start = lastStart();
+	byte[] b = new byte[start + packedLength(value)];
+	System.arraycopy(steps, 0, b, 0, start);
+	pack(value, b, start);
+	return new DeweyKey(b, size, hash + delta);
+    }
+
+    // Key with component i of path changed by delta
+    private static DeweyKey step (int[] path, int i, int delta) {
+	path[i] += delta;
+	return ROOT.append(path, 0, path.length);
     }
 
 }
@@ -12,8 +12,7 @@
 package fc.xml.xas.index;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 import java.util.Stack;
 
 import fc.xml.xas.Item;
@@ -28,13 +27,26 @@ import fc.xml.xas.StartTag;
  * 
  * Currently in XAS there is no versioned index, even though both
  * {@link DeweyKey} and {@link Index.Entry} have versioned counterparts.
+ * 
+ * The index is an open-addressing hash table keyed by the packed components
+ * of the Dewey keys, with the offsets and lengths of the entries in
+ * primitive arrays, so an entry takes only its packed key until it is looked
+ * up. Offsets are <code>long</code>s.
  */
 public class Index {
 
     private static final long serialVersionUID = 0xDEADL;
 
+    private static final int INITIAL_CAPACITY = 64;
+
     private transient SeekableSource source;
-    private Map index;
+    // Table of size a power of two, at most 3/4 full; empty slots have null key
+    private byte[][] keys;
+    private int[] hashes;
+    private long[] offsets;
+    private long[] lengths;
+    private StartTag[] contexts;
+    private int size;
 
     private Index () {
     }
@@ -47,7 +59,7 @@ public class Index {
          */
     public Index (SeekableSource source) {
 	this.source = source;
-	this.index = new HashMap();
+	allocate(INITIAL_CAPACITY);
     }
 
     public SeekableSource getSource () {
@@ -59,7 +71,11 @@ public class Index {
     }
 
     public Entry find (DeweyKey key) {
-	return (Entry) index.get(key);
+	int i = slot(keys, hashes, key.getSteps(), key.hashCode());
+	if (keys[i] == null) {
+	    return null;
+	}
+	return new Entry(offsets[i], lengths[i], contexts[i]);
     }
 
     /**
@@ -71,9 +87,35 @@ public class Index {
          * @param context the processing context of the new entry
          */
     public void insert (DeweyKey key, int start, int end, StartTag context) {
+	insert(key, (long) start, (long) end, context);
+    }
+
+    /**
+         * Insert an entry with specified start and end offsets.
+         * 
+         * @param key the {@link DeweyKey} of the new entry
+         * @param start the starting offset of the new entry
+         * @param end the ending offset of the new entry
+         * @param context the processing context of the new entry
+         */
+    public void insert (DeweyKey key, long start, long end, StartTag context) {
 //	assert start <= end : String.valueOf(start) + ", " + end + ", " + key
 //		+ ", " + context;
-	index.put(key, new Entry(start, end - start, context));
+	byte[] steps = key.getSteps();
+	int hash = key.hashCode();
+	int i = slot(keys, hashes, steps, hash);
+	if (keys[i] == null) {
+	    if (4 * (size + 1) > 3 * keys.length) {
+		allocate(2 * keys.length);
+		i = slot(keys, hashes, steps, hash);
+	    }
+	    keys[i] = steps;
+	    hashes[i] = hash;
+	    size++;
+	}
+	offsets[i] = start;
+	lengths[i] = end - start;
+	contexts[i] = context;
     }
 
     /**
@@ -101,11 +143,69 @@ public class Index {
     }
 
     public int size () {
-	return index.size();
+	return size;
     }
 
     public String toString () {
-	return "In(" + index + ")";
+	StringBuffer sb = new StringBuffer("In({");
+	boolean first = true;
+	for (int i = 0; i < keys.length; i++) {
+	    if (keys[i] != null) {
+		if (!first) {
+		    sb.append(", ");
+		}
+		first = false;
+		sb.append(DeweyKey.fromSteps(keys[i])).append('=').append(
+		    new Entry(offsets[i], lengths[i], contexts[i]));
+	    }
+	}
+	return sb.append("})").toString();
+    }
+
+    // Slot of key in table, or the empty slot where it would go
+    private static int slot (byte[][] keys, int[] hashes, byte[] steps,
+	    int hash) {
+	// Dewey key hashes of nearby keys are close, so mix all bits to avoid
+	// long probe runs
+	int h = hash;
+	h ^= h >>> 16;
+	h *= 0x85ebca6b;
+	h ^= h >>> 13;
+	h *= 0xc2b2ae35;
+	h ^= h >>> 16;
+	int mask = keys.length - 1;
+	int i = h & mask;
+	while (keys[i] != null
+		&& (hashes[i] != hash || !Arrays.equals(keys[i], steps))) {
+	    i = (i + 1) & mask;
+	}
+	return i;
+    }
+
+    private void allocate (int capacity) {
+	byte[][] oldKeys = keys;
+	int[] oldHashes = hashes;
+	long[] oldOffsets = offsets;
+	long[] oldLengths = lengths;
+	StartTag[] oldContexts = contexts;
+	keys = new byte[capacity][];
+	hashes = new int[capacity];
+	offsets = new long[capacity];
+	lengths = new long[capacity];
+	contexts = new StartTag[capacity];
+	if (oldKeys == null) {
+	    return;
+	}
+	for (int j = 0; j < oldKeys.length; j++) {
+	    if (oldKeys[j] != null) {
+		int i = slot(keys, hashes, oldKeys[j], oldHashes[j]);
+		keys[i] = oldKeys[j];
+		hashes[i] = oldHashes[j];
+		offsets[i] = oldOffsets[j];
+		lengths[i] = oldLengths[j];
+		contexts[i] = oldContexts[j];
+	    }
+	}
     }
 
     private static Index build (SeekableSource source, boolean indexAll,
@@ -115,35 +215,42 @@ public class Index {
 	StartTag context = null;
 	Stack sts = new Stack();
 	sts.push(null);
-	Stack ps = new Stack();
+	// Stack of start positions
+	long[] ps = new long[16];
+	int pc = 0;
 	boolean isText = false;
 	Item item;
 	while ((item = source.next()) != null) {
 	    if (isText && !Item.isContent(item)) {
-		Integer pos = (Integer) ps.pop();
+		long pos = ps[--pc];
 		if (indexAll) {
-		    index.insert(k, pos.intValue(), source.getPreviousPosition(), context);
+		    index.insert(k, pos, source.getPreviousPosition(), context);
 		}
 		k = k.next();
 		isText = false;
 	    }
+	    if (pc == ps.length) {
+		long[] nps = new long[2 * pc];
+		System.arraycopy(ps, 0, nps, 0, pc);
+		ps = nps;
+	    }
 	    if (Item.isStartTag(item)) {
 		context = (StartTag) item;
 		sts.push(context);
-		ps.push(new Integer(source.getPreviousPosition()));
+		ps[pc++] = source.getPreviousPosition();
 		k = k.down();
 	    } else if (Item.isEndTag(item)) {
 		sts.pop();
 		context = (StartTag) sts.peek();
 		k = k.up();
-		Integer pos = (Integer) ps.pop();
+		long pos = ps[--pc];
 		if (depth >= sts.size()) {
-		    index.insert(k, pos.intValue(), source.getCurrentPosition(), context);
+		    index.insert(k, pos, source.getCurrentPosition(), context);
 		}
 		k = k.next();
 	    } else if (Item.isContent(item)) {
 		if (!isText) {
-		    ps.push(new Integer(source.getPreviousPosition()));
+		    ps[pc++] = source.getPreviousPosition();
 		}
 		isText = true;
 	    } else if (Item.isDocumentDelimiter(item)) {
@@ -228,14 +335,21 @@ public class Index {
          * representing the complete document is <code>-1</code> instead of
          * <code>0</code> to make it possible to distinguish it from the root
          * element's starting offset.
+         * 
+         * Offsets are <code>long</code>s. The <code>int</code> accessors
+         * throw an {@link IllegalStateException} for offsets beyond 2 GB.
          */
     public static class Entry {
 
-	private int offset;
-	private int length;
+	private long offset;
+	private long length;
 	private StartTag context;
 
 	public Entry (int offset, int length, StartTag context) {
+	    this((long) offset, (long) length, context);
+	}
+
+	public Entry (long offset, long length, StartTag context) {
 	    this.offset = offset;
 	    this.length = length;
 	    this.context = context;
@@ -245,20 +359,41 @@ public class Index {
          * Get the starting offset of the entry.
          */
 	public int getOffset () {
-	    return offset;
+	    return checkInt(offset);
 	}
 
 	/**
          * Get the length of the entry.
          */
 	public int getLength () {
-	    return length;
+	    return checkInt(length);
 	}
 
 	/**
          * Get the ending offset of the entry.
          */
 	public int getEnd () {
+	    return checkInt(offset + length);
+	}
+
+	/**
+         * Get the starting offset of the entry as a <code>long</code>.
+         */
+	public long getLongOffset () {
+	    return offset;
+	}
+
+	/**
+         * Get the length of the entry as a <code>long</code>.
+         */
+	public long getLongLength () {
+	    return length;
+	}
+
+	/**
+         * Get the ending offset of the entry as a <code>long</code>.
+         */
+	public long getLongEnd () {
 	    return offset + length;
 	}
 
@@ -271,6 +406,14 @@ public class Index {
 		    + (context == null ? "/" : context.getName().toString()) + "}";
 	}
 
+	private static int checkInt (long value) {
+	    if (value > Integer.MAX_VALUE) {
+		throw new IllegalStateException("Offset " + value
+			+ " beyond int range");
+	    }
+	    return (int) value;
+	}
+
     }
 
 }
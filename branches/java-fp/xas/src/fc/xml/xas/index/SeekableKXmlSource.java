@@ -22,6 +22,7 @@ import org.xmlpull.v1.XmlPullParserException;
 
 import fc.util.BaInputStream;
 import fc.util.RaInputStream;
+import fc.util.SeekableInputStream;
 import fc.util.Utf8Reader;
 import fc.xml.xas.Item;
 import fc.xml.xas.StartTag;
@@ -31,21 +32,30 @@ public class SeekableKXmlSource implements SeekableParserSource {
 
     private XmlPullSource source;
     private KXmlParser parser;
-    private RaInputStream ra;
+    private SeekableInputStream ra;
 
     public SeekableKXmlSource (RaInputStream rin) throws FileNotFoundException {
+	this((SeekableInputStream) rin);
+    }
+
+    /** Create source reading a seekable stream. 
+     *
+     * @param sin stream to read. Must be an {@link InputStream}.
+     */
+    public SeekableKXmlSource (SeekableInputStream sin) {
 	parser = new KXmlParser();
-	ra = rin;
+	ra = sin;
 	Reader reader = new Utf8Reader(ra);
-	source = new XmlPullSource(parser, ra, reader);
+	source = new XmlPullSource(parser, (InputStream) ra, reader);
     }
 
     public SeekableKXmlSource (String file) throws FileNotFoundException {
 	parser = new KXmlParser();
 	RandomAccessFile raf = new RandomAccessFile(file, "r");
-	ra = new RaInputStream(raf);
-	Reader reader = new Utf8Reader(ra);
-	source = new XmlPullSource(parser, ra, reader);
+	RaInputStream rin = new RaInputStream(raf);
+	ra = rin;
+	Reader reader = new Utf8Reader(rin);
+	source = new XmlPullSource(parser, rin, reader);
     }
 
     public SeekableKXmlSource (byte[] buffer, int offset, int length) {